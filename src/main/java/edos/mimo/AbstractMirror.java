@@ -44,6 +44,7 @@ public class AbstractMirror implements IMirror {
 	private AnalysisLevel analysis;
 	private boolean online = false;
 	private String cronExpression = "0 0 2 * * ? *";	//default is everyday at 2am
+	private int crawlConnections = 1;	// default is a serial crawl over a single connection
 	protected IMirrorStructure structure; 
 	protected int storageFormat = Config.TREE; // type of structure
 	//protected long checkinTime = -1;
@@ -271,7 +272,7 @@ public class AbstractMirror implements IMirror {
 	 * @see edos.mimo.IMirror#acquire()
 	 */
 	public void acquire() throws IOException  {
-		structure = new TreeMirrorStructure(this);
+		structure = MirrorStructureFactory.keep(new TreeMirrorStructure(this));
 	}
 
 	/**
@@ -280,7 +281,7 @@ public class AbstractMirror implements IMirror {
 	 * @throws IOException 
 	 */
 	public void acquire(AnalysisLevel analysis) throws IOException {
-		structure = new TreeMirrorStructure(this, analysis);
+		structure = MirrorStructureFactory.keep(new TreeMirrorStructure(this, analysis));
 	}
 	
 	/**
@@ -351,6 +352,22 @@ public class AbstractMirror implements IMirror {
 		return conn;
 	}
 
+	/**
+	 * Opens a new connection to this mirror with the active pass,
+	 * besides the mirror connection (eg. to crawl it in parallel).
+	 * The caller is responsible for closing it.
+	 * @return a connected <code>IConnection</code>
+	 * @throws IOException
+	 */
+	public IConnection openConnection() throws IOException {
+		if(pass == null)
+			throw new IOException("Unable to connect: no active pass for " + name);
+		
+		IConnection c = ConnectionFactory.getInstance().getConnection(pass);
+		c.connect();
+		return c;
+	}
+
 	public AnalysisLevel getAnalysis() {
 		return analysis;
 	}
@@ -502,6 +519,19 @@ public class AbstractMirror implements IMirror {
 		cronExpression = cronExp;
 	}
 
+	/**
+	 * Tells how many connections may be opened at once to this
+	 * mirror in order to list its directories in parallel.
+	 * @return at least 1 (serial crawl)
+	 */
+	public int getCrawlConnections() {
+		return crawlConnections;
+	}
+
+	public void setCrawlConnections(int connections) {
+		crawlConnections = (connections < 1)?1:connections;
+	}
+
 	/**
 	 * Tells if a mirror is workable or not.
 	 * 
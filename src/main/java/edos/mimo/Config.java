@@ -25,12 +25,23 @@ import org.dom4j.DocumentException;
 import org.dom4j.io.SAXReader;
 import org.dom4j.Element;
 
+import edos.mimo.dal.ConnectionPool;
+import edos.mimo.dal.retention.RetentionPolicy;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.filesystem.NamePool;
+import edos.mimo.job.TriggerSpread;
+import edos.mimo.pipeline.Pipeline;
+import edos.mimo.polling.PollingPolicy;
 
 import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class Config {
 	// class started before the logging system
@@ -48,22 +59,77 @@ public class Config {
 	private MirrorFactory mirrorFactory;
 	private int intervalHours = DEFAULT_INTERVAL_HOURS;	// download frequency in hours (each intervalHours a new download starts)
 	private int deltaLimit    = DEFAULT_DELTA_LIMIT;	// tells how many changes are necessary to store a full struct instead 
+	private int deltaChainLimit = DEFAULT_DELTA_CHAIN_LIMIT;	// how many deltas may follow a full struct
 	private int loggingSystem = DEFAULT_LOGGING_SYSTEM;
 	private String loggingSystemConfigFile = DEFAULT_LOG4J_CONFIG_FILE;
 	private String defaultCronExpression = NO_CRON_EXPRESSION;	// default
 
 	public static int DEFAULT_INTERVAL_HOURS  	= 24;
 	private static int DEFAULT_DELTA_LIMIT 		= 100;
+	private static int DEFAULT_DELTA_CHAIN_LIMIT	= 20;
 	public static int LOG4J						= 0;
 	private static int DEFAULT_LOGGING_SYSTEM	= LOG4J;
 	private static String DEFAULT_LOG4J_CONFIG_FILE = "log4j-config.xml";
 	private static String NO_CRON_EXPRESSION	= null;
+	private static int DEFAULT_CRAWL_CONNECTIONS	= 1;
 	
 	// options to control the data storage format
 	public static final int TREE = 1;		// custom tree representation
 	public static final int TABLE = 2;		// custom table representation
 	//public static final int BOTH = 3; not implemented
 	
+	// options to choose the diff engine (tree storage)
+	public static final int XPATH_DIFF = 1;	// one XPATH lookup per node (DOMDiffGenerator)
+	public static final int MERGE_DIFF = 2;	// sorted merge of siblings (MergeDiffGenerator)
+	private static int diffEngine = XPATH_DIFF; // default
+	
+	// options to choose how tree structures are kept in memory
+	public static final int DOM_STRUCTURE = 1;		// dom4j document (TreeMirrorStructure)
+	public static final int COMPACT_STRUCTURE = 2;	// primitive arrays (CompactTreeMirrorStructure)
+	private static int structureRepresentation = DOM_STRUCTURE; // default
+	
+	// options to choose how the structures are written (database, files)
+	public static final int XML_SNAPSHOT = 1;		// XML documents
+	public static final int BINARY_SNAPSHOT = 2;	// compressed binary snapshots (SnapshotCodec)
+	private static int snapshotFormat = XML_SNAPSHOT; // default
+	
+	// number of names of a generation of the name pool (NamePool)
+	private static int namePoolGeneration = NamePool.DEFAULT_GENERATION_SIZE;
+	
+	// memory given to the latest structures kept by the database layer (MB of XML)
+	private static int DEFAULT_CACHE_SIZE = 64;
+	private static int cacheSize = DEFAULT_CACHE_SIZE;
+	
+	// asynchronous document writer (DocumentWriter)
+	private static int DEFAULT_WRITER_QUEUE = 1000;	// 0 writes in the calling thread
+	private static long DEFAULT_WRITER_FLUSH = 50;	// ms
+	private static int writerQueue = DEFAULT_WRITER_QUEUE;
+	private static long writerFlush = DEFAULT_WRITER_FLUSH;
+	private static Set<String> relaxedDocuments = new HashSet<String>(Arrays.asList(new String[] { "statistics" }));
+	
+	// retention of the history (see RetentionEngine), disabled by default
+	private static String retentionCron = null;
+	private static boolean retentionDryRun = false;
+	private static boolean retentionStatistics = true;
+	private static RetentionPolicy retentionPolicy = new RetentionPolicy();	// keeps everything
+	
+	// stages of the pipeline following the crawls (see Pipeline)
+	private static int DEFAULT_STAGE_WORKERS = 2;
+	private static int DEFAULT_STAGE_QUEUE = 16;	// runs waiting for the stage
+	private static Map<String,Integer> stageWorkers = new HashMap<String,Integer>();
+	private static Map<String,Integer> stageQueues = new HashMap<String,Integer>();
+	
+	// adaptive polling of the mirrors (see AdaptiveScheduler), disabled by default
+	private static PollingPolicy pollingPolicy = null;
+	private static String pollingStateFile = "polling-state.xml";
+	
+	// hard limit of a crawl (see DownloaderJob), 0 for no limit
+	private static long crawlTimeout = 0;	// ms
+	private static int crawlCeiling = 0;	// crawls at the same time (see CrawlLimiter), 0 for no limit
+	
+	// spread of the cron triggers over their interval (see TriggerSpread), disabled by default
+	private static TriggerSpread triggerSpread = null;
+	
 	/*
 	 * JDBC specific config
 	 * TO BE relocated later
@@ -74,9 +140,31 @@ public class Config {
 	public static String DEFAULT_JDBC_USER = "root";
 	private static String jdbcUserName = DEFAULT_JDBC_USER;
 	private static String jdbcUserPasswd = "";
+	public static int DEFAULT_JDBC_BATCH_SIZE = 1000;	// insert statements sent at once
+	public static int DEFAULT_JDBC_BATCH_ROWS = 50;		// rows inserted by a statement
+	private static int jdbcBatchSize = DEFAULT_JDBC_BATCH_SIZE;
+	private static int jdbcBatchRows = DEFAULT_JDBC_BATCH_ROWS;
+	public static int DEFAULT_JDBC_POOL_SIZE = 10;		// Quartz default thread count
+	public static long DEFAULT_JDBC_POOL_WAIT = 30000;	// ms
+	private static int jdbcPoolSize = DEFAULT_JDBC_POOL_SIZE;
+	private static long jdbcPoolWait = DEFAULT_JDBC_POOL_WAIT;
+	private static String jdbcValidationQuery = ConnectionPool.DEFAULT_VALIDATION_QUERY;
 
 	private static int storageFormat = TREE; // default
 	
+	// backends of the tree storage (see edos.mimo.dal.IStorage)
+	public static final int BDBXML_BACKEND = 1;		// Berkeley DB XML containers (BDBXMLManager)
+	public static final int SEGMENT_BACKEND = 2;	// append-only segment files (SegmentStorage)
+	private static int storageBackend = BDBXML_BACKEND; // default
+	private static String SEGMENT_STORE_HOME = "segment_store";
+	private static String segmentStoreHome = SEGMENT_STORE_HOME;
+	public static int DEFAULT_SEGMENT_SIZE = 64;			// MB
+	public static double DEFAULT_COMPACTION_RATIO = 0.5;	// garbage in the full segments
+	public static long DEFAULT_COMPACTION_INTERVAL = 60000;	// ms
+	private static int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private static double compactionRatio = DEFAULT_COMPACTION_RATIO;
+	private static long compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+	
 	// Berkeley DB XML related constants
 	//public static String BDDXML_HOME = "bdbxml_containers"; not used
 	private static String BDBXML_ENV_HOME = "bdbxml_containers";
@@ -172,7 +260,18 @@ public class Config {
 			parseAnalysis();
 			parseStorage();
 			parseDelta();
+			parseDiff();
+			parseStructure();
+			parseSnapshot();
+			parseNamePool();
+			parseCache();
+			parseWriter();
+			parseRetention();
+			parsePipeline();
 			parseSchedule();
+			parsePolling();
+			parseCrawl();
+			parseSpread();
 			parseLogging();
 			parseBasePath();
 			parseMonitoredDirs();
@@ -265,6 +364,233 @@ public class Config {
 		if(limit != null)
 			deltaLimit = Integer.parseInt(limit);
 		// else keep the default as defined above
+		
+		String chain = node.attributeValue("chain");
+		if(chain != null)
+			deltaChainLimit = Integer.parseInt(chain);
+	}
+
+	/**
+	 * Gets the part of the config file specifying which engine
+	 * computes the diffs between the master and the mirrors.
+	 * 
+	 * Please refer to the config file included documentation.
+	 */
+	private void parseDiff() {
+		Element node = (Element)doc.selectSingleNode("//diff");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String engine = node.attributeValue("engine");
+		if("xpath".equals(engine))
+			diffEngine = XPATH_DIFF;
+		else if("merge".equals(engine))
+			diffEngine = MERGE_DIFF;
+		// else keep the default as defined above
+	}
+
+	/**
+	 * Reads how the tree structures are kept in memory
+	 */
+	private void parseStructure() {
+		Element node = (Element)doc.selectSingleNode("//structure");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String representation = node.attributeValue("representation");
+		if("dom".equals(representation))
+			structureRepresentation = DOM_STRUCTURE;
+		else if("compact".equals(representation))
+			structureRepresentation = COMPACT_STRUCTURE;
+		// else keep the default as defined above
+	}
+
+	/**
+	 * Reads how the structures are written to the database and to files
+	 * @throws ConfigException
+	 */
+	private void parseSnapshot() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//snapshot");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String format = node.attributeValue("format");
+		if(format == null)
+			return; // keep default return value as defined above
+		
+		if("xml".equals(format))
+			snapshotFormat = XML_SNAPSHOT;
+		else if("binary".equals(format))
+			snapshotFormat = BINARY_SNAPSHOT;
+		else
+			throw new ConfigException("Invalid snapshot format: " + format);
+	}
+
+	/**
+	 * Reads the size of the generations of the name pool
+	 * @throws ConfigException
+	 */
+	private void parseNamePool() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//namepool");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String generation = node.attributeValue("generation");
+		if(generation == null)
+			return; // keep default return value as defined above
+		
+		try {
+			int n = Integer.parseInt(generation);
+			if(n < 1)
+				throw new ConfigException("name pool generation must be at least 1");
+			namePoolGeneration = n;
+			
+		}catch(NumberFormatException nfe) {
+			throw new ConfigException("Invalid name pool generation value: " + generation);
+		}
+	}
+
+	/**
+	 * Gets the size of the cache of the latest mirror structures
+	 * (see BDBXMLManager), in megabytes of XML.
+	 * 
+	 * @throws ConfigException
+	 */
+	private void parseCache() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//cache");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String size = node.attributeValue("size");
+		if(size == null)
+			return; // keep default return value as defined above
+		
+		try {
+			int n = Integer.parseInt(size);
+			if(n < 0)
+				throw new ConfigException("cache size can't be negative");
+			cacheSize = n;
+			
+		}catch(NumberFormatException nfe) {
+			throw new ConfigException("Invalid cache size value: " + size);
+		}
+	}
+
+	/**
+	 * Gets the settings of the asynchronous document writer
+	 * (see DocumentWriter): queue size, flush interval and
+	 * the types of documents written without waiting for the disk.
+	 * 
+	 * @throws ConfigException
+	 */
+	private void parseWriter() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//writer");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String queue = node.attributeValue("queue");
+		String flush = node.attributeValue("flush");
+		String relaxed = node.attributeValue("relaxed");
+		try {
+			if(queue != null)
+				writerQueue = Integer.parseInt(queue);
+			if(flush != null)
+				writerFlush = Long.parseLong(flush);
+			
+		}catch(NumberFormatException nfe) {
+			throw new ConfigException("Invalid writer queue or flush value: " + queue + ", " + flush);
+		}
+		if(writerQueue < 0 || writerFlush < 0)
+			throw new ConfigException("writer queue and flush can't be negative");
+		
+		if(relaxed != null) {
+			relaxedDocuments = new HashSet<String>();
+			String[] types = relaxed.split(",");
+			for(int i = 0; i < types.length; i++)
+				if(types[i].trim().length() > 0)
+					relaxedDocuments.add(types[i].trim());
+		}
+	}
+
+	/**
+	 * Gets the number of worker threads and the queue size of the stages
+	 * of the pipeline, eg. <stage name="diff" workers="4" queue="32"/>
+	 * 
+	 * @throws ConfigException if a stage is unknown or a value invalid
+	 */
+	private void parsePipeline() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//pipeline");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		Iterator it = node.elements("stage").iterator();
+		while(it.hasNext()) {
+			Element stage = (Element)it.next();
+			String name = stage.attributeValue("name");
+			if(name == null || !Arrays.asList(Pipeline.STAGES).contains(name))
+				throw new ConfigException("Unknown pipeline stage: " + name);
+			
+			String workers = stage.attributeValue("workers");
+			String queue = stage.attributeValue("queue");
+			try {
+				if(workers != null)
+					stageWorkers.put(name, new Integer(workers));
+				if(queue != null)
+					stageQueues.put(name, new Integer(queue));
+				
+			}catch(NumberFormatException nfe) {
+				throw new ConfigException("Invalid workers or queue value for the " + name 
+											+ " stage: " + workers + ", " + queue);
+			}
+			if(getStageWorkers(name) < 1 || getStageQueue(name) < 1)
+				throw new ConfigException("The " + name + " stage needs at least one worker and a queue of one run");
+		}
+	}
+
+	/**
+	 * Gets the retention of the history: when it runs (cron expression), 
+	 * whether it only reports, and the tiers of its policy (in days, see 
+	 * RetentionPolicy).
+	 * 
+	 * @throws ConfigException if a tier is invalid
+	 */
+	private void parseRetention() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//retention");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		retentionCron = node.attributeValue("cron");
+		retentionDryRun = "true".equals(node.attributeValue("dryRun"));
+		retentionStatistics = !"false".equals(node.attributeValue("statistics"));
+		
+		RetentionPolicy policy = new RetentionPolicy();
+		Iterator it = node.elements("tier").iterator();
+		while(it.hasNext()) {
+			Element tier = (Element)it.next();
+			String after = tier.attributeValue("after");
+			String every = tier.attributeValue("every");
+			if(after == null || every == null)
+				throw new ConfigException("A retention tier needs the after and every attributes");
+			
+			try {
+				policy.addTier((long)(Double.parseDouble(after) * RetentionPolicy.DAY), 
+								(long)(Double.parseDouble(every) * RetentionPolicy.DAY));
+				
+			}catch(NumberFormatException nfe) {
+				throw new ConfigException("Invalid retention tier: " + after + ", " + every);
+			}catch(IllegalArgumentException iae) {
+				throw new ConfigException("Invalid retention tier: " + iae.getMessage());
+			}
+		}
+		retentionPolicy = policy;
 	}
 
 	/**
@@ -305,6 +631,98 @@ public class Config {
 		}				
 	}
 
+	/**
+	 * Gets the adaptive polling, which replaces the cron expressions:
+	 * intervals in minutes, budget in crawls per hour (0 for no limit).
+	 * 
+	 * @throws ConfigException if a value is invalid
+	 */
+	private void parsePolling() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//schedule/adaptive");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String min = node.attributeValue("min", "15");
+		String max = node.attributeValue("max", "1440");
+		String budget = node.attributeValue("budget", "0");
+		try {
+			pollingPolicy = new PollingPolicy((long)(Double.parseDouble(min) * PollingPolicy.MINUTE),
+											(long)(Double.parseDouble(max) * PollingPolicy.MINUTE),
+											Integer.parseInt(budget));
+			
+		}catch(NumberFormatException nfe) {
+			throw new ConfigException("Invalid adaptive polling: " + min + ", " + max + ", " + budget);
+			
+		}catch(IllegalArgumentException iae) {
+			throw new ConfigException(iae.getMessage());
+		}
+		
+		if(node.attributeValue("state") != null)
+			pollingStateFile = node.attributeValue("state");
+	}
+
+	/**
+	 * Gets the timeout of the crawls, in minutes (0 for no limit), and
+	 * the ceiling of the crawls at the same time (0 for no limit).
+	 * 
+	 * @throws ConfigException if a value is invalid
+	 */
+	private void parseCrawl() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//schedule/crawl");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String timeout = node.attributeValue("timeout");
+		if(timeout != null) {
+			try {
+				crawlTimeout = (long)(Double.parseDouble(timeout) * 60000);
+			}catch(NumberFormatException nfe) {
+				throw new ConfigException("Invalid crawl timeout: " + timeout);
+			}
+			if(crawlTimeout < 0)
+				throw new ConfigException("Invalid crawl timeout: " + timeout);
+		}
+		
+		String ceiling = node.attributeValue("ceiling");
+		if(ceiling != null) {
+			try {
+				crawlCeiling = Integer.parseInt(ceiling);
+			}catch(NumberFormatException nfe) {
+				throw new ConfigException("Invalid crawl ceiling: " + ceiling);
+			}
+			if(crawlCeiling < 0)
+				throw new ConfigException("Invalid crawl ceiling: " + ceiling);
+		}
+	}
+
+	/**
+	 * Gets the spread of the cron triggers: window in minutes (0 for
+	 * the whole interval of the expressions), jitter in seconds.
+	 * 
+	 * @throws ConfigException if a value is invalid
+	 */
+	private void parseSpread() throws ConfigException {
+		Element node = (Element)doc.selectSingleNode("//schedule/spread");
+		
+		if(node == null) 
+			return; // keep default return value as defined above
+		
+		String window = node.attributeValue("window", "0");
+		String jitter = node.attributeValue("jitter", "0");
+		try {
+			triggerSpread = new TriggerSpread((long)(Double.parseDouble(window) * 60000),
+											(long)(Double.parseDouble(jitter) * 1000));
+			
+		}catch(NumberFormatException nfe) {
+			throw new ConfigException("Invalid spread: " + window + ", " + jitter);
+			
+		}catch(IllegalArgumentException iae) {
+			throw new ConfigException(iae.getMessage());
+		}
+	}
+
 	/**
 	 * Gets the part of the config file specifying the storage type.
 	 * 
@@ -312,16 +730,19 @@ public class Config {
 	 * 
 	 * Modified by radu: added JDBC configs
 	 *
+	 * @throws ConfigException if the batch settings are invalid
 	 */
-	private void parseStorage() {
+	private void parseStorage() throws ConfigException {
 		Element node = (Element)doc.selectSingleNode("//storage");
 		
 		if(node == null) 
 			return; // keep default return value as defined above
 
-		if(node.attributeValue("type").equals("tree"))
+		if(node.attributeValue("type").equals("tree")) {
 			storageFormat = TREE;
-		else if(node.attributeValue("type").equals("table")) {
+			parseStore((Element)node.selectSingleNode("./store"));
+			
+		}else if(node.attributeValue("type").equals("table")) {
 			storageFormat = TABLE;
 			Element jdbcUser = (Element)node.selectSingleNode("./jdbcUser");			
 			if (null != jdbcUser) {
@@ -330,10 +751,90 @@ public class Config {
 				jdbcUserPasswd = jdbcUser.attributeValue("passwd", "");
 			}
 			// else keep the default as defined above
+			
+			Element jdbcBatch = (Element)node.selectSingleNode("./jdbcBatch");
+			if (null != jdbcBatch) {
+				String size = jdbcBatch.attributeValue("size");
+				String rows = jdbcBatch.attributeValue("rows");
+				try {
+					if(size != null)
+						jdbcBatchSize = Integer.parseInt(size);
+					if(rows != null)
+						jdbcBatchRows = Integer.parseInt(rows);
+					
+				}catch(NumberFormatException nfe) {
+					throw new ConfigException("Invalid JDBC batch size or rows value: " + size + ", " + rows);
+				}
+				if(jdbcBatchSize < 1 || jdbcBatchRows < 1)
+					throw new ConfigException("JDBC batch size and rows must be at least 1");
+			}
+			// else keep the default as defined above
+			
+			Element jdbcPool = (Element)node.selectSingleNode("./jdbcPool");
+			if (null != jdbcPool) {
+				String size = jdbcPool.attributeValue("size");
+				String maxWait = jdbcPool.attributeValue("maxWait");
+				try {
+					if(size != null)
+						jdbcPoolSize = Integer.parseInt(size);
+					if(maxWait != null)
+						jdbcPoolWait = Long.parseLong(maxWait);
+					
+				}catch(NumberFormatException nfe) {
+					throw new ConfigException("Invalid JDBC pool size or maxWait value: " + size + ", " + maxWait);
+				}
+				if(jdbcPoolSize < 1 || jdbcPoolWait < 0)
+					throw new ConfigException("JDBC pool size must be at least 1, maxWait can't be negative");
+				
+				String validation = jdbcPool.attributeValue("validation");
+				if(validation != null)
+					jdbcValidationQuery = (validation.trim().length() == 0)?null:validation;
+			}
+			// else keep the default as defined above
 		}
 		// else keep the default as defined above
 	}
 
+	/**
+	 * Reads the backend of the tree storage (optional store element).
+	 * 
+	 * @param node the store element, null to keep the defaults
+	 * @throws ConfigException if the backend or its settings are invalid
+	 */
+	private void parseStore(Element node) throws ConfigException {
+		if(node == null)
+			return; // keep default return value as defined above
+		
+		String backend = node.attributeValue("backend", "bdbxml");
+		if(backend.equals("bdbxml"))
+			storageBackend = BDBXML_BACKEND;
+		else if(backend.equals("segment"))
+			storageBackend = SEGMENT_BACKEND;
+		else
+			throw new ConfigException("Unknown storage backend: " + backend);
+		
+		segmentStoreHome = node.attributeValue("home", segmentStoreHome);
+		
+		String size = node.attributeValue("segmentSize");
+		String ratio = node.attributeValue("compaction");
+		String interval = node.attributeValue("compactionInterval");
+		try {
+			if(size != null)
+				segmentSize = Integer.parseInt(size);
+			if(ratio != null)
+				compactionRatio = Double.parseDouble(ratio);
+			if(interval != null)
+				compactionInterval = Long.parseLong(interval);
+			
+		}catch(NumberFormatException nfe) {
+			throw new ConfigException("Invalid segment store setting: " + size + ", " 
+											+ ratio + ", " + interval);
+		}
+		if(segmentSize < 1 || compactionRatio <= 0 || compactionRatio > 1 || compactionInterval < 0)
+			throw new ConfigException("Segment size must be at least 1 MB, compaction between 0 and 1,"
+											+ " compactionInterval can't be negative");
+	}
+
 	/**
 	 * Gets the part of the config file determining what will be downloaded
 	 * (if all informations or just a subset).
@@ -418,6 +919,7 @@ public class Config {
 		}
 		
 		IMasterMirror m = mirrorFactory.getMaster(mirrorName, accessList, ids, analysis, cronExpression);
+		m.setCrawlConnections(parseCrawlConnections(masterMirrorNode));
 
 		return m;
 	}
@@ -467,11 +969,43 @@ public class Config {
 			
 			// create the new secondary mirror and add it to the list
 			ISecondaryMirror m = mirrorFactory.getSecondary(mirrorName, accessList, ids, cronExpression);
+			m.setCrawlConnections(parseCrawlConnections(mirror));
 			mirrors.add(m);
 		}
 		return mirrors;
 	}
 	
+	/**
+	 * Gets the number of connections a mirror can be crawled with
+	 * (optional <crawl connections="n"/> child of a mirror node).
+	 * 
+	 * Please refer to the config file included documentation.
+	 * 
+	 * @param mirrorNode mastermirror or secondarymirror element
+	 * @return the number of connections, 1 by default
+	 * @throws ConfigException
+	 */
+	private int parseCrawlConnections(Element mirrorNode) throws ConfigException {
+		Element crawlElt = (Element)mirrorNode.selectSingleNode("crawl");
+		if(crawlElt == null)
+			return DEFAULT_CRAWL_CONNECTIONS;
+		
+		String connections = crawlElt.attributeValue("connections");
+		if(connections == null)
+			return DEFAULT_CRAWL_CONNECTIONS;
+		
+		try {
+			int n = Integer.parseInt(connections);
+			if(n < 1)
+				throw new ConfigException("crawl connections must be at least 1 for " 
+						+ mirrorNode.attributeValue("host"));
+			return n;
+			
+		}catch(NumberFormatException nfe) {
+			throw new ConfigException("Invalid crawl connections value: " + connections);
+		}
+	}
+	
 	/**
 	 * @deprecated
 	 * @return
@@ -643,6 +1177,34 @@ public class Config {
 		return storageFormat;
 	}
 	
+	/**
+	 * @return the backend of the tree storage, eg. SEGMENT_BACKEND
+	 */
+	public int getStorageBackend() {
+		return storageBackend;
+	}
+	
+	/**
+	 * @return the size of the segments of the segment store, in MB
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+	
+	/**
+	 * @return the share of dead records of the full segments starting a compaction
+	 */
+	public double getCompactionRatio() {
+		return compactionRatio;
+	}
+	
+	/**
+	 * @return the time in ms between two checks of the compaction (0 to disable it)
+	 */
+	public long getCompactionInterval() {
+		return compactionInterval;
+	}
+	
 	/**
 	 * @author radu
 	 * @return the JDBC host
@@ -667,6 +1229,43 @@ public class Config {
 		return new String(jdbcUserPasswd);
 	}
 	
+	/**
+	 * @return the number of insert statements sent to the database at once
+	 */
+	public int getJdbcBatchSize() {
+		return jdbcBatchSize;
+	}
+	
+	/**
+	 * @return the number of rows inserted by a statement, when the database
+	 * accepts several rows per insert
+	 */
+	public int getJdbcBatchRows() {
+		return jdbcBatchRows;
+	}
+	
+	/**
+	 * @return the maximum number of connections to the database
+	 */
+	public int getJdbcPoolSize() {
+		return jdbcPoolSize;
+	}
+	
+	/**
+	 * @return the time in ms a job waits for a connection to the database
+	 */
+	public long getJdbcPoolWait() {
+		return jdbcPoolWait;
+	}
+	
+	/**
+	 * @return the query checking a pooled connection before lending it,
+	 * null to only check it is open
+	 */
+	public String getJdbcValidationQuery() {
+		return jdbcValidationQuery;
+	}
+	
 	/**
 	 * @return the installation direction of this application
 	 */
@@ -681,6 +1280,154 @@ public class Config {
 	public int getDeltaLimit() {
 		return deltaLimit;
 	}
+	
+	/**
+	 * @return how many deltas may be stored after a full structure
+	 */
+	public int getDeltaChainLimit() {
+		return deltaChainLimit;
+	}
+	
+	/**
+	 * @return the diff engine to use with the tree storage
+	 */
+	public int getDiffEngine() {
+		return diffEngine;
+	}
+	
+	/**
+	 * @return how the tree structures are kept in memory
+	 */
+	public int getStructureRepresentation() {
+		return structureRepresentation;
+	}
+	
+	/**
+	 * @return how the structures are written to the database and to files
+	 */
+	public int getSnapshotFormat() {
+		return snapshotFormat;
+	}
+	
+	/**
+	 * @return the number of names of a generation of the name pool
+	 */
+	public int getNamePoolGeneration() {
+		return namePoolGeneration;
+	}
+	
+	/**
+	 * @return the size of the cache of the latest structures, in MB of XML (0 if disabled)
+	 */
+	public int getCacheSize() {
+		return cacheSize;
+	}
+	
+	/**
+	 * @return the number of documents waiting to be written (0 to write them synchronously)
+	 */
+	public int getWriterQueue() {
+		return writerQueue;
+	}
+	
+	/**
+	 * @return how long (ms) relaxed documents may wait to be grouped with others
+	 */
+	public long getWriterFlush() {
+		return writerFlush;
+	}
+	
+	/**
+	 * @param type document type, eg. "statistics"
+	 * @return true if the documents of this type are written without waiting for the disk
+	 */
+	public boolean isRelaxedDocument(String type) {
+		return relaxedDocuments.contains(type);
+	}
+	
+	/**
+	 * @return the cron expression of the retention job, null if there is none
+	 */
+	public String getRetentionCron() {
+		return retentionCron;
+	}
+	
+	/**
+	 * @return true if the retention job only reports what it would remove
+	 */
+	public boolean isRetentionDryRun() {
+		return retentionDryRun;
+	}
+	
+	/**
+	 * @return true if the retention applies to the statistics documents as well
+	 */
+	public boolean isRetentionOfStatistics() {
+		return retentionStatistics;
+	}
+	
+	/**
+	 * @return the tiers of the retention (keeps everything by default)
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	/**
+	 * @param stage name of a stage of the pipeline (see Pipeline.STAGES)
+	 * @return the number of threads running the stage
+	 */
+	public int getStageWorkers(String stage) {
+		Integer workers = stageWorkers.get(stage);
+		return (workers == null)?DEFAULT_STAGE_WORKERS:workers.intValue();
+	}
+	
+	/**
+	 * @param stage name of a stage of the pipeline (see Pipeline.STAGES)
+	 * @return the number of runs waiting for the stage before the previous one blocks
+	 */
+	public int getStageQueue(String stage) {
+		Integer queue = stageQueues.get(stage);
+		return (queue == null)?DEFAULT_STAGE_QUEUE:queue.intValue();
+	}
+
+	/**
+	 * @return the adaptive polling of the mirrors, null to crawl them
+	 * 			with their cron expressions
+	 */
+	public PollingPolicy getPollingPolicy() {
+		return pollingPolicy;
+	}
+	
+	/**
+	 * @return the file keeping the state of the adaptive polling
+	 */
+	public String getPollingStateFile() {
+		return pollingStateFile;
+	}
+	
+	/**
+	 * @return the time after which a crawl is aborted, in milliseconds
+	 * 			(0 for no limit)
+	 */
+	public long getCrawlTimeout() {
+		return crawlTimeout;
+	}
+	
+	/**
+	 * @return the highest number of crawls at the same time (0 for no limit)
+	 */
+	public int getCrawlCeiling() {
+		return crawlCeiling;
+	}
+	
+	/**
+	 * @return the spread of the cron triggers over their interval, null
+	 * 			to fire them as they are
+	 */
+	public TriggerSpread getTriggerSpread() {
+		return triggerSpread;
+	}
 
 	public String getLoggingSystemConfigFile() {
 		return loggingSystemConfigFile;
@@ -717,6 +1464,14 @@ public class Config {
 	public static void setBDBXMLEnvHome(String bdbxmlEnvHome) {
 		Config.bdbxmlEnvHome = bdbxmlEnvHome;
 	}
+	
+	public static String getSegmentStoreHome() {
+		return segmentStoreHome;
+	}
+
+	public static void setSegmentStoreHome(String segmentStoreHome) {
+		Config.segmentStoreHome = segmentStoreHome;
+	}
 
 	public static Iterator<String> getMonitoredDirectories() {
 		return monitoredDirs.iterator();
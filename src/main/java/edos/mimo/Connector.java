@@ -55,8 +55,6 @@ import java.sql.Statement;
 
 // Mirror Monitor
 //import org.edos_project.mirror.connection.DownloadCenter;
-import edos.distribution.mirror.DatabaseFactory;
-import edos.distribution.mirror.DatabaseJDBC;
 import edos.mimo.dal.*;
 import edos.mimo.exception.ConfigException;
 import edos.mimo.job.ConnectorJob;
@@ -77,6 +75,7 @@ public class Connector {
 	private static Logger logger;
 	private static Config config;
 	private static Connection localConnection;
+	private static ConnectionPool localPool;	// one connection per running job
 	private static LinkedList<LightMirrorContent> localMirrorList;
 	private static Scheduler sched;
 	
@@ -176,8 +175,11 @@ public class Connector {
 		}
 
 		
-		DatabaseJDBC db = (DatabaseJDBC)DatabaseFactory.getDatabase(2);
+		DatabaseJDBC db = (DatabaseJDBC)DatabaseFactory.getDatabase(DatabaseFactory.RELATIONAL_DATABASE);
 		localConnection = db.getConnection(config.getJdbcHost(), "MIRRORDB", config.getJdbcUserName(), config.getJdbcUserPasswd());		
+		localPool = DatabaseFactory.getConnectionPool(config.getJdbcHost(), "MIRRORDB", 
+								config.getJdbcUserName(), config.getJdbcUserPasswd(), 
+								config.getJdbcPoolSize(), config.getJdbcPoolWait(), config.getJdbcValidationQuery());
 
 		localMirrorList = loadMirrors(localConnection);
 		Calendar timeStamp = Calendar.getInstance();
@@ -212,8 +214,9 @@ public class Connector {
 				LightMirrorContent test2 = it.next();
 				
 				// logger.info(test2.getHost());
-				test2.setJdbcConnection(localConnection);
+				test2.setConnectionPool(localPool);
 				test2.setTimeStamp(timeStamp);
+				test2.setBatch(config.getJdbcBatchSize(), config.getJdbcBatchRows());
 				
 				JobDetail jobDetail = new JobDetail("Download Job for " + test2,
 											null, // default group
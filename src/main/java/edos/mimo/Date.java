@@ -23,16 +23,28 @@ import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.TimeZone;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+/**
+ * A point in time, kept as a number of milliseconds since Jan 1, 1970.
+ *
+ * The dates of the structure documents are ISO8601 local times without
+ * offset, as written by SimpleDateFormat with ISO8601_PATTERN. They are
+ * read and written for every file (acquisition, loading, diff) so both
+ * are done by hand for the fixed layout, without calendar nor formatter:
+ * the static methods below are thread-safe and allocate nothing but
+ * their result. Other layouts go through a SimpleDateFormat.
+ *
+ * Older documents have their dates as milliseconds: these are
+ * accepted wherever an ISO8601 date is.
+ */
 public class Date {
 	private static Logger logger = Logger.getLogger(edos.mimo.Date.class);
 	
-	private Calendar cal;
-	//private ISO8601DateFormat dateFormatter = new ISO8601DateFormat();	does not respect the standard
-	private SimpleDateFormat  dateFormatter = new SimpleDateFormat(ISO8601_PATTERN, Locale.FRANCE);
+	private long millis;
 	
 	// types of String representation existing out there
 	public static final int LONG 		= 0;
@@ -41,6 +53,20 @@ public class Date {
 	
 	public static final String ISO8601_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.S";
 	
+	// zone of the local times, read once (TimeZone.getDefault() returns a copy)
+	private static final TimeZone zone = TimeZone.getDefault();
+	
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	
+	// output buffer of the formatters, one per thread
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+		protected char[] initialValue() {
+			return new char[FULL_ISO_LENGTH];
+		}
+	};
+	private static final int ISO8601_MAX_LENGTH = 23;	// 2006-10-28T03:08:27.978
+	private static final int FULL_ISO_LENGTH = 35;		// 2005-09-26 13:08:01.000000000 -0400
+	
 	// for conversion between Date and Calendar
 	private static Hashtable<String, Integer> monthsHashTable = new Hashtable<String, Integer>();
 	static {
@@ -63,7 +89,7 @@ public class Date {
 	 *
 	 */
 	public Date() {
-		cal = GregorianCalendar.getInstance();
+		millis = System.currentTimeMillis();
 	}
 	
 	/**
@@ -72,7 +98,7 @@ public class Date {
 	 * @param a calendar
 	 */
 	public Date(Calendar cal) {
-		this.cal = cal;
+		millis = cal.getTimeInMillis();
 	}
 	
 	/**
@@ -80,8 +106,7 @@ public class Date {
 	 * @param timestamp
 	 */
 	public Date (long timestamp) {
-		cal = new GregorianCalendar();
-		cal.setTimeInMillis(timestamp);
+		millis = timestamp;
 	}
 	
 	/**
@@ -95,29 +120,315 @@ public class Date {
 	public Date(String sDate, int type) throws ParseException {
 		switch(type) {
 		case LONG: 		parseLongDate(sDate); break;
-		case ISO8601: 	parseISO8601Date(sDate); break;
+		case ISO8601: 	millis = parseISO8601(sDate); break;
 		default:		parseShortDate(sDate); break;
 		}
 	}
 	
 	/**
-	 * Creates a date from a String value in the same format as the one
-	 * produced by java.util.Date.toString()
+	 * Creates a date from an ISO8601 String value (or milliseconds)
 	 * 
 	 * @param the data as a <code>String</code>
 	 * @throws ParseException 
 	 */
 	public Date(String sDate) throws ParseException {
 		// TODO nice to have: code to auto-distinguish which type of format it is
-		parseISO8601Date(sDate);	// default is now ISO8601
+		millis = parseISO8601(sDate);	// default is now ISO8601
 	}
 	
-	private void parseISO8601Date(String sDate) {
-		//logger.setLevel(Level.DEBUG);
+	/*
+	 * ISO8601
+	 */
+	
+	/**
+	 * Reads a local time written with ISO8601_PATTERN, eg. 2006-10-28T03:08:27.978,
+	 * or a number of milliseconds (older documents).
+	 * 
+	 * @param sDate
+	 * @return milliseconds since Jan 1, 1970
+	 * @throws ParseException
+	 */
+	public static long parseISO8601(String sDate) throws ParseException {
+		if(sDate == null)
+			throw new ParseException("No date to parse", 0);
+		
+		int length = sDate.length();
+		if(length >= 21 && length <= ISO8601_MAX_LENGTH
+				&& sDate.charAt(4) == '-' && sDate.charAt(7) == '-' && sDate.charAt(10) == 'T'
+				&& sDate.charAt(13) == ':' && sDate.charAt(16) == ':' && sDate.charAt(19) == '.') {
+			int year = digits(sDate, 0, 4);
+			int month = digits(sDate, 5, 2);
+			int day = digits(sDate, 8, 2);
+			int hour = digits(sDate, 11, 2);
+			int minute = digits(sDate, 14, 2);
+			int second = digits(sDate, 17, 2);
+			int ms = digits(sDate, 20, length - 20);	// as SimpleDateFormat: ".5" is 5ms
+			
+			if(year >= 0 && month >= 1 && month <= 12 && day >= 0 
+					&& hour >= 0 && minute >= 0 && second >= 0 && ms >= 0)
+				return localTime(year, month, day, hour, minute, second, ms);
+		}
+		
+		if(isMillis(sDate)) {
+			try {
+				return Long.parseLong(sDate);
+			}catch(NumberFormatException nfe) {
+				throw new ParseException("Invalid date: " + sDate, 0);
+			}
+		}
+		
+		return parseWithFormatter(sDate);
+	}
+	
+	/**
+	 * Writes a local time with ISO8601_PATTERN, eg. 2006-10-28T03:08:27.978
+	 * 
+	 * @param millis since Jan 1, 1970
+	 * @return the date as a String
+	 */
+	public static String formatISO8601(long millis) {
+		long local = millis + zone.getOffset(millis);
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int time = (int)(local - days * MILLIS_PER_DAY);
+		
+		long date = civilFromDays(days);
+		int year = (int)(date / 10000);
+		if(year < 1 || year > 9999) {
+			SimpleDateFormat formatter = new SimpleDateFormat(ISO8601_PATTERN, Locale.FRANCE);
+			formatter.setTimeZone(zone);
+			return formatter.format(new java.util.Date(millis));
+		}
+		
+		char[] buf = buffers.get();
+		int pos = writeDate(buf, 0, date, 'T');
+		pos = writeTime(buf, pos, time / 1000);
+		buf[pos++] = '.';
+		
+		int ms = time % 1000;
+		if(ms >= 100)
+			buf[pos++] = (char)('0' + ms / 100);
+		if(ms >= 10)
+			buf[pos++] = (char)('0' + (ms / 10) % 10);
+		buf[pos++] = (char)('0' + ms % 10);
+		
+		return new String(buf, 0, pos);
+	}
+	
+	/*
+	 * ls --full-iso
+	 */
+	
+	/**
+	 * Reads the date and time of a ls -l --time-style=full-iso output line,
+	 * eg. "2005-09-26 13:08:01.000000000 -0400", as a local time truncated
+	 * to the second (the offset is ignored, as it always was by the
+	 * acquisition).
+	 * 
+	 * @param line
+	 * @param dateStart index of the date (2005-09-26)
+	 * @param timeStart index of the time (13:08:01.000000000)
+	 * @return milliseconds since Jan 1, 1970
+	 * @throws NumberFormatException if a field is not a number
+	 * @throws StringIndexOutOfBoundsException if the line is too short
+	 */
+	public static long parseFullISO(String line, int dateStart, int timeStart) {
+		int year = digits(line, dateStart, 4);
+		int month = digits(line, dateStart + 5, 2);
+		int day = digits(line, dateStart + 8, 2);
+		int hour = digits(line, timeStart, 2);
+		int minute = digits(line, timeStart + 3, 2);
+		int second = digits(line, timeStart + 6, 2);
+		
+		if(year < 0 || month < 1 || month > 12 || day < 0 || hour < 0 || minute < 0 || second < 0
+				|| line.charAt(dateStart + 4) != '-' || line.charAt(dateStart + 7) != '-'
+				|| line.charAt(timeStart + 2) != ':' || line.charAt(timeStart + 5) != ':')
+			throw new NumberFormatException("Invalid full-iso date at " + dateStart + ": " + line);
+		
+		return localTime(year, month, day, hour, minute, second, 0);
+	}
+	
+	/**
+	 * Reads a date written as "2005-09-26 13:08:01.000000000 -0400"
+	 * (the offset is ignored, see above)
+	 * 
+	 * @param sDate
+	 * @return milliseconds since Jan 1, 1970
+	 * @throws ParseException
+	 */
+	public static long parseFullISO(String sDate) throws ParseException {
+		try {
+			return parseFullISO(sDate, 0, sDate.indexOf(' ') + 1);
+			
+		}catch(NumberFormatException nfe) {
+			throw new ParseException(nfe.getMessage(), 0);
+		}catch(StringIndexOutOfBoundsException sioobe) {
+			throw new ParseException("Invalid full-iso date: " + sDate, 0);
+		}
+	}
+	
+	/**
+	 * Writes a local time as ls --time-style=full-iso does,
+	 * eg. "2005-09-26 13:08:01.000000000 -0400"
+	 * 
+	 * @param millis since Jan 1, 1970
+	 * @return the date as a String
+	 */
+	public static String formatFullISO(long millis) {
+		int offset = zone.getOffset(millis);
+		long local = millis + offset;
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int time = (int)(local - days * MILLIS_PER_DAY);
+		
+		long date = civilFromDays(days);
+		int year = (int)(date / 10000);
+		if(year < 1 || year > 9999)
+			throw new IllegalArgumentException("Year out of range: " + year);
+		
+		char[] buf = buffers.get();
+		int pos = writeDate(buf, 0, date, ' ');
+		pos = writeTime(buf, pos, time / 1000);
+		buf[pos++] = '.';
+		int ns = (time % 1000) * 1000000;
+		for(int div = 100000000; div > 0; div /= 10)
+			buf[pos++] = (char)('0' + (ns / div) % 10);
+		
+		buf[pos++] = ' ';
+		buf[pos++] = (offset < 0)?'-':'+';
+		int minutes = Math.abs(offset) / 60000;
+		pos = write2(buf, pos, minutes / 60);
+		pos = write2(buf, pos, minutes % 60);
+		
+		return new String(buf, 0, pos);
+	}
+	
+	/*
+	 * LOCAL TIME arithmetic
+	 */
+	
+	/**
+	 * Milliseconds since Jan 1, 1970 of a local time, read as a lenient
+	 * GregorianCalendar does: a time skipped when daylight saving time
+	 * starts is read as standard time, a time repeated when it ends is
+	 * read as standard time.
+	 * 
+	 * @param month 1 to 12
+	 */
+	public static long localTime(int year, int month, int day, int hour, int minute, int second, int ms) {
+		long local = ((((daysFromEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60) 
+						+ second) * 1000 + ms;
+		
+		long standard = local - zone.getRawOffset();
+		int offset = zone.getOffset(standard);
+		long utc = local - offset;
+		if(zone.getOffset(utc) != offset)
+			return standard;	// skipped time
+		return utc;
+	}
+	
+	/**
+	 * Days between Jan 1, 1970 and a date of the proleptic gregorian calendar
+	 * @param month 1 to 12
+	 */
+	public static long daysFromEpoch(int year, int month, int day) {
+		// years starting on March 1st put Feb 29 at the end
+		int y = (month <= 2)?year - 1:year;
+		int era = ((y >= 0)?y:y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + ((month > 2)?-3:9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return (long)era * 146097 + dayOfEra - 719468;
+	}
+	
+	/**
+	 * Inverse of daysFromEpoch()
+	 * @return the date as yyyyMMdd
+	 */
+	private static long civilFromDays(long days) {
+		long z = days + 719468;
+		long era = ((z >= 0)?z:z - 146096) / 146097;
+		int dayOfEra = (int)(z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = (mp < 10)?mp + 3:mp - 9;
+		long year = yearOfEra + era * 400 + ((month <= 2)?1:0);
+		return year * 10000 + month * 100 + day;
+	}
+	
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		return (a % b < 0)?q - 1:q;
+	}
+	
+	private static int writeDate(char[] buf, int pos, long yyyyMMdd, char separator) {
+		int year = (int)(yyyyMMdd / 10000);
+		buf[pos++] = (char)('0' + year / 1000);
+		buf[pos++] = (char)('0' + (year / 100) % 10);
+		pos = write2(buf, pos, year % 100);
+		buf[pos++] = '-';
+		pos = write2(buf, pos, (int)(yyyyMMdd / 100) % 100);
+		buf[pos++] = '-';
+		pos = write2(buf, pos, (int)(yyyyMMdd % 100));
+		buf[pos++] = separator;
+		return pos;
+	}
+	
+	private static int writeTime(char[] buf, int pos, int seconds) {
+		pos = write2(buf, pos, seconds / 3600);
+		buf[pos++] = ':';
+		pos = write2(buf, pos, (seconds / 60) % 60);
+		buf[pos++] = ':';
+		return write2(buf, pos, seconds % 60);
+	}
+	
+	private static int write2(char[] buf, int pos, int value) {
+		buf[pos++] = (char)('0' + value / 10);
+		buf[pos++] = (char)('0' + value % 10);
+		return pos;
+	}
+	
+	/**
+	 * @return the value of the digits, -1 if one of the chars is not a digit
+	 */
+	private static int digits(String s, int start, int count) {
+		if(count <= 0 || count > 9)
+			return -1;
+		int value = 0;
+		for(int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if(c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+	
+	/**
+	 * @return true if the String is made of digits only
+	 */
+	private static boolean isMillis(String s) {
+		if(s.length() == 0)
+			return false;
+		for(int i = 0; i < s.length(); i++)
+			if(s.charAt(i) < '0' || s.charAt(i) > '9')
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Any other layout SimpleDateFormat accepts with ISO8601_PATTERN 
+	 * (eg. fields with fewer digits)
+	 */
+	private static long parseWithFormatter(String sDate) throws ParseException {
 		logger.debug("parsing " + sDate);
 		
-		cal = new GregorianCalendar();
-		cal.setTimeInMillis(dateFormatter.parse(sDate,new ParsePosition(0)).getTime());		
+		SimpleDateFormat formatter = new SimpleDateFormat(ISO8601_PATTERN, Locale.FRANCE);
+		formatter.setTimeZone(zone);
+		java.util.Date d = formatter.parse(sDate, new ParsePosition(0));
+		if(d == null)
+			throw new ParseException("Unable to parse ISO8601 date: " + sDate, 0);
+		return d.getTime();
 	}
 	
 	/**
@@ -141,7 +452,7 @@ public class Date {
 			String[] timeParts = timePart.split(":");				
 			int hourOfDay = Integer.parseInt(timeParts[0]);
 			int minute = Integer.parseInt(timeParts[1]);
-			cal = new GregorianCalendar(year, month, dayOfMonth, hourOfDay, minute);
+			millis = new GregorianCalendar(year, month, dayOfMonth, hourOfDay, minute).getTimeInMillis();
 		
 		}catch(Exception e) {
 			throw new ParseException(e.getMessage(), 0);
@@ -181,7 +492,7 @@ public class Date {
 		 */
 		try {
 			String[] datePart = sDate.split("\\s");
-			cal = GregorianCalendar.getInstance();
+			Calendar cal = GregorianCalendar.getInstance();
 			cal.set(Calendar.YEAR, Integer.parseInt(datePart[5]));
 			cal.set(Calendar.MONTH, monthsHashTable.get(datePart[1]));
 			cal.set(Calendar.DAY_OF_MONTH, Integer.parseInt(datePart[2]));
@@ -191,6 +502,7 @@ public class Date {
 			cal.set(Calendar.MINUTE, Integer.parseInt(timePart[1]));
 			cal.set(Calendar.SECOND, Integer.parseInt(timePart[2]));
 			cal.set(Calendar.MILLISECOND, 0); // superfluous here
+			millis = cal.getTimeInMillis();
 		}catch(Exception e) {
 			throw new ParseException(e.getMessage(), 0);
 		}
@@ -198,28 +510,31 @@ public class Date {
 	}
 	
 	public String toString() {
-		return cal.getTime().toString();
+		return new java.util.Date(millis).toString();
 	}
 	
+	/**
+	 * @return a new calendar set to this date
+	 */
 	public Calendar getCalendar() {
+		Calendar cal = new GregorianCalendar();
+		cal.setTimeInMillis(millis);
 		return cal;
 	}
 	
 	public long getTimeInMillis() {
-		return cal.getTimeInMillis();
+		return millis;
 	}
 	
 	public boolean equals(Date d) {
-		return cal.equals(d);
+		return d != null && millis == d.millis;
 	}
 	
 	public boolean greaterThan(Date d) {
-		return (cal.getTimeInMillis()>d.getCalendar().getTimeInMillis())?true:false;
+		return millis > d.millis;
 	}
 	
 	public String asISO8601() {
-		//StringBuffer sb = new StringBuffer();
-		//return dateFormatter.format(new java.util.Date(cal.getTimeInMillis()), sb, new FieldPosition(java.text.DateFormat.DATE_FIELD)).toString();
-		return dateFormatter.format(new java.util.Date(cal.getTimeInMillis()));
+		return formatISO8601(millis);
 	}
 }
@@ -102,6 +102,10 @@ public interface IMirror {
 	public String getCronExpression();
 	public void setCronExpression(String cronExp);
 	
+	// how many connections may be opened at once to crawl the mirror
+	public int getCrawlConnections();
+	public void setCrawlConnections(int connections);
+	
 	/*
 	 * METHODS RELATED WITH MANUAL NAVIGATION (and testing)
 	 */
@@ -113,6 +117,7 @@ public interface IMirror {
 	 */
 	public String toString();				// a computed name of the mirror
 	public IConnection getConnection();		// an active connection (or not)
+	public IConnection openConnection() throws IOException;	// a new connection with the active pass (closed by the caller)
 	public String getName();				// mirror name (not unique; the prefered way is struct.getMirrorID())
 	public AnalysisLevel getAnalysis();		// to which level of details the analysis is conducted
 	public String getFilename();			// used for filesystem storage (should be unique)
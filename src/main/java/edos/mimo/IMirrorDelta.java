@@ -26,7 +26,8 @@ import java.util.List;
  * few compared to the huge number of files
  * typically on a mirror. Hence, the "delta" is
  * the set of changes which occured from the 
- * latest complete snapshot of a mirror.
+ * latest known state of a mirror: its latest 
+ * complete snapshot with the deltas stored since.
  * 
  * Storing a delta is much much less expensive
  * than storing a complete snapshot space-wise.
@@ -53,6 +54,7 @@ public interface IMirrorDelta {
 	public static final String ADD		= "add";
 	public static final String DEL		= "del";
 	public static final String UPDATE	= "update";
+	public static final String CHAINED	= "chained";	// relative to the previous delta, not to the full structure
 
 	public int getSize();			// how many changes this delta contains
 	public String getDocumentID();	// unique name for this delta
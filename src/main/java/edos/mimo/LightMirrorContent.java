@@ -18,11 +18,11 @@ package edos.mimo;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.ResultSet;
+import java.sql.Date;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Types;
 import java.util.Calendar;
-import java.util.Formatter;
 import java.util.Iterator;
 import java.util.List;
 
@@ -31,10 +31,18 @@ import org.apache.log4j.Logger;
 import edos.mimo.connection.FTPConnection;
 import edos.mimo.connection.HTTPConnection;
 import edos.mimo.connection.IConnection;
+import edos.mimo.dal.BatchInsert;
+import edos.mimo.dal.ConnectionPool;
 import edos.mimo.filesystem.IFile;
 
 public class LightMirrorContent {
 	private static Logger logger = Logger.getLogger(LightMirrorContent.class);
+	
+	// columns of the tables
+	private static final int[] LOCAL_STATE_TYPES = { Types.VARCHAR, Types.DATE, Types.TIME,
+											Types.VARCHAR, Types.BIGINT, Types.BIGINT };
+	private static final int[] AVAILABILITY_TYPES = { Types.VARCHAR, Types.DATE, Types.TIME,
+											Types.INTEGER, Types.INTEGER, Types.BIGINT, Types.INTEGER };
 
 	// Content's data
 	private String Mirror_ID;
@@ -54,7 +62,10 @@ public class LightMirrorContent {
 	
 	// JDBC pointers
 	private Connection jdbcConnection;
+	private ConnectionPool pool = null;	// takes precedence over jdbcConnection
 	private Calendar timeStamp;
+	private int batchSize = Config.DEFAULT_JDBC_BATCH_SIZE;	// statements per round trip
+	private int batchRows = Config.DEFAULT_JDBC_BATCH_ROWS;	// rows per statement
 	
 	
 	public LightMirrorContent() {
@@ -91,11 +102,41 @@ public class LightMirrorContent {
 	}
 	
 	
+	/**
+	 * @param pool the pool to borrow a connection from, each time the file list is stored
+	 */
+	public void setConnectionPool(ConnectionPool pool) {
+		this.pool = pool;
+	}
+	
+	
 	public void setTimeStamp(Calendar runTime) {
 		timeStamp = runTime;
 	}
 	
 	
+	/**
+	 * @param size number of insert statements sent at once
+	 * @param rows number of files inserted by a statement (when the database accepts it)
+	 */
+	public void setBatch(int size, int rows) {
+		batchSize = size;
+		batchRows = rows;
+	}
+	
+	
+	/**
+	 * Sets the file list instead of retrieving it from the mirror
+	 * (eg. to store a list read elsewhere)
+	 * @param files
+	 */
+	public void setFileList(List<IFile> files) {
+		fileList = files;
+		totalSize = 0;
+		isUp = (null == files)?0:1;
+	}
+	
+	
 	public List<IFile> getFileList() {
 		if (null == fileList) fileList = retrieveFileList();
 		return fileList;
@@ -105,7 +146,7 @@ public class LightMirrorContent {
 	public long getTotalSize() {
 		if (0 != totalSize) return totalSize;
 		if (null == fileList) return 0;
-		int size = 0;
+		long size = 0;
 		Iterator<IFile> it = fileList.iterator();
 		while (it.hasNext()) size += it.next().getSize();
 		totalSize = size;
@@ -137,96 +178,101 @@ public class LightMirrorContent {
 	}
 	
 	
-	private int executeStatement(Connection sqlConnection, String sqlStatement) {
-		int result = 0;
-		Statement stmt = null;
-		ResultSet rs = null;
+	/**
+	 * Stores the file list in the "LocalState" table and its summary in the
+	 * "Availability" table, in a single transaction: the values are bound to
+	 * prepared statements sent in batches (see BatchInsert) rather than one
+	 * statement per file.
+	 * 
+	 * With a connection pool, the connection is borrowed for the time of 
+	 * the transaction, so that the mirrors are stored in parallel.
+	 * 
+	 * @return 1 if stored, 0 if the transaction was rolled back
+	 * 		or no connection was available
+	 */
+	public int storeFileList() {
+		if (null == pool)
+			return storeFileList(jdbcConnection);
+		
+		Connection pooled = null;
 		try {
-			stmt = sqlConnection.createStatement();
-			if (stmt.execute(sqlStatement)) {
-				rs = stmt.getResultSet();
-				logger.info(rs.getString(0));
-			}
+			pooled = pool.borrow();
+			return storeFileList(pooled);
+			
 		} catch (SQLException e) {
-			logger.fatal("SQLException: " + e.getMessage());
-			logger.fatal("SQLState: " + e.getSQLState());
-			logger.fatal("VendorError: " + e.getErrorCode());
+			logger.fatal("Unable to store mirror " + Mirror_ID + ": " + e.getMessage());
+			return 0;
+			
 		} finally {
-			if (rs != null) {
+			pool.release(pooled);
+		}
+	}
+	
+	
+	private int storeFileList(Connection sqlConnection) {
+		// Prepare the date and time stamps 
+		Date dateStamp = new Date(timeStamp.getTimeInMillis());
+		Time timeStampValue = new Time(timeStamp.getTimeInMillis());
+		int fileCount = (null == fileList)?0:fileList.size();
+
+		// the connection may be shared by the contents
+		synchronized(sqlConnection) {
+			boolean autoCommit = true;
+			BatchInsert localState = null;
+			BatchInsert availability = null;
+			try {
+				autoCommit = sqlConnection.getAutoCommit();
+				sqlConnection.setAutoCommit(false);
+
+				// Insert the file values into "LocalState" table
+				localState = new BatchInsert(sqlConnection, "LocalState", LOCAL_STATE_TYPES, batchSize, batchRows);
+				if (null != fileList) {
+					Iterator<IFile> it = fileList.iterator();
+					while (it.hasNext()) {
+						IFile currentFile = it.next();
+						// TODO now that date is available in standard datetime format (ISO8601), update DB schema 
+						Long fileDate = (null == currentFile.getDate())?null:new Long(currentFile.getDate().getTimeInMillis());
+						localState.add(new Object[] { Mirror_ID, dateStamp, timeStampValue,
+											currentFile.getName(), new Long(currentFile.getSize()), fileDate });
+					}// while Iterator
+				}
+				localState.flush();
+
+				// Insert the content summary into "Availability" table
+				// Add here "No_Missing_Packages" !
+				availability = new BatchInsert(sqlConnection, "Availability", AVAILABILITY_TYPES, 1, 1);
+				availability.add(new Object[] { Mirror_ID, dateStamp, timeStampValue, new Integer(isUp),
+									new Integer(fileCount), new Long(getTotalSize()), new Integer(0) });
+				availability.flush();
+
+				sqlConnection.commit();
+				logger.info("Stored " + fileCount + " files of mirror " + Mirror_ID
+								+ " in " + localState.getRoundTrips() + " round trips");
+				return 1;
+
+			} catch (SQLException e) {
+				logger.fatal("SQLException: " + e.getMessage());
+				logger.fatal("SQLState: " + e.getSQLState());
+				logger.fatal("VendorError: " + e.getErrorCode());
 				try {
-					rs.close();
+					sqlConnection.rollback();
 				} catch (SQLException sqlEx) {
-					logger.fatal("SQLException: " + sqlEx.getMessage());
+					logger.fatal("Unable to roll back: " + sqlEx.getMessage());
 				}
-				rs = null;
-			}
-			if (stmt != null) {
+				return 0;
+
+			} finally {
+				if (localState != null)
+					localState.close();
+				if (availability != null)
+					availability.close();
 				try {
-					stmt.close();
+					sqlConnection.setAutoCommit(autoCommit);
 				} catch (SQLException sqlEx) {
 					logger.fatal("SQLException: " + sqlEx.getMessage());
 				}
-				stmt = null;
 			}
 		}
-		
-		return result;
-	}
-	
-	
-	public int storeFileList() {
-		// Prepare the date and time stamps 
-		Formatter timeFormatter = new Formatter();
-		timeFormatter.format("%tF",	timeStamp.getTime());
-		String dateStampString = timeFormatter.toString();
-		timeFormatter = new Formatter();
-		timeFormatter.format("%tT",	timeStamp.getTime());
-		String timeStampString = timeFormatter.toString();
-
-		// Insert the file values into "LocalState" table
-		if (null != fileList) {
-			Iterator<IFile> it = fileList.iterator();
-			while (it.hasNext()) {
-				IFile currentFile = it.next();
-				StringBuffer sqlStatement = new StringBuffer("insert into LocalState values (\"");			
-				sqlStatement.append(Mirror_ID);
-				sqlStatement.append("\", \"");
-				sqlStatement.append(dateStampString);
-				sqlStatement.append("\", \"");
-				sqlStatement.append(timeStampString);
-				sqlStatement.append("\", \"");
-				sqlStatement.append(currentFile.getName());
-				sqlStatement.append("\", \"");
-				sqlStatement.append(currentFile.getSize());
-				sqlStatement.append("\", \"");	
-				// TODO now that date is available in standard datetime format (ISO8601), update DB schema 
-				if (null != currentFile.getDate()) sqlStatement.append(currentFile.getDate().getTimeInMillis());
-				else sqlStatement.append("null");
-				sqlStatement.append("\" )");
-				//	logger.info(sqlStatement);
-				long i = executeStatement(jdbcConnection, sqlStatement.toString());
-			}// while Iterator
-		}
-		// Insert the content summary into "Availability" table
-		StringBuffer sqlStatement = new StringBuffer("insert into Availability values (\"");			
-		sqlStatement.append(Mirror_ID);
-		sqlStatement.append("\", \"");
-		sqlStatement.append(dateStampString);
-		sqlStatement.append("\", \"");
-		sqlStatement.append(timeStampString);
-		sqlStatement.append("\", \"");
-		sqlStatement.append(isUp);
-		sqlStatement.append("\", \"");
-		sqlStatement.append(fileList.size());
-		sqlStatement.append("\", \"");
-		sqlStatement.append(getTotalSize());
-
-		// Add here "No_Missing_Packages" !
-		sqlStatement.append("\" , \"0\")");
-//		logger.info(sqlStatement);
-		long i = executeStatement(jdbcConnection, sqlStatement.toString());
-		
-		return 1;
 	}
 	
 	public String getMirror_ID() {
@@ -18,7 +18,12 @@ package edos.mimo;
 
 import java.io.IOException;
 
+import org.dom4j.DocumentException;
+
+import edos.mimo.dom.CompactTreeMirrorStructure;
+import edos.mimo.dom.ITreeMirrorStructure;
 import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.exception.ConfigException;
 import edos.mimo.rdbms.TableMirrorStructure;
 
 /**
@@ -49,4 +54,41 @@ public abstract class MirrorStructureFactory {
 		
 		return null;
 	}
+
+	/**
+	 * Returns the structure as it should be kept in memory: compacted
+	 * if the configuration asks for it (once loaded), as is otherwise.
+	 * @param struct a freshly acquired structure
+	 */
+	public static ITreeMirrorStructure keep(ITreeMirrorStructure struct) {
+		if(struct instanceof CompactTreeMirrorStructure || getRepresentation() != Config.COMPACT_STRUCTURE)
+			return struct;
+		return new CompactTreeMirrorStructure(struct);
+	}
+
+	/**
+	 * Loads a structure document with the representation defined in
+	 * the configuration (if loaded).
+	 * @param xml structure document
+	 * @throws DocumentException
+	 */
+	public static ITreeMirrorStructure loadTreeStructure(String xml) throws DocumentException {
+		if(getRepresentation() == Config.COMPACT_STRUCTURE)
+			return new CompactTreeMirrorStructure(xml);
+		return new TreeMirrorStructure(xml);
+	}
+
+	private static int getRepresentation() {
+		int representation = Config.DOM_STRUCTURE;	// default
+		
+		if(Config.isLoaded()) {
+			try {
+				representation = Config.getInstance().getStructureRepresentation();
+				
+			} catch (ConfigException e) {
+				// cannot happen once loaded, keep the default
+			}
+		}
+		return representation;
+	}
 }
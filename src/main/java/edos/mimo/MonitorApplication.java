@@ -32,13 +32,16 @@ import org.quartz.SchedulerException;
 import org.quartz.SchedulerFactory;
 
 import edos.mimo.connection.DownloadCenter;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.ITreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
-import edos.mimo.job.DOMDeltaGeneratorJob;
-import edos.mimo.job.DOMDiffGeneratorJob;
+import edos.mimo.exception.StorageException;
+import edos.mimo.job.CrawlGuard;
 import edos.mimo.job.DownloaderJob;
+import edos.mimo.job.RetentionJob;
+import edos.mimo.pipeline.Pipeline;
+import edos.mimo.polling.AdaptiveScheduler;
 import edos.mimo.statistics.ApplicationListener;
 
 /**
@@ -47,9 +50,10 @@ import edos.mimo.statistics.ApplicationListener;
  */
 public class MonitorApplication {
 	private static Logger logger;
-	private static BDBXMLManager manager = null;
+	private static IStorage manager = null;
 	private static Config config = null;
 	private static Scheduler sched = null;		// Quartz scheduler
+	private static AdaptiveScheduler adaptive = null;	// null to crawl with the cron expressions
 	
 	private static DownloadCenter dcenter = DownloadCenter.getInstance();
 	
@@ -57,6 +61,7 @@ public class MonitorApplication {
 	public static final int ABORT 		= 1;
 	public static final String MIRROR		= "mirror";
 	public static final String DOWNLOADER = "Downloader";
+	public static final String RETENTION = "Retention";
 	public static final String DIFF_GENERATOR = "Diff-Generator";
 	public static final String DELTA_GENERATOR = "Delta-Generator";
 	
@@ -113,12 +118,12 @@ public class MonitorApplication {
 
 		/*
 		 * INITIALIZING THE DATABASE
+		 * (backend chosen in the config file)
 		 */
-		boolean debug = false;
 		try {
-			manager = BDBXMLManager.getInstance(debug);
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			exit(ABORT);
 			
@@ -164,9 +169,9 @@ public class MonitorApplication {
 		 * The master needs to be resynchronized in the regular basis,
 		 * and the mirrors as well.
 		 * 
-		 * The Download Job handles the rest by starting new jobs
-		 * in order to produce diffs and deltas. These jobs are one-time
-		 * use, they can be seen as simple threads.
+		 * The Download Job handles the rest by handing over the structures
+		 * to the pipeline, whose stages produce deltas and diffs in their
+		 * own threads (see Pipeline).
 		 */
 		SchedulerFactory schedFact = new org.quartz.impl.StdSchedulerFactory();
 		IMirror mirror = null;	// temp variable for the loop
@@ -174,6 +179,16 @@ public class MonitorApplication {
 		try {
 			sched = schedFact.getScheduler();
 			
+			// the mirrors may be crawled at their own pace (see AdaptiveScheduler)
+			if(config.getPollingPolicy() != null) {
+				adaptive = new AdaptiveScheduler(sched, DOWNLOADER, config.getPollingPolicy(), 
+												new File(config.getPollingStateFile()));
+				adaptive.setSpread(config.getTriggerSpread());
+				logger.info("Adaptive polling: " + config.getPollingPolicy());
+			}
+			if(config.getTriggerSpread() != null)
+				logger.info("Triggers: " + config.getTriggerSpread());
+			
 			// schedule master mirror
 			schedule(master);
 			
@@ -185,8 +200,16 @@ public class MonitorApplication {
 					schedule(m);				
 			}
 			
+			// thin out the history of the mirrors (see RetentionEngine)
+			if(config.getRetentionCron() != null)
+				scheduleRetention(config.getRetentionCron());
+			
 			try {
 				sched.addTriggerListener(ApplicationListener.getInstance());
+				Pipeline.getInstance().addListener(ApplicationListener.getInstance());
+				CrawlGuard.getInstance().addListener(ApplicationListener.getInstance());
+				if(adaptive != null)
+					Pipeline.getInstance().addListener(adaptive);
 			} catch (ConfigException e) {
 				logger.fatal(e.getMessage());
 				MonitorApplication.exit(ABORT);
@@ -262,50 +285,70 @@ public class MonitorApplication {
 		
 		String jobNameAKAMirrorID = mirrorID;
 		String downloaderGroupName = DOWNLOADER;
-		String diffGeneratorGroupName = DIFF_GENERATOR;
-		String deltaGeneratorGroupName = DELTA_GENERATOR;
-		
-		/*
-		 * DELTA job
-		 */
-		JobDetail deltaJobDetail = new JobDetail(jobNameAKAMirrorID,
-								deltaGeneratorGroupName, // default group
-								DOMDeltaGeneratorJob.class); // the diff job
-		
-		/*
-		 * DIFF job
-		 */
-		JobDetail diffJobDetail = new JobDetail(jobNameAKAMirrorID,
-								diffGeneratorGroupName, // default group
-								DOMDiffGeneratorJob.class); // the diff job
 		
 		/*
 		 * DOWNLOADER job
 		 * This job is the point of entry in the workflow.
-		 * It needs to know about the 2 jobs which are next (see above).
+		 * The next steps run in the pipeline (see Pipeline).
 		 */
 		JobDetail jobDetail = new JobDetail(jobNameAKAMirrorID, downloaderGroupName,
 									DownloaderJob.class); // the job
 		
 		jobDetail.getJobDataMap().put(MIRROR, mirror);
-		jobDetail.getJobDataMap().put(DELTA_GENERATOR, deltaJobDetail);
-		jobDetail.getJobDataMap().put(DIFF_GENERATOR, diffJobDetail);
+		
+		if(adaptive != null) {
+			// the job stays between the one-shot triggers
+			jobDetail.setDurability(true);
+			sched.addJob(jobDetail, true);
+			adaptive.schedule(jobNameAKAMirrorID);
+			return;
+		}
+		
+		// the mirrors sharing an expression do not all fire at once (see TriggerSpread)
+		String cronExpression = mirror.getCronExpression();
+		if(config.getTriggerSpread() != null)
+			cronExpression = config.getTriggerSpread().spread(cronExpression, jobNameAKAMirrorID);
 		
 		CronTrigger trigger = new CronTrigger("CronTrigger for " + mirror,
 									downloaderGroupName, jobNameAKAMirrorID, downloaderGroupName,
-									mirror.getCronExpression() );
+									cronExpression);
 		// TODO remove below!
 		//Trigger trigger = TriggerUtils.makeMinutelyTrigger(intervalHours);
 		//Trigger trigger = TriggerUtils.makeHourlyTrigger(intervalHours);
 		trigger.setStartTime(new java.util.Date());
 		trigger.setName("Download Job for " + mirror);
+		// fires missed during a long crawl make a single one (see CrawlGuard)
+		trigger.setMisfireInstruction(CronTrigger.MISFIRE_INSTRUCTION_FIRE_ONCE_NOW);
 		sched.scheduleJob(jobDetail, trigger);
 		
 		logger.info("Scheduled job for " + mirror 
-				+ " with cron expression '" + mirror.getCronExpression() + "'");
+				+ " with cron expression '" + cronExpression + "'");
 		
 	}
 	
+	/**
+	 * Registers the retention job with the scheduler. An invalid cron
+	 * expression only disables it.
+	 * 
+	 * @param cronExpression
+	 * @throws SchedulerException
+	 */
+	private static void scheduleRetention(String cronExpression) throws SchedulerException {
+		JobDetail jobDetail = new JobDetail(RETENTION, RETENTION, RetentionJob.class);
+		
+		try {
+			CronTrigger trigger = new CronTrigger("Retention Job", RETENTION, RETENTION, RETENTION,
+													cronExpression);
+			trigger.setStartTime(new java.util.Date());
+			sched.scheduleJob(jobDetail, trigger);
+			logger.info("Scheduled retention job with cron expression '" + cronExpression + "'");
+			
+		}catch(ParseException pe) {
+			logger.error("Unable to parse the cron expression " + cronExpression 
+							+ " of the retention, the history is kept: " + pe.getMessage());
+		}
+	}
+	
 	/**
 	 * Clean shutdown of the application, including all threads
 	 * and the database which needs to be cleanly shutdown to 
@@ -329,6 +372,11 @@ public class MonitorApplication {
 			logger.fatal("Quartz Scheduler shutdowns with an exception");
 			logger.fatal(e.getStackTrace());
 		}
+		
+		// stages of the pipeline, once the crawls are over
+		Pipeline.shutdown();
+		if(adaptive != null)
+			logger.info(adaptive);
 
 		// Database
 		if(manager != null) manager.close();	// VERY IMPORTANT!
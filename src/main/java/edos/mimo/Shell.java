@@ -25,5 +25,11 @@ public class Shell {
 	 */
 	public static String COMMAND_LS_F = "ls -F";	
 	public static String COMMAND_LS_L = "ls -lBT 1  --time-style=full-iso | grep -v total";	// remove the useless header from the output	
+	
+	// recursive listing (GNU find), skipping hidden files and backups like ls -B
+	public static String COMMAND_FIND = "find . -mindepth 1 \\( -name '.*' -o -name '*~' \\) -prune -o";
+	public static String FIND_DIRS_ONLY = " -type d";
+	public static String FIND_PRINTF_FORMAT = " -printf '%y\\t%s\\t%T@\\t%P\\0'";	// see FindListingParser
+	public static String COMMAND_FIND_PRINTF_PROBE = "find . -maxdepth 0 -printf 'ok'";	// prints ok if -printf is supported
 
 }
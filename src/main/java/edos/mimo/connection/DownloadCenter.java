@@ -41,11 +41,12 @@ import edos.mimo.Config;
 import edos.mimo.IMasterMirror;
 import edos.mimo.IMirror;
 import edos.mimo.ISecondaryMirror;
-import edos.mimo.dom.DOMDiffGenerator;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.DOMMirrorDiff;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
+import edos.mimo.exception.StorageException;
 import edos.mimo.filesystem.DiffGeneratorFactory;
+import edos.mimo.filesystem.IDiffGenerator;
 import edos.mimo.filesystem.IDiffGeneratorListener;
 import edos.mimo.filesystem.IMirrorDiff;
 import edos.mimo.job.DownloadCenterJob;
@@ -185,7 +186,7 @@ public class DownloadCenter implements IDownloaderListener, IDiffGeneratorListen
 		if(mirror instanceof ISecondaryMirror) {	// ie. not for master 
 			// Runs with the DOM-based implementation
 			
-			DOMDiffGenerator comparator = (DOMDiffGenerator)DiffGeneratorFactory.getDiffGenerator(Config.TREE, master, (ISecondaryMirror)mirror);
+			IDiffGenerator comparator = DiffGeneratorFactory.getDiffGenerator(Config.TREE, master, (ISecondaryMirror)mirror);
 			
 
 			// the comparator thread will call back listener's diffCompleted()			
@@ -213,14 +214,14 @@ public class DownloadCenter implements IDownloaderListener, IDiffGeneratorListen
 			}
 			*/
 			
-			BDBXMLManager manager = null;
+			IStorage manager = null;
 			
 			try {
-				manager = BDBXMLManager.getInstance();
+				manager = StorageFactory.getStorage();
 				manager.save(diff);
 				logger.info("Saved diff: " + diff.getFileName());
 				
-			}catch(BDBXMLException e) {
+			}catch(StorageException e) {
 				logger.info("Unable to store " + diff.getFileName());
 				logger.info(e.getMessage());
 			}
@@ -28,8 +28,9 @@ import org.apache.log4j.Logger;
 import edos.distribution.mirror.Downloader;
 import edos.distribution.mirror.IDownloaderListener;
 import edos.mimo.IMirror;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.ITreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
 
 
 /**
@@ -112,7 +113,7 @@ public class Downloader extends Thread {
 			//saved = true;
 			
 			// TODO try saving from here (transactional)
-			BDBXMLManager manager = BDBXMLManager.getInstance();
+			IStorage manager = StorageFactory.getStorage();
 			manager.save(mirrorStructure);
 			saved = true;
 			
@@ -16,9 +16,16 @@
  */
 package edos.mimo.connection;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
@@ -36,9 +43,34 @@ import edos.mimo.Identity;
 import edos.mimo.filesystem.IFile;
 import edos.mimo.filesystem.MirrorFileFactory;
 
-public class FTPConnection extends NetworkConnection implements IConnection{
+/**
+ * FTP access to a mirror.
+ * 
+ * Whole trees are listed at once with STAT -R (on the control connection)
+ * or LIST -R when the server supports it (see ITreeListing). Otherwise the
+ * directories are listed one by one, with MLSD when the FEAT reply announces
+ * it: each directory then costs a single listing command, without the
+ * PWD/CWD/CWD sequence of the plain LIST. 
+ * What a server supports is found out once and kept for the host.
+ * 
+ * @author marc
+ *
+ */
+public class FTPConnection extends NetworkConnection implements IConnection, ITreeListing {
 	private static Logger logger = Logger.getLogger(FTPConnection.class);
 	
+	// tree listing modes
+	private static final int TREE_UNKNOWN = 0;
+	private static final int TREE_STAT = 1;		// STAT -R
+	private static final int TREE_LIST = 2;		// LIST -R
+	private static final int TREE_NONE = 3;		// directory by directory
+	
+	// capabilities of the servers, by host:port
+	private static Hashtable<String,Capabilities> capabilities = new Hashtable<String,Capabilities>();
+	
+	// 227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)
+	private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+	
 	private FTPClient ftpc;
 		
 	/**
@@ -159,9 +191,38 @@ public class FTPConnection extends NetworkConnection implements IConnection{
 		return dirs;		
 	}
 
-	public List<IFile>  lsFrom(String relPath) throws IOException {
-		// is the connection still active?
-		checkConnection();	// potentially throws an IOException
+	/**
+	 * Lists a directory, with MLSD if the server supports it.
+	 */
+	public List<IFile> lsFrom(String relPath) throws IOException {
+		ListingCollector collector = new ListingCollector(relPath);
+		listInto(relPath, collector);
+		return collector.getFiles();
+	}
+	
+	/**
+	 * Lists a directory, with MLSD if the server supports it.
+	 * The connection is not checked beforehand: it is opened again
+	 * (once) if the server happens to have closed it.
+	 */
+	public void listInto(String relPath, IListingVisitor visitor) throws IOException {
+		try {
+			list(relPath, visitor);
+			
+		}catch(FTPConnectionClosedException clse) {
+			// try to reconnect once
+			logger.info("FTP connection is closed, trying to reconnect once");
+			close();
+			connect();
+			list(relPath, visitor);	// or throws another exception
+		}
+	}
+	
+	private void list(String relPath, IListingVisitor visitor) throws IOException {
+		if(getCapabilities().mlsd) {
+			listWithMLSD(relPath, visitor);
+			return;
+		}
 		
 		// move to proper working directory
 		String currentDir = ftpc.printWorkingDirectory();
@@ -169,15 +230,221 @@ public class FTPConnection extends NetworkConnection implements IConnection{
 			throw new IOException("Unable to change to directory " + relPath);
 		
 		FTPFile[] files = ftpc.listFiles();
-		LinkedList<IFile> list = new LinkedList<IFile>();
-		
 		for(int i = 0; i < files.length; i++) {
-			IFile file = MirrorFileFactory.create(relPath, files[i]);
-			list.add(file);
+			FTPFile f = files[i];
+			visitor.visit(f.getName(), f.isDirectory(), f.getSize(), 
+					(f.getTimestamp() != null)?f.getTimestamp().getTimeInMillis():0);
 		}
 		
 		ftpc.changeWorkingDirectory(currentDir);
-		return (List<IFile>)list;		
+	}
+	
+	/**
+	 * Lists a directory with a single MLSD command (RFC 3659), which takes
+	 * the path as argument and gives exact UTC times.
+	 * The entries are parsed as they are read from the data connection.
+	 * @param path
+	 * @param visitor
+	 * @throws IOException
+	 */
+	private void listWithMLSD(String path, IListingVisitor visitor) throws IOException {
+		Socket socket = openDataConnection("MLSD", path);
+		if(socket == null)
+			throw new IOException("Unable to list directory " + path + ": " + ftpc.getReplyString());
+		
+		try {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), ftpc.getControlEncoding()));
+			String line;
+			while((line = reader.readLine()) != null)
+				FTPListingParser.parseMLSDEntry(line, visitor);
+			
+		}finally{
+			socket.close();
+		}
+		completeDataConnection("MLSD");
+	}
+	
+	/**
+	 * Lists the whole tree with STAT -R, or LIST -R.
+	 * The first call for a host finds out which one works (if any).
+	 */
+	public boolean lsTree(String path, boolean dirsOnly, ITreeListingHandler handler) throws IOException {
+		Capabilities caps = getCapabilities();
+		int mode = caps.treeListing;
+		if(mode == TREE_NONE)
+			return false;
+		
+		List<String> lines = null;
+		try {
+			if(mode == TREE_UNKNOWN || mode == TREE_STAT) {
+				lines = statRecursive(path);
+				if(lines != null)
+					mode = TREE_STAT;
+			}
+			if(lines == null && (mode == TREE_UNKNOWN || mode == TREE_LIST)) {
+				lines = listRecursive(path);
+				if(lines != null)
+					mode = TREE_LIST;
+			}
+			
+		}catch(FTPConnectionClosedException clse) {
+			// some servers just hang up on an unknown option
+			logger.info("FTP connection closed while listing " + path + " recursively, reconnecting");
+			close();
+			connect();
+		}
+		
+		if(caps.treeListing == TREE_UNKNOWN) {
+			caps.treeListing = (lines == null)?TREE_NONE:mode;
+			logger.info("Tree listing on " + host + ": " 
+					+ ((lines == null)?"not supported":(mode == TREE_STAT)?"STAT -R":"LIST -R"));
+		}
+		
+		if(lines == null)
+			return false;
+		
+		FTPListingParser.parseRecursive(lines, path, dirsOnly, handler);
+		return true;
+	}
+	
+	/**
+	 * STAT -R sends the listing over the control connection: 
+	 * no data connection is needed.
+	 * @return the listing lines, or null if the server refused it
+	 */
+	private List<String> statRecursive(String path) throws IOException {
+		String currentDir = ftpc.printWorkingDirectory();
+		if(!ftpc.changeWorkingDirectory(path))
+			throw new IOException("Unable to change to directory " + path);
+		
+		// 211 is the server status, which some servers give whatever the arguments
+		int reply = ftpc.sendCommand("STAT", "-R .");
+		String[] replyLines = ftpc.getReplyStrings();
+		ftpc.changeWorkingDirectory(currentDir);
+		
+		if((reply != FTPReply.DIRECTORY_STATUS && reply != FTPReply.FILE_STATUS)
+				|| replyLines.length < 3)
+			return null;
+		
+		// the first and last lines are the reply code lines
+		List<String> lines = new ArrayList<String>(replyLines.length - 2);
+		for(int i = 1; i < replyLines.length - 1; i++)
+			lines.add(replyLines[i]);
+		
+		return FTPListingParser.isRecursive(lines)?lines:null;
+	}
+	
+	/**
+	 * @return the listing lines, or null if the server refused LIST -R
+	 * 			or ignored the option
+	 */
+	private List<String> listRecursive(String path) throws IOException {
+		String currentDir = ftpc.printWorkingDirectory();
+		if(!ftpc.changeWorkingDirectory(path))
+			throw new IOException("Unable to change to directory " + path);
+		
+		List<String> lines = readDataConnection("LIST", "-R");
+		ftpc.changeWorkingDirectory(currentDir);
+		
+		if(lines == null || !FTPListingParser.isRecursive(lines))
+			return null;
+		return lines;
+	}
+	
+	/**
+	 * Runs a command answering over a passive data connection.
+	 * @return the lines received, or null if the command was refused
+	 * @throws IOException
+	 */
+	private List<String> readDataConnection(String command, String arg) throws IOException {
+		Socket socket = openDataConnection(command, arg);
+		if(socket == null)
+			return null;
+		
+		List<String> lines = new ArrayList<String>();
+		try {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), ftpc.getControlEncoding()));
+			String line;
+			while((line = reader.readLine()) != null)
+				lines.add(line);
+			
+		}finally{
+			socket.close();
+		}
+		completeDataConnection(command);
+		
+		return lines;
+	}
+	
+	/**
+	 * Opens a passive data connection and sends the command.
+	 * commons-net knows neither MLSD nor options to LIST, so that
+	 * the data connection is handled here.
+	 * 
+	 * @param command
+	 * @param arg
+	 * @return the data connection, or null if the command was refused
+	 * @throws IOException
+	 */
+	private Socket openDataConnection(String command, String arg) throws IOException {
+		if(ftpc.pasv() != FTPReply.ENTERING_PASSIVE_MODE)
+			throw new IOException("Passive mode refused by " + host + ": " + ftpc.getReplyString());
+		
+		Matcher m = PASV_REPLY.matcher(ftpc.getReplyString());
+		if(!m.find())
+			throw new IOException("Unable to parse passive mode reply: " + ftpc.getReplyString());
+		int dataPort = (Integer.parseInt(m.group(5)) << 8) | Integer.parseInt(m.group(6));
+		
+		// the address given by the server is ignored (it can be a private one)
+		Socket socket = new Socket(ftpc.getRemoteAddress(), dataPort);
+		boolean accepted = false;
+		try {
+			accepted = FTPReply.isPositivePreliminary(ftpc.sendCommand(command, arg));
+			
+		}finally{
+			if(!accepted)
+				socket.close();
+		}
+		return accepted?socket:null;
+	}
+	
+	/**
+	 * Reads the final reply, once the data connection is closed
+	 */
+	private void completeDataConnection(String command) throws IOException {
+		if(!ftpc.completePendingCommand())
+			throw new IOException(command + " failed on " + host + ": " + ftpc.getReplyString());
+	}
+	
+	/**
+	 * What the server supports, found out by the first connection to the host
+	 */
+	private Capabilities getCapabilities() throws IOException {
+		Capabilities caps = capabilities.get(host + ":" + port);
+		if(caps == null)
+			caps = detectCapabilities();
+		return caps;
+	}
+	
+	/**
+	 * Reads the FEAT reply (RFC 2389): MLST announces MLSD as well.
+	 * The tree listing is found out later by lsTree().
+	 */
+	private Capabilities detectCapabilities() throws IOException {
+		Capabilities caps = new Capabilities();
+		
+		if(FTPReply.isPositiveCompletion(ftpc.sendCommand("FEAT"))) {
+			String[] features = ftpc.getReplyStrings();
+			for(int i = 1; i < features.length - 1; i++)
+				if(features[i].trim().toUpperCase().startsWith("MLST"))
+					caps.mlsd = true;
+		}
+		logger.info("FTP server " + host + (caps.mlsd?" supports":" does not support") + " MLSD");
+		
+		capabilities.put(host + ":" + port, caps);
+		return caps;
 	}
 	
 	/**
@@ -196,7 +463,10 @@ public class FTPConnection extends NetworkConnection implements IConnection{
 			throw new IOException("Invalid host! Please set the host.");
 		
 		// connection
-		ftpc.connect(host);
+		if(port > 0)
+			ftpc.connect(host, port);
+		else
+			ftpc.connect(host);
 		reply = ftpc.getReplyCode();
 		if(!FTPReply.isPositiveCompletion(reply)) {
 			ftpc.disconnect();
@@ -216,6 +486,9 @@ public class FTPConnection extends NetworkConnection implements IConnection{
 		// go to Mandriva mirror space
 		ftpc.changeWorkingDirectory(localPath);
 		
+		// first connection to the host?
+		getCapabilities();
+		
 		logger.info("FTP connection established with " + host + " - " + ftpc);
 	}
 
@@ -257,6 +530,12 @@ public class FTPConnection extends NetworkConnection implements IConnection{
 		}
 		return false;
 	}
-
-
+	
+	/**
+	 * Listing capabilities of a server
+	 */
+	private static class Capabilities {
+		private volatile boolean mlsd = false;
+		private volatile int treeListing = TREE_UNKNOWN;
+	}
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.connection;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.parser.UnixFTPEntryParser;
+import org.apache.log4j.Logger;
+
+import edos.mimo.Date;
+
+/**
+ * Parses the listings returned by a FTP server:
+ *
+ *  . recursive listings (LIST -R, STAT -R), which are made of ls -lR
+ *    sections: a "path:" header followed by the "ls -l" lines of the
+ *    directory content. The first section may come without its header.
+ *
+ *  . machine listings (MLSD, RFC 3659), one "fact=value;...; name"
+ *    line per entry, with UTC timestamps formatted as YYYYMMDDHHMMSS.
+ *    Entries are sent to a IListingVisitor as they are parsed.
+ *
+ * @author marc
+ *
+ */
+public class FTPListingParser {
+	private static Logger logger = Logger.getLogger(FTPListingParser.class);
+
+	// MLSD facts
+	private static final String FACT_TYPE = "type";
+	private static final String FACT_SIZE = "size";
+	private static final String FACT_MODIFY = "modify";
+
+	private static final int TYPE_UNKNOWN = 0;
+	private static final int TYPE_FILE = 1;
+	private static final int TYPE_DIR = 2;
+
+
+	/**
+	 * Tells if a listing asked with -R is really recursive.
+	 * Some servers silently ignore the option (vsftpd does unless
+	 * ls_recurse_enable is set) and list the directory alone: the listing
+	 * is then recursive only if it has section headers, or if it has no
+	 * sub-directory to descend into.
+	 *
+	 * @param lines listing lines
+	 * @return false when the listing cannot be used as a tree listing
+	 */
+	public static boolean isRecursive(List<String> lines) {
+		UnixFTPEntryParser parser = new UnixFTPEntryParser();
+		boolean entries = false;
+		boolean dirs = false;
+
+		Iterator<String> it = lines.iterator();
+		while(it.hasNext()) {
+			String line = stripLeadingBlanks(it.next());
+			if(line.length() == 0)
+				continue;
+
+			FTPFile f = parser.parseFTPEntry(line);
+			if(f == null) {
+				if(line.endsWith(":"))
+					return true;	// section header
+				continue;			// "total n"
+			}
+
+			if(f.isDirectory() && !isDotEntry(f.getName()))
+				dirs = true;
+			entries = true;
+		}
+
+		// directories without their sections, or an empty reply saying nothing
+		return entries && !dirs;
+	}
+
+	/**
+	 * Sends the entries of a recursive listing to the handler.
+	 * Hidden files and backups are skipped, as ITreeListing requires.
+	 *
+	 * @param lines listing lines
+	 * @param root path which was listed (headers may be given from it)
+	 * @param dirsOnly true to send the directories only
+	 * @param handler
+	 * @return the number of entries sent
+	 */
+	public static int parseRecursive(List<String> lines, String root, boolean dirsOnly,
+										ITreeListingHandler handler) {
+		UnixFTPEntryParser parser = new UnixFTPEntryParser();
+		String dirPath = "";
+		boolean hiddenSection = false;
+		int count = 0;
+
+		Iterator<String> it = lines.iterator();
+		while(it.hasNext()) {
+			String line = stripLeadingBlanks(it.next());
+			if(line.length() == 0)
+				continue;
+
+			FTPFile f = parser.parseFTPEntry(line);
+			if(f == null) {
+				if(line.endsWith(":")) {
+					/*
+					 * NEW SECTION
+					 */
+					dirPath = sectionPath(line.substring(0, line.length() - 1), root);
+					hiddenSection = dirPath.startsWith(".") || dirPath.indexOf("/.") >= 0;
+				}
+				continue;
+			}
+
+			/*
+			 * ENTRY
+			 */
+			String name = f.getName();
+			if(hiddenSection || name == null || isHidden(name))
+				continue;
+			if(dirsOnly && !f.isDirectory())
+				continue;
+
+			long time = (f.getTimestamp() != null)?f.getTimestamp().getTimeInMillis():0;
+			handler.entry(dirPath, name, f.isDirectory(), f.getSize(), time);
+			count++;
+		}
+
+		logger.debug(count + " entries in the recursive listing of " + root);
+		return count;
+	}
+
+	/**
+	 * Parses a line of a MLSD listing and sends the entry to the visitor.
+	 *
+	 * @param line eg. "type=file;size=1024;modify=20060228073210; foo.rpm"
+	 * @param visitor
+	 * @return false for the current and parent directories, the hidden
+	 * 			files, and the lines which cannot be parsed (nothing visited)
+	 */
+	public static boolean parseMLSDEntry(String line, IListingVisitor visitor) {
+		int space = line.indexOf(' ');
+		if(space < 0 || space == line.length() - 1) {
+			logger.warn("Unable to parse MLSD line: " + line);
+			return false;
+		}
+
+		String name = line.substring(space + 1);
+		if(isHidden(name))
+			return false;
+
+		int type = TYPE_UNKNOWN;
+		long size = 0;
+		long time = 0;
+
+		/*
+		 * FACTS
+		 */
+		int start = 0;
+		while(start < space) {
+			int end = line.indexOf(';', start);
+			if(end < 0 || end > space)
+				end = space;
+
+			int eq = line.indexOf('=', start);
+			if(eq > start && eq < end) {
+				try {
+					if(isFact(line, start, eq, FACT_TYPE))
+						type = parseType(line, eq + 1, end);
+					else if(isFact(line, start, eq, FACT_SIZE))
+						size = Long.parseLong(line.substring(eq + 1, end));
+					else if(isFact(line, start, eq, FACT_MODIFY))
+						time = parseMLSDTime(line, eq + 1, end);
+
+				}catch(NumberFormatException nfe) {
+					logger.warn("Unable to parse fact in MLSD line: " + line);
+				}
+			}
+			start = end + 1;
+		}
+
+		if(type == TYPE_UNKNOWN)
+			return false;
+
+		visitor.visit(name, type == TYPE_DIR, size, time);
+		return true;
+	}
+
+	/**
+	 * @return TYPE_FILE, TYPE_DIR or TYPE_UNKNOWN (also for cdir and pdir)
+	 */
+	private static int parseType(String line, int start, int end) {
+		int length = end - start;
+		if(length == 4 && line.regionMatches(true, start, "file", 0, 4))
+			return TYPE_FILE;
+		if(length == 3 && line.regionMatches(true, start, "dir", 0, 3))
+			return TYPE_DIR;
+		return TYPE_UNKNOWN;
+	}
+
+	/**
+	 * @param value UTC time as YYYYMMDDHHMMSS, possibly followed by a fraction
+	 * @return milliseconds since Jan 1, 1970
+	 * @throws NumberFormatException
+	 */
+	public static long parseMLSDTime(String value) {
+		return parseMLSDTime(value, 0, value.length());
+	}
+
+	/**
+	 * Computed without any calendar: this is called for every entry.
+	 */
+	private static long parseMLSDTime(String s, int start, int end) {
+		if(end - start < 14)
+			throw new NumberFormatException("Invalid MLSD time: " + s.substring(start, end));
+
+		int year = digits(s, start, 4);
+		int month = digits(s, start + 4, 2);
+		int day = digits(s, start + 6, 2);
+		int hour = digits(s, start + 8, 2);
+		int minute = digits(s, start + 10, 2);
+		int second = digits(s, start + 12, 2);
+
+		// milliseconds: ".5" is 500ms, ".123456" is 123ms
+		int millis = 0;
+		if(end - start > 15 && s.charAt(start + 14) == '.') {
+			int scale = 100;
+			for(int i = start + 15; i < end && scale > 0; i++, scale /= 10)
+				millis += digits(s, i, 1) * scale;
+		}
+
+		long days = Date.daysFromEpoch(year, month, day);
+		return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+	}
+
+	private static boolean isFact(String line, int start, int end, String fact) {
+		return end - start == fact.length() && line.regionMatches(true, start, fact, 0, fact.length());
+	}
+
+	private static int digits(String s, int start, int count) {
+		int value = 0;
+		for(int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if(c < '0' || c > '9')
+				throw new NumberFormatException("Invalid digit in " + s);
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Path of a section relative to the listed directory.
+	 * Headers are either relative to it ("./a/b", "a/b", ".")
+	 * or absolute ("/root/a/b").
+	 */
+	static String sectionPath(String header, String root) {
+		String path = header;
+
+		if(root != null && root.length() > 1) {
+			String prefix = root.endsWith("/")?root:root + "/";
+			if(path.equals(root) || path.equals(prefix))
+				return "";
+			if(path.startsWith(prefix))
+				path = path.substring(prefix.length());
+		}
+
+		while(path.startsWith("./"))
+			path = path.substring(2);
+		if(path.equals("."))
+			return "";
+		while(path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+
+		return path;
+	}
+
+	private static boolean isHidden(String name) {
+		return name.startsWith(".") || name.endsWith("~");
+	}
+
+	private static boolean isDotEntry(String name) {
+		return name.equals(".") || name.equals("..");
+	}
+
+	private static String stripLeadingBlanks(String line) {
+		int i = 0;
+		while(i < line.length() && line.charAt(i) == ' ')
+			i++;
+		return (i == 0)?line:line.substring(i);
+	}
+}
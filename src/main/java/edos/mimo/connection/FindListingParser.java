@@ -0,0 +1,160 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.connection;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import edos.mimo.exception.SSH2Exception;
+
+/**
+ * Parses the output of a recursive listing made with GNU find, as
+ * given by Shell.FIND_PRINTF_FORMAT:
+ * 
+ * 	type TAB size TAB mtime TAB relative/path NUL
+ * 
+ * eg. "d\t4096\t1127769660.0000000000\tDkms/RPMS\0"
+ * 
+ * Records are NUL-terminated so that any file name is accepted, and the
+ * output is read in a single pass without splitting lines into arrays.
+ * As with the ls -l parsing, timestamps are truncated to the second.
+ * 
+ * @author marc
+ *
+ */
+public class FindListingParser {
+	public static final char FIELD_SEPARATOR = '\t';
+	public static final char RECORD_SEPARATOR = '\0';
+	
+	private ITreeListingHandler handler;
+	private int count = 0;				// entries parsed so far
+	private String lastDirPath = "";	// entries of a same directory share their path
+	
+	public FindListingParser(ITreeListingHandler handler) {
+		this.handler = handler;
+	}
+	
+	/**
+	 * Reads the whole listing and sends each entry to the handler
+	 * @param in the output of the find command
+	 * @return the number of entries read
+	 * @throws IOException on read error or malformed output
+	 */
+	public int parse(Reader in) throws IOException {
+		char[] buffer = new char[8192];
+		StringBuffer record = new StringBuffer(256);
+		int n;
+		
+		while((n = in.read(buffer)) != -1) {
+			int start = 0;
+			for(int i = 0; i < n; i++) {
+				if(buffer[i] == RECORD_SEPARATOR) {
+					record.append(buffer, start, i - start);
+					parseRecord(record);
+					record.setLength(0);
+					start = i + 1;
+				}
+			}
+			record.append(buffer, start, n - start);
+		}
+		
+		if(record.length() > 0)
+			throw new SSH2Exception("Truncated find output: " + record);
+		
+		return count;
+	}
+	
+	/**
+	 * Parses one record (without its terminating NUL)
+	 * @param record
+	 * @throws SSH2Exception
+	 */
+	void parseRecord(StringBuffer record) throws SSH2Exception {
+		int length = record.length();
+		int sizeStart = 2;
+		int timeStart = indexOf(record, FIELD_SEPARATOR, sizeStart) + 1;
+		int pathStart = (timeStart > 0)?indexOf(record, FIELD_SEPARATOR, timeStart) + 1:0;
+		
+		if(length < 2 || record.charAt(1) != FIELD_SEPARATOR || timeStart <= 0 
+				|| pathStart <= 0 || pathStart == length)
+			throw new SSH2Exception("Unable to parse find output: " + record);
+		
+		boolean dir = record.charAt(0) == 'd';
+		long size = parseDigits(record, sizeStart, timeStart - 1);
+		long time = parseDigits(record, timeStart, timeStart + digitCount(record, timeStart)) * 1000;
+		
+		/*
+		 * PATH split between parent directory and name
+		 */
+		int slash = -1;
+		for(int i = length - 1; i >= pathStart; i--)
+			if(record.charAt(i) == '/') {
+				slash = i;
+				break;
+			}
+		
+		String dirPath;
+		String name;
+		if(slash < 0) {
+			dirPath = "";
+			name = record.substring(pathStart);
+		}else{
+			dirPath = record.substring(pathStart, slash);
+			name = record.substring(slash + 1);
+		}
+		
+		if(dirPath.equals(lastDirPath))
+			dirPath = lastDirPath;	// share the same instance
+		else
+			lastDirPath = dirPath;
+		
+		handler.entry(dirPath, name, dir, size, time);
+		count++;
+	}
+	
+	private static int indexOf(StringBuffer sb, char c, int from) {
+		for(int i = from, length = sb.length(); i < length; i++)
+			if(sb.charAt(i) == c)
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Number of consecutive digits from a position
+	 * (eg. the seconds of "1127769660.0000000000")
+	 */
+	private static int digitCount(StringBuffer sb, int from) {
+		int i = from;
+		while(i < sb.length() && Character.isDigit(sb.charAt(i)))
+			i++;
+		return i - from;
+	}
+	
+	private static long parseDigits(StringBuffer sb, int from, int to) throws SSH2Exception {
+		if(to <= from)
+			throw new SSH2Exception("Number expected in find output: " + sb);
+		
+		long value = 0;
+		for(int i = from; i < to; i++) {
+			char c = sb.charAt(i);
+			if(c < '0' || c > '9')
+				throw new SSH2Exception("Number expected in find output: " + sb);
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+}
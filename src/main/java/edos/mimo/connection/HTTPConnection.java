@@ -87,6 +87,10 @@ public class HTTPConnection implements IConnection {
 		return null;
 	}
 	
+	public void listInto(String relPath, IListingVisitor visitor) throws IOException {
+		throw new IOException("Directory listing is not supported, use HTTPConnection3");
+	}
+	
 	public void close() {
 		try {
 			if (null != httpStream) httpStream.close(); 
@@ -40,7 +40,6 @@ import edos.mimo.Date;
 import edos.mimo.Identity;
 import edos.mimo.filesystem.IFile;
 import edos.mimo.filesystem.MirrorDirectory;
-import edos.mimo.filesystem.MirrorFileFactory;
 
 
 /**
@@ -127,8 +126,17 @@ public class HTTPConnection3 extends NetworkConnection implements IConnection {
 
 	@Override
 	public List<IFile> lsFrom(String relPath) throws IOException {
+		ListingCollector collector = new ListingCollector(relPath);
+		listInto(relPath, collector);
+		return collector.getFiles();
+	}
+
+	/**
+	 * Gets the directory index page, each line being parsed 
+	 * as soon as it is read.
+	 */
+	public void listInto(String relPath, IListingVisitor visitor) throws IOException {
         HttpMethod method = null;
-        List<IFile> files = new ArrayList<IFile>();
         BufferedReader in = null;		// needs to be read entirely then closed!
         
 
@@ -160,7 +168,7 @@ public class HTTPConnection3 extends NetworkConnection implements IConnection {
             
             String line = in.readLine();
             while(line != null) {
-            	files.addAll(parseLine(line, path));	// add the file(s) found on this line
+            	parseLine(line, visitor);	// visit the file(s) found on this line
             	line = in.readLine();
             }
             
@@ -171,11 +179,10 @@ public class HTTPConnection3 extends NetworkConnection implements IConnection {
         			+ he.getMessage());   
         	
         }finally{
-        	in.close();
+        	if(in != null)
+        		in.close();
         	method.releaseConnection();
         }
-        
-		return files;
 	}
 
 	/**
@@ -279,11 +286,9 @@ public class HTTPConnection3 extends NetworkConnection implements IConnection {
 	 * 
 	 * @author marc
 	 * @param line
-	 * @return
+	 * @param visitor receives the file(s) found
 	 */
-	private List<IFile> parseLine(String line, String curPath) {
-		IFile file = null;
-		List<IFile> files = new ArrayList<IFile>();
+	private void parseLine(String line, IListingVisitor visitor) {
 		int curIndex = -1;	// marking last matching index
 		
 		while((curIndex = line.indexOf("<a href=\"", curIndex+1)) != -1) {
@@ -344,14 +349,9 @@ public class HTTPConnection3 extends NetworkConnection implements IConnection {
 					size = Float.parseFloat(parts[i]);
 			}
 			
-			String path = curPath;
-			file  = MirrorFileFactory.create(fileName, date, (long)size, path, isDirectory);
-			files.add(file);
-			
-			logger.info("added file: " + file);
+			visitor.visit(fileName, isDirectory, (long)size, date.getTimeInMillis());
+			logger.debug("visited file: " + fileName);
 	}
-		
-		return files;
 	}
 
 	public boolean isValidPath(String path) { 
@@ -32,5 +32,14 @@ public interface IConnection {
 	public List<IFile> lsFrom(String relPath) throws IOException;
 	public List<IFile> lsDirFrom(String relPath) throws IOException;
 	
+	/**
+	 * Lists a directory, sending the entries to the visitor as they are
+	 * read instead of returning them as a list (see lsFrom()).
+	 * @param relPath directory to list
+	 * @param visitor receives the files and directories
+	 * @throws IOException
+	 */
+	public void listInto(String relPath, IListingVisitor visitor) throws IOException;
+	
 	public boolean isValidPath(String path);
 }
@@ -0,0 +1,43 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.connection;
+
+import java.io.IOException;
+
+/**
+ * A connection able to list a whole directory tree at once
+ * instead of one directory at a time.
+ * 
+ * @author marc
+ *
+ */
+public interface ITreeListing {
+
+	/**
+	 * Lists all the files and directories below a path, except the hidden 
+	 * ones and the backups (as ls -B does), and sends them to the handler.
+	 * The entries of a directory come in no particular order.
+	 * 
+	 * @param path directory to list
+	 * @param dirsOnly true to receive the directories only
+	 * @param handler receives the entries
+	 * @return false when the server is unable to list a tree, in which case
+	 * 			nothing was sent to the handler (use IConnection.lsFrom() instead)
+	 * @throws IOException
+	 */
+	public boolean lsTree(String path, boolean dirsOnly, ITreeListingHandler handler) throws IOException;
+}
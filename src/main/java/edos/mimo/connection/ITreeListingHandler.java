@@ -0,0 +1,37 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.connection;
+
+/**
+ * Receives the entries of a recursive listing (see ITreeListing)
+ * one by one, as they are read from the connection.
+ * 
+ * @author marc
+ *
+ */
+public interface ITreeListingHandler {
+
+	/**
+	 * @param dirPath path of the parent directory, relative to the listed
+	 * 			directory ("" for the listed directory itself, "a/b" otherwise)
+	 * @param name file name
+	 * @param dir true for a directory
+	 * @param size file size in bytes
+	 * @param timeInMillis modification time (milliseconds since Jan 1, 1970)
+	 */
+	public void entry(String dirPath, String name, boolean dir, long size, long timeInMillis);
+}
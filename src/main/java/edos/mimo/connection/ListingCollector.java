@@ -0,0 +1,51 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.connection;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import edos.mimo.Date;
+import edos.mimo.filesystem.IFile;
+import edos.mimo.filesystem.MirrorFileFactory;
+
+/**
+ * Gathers a listing as a list of <code>IFile</code>s.
+ * Connections implement lsFrom() with it on top of listInto().
+ * 
+ * @author marc
+ *
+ */
+public class ListingCollector implements IListingVisitor {
+	private String path;
+	private List<IFile> files = new LinkedList<IFile>();
+	
+	/**
+	 * @param path directory being listed
+	 */
+	public ListingCollector(String path) {
+		this.path = path;
+	}
+	
+	public void visit(String name, boolean dir, long size, long timeInMillis) {
+		files.add(MirrorFileFactory.create(name, new Date(timeInMillis), size, path, dir));
+	}
+	
+	public List<IFile> getFiles() {
+		return files;
+	}
+}
@@ -0,0 +1,103 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.connection;
+
+import edos.mimo.Date;
+import edos.mimo.exception.SSH2Exception;
+
+/**
+ * Parses the lines of a directory listing given by Shell.COMMAND_LS_L
+ * (ls -l --time-style=full-iso), eg.
+ * 
+ * 	dr-xr-xr-x  2 root root   8192 2005-09-26 13:08:01.000000000 -0400 Applications
+ * 
+ * and sends each entry to a visitor. The fields are read in place, 
+ * without splitting the line, and the time is read without any calendar
+ * (Date.parseFullISO()). As with MirrorFileFactory, it is read as a local
+ * time truncated to the second (the offset is ignored).
+ * 
+ * @author marc
+ *
+ */
+public class LsListingParser {
+	private IListingVisitor visitor;
+	
+	public LsListingParser(IListingVisitor visitor) {
+		this.visitor = visitor;
+	}
+	
+	/**
+	 * @param line a line of the ls -l output
+	 * @throws SSH2Exception if the line cannot be parsed
+	 */
+	public void parse(String line) throws SSH2Exception {
+		if(line.startsWith("total"))
+			throw new SSH2Exception("The ls -l output contains extra information");
+		
+		/*
+		 * FIELDS: mode links owner group size date time offset name
+		 */
+		int[] start = new int[8];
+		int pos = 0;
+		for(int field = 0; field < 8; field++) {
+			pos = skipBlanks(line, pos);
+			start[field] = pos;
+			pos = skipToken(line, pos);
+			if(pos == start[field])
+				throw new SSH2Exception("Unable to parse ls -l line: " + line);
+		}
+		int nameStart = skipBlanks(line, pos);
+		if(nameStart >= line.length())
+			throw new SSH2Exception("No file name in ls -l line: " + line);
+		
+		boolean dir = line.charAt(0) == 'd';
+		String name = line.substring(nameStart);
+		if(line.charAt(0) == 'l') {
+			int arrow = name.indexOf(" -> ");
+			if(arrow > 0)
+				name = name.substring(0, arrow);
+		}
+		if(dir && name.endsWith("/"))
+			name = name.substring(0, name.length() - 1);
+		
+		try {
+			long size = Long.parseLong(line.substring(start[4], skipToken(line, start[4])));
+			
+			// 2005-09-26 13:08:01.000000000
+			long time = Date.parseFullISO(line, start[5], start[6]);
+			
+			visitor.visit(name, dir, size, time);
+			
+		}catch(NumberFormatException nfe) {
+			throw new SSH2Exception("Unable to parse ls -l line: " + line + " - " + nfe.getMessage());
+		}catch(StringIndexOutOfBoundsException sioobe) {
+			throw new SSH2Exception("Unable to parse ls -l line: " + line);
+		}
+	}
+	
+	private static int skipBlanks(String line, int pos) {
+		while(pos < line.length() && Character.isWhitespace(line.charAt(pos)))
+			pos++;
+		return pos;
+	}
+	
+	private static int skipToken(String line, int pos) {
+		while(pos < line.length() && !Character.isWhitespace(line.charAt(pos)))
+			pos++;
+		return pos;
+	}
+}
@@ -56,7 +56,7 @@ import edos.mimo.filesystem.MirrorFileFactory;
  * @author marc
  *
  */
-public class SSH2Connection /* TODO extends NetworkConnection? */ implements ServerHostKeyVerifier, IConnection{
+public class SSH2Connection /* TODO extends NetworkConnection? */ implements ServerHostKeyVerifier, IConnection, ITreeListing {
 	private static Logger logger = Logger.getLogger(SSH2Connection.class);
 	
 	private String host;
@@ -67,6 +67,7 @@ public class SSH2Connection /* TODO extends NetworkConnection? */ implements Ser
 	private int port;
 	private Connection sshc;
 	private long acceptableLag;
+	private Boolean findPrintfSupported = null;	// unknown until probed
 	public static int INVALID_PORT = -1;
 	public static String INVALID_HOST = "undefined host";
 	public static int DEFAULT_PORT = 22;	// ssh is working on port 22 (generally)
@@ -310,11 +311,104 @@ public class SSH2Connection /* TODO extends NetworkConnection? */ implements Ser
 		return filenames;
 	}
 	
+	/**
+	 * Lists the whole tree below path with a single remote command
+	 * (find -printf) instead of one ls per directory. The output is 
+	 * streamed to the handler while it is read.
+	 * 
+	 * Returns false, without listing anything, when the remote find 
+	 * does not support -printf (eg. non-GNU systems): the caller should
+	 * list each directory with lsFrom() instead.
+	 */
+	public boolean lsTree(String path, boolean dirsOnly, ITreeListingHandler handler) throws IOException {
+		if(path == null)
+			path = ".";
+		
+		if(!isFindPrintfSupported(path))
+			return false;
+		
+		StringBuffer command = new StringBuffer(Shell.COMMAND_FIND);
+		if(dirsOnly)
+			command.append(Shell.FIND_DIRS_ONLY);
+		command.append(Shell.FIND_PRINTF_FORMAT);
+		logger.debug("\t-> cd " + path + " && " + command);
+		
+		Session session = sshc.openSession();
+		try {
+			session.execCommand("cd " + path + " && " + command);
+			
+			// StreamGobbler consumes the incoming data and avoids blocking.. (faq)
+			InputStream stdout = new StreamGobbler(session.getStdout());
+			new StreamGobbler(session.getStderr());	// eg. permission denied, ignored as with ls
+			
+			int count = new FindListingParser(handler).parse(
+							new BufferedReader(new InputStreamReader(stdout)));
+			logger.info(count + " entries listed from " + host + ":" + path);
+			
+		}finally{
+			session.close();
+		}
+		return true;
+	}
+	
+	/**
+	 * Probes (once per connection) if the remote find supports -printf
+	 * @param path an existing directory
+	 */
+	private boolean isFindPrintfSupported(String path) throws IOException {
+		if(findPrintfSupported == null) {
+			Session session = sshc.openSession();
+			try {
+				session.execCommand("cd " + path + " && " + Shell.COMMAND_FIND_PRINTF_PROBE);
+				BufferedReader stdoutReader = new BufferedReader(
+						new InputStreamReader(new StreamGobbler(session.getStdout())));
+				new StreamGobbler(session.getStderr());
+				
+				findPrintfSupported = Boolean.valueOf("ok".equals(stdoutReader.readLine()));
+				
+			}finally{
+				session.close();
+			}
+			
+			if(!findPrintfSupported.booleanValue())
+				logger.info("find -printf is not available on " + host 
+						+ ", listing one directory at a time");
+		}
+		return findPrintfSupported.booleanValue();
+	}
+	
 	public List<IFile> lsFrom(String path) throws IOException {
-		//String command = Shell.COMMAND_LS_F;
+		ListingCollector collector = new ListingCollector(path);
+		listInto(path, collector);
+		return collector.getFiles();
+	}
+	
+	/**
+	 * Runs ls -l in the directory, each line being parsed and sent
+	 * to the visitor as soon as it is read.
+	 */
+	public void listInto(String path, IListingVisitor visitor) throws IOException {
 		String command =  Shell.COMMAND_LS_L;
+		if(path == null)
+			path = ".";
 		logger.debug("\t-> cd " + path + " && " + command);
-		return execls(path, command);
+		
+		Session session = sshc.openSession();
+		try {
+			session.execCommand("cd " + path + " && " + command);
+			
+			// StreamGobbler consumes the incoming data and avoids blocking.. (faq)
+			BufferedReader stdoutReader = new BufferedReader(
+					new InputStreamReader(new StreamGobbler(session.getStdout())));
+			
+			LsListingParser parser = new LsListingParser(visitor);
+			String line;
+			while((line = stdoutReader.readLine()) != null)
+				parser.parse(line);
+			
+		}finally{
+			session.close();
+		}
 	}
 	
 	/**
@@ -0,0 +1,251 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dom4j.DocumentException;
+
+import edos.mimo.Config;
+import edos.mimo.IMirrorDelta;
+import edos.mimo.IMirrorStatus;
+import edos.mimo.MirrorStructureFactory;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.IDOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.SnapshotCodec;
+import edos.mimo.dom.db.DeltaChain;
+import edos.mimo.dom.db.StructureCache;
+import edos.mimo.exception.StorageException;
+
+/**
+ * The states of the mirrors, the same for every backend: the choice 
+ * between a full structure and a delta, the rebuild of a state from
+ * its delta chain (see DeltaChain) and the cache of the latest states
+ * (see StructureCache).
+ * 
+ * The backends only store the documents and give them back by name.
+ * 
+ * @author marc
+ *
+ */
+public abstract class AbstractStorage implements IStorage {
+	private static Logger logger = Logger.getLogger(AbstractStorage.class);
+	
+	protected Config config;
+	protected StructureCache cache;	// latest structures, see Config.getCacheSize()
+	
+	/**
+	 * Stores the document of a full structure
+	 * @param mirrorID
+	 * @param docName
+	 * @param content XML, or packed (see SnapshotCodec.pack())
+	 * @throws StorageException
+	 */
+	protected abstract void storeStructure(String mirrorID, String docName, String content) 
+											throws StorageException;
+	
+	/**
+	 * Stores the document of a delta, replacing a delta of the same name
+	 * @param delta
+	 * @throws StorageException
+	 */
+	protected abstract void storeDelta(IMirrorDelta delta) throws StorageException;
+	
+	
+	/* STRUCTURES AND DELTAS */
+	
+	/**
+	 * Stores a full structure, the latest state of its mirror.
+	 * With binary snapshots (see Config), its content is packed 
+	 * (see SnapshotCodec.pack()).
+	 */
+	public void save(ITreeMirrorStructure struct) throws StorageException {
+		long size = store(struct);
+		
+		// write-through: this is now the latest state of the mirror
+		cache.stored(struct.getMirrorID(), struct, size);
+	}
+	
+	/**
+	 * Stores a past state of a mirror as a full structure (rewritten by 
+	 * RetentionEngine): the cached latest state is left as it is.
+	 */
+	public void saveHistorical(ITreeMirrorStructure struct) throws StorageException {
+		store(struct);
+	}
+	
+	/**
+	 * @return the length of the XML document
+	 */
+	private long store(ITreeMirrorStructure struct) throws StorageException {
+		String content = (config.getSnapshotFormat() == Config.BINARY_SNAPSHOT)?
+								SnapshotCodec.pack(struct.getDocument()):struct.toString();
+		storeStructure(struct.getMirrorID(), struct.getDocumentID() + ".xml", content);
+		return SnapshotCodec.xmlLength(content);
+	}
+	
+	/**
+	 * Stores the full structure, or only its delta while the changes are 
+	 * few (see Config.getDeltaLimit() and Config.getDeltaChainLimit()):
+	 * the deltas are chained, a full structure also bounds the work of
+	 * rebuilding a state.
+	 */
+	public void save(IMirrorStatus status) throws StorageException {
+		if(!(status.getMirrorStructure() instanceof ITreeMirrorStructure))
+			throw new StorageException("Error: only ITreeMirrorStructures are stored");
+		if(!(status.getDelta() instanceof IDOMMirrorDelta))
+			throw new StorageException("Error: only IDOMMirrorDeltas are stored");
+		
+		ITreeMirrorStructure struct = (ITreeMirrorStructure)status.getMirrorStructure();
+		IMirrorDelta delta = status.getDelta();
+		
+		if(delta.getSize() > config.getDeltaLimit()
+				|| countChainedDeltas(struct.getMirrorID()) >= config.getDeltaChainLimit()) {
+			save(struct);
+			logger.info("Storing full structure: " + struct.getFilename());
+			
+		}else{
+			storeDelta(delta);
+			logger.info("Storing delta (" + delta.getSize() + " changes): " + delta.getFilename());
+			
+			// write-through: the structure is the new state
+			cache.replace(struct.getMirrorID(), struct);
+		}
+	}
+	
+	/**
+	 * Stores a delta, replacing a delta of the same name (rewritten by 
+	 * RetentionEngine). The entry point of the application is 
+	 * save(IMirrorStatus).
+	 */
+	public void save(IMirrorDelta delta) throws StorageException {
+		storeDelta(delta);
+		cache.replace(delta.getMirrorID(), null);	// the latest state has changed
+	}
+	
+	/**
+	 * Gets the latest and freshest master structure: its latest full 
+	 * structure patched with the deltas stored after it, as for any
+	 * mirror (see getLatestState(String)).
+	 * The structure is cached: it must not be modified.
+	 * 
+	 * @return the latest master structure, null if none is stored
+	 */
+	public ITreeMirrorStructure getLatestMasterStructure() throws StorageException, DocumentException {
+		ITreeMirrorStructure struct = cache.get(StructureCache.MASTER_KEY);
+		if(struct != null)
+			return struct;
+		
+		long[] size = new long[1];
+		struct = getStructureAt(Config.MASTER, Long.MAX_VALUE, size);
+		if(struct == null) {
+			logger.error("No structure stored for the master mirror");
+			return null;
+		}
+		cache.put(StructureCache.MASTER_KEY, struct, size[0]);
+		return struct;
+	}
+	
+	/**
+	 * Rebuilds the latest state of a mirror: its latest full structure
+	 * patched with the deltas stored after it.
+	 * The structure is cached: it must not be modified.
+	 * 
+	 * @param mirrorID
+	 * @return the mirror structure, null if no full structure is stored
+	 */
+	public ITreeMirrorStructure getLatestState(String mirrorID) throws StorageException, DocumentException {
+		ITreeMirrorStructure struct = cache.get(mirrorID);
+		if(struct != null)
+			return struct;
+		
+		long[] size = new long[1];
+		struct = getStructureAt(mirrorID, Long.MAX_VALUE, size);
+		if(struct != null)
+			cache.put(mirrorID, struct, size[0]);
+		return struct;
+	}
+	
+	/**
+	 * Rebuilds the state of a mirror at a given time: the latest full 
+	 * structure stored until then, patched with the deltas stored after 
+	 * it until then (see DeltaChain).
+	 * The structure keeps the document ID of the full structure.
+	 * 
+	 * @param mirrorID
+	 * @param timestamp in milliseconds
+	 * @return the mirror structure, null if no full structure was stored by then
+	 */
+	public ITreeMirrorStructure getStructureAt(String mirrorID, long timestamp) 
+											throws StorageException, DocumentException {
+		return getStructureAt(mirrorID, timestamp, new long[1]);
+	}
+	
+	/**
+	 * @param size returns the length of the full structure document
+	 */
+	private ITreeMirrorStructure getStructureAt(String mirrorID, long timestamp, long[] size)
+											throws StorageException, DocumentException {
+		List<String> chain = DeltaChain.select(getDocuments(mirrorID, Long.MIN_VALUE, timestamp), timestamp);
+		if(chain.isEmpty()) {
+			logger.warn("No full structure stored for " + mirrorID + " until " + timestamp);
+			return null;
+		}
+		
+		String content = getDocument(chain.get(0));
+		size[0] = SnapshotCodec.xmlLength(content);
+		ITreeMirrorStructure struct = MirrorStructureFactory.loadTreeStructure(content);
+		
+		List<DOMMirrorDelta> deltas = new ArrayList<DOMMirrorDelta>(chain.size() - 1);
+		for(int i = 1; i < chain.size(); i++)
+			deltas.add(new DOMMirrorDelta(chain.get(i), getDocument(chain.get(i))));
+		
+		int applied = DeltaChain.rebuild(struct, deltas);
+		logger.info("State of " + mirrorID + " rebuilt from " + chain.get(0) 
+						+ " and " + applied + " deltas");
+		return struct;
+	}
+	
+	/**
+	 * @return the number of deltas stored after the latest full structure
+	 */
+	private int countChainedDeltas(String mirrorID) {
+		List<String> chain = DeltaChain.select(getDocuments(mirrorID, Long.MIN_VALUE, Long.MAX_VALUE), 
+												Long.MAX_VALUE);
+		return Math.max(0, chain.size() - 1);
+	}
+	
+	/**
+	 * Drops the cached states a document may have been part of
+	 * (called once it is deleted)
+	 * @param mirrorID of the document
+	 */
+	protected void deleted(String mirrorID) {
+		cache.invalidate(mirrorID);
+		cache.invalidate(StructureCache.MASTER_KEY);
+	}
+	
+	/**
+	 * @return the cache of the latest structures (hit and miss counts)
+	 */
+	public StructureCache getStructureCache() {
+		return cache;
+	}
+}
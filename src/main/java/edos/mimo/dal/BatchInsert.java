@@ -0,0 +1,221 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Inserts rows into a table through prepared statements sent in batches
+ * (one round trip for many statements), instead of one statement per row.
+ *
+ * When the database accepts it, each statement inserts several rows
+ * ("insert into T values (?, ?), (?, ?), ..."); the rows left over at
+ * the end are inserted one by one. Values are bound, never written into
+ * the SQL: they need no escaping.
+ *
+ * The caller owns the transaction: the rows are only sent by add() and
+ * flush(), and committed (or rolled back) by the caller.
+ *
+ * @author radu
+ *
+ */
+public class BatchInsert {
+	private static Logger logger = Logger.getLogger(BatchInsert.class);
+
+	// databases accepting several rows in the values of an insert
+	private static final String[] MULTI_ROW_DATABASES = { "MySQL", "PostgreSQL", "H2", "HSQL", "Apache Derby" };
+
+	private String table;
+	private int[] types;		// SQL types of the columns (see java.sql.Types)
+	private int columns;
+	private int batchSize;		// statements per round trip
+	private int rows;			// rows per statement
+	private boolean batches;	// false if the driver does not support batches
+
+	private PreparedStatement multiRow = null;	// insert of <rows> rows
+	private PreparedStatement singleRow;
+	private Object[] values;	// rows waiting for their statement
+	private int pendingRows = 0;
+	private int batched = 0;	// statements in the current batch
+
+	// statistics
+	private int inserted = 0;
+	private int roundTrips = 0;
+
+
+	/**
+	 * @param conn
+	 * @param table
+	 * @param types the SQL types of the columns (see java.sql.Types), for the NULL values
+	 * @param batchSize statements sent at once
+	 * @param rows rows inserted by a statement, when the database accepts it
+	 * @throws SQLException
+	 */
+	public BatchInsert(Connection conn, String table, int[] types, int batchSize, int rows)
+												throws SQLException {
+		this.table = table;
+		this.types = types;
+		this.columns = types.length;
+		this.batchSize = Math.max(1, batchSize);
+
+		DatabaseMetaData meta = conn.getMetaData();
+		batches = meta.supportsBatchUpdates();
+		this.rows = (rows > 1 && isMultiRowDatabase(meta.getDatabaseProductName()))?rows:1;
+
+		singleRow = conn.prepareStatement(insert(1));
+		if(this.rows > 1)
+			multiRow = conn.prepareStatement(insert(this.rows));
+		values = new Object[this.rows * columns];
+
+		logger.debug("Inserting into " + table + " by " + this.rows + " rows, "
+						+ (batches?this.batchSize + " statements at once":"without batches"));
+	}
+
+	/**
+	 * Adds a row. It is sent when enough rows are waiting.
+	 *
+	 * @param row the values of the columns, null for NULL
+	 * @throws SQLException
+	 */
+	public void add(Object[] row) throws SQLException {
+		System.arraycopy(row, 0, values, pendingRows * columns, columns);
+		if(++pendingRows < rows)
+			return;
+
+		PreparedStatement stmt = (rows > 1)?multiRow:singleRow;
+		bind(stmt, rows);
+		pendingRows = 0;
+		send(stmt);
+	}
+
+	/**
+	 * Sends the rows still waiting
+	 * @throws SQLException
+	 */
+	public void flush() throws SQLException {
+		execute((rows > 1)?multiRow:singleRow);
+
+		// rows left over, one statement each
+		int left = pendingRows;
+		for(int i = 0; i < left; i++) {
+			System.arraycopy(values, i * columns, values, 0, columns);
+			bind(singleRow, 1);
+			send(singleRow);
+		}
+		pendingRows = 0;
+		execute(singleRow);
+	}
+
+	/**
+	 * Releases the statements (the rows still waiting are not sent)
+	 */
+	public void close() {
+		close(singleRow);
+		if(multiRow != null)
+			close(multiRow);
+	}
+
+	/**
+	 * @return the number of rows sent
+	 */
+	public int getInsertedRows() {
+		return inserted;
+	}
+
+	/**
+	 * @return the number of calls to the database
+	 */
+	public int getRoundTrips() {
+		return roundTrips;
+	}
+
+	/**
+	 * @return the number of rows inserted by a statement
+	 */
+	public int getRowsPerStatement() {
+		return rows;
+	}
+
+	private void bind(PreparedStatement stmt, int n) throws SQLException {
+		int count = n * columns;
+		for(int i = 0; i < count; i++)
+			if(values[i] == null)
+				stmt.setNull(i + 1, types[i % columns]);
+			else
+				stmt.setObject(i + 1, values[i]);
+		inserted += n;
+	}
+
+	/**
+	 * Adds the bound statement to the batch, which is executed when full
+	 */
+	private void send(PreparedStatement stmt) throws SQLException {
+		if(!batches) {
+			stmt.executeUpdate();
+			roundTrips++;
+			return;
+		}
+
+		stmt.addBatch();
+		if(++batched >= batchSize)
+			execute(stmt);
+	}
+
+	/**
+	 * Executes the statements of the batch
+	 */
+	private void execute(PreparedStatement stmt) throws SQLException {
+		if(batched == 0)
+			return;
+
+		stmt.executeBatch();
+		roundTrips++;
+		batched = 0;
+	}
+
+	private String insert(int n) {
+		StringBuffer sql = new StringBuffer("insert into ").append(table).append(" values ");
+		for(int r = 0; r < n; r++) {
+			sql.append((r == 0)?"(":", (");
+			for(int c = 0; c < columns; c++)
+				sql.append((c == 0)?"?":", ?");
+			sql.append(')');
+		}
+		return sql.toString();
+	}
+
+	private static boolean isMultiRowDatabase(String product) {
+		for(int i = 0; i < MULTI_ROW_DATABASES.length; i++)
+			if(product != null && product.startsWith(MULTI_ROW_DATABASES[i]))
+				return true;
+		return false;
+	}
+
+	private static void close(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		}catch(SQLException e) {
+			logger.error("Unable to close statement: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of JDBC connections, shared by the jobs storing
+ * their results in the relational database.
+ * 
+ * A job borrows a connection, uses it on its own, and gives it back
+ * with release() (in a finally block). At most <code>size</code>
+ * connections are open; a job waits up to <code>maxWait</code> ms
+ * for one to be released.
+ * 
+ * The idle connections are checked with the validation query when
+ * borrowed: a connection lost in between (eg. closed by the server
+ * after its idle timeout) is replaced by a new one.
+ * 
+ * @author radu
+ *
+ */
+public class ConnectionPool {
+	private static Logger logger = Logger.getLogger(ConnectionPool.class);
+
+	public static final String DEFAULT_VALIDATION_QUERY = "select 1";
+
+	private String url;
+	private String userName;
+	private String userPasswd;
+	private int size;
+	private long maxWait;				// ms
+	private String validationQuery;		// null to check isClosed() only
+
+	private Semaphore permits;			// one per connection which may be borrowed
+	private LinkedList<Connection> idle = new LinkedList<Connection>();
+	private Map<Connection,Long> borrowed = new IdentityHashMap<Connection,Long>();	// borrowing time
+	private boolean closed = false;
+
+	// statistics
+	private int created = 0;
+	private int invalidated = 0;
+	private int timeouts = 0;
+
+
+	/**
+	 * @param url the JDBC URL of the database (the driver must be loaded)
+	 * @param userName
+	 * @param userPasswd
+	 * @param size maximum number of connections
+	 * @param maxWait ms to wait for a connection, 0 not to wait
+	 * @param validationQuery query run on an idle connection before lending it,
+	 * 		or null
+	 */
+	public ConnectionPool(String url, String userName, String userPasswd,
+							int size, long maxWait, String validationQuery) {
+		if(size < 1)
+			throw new IllegalArgumentException("pool size must be at least 1");
+		this.url = url;
+		this.userName = userName;
+		this.userPasswd = userPasswd;
+		this.size = size;
+		this.maxWait = maxWait;
+		this.validationQuery = validationQuery;
+		permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Lends a connection, in auto-commit mode.
+	 * It must be given back with release().
+	 * 
+	 * @return a valid connection
+	 * @throws SQLException if no connection was released in time, or if
+	 * 		a new connection could not be opened
+	 */
+	public Connection borrow() throws SQLException {
+		try {
+			if(!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+				synchronized(this) {
+					timeouts++;
+				}
+				throw new SQLException("No database connection available after " + maxWait 
+										+ " ms (" + size + " in use)");
+			}
+		}catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection");
+		}
+
+		try {
+			Connection conn = takeValidConnection();
+			synchronized(this) {
+				if(closed) {
+					discard(conn);
+					throw new SQLException("Connection pool closed");
+				}
+				borrowed.put(conn, new Long(System.currentTimeMillis()));
+			}
+			return conn;
+
+		}catch(SQLException e) {
+			permits.release();
+			throw e;
+		}catch(RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a borrowed connection. An uncommitted transaction
+	 * is rolled back.
+	 * 
+	 * @param conn a connection from borrow(), null is ignored
+	 */
+	public void release(Connection conn) {
+		if(conn == null)
+			return;
+
+		synchronized(this) {
+			if(borrowed.remove(conn) == null) {
+				logger.error("Connection released twice or not borrowed from this pool");
+				return;
+			}
+		}
+
+		boolean reusable = true;
+		try {
+			if(conn.isClosed())
+				reusable = false;
+			else if(!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		}catch(SQLException e) {
+			logger.warn("Discarding connection: " + e.getMessage());
+			reusable = false;
+		}
+
+		synchronized(this) {
+			if(reusable && !closed)
+				idle.addFirst(conn);	// most recently used first: still open
+			else{
+				invalidated += reusable?0:1;
+				discard(conn);
+			}
+		}
+		permits.release();
+	}
+
+	/**
+	 * Gives back a borrowed connection known to be broken: it is closed
+	 * and will be replaced.
+	 * 
+	 * @param conn a connection from borrow()
+	 */
+	public void invalidate(Connection conn) {
+		if(conn == null)
+			return;
+
+		synchronized(this) {
+			if(borrowed.remove(conn) == null) {
+				logger.error("Connection invalidated twice or not borrowed from this pool");
+				return;
+			}
+			invalidated++;
+			discard(conn);
+		}
+		permits.release();
+	}
+
+	/**
+	 * Closes the idle connections; the borrowed ones are closed
+	 * when released.
+	 */
+	public synchronized void close() {
+		closed = true;
+		while(!idle.isEmpty())
+			discard(idle.removeFirst());
+		if(!borrowed.isEmpty())
+			logger.warn(borrowed.size() + " connection(s) still borrowed when closing the pool");
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of connections lent
+	 */
+	public synchronized int getActive() {
+		return borrowed.size();
+	}
+
+	/**
+	 * @return the number of open connections waiting to be lent
+	 */
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * @return the number of connections opened since the pool was created
+	 */
+	public synchronized int getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the number of connections closed because they were broken
+	 */
+	public synchronized int getInvalidated() {
+		return invalidated;
+	}
+
+	/**
+	 * @return the number of borrow() calls which waited in vain
+	 */
+	public synchronized int getTimeouts() {
+		return timeouts;
+	}
+
+	public String toString() {
+		return "ConnectionPool[" + url + ", " + getActive() + "/" + size + " active, "
+					+ getIdle() + " idle]";
+	}
+
+	/**
+	 * Takes an idle connection which still works, or opens a new one
+	 * (the caller holds a permit)
+	 */
+	private Connection takeValidConnection() throws SQLException {
+		while(true) {
+			Connection conn;
+			synchronized(this) {
+				if(closed)
+					throw new SQLException("Connection pool closed");
+				if(idle.isEmpty())
+					break;
+				conn = idle.removeFirst();
+			}
+
+			// validated out of the lock: it may take a network round trip
+			if(isValid(conn))
+				return conn;
+
+			logger.info("Replacing a broken connection to " + url);
+			synchronized(this) {
+				invalidated++;
+				discard(conn);
+			}
+		}
+
+		Connection conn = DriverManager.getConnection(url, userName, userPasswd);
+		synchronized(this) {
+			created++;
+		}
+		logger.debug("Opened connection " + created + " to " + url);
+		return conn;
+	}
+
+	private boolean isValid(Connection conn) {
+		try {
+			if(conn.isClosed())
+				return false;
+			if(validationQuery == null)
+				return true;
+
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute(validationQuery);
+			}finally{
+				stmt.close();
+			}
+			return true;
+
+		}catch(SQLException e) {
+			logger.debug("Connection validation failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static void discard(Connection conn) {
+		try {
+			conn.close();
+		}catch(SQLException e) {
+			logger.debug("Unable to close connection: " + e.getMessage());
+		}
+	}
+}
@@ -37,4 +37,16 @@ public abstract class DatabaseFactory {
 		
 		return db;
 	}
+	
+	/**
+	 * Gets the pool of connections to a relational database, for the jobs 
+	 * storing in it at the same time (see ConnectionPool).
+	 * 
+	 * @return the pool shared by the callers asking for the same database
+	 */
+	public static ConnectionPool getConnectionPool(String hostName, String databaseName, 
+						String userName, String userPasswd, int size, long maxWait, String validationQuery) {
+		return DatabaseJDBC.getInstance().getConnectionPool(hostName, databaseName, 
+						userName, userPasswd, size, maxWait, validationQuery);
+	}
 }
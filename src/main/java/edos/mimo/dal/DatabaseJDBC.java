@@ -20,11 +20,17 @@ import org.apache.log4j.Logger;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 public class DatabaseJDBC implements IDatabase {	
 	private static Logger logger = Logger.getLogger(DatabaseJDBC.class); 
 	private static DatabaseJDBC instance = null;
-	private Connection conn = null;
+	private List<Connection> connections = new LinkedList<Connection>();	// opened by getConnection()
+	private Map<String,ConnectionPool> pools = new HashMap<String,ConnectionPool>();	// by URL
 
 	public DatabaseJDBC () {
 		try {
@@ -37,7 +43,7 @@ public class DatabaseJDBC implements IDatabase {
 	}
 		
 
-	public static DatabaseJDBC getInstance() {
+	public static synchronized DatabaseJDBC getInstance() {
 		if (null == instance)
 			instance = new DatabaseJDBC();
 		return instance;
@@ -61,9 +67,14 @@ public class DatabaseJDBC implements IDatabase {
 	}
 
 	
+	/**
+	 * Opens a dedicated connection (closed on shutdown).
+	 * Jobs running in parallel should borrow theirs from getConnectionPool().
+	 */
 	public Connection getConnection(String hostName, String databaseName, String userName, String userPasswd) {		
+		Connection conn = null;
         try {		
-        	conn = DriverManager.getConnection("jdbc:mysql://"+hostName+"/"+databaseName, userName, userPasswd);
+        	conn = DriverManager.getConnection(getURL(hostName, databaseName), userName, userPasswd);
 //      	conn = DriverManager.getConnection("jdbc:mysql://localhost/MIRRORDB?user=radu&password=");
         } catch (SQLException ex) {
             // handle any errors
@@ -73,18 +84,59 @@ public class DatabaseJDBC implements IDatabase {
             return null;
         }
         
-        if (null == conn) System.out.println("null");
-        
+        synchronized (this) {
+        	connections.add(conn);
+        }
 		return conn;
 	}
 	
 	
-	public void shutdown() {
+	/**
+	 * Gets the pool of connections to the database, created on the first call
+	 * (the size, maximum wait and validation query of the later calls are ignored).
+	 * 
+	 * @param hostName
+	 * @param databaseName
+	 * @param userName
+	 * @param userPasswd
+	 * @param size maximum number of connections
+	 * @param maxWait ms to wait for a connection
+	 * @param validationQuery query checking an idle connection, or null
+	 * @return the pool of connections
+	 */
+	public synchronized ConnectionPool getConnectionPool(String hostName, String databaseName, 
+							String userName, String userPasswd, int size, long maxWait, String validationQuery) {
+		String url = getURL(hostName, databaseName);
+		ConnectionPool pool = pools.get(url);
+		if (null == pool) {
+			pool = new ConnectionPool(url, userName, userPasswd, size, maxWait, validationQuery);
+			pools.put(url, pool);
+			logger.info("Pool of " + size + " connections to " + url);
+		}
+		return pool;
+	}
+	
+	
+	private static String getURL(String hostName, String databaseName) {
+		return "jdbc:mysql://" + hostName + "/" + databaseName;
+	}
+	
+	
+	public synchronized void shutdown() {
 		if (null == instance) return;
-        try {
-        	conn.close();
-        } catch (SQLException ex) {
-        	logger.fatal(ex.getStackTrace());
-        }
+		Iterator<ConnectionPool> pit = pools.values().iterator();
+		while (pit.hasNext())
+			pit.next().close();
+		pools.clear();
+		
+		Iterator<Connection> it = connections.iterator();
+		while (it.hasNext()) {
+	        try {
+	        	it.next().close();
+	        } catch (SQLException ex) {
+	        	logger.fatal(ex.getStackTrace());
+	        }
+		}
+		connections.clear();
 	}
 }
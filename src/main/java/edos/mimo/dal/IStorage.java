@@ -0,0 +1,91 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal;
+
+import java.util.List;
+
+import org.dom4j.DocumentException;
+
+import edos.mimo.IMirrorDelta;
+import edos.mimo.IMirrorStatus;
+import edos.mimo.dom.IDOMMirrorDiff;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.exception.StorageException;
+import edos.mimo.filesystem.IMirrorDiff;
+import edos.mimo.statistics.WorkflowStatistics;
+
+/**
+ * Storage of the documents of the monitor: structures and deltas of the
+ * mirrors, diffs against the master, and statistics of the workflows.
+ * 
+ * The jobs, tools and examples only know this interface; the backend is
+ * chosen in the config file (see StorageFactory):
+ *  . BDBXMLManager		Berkeley DB XML containers
+ *  . SegmentStorage	append-only segment files, in pure Java
+ * 
+ * The documents are named as follows:
+ *  . mirrorID-<millis>.xml			full structure
+ *  . mirrorID-<millis>-delta.xml	delta, relative to the previous state
+ *  . mirrorID-<millis>-diff.xml	diff against the master (latest one only)
+ * The names of the structures and deltas give their timestamp (see DeltaChain).
+ * 
+ * @author marc
+ *
+ */
+public interface IStorage {
+	
+	/* STRUCTURES AND DELTAS */
+	public void save(ITreeMirrorStructure struct) throws StorageException;
+	public void saveHistorical(ITreeMirrorStructure struct) throws StorageException;	// past state, not cached
+	public void save(IMirrorStatus status) throws StorageException;	// full structure or delta (see Config)
+	public void save(IMirrorDelta delta) throws StorageException;
+	
+	public ITreeMirrorStructure getLatestMasterStructure() throws StorageException, DocumentException;
+	public ITreeMirrorStructure getLatestStructure(String mirrorID) throws StorageException, DocumentException;
+	public ITreeMirrorStructure getLatestState(String mirrorID) throws StorageException, DocumentException;
+	public ITreeMirrorStructure getStructureAt(String mirrorID, long timestamp) 
+													throws StorageException, DocumentException;
+	
+	/* DIFFS */
+	public void save(IMirrorDiff diff) throws StorageException;	// replaces the previous one
+	public IDOMMirrorDiff getLatestDiffForMirror(String mirrorID) throws StorageException, DocumentException;
+	
+	/* STATISTICS */
+	public void save(WorkflowStatistics jobStat) throws StorageException;
+	public void update(WorkflowStatistics jobStat) throws StorageException;
+	public List<String> getStatistics(long from, long to);	// names, in chronological order
+	public void deleteStatistics(String docName);
+	
+	/* DOCUMENTS */
+	public String getDocument(String docName) throws StorageException;
+	public void deleteDocument(String docName);
+	public List<String> getMirrorIDs();
+	public int getDocumentCount(String mirrorID);	// structures and deltas
+	public List<String> getDocuments(String mirrorID, long from, long to);	// in chronological order
+	
+	/**
+	 * Gives back to the disk the space of the deleted documents
+	 * (see RetentionEngine).
+	 */
+	public void compact() throws StorageException;
+	
+	/**
+	 * Writes what is pending and releases the resources.
+	 * This method MUST be called before exiting!
+	 */
+	public void close();
+}
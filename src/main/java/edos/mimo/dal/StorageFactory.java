@@ -0,0 +1,62 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal;
+
+import edos.mimo.Config;
+import edos.mimo.dal.segment.SegmentStorage;
+import edos.mimo.dom.db.BDBXMLManager;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
+
+/**
+ * Gives the storage backend chosen in the config file (storage element,
+ * see Config.getStorageBackend()).
+ * 
+ * @author marc
+ *
+ */
+public abstract class StorageFactory {
+	
+	/**
+	 * @return the storage, opened on the first call
+	 * @throws StorageException
+	 */
+	public static IStorage getStorage() throws StorageException {
+		return getStorage(getBackend());
+	}
+	
+	/**
+	 * @param backend eg. Config.SEGMENT_BACKEND
+	 * @return the storage, opened on the first call
+	 * @throws StorageException
+	 */
+	public static IStorage getStorage(int backend) throws StorageException {
+		if(backend == Config.SEGMENT_BACKEND)
+			return SegmentStorage.getInstance();
+		return BDBXMLManager.getInstance();
+	}
+	
+	private static int getBackend() throws StorageException {
+		if(!Config.isLoaded())
+			throw new StorageException("Config has not been loaded. The storage can't be started");
+		try {
+			return Config.getInstance().getStorageBackend();
+		}catch(ConfigException e) {
+			throw new StorageException("Unable to read the configuration", e);
+		}
+	}
+}
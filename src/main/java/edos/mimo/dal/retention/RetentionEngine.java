@@ -0,0 +1,333 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal.retention;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+
+import edos.mimo.IMirrorDelta;
+import edos.mimo.IMirrorStructure;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.dom.db.DeltaChain;
+import edos.mimo.exception.StorageException;
+
+/**
+ * Thins out the history of the mirrors according to a RetentionPolicy:
+ * the structures and deltas not kept are deleted, and so are the 
+ * statistics documents, then the storage is compacted.
+ * 
+ * A state is rebuilt from the latest full structure and the deltas after
+ * it (see DeltaChain), so the kept deltas are rewritten to stay
+ * reconstructible:
+ *  . a delta whose full structure is deleted becomes a full structure
+ *  . a delta following deleted deltas becomes a delta relative to the
+ *    full structure (not chained, see DOMMirrorDelta.isChained())
+ * The rewritten document is stored before the documents it replaces are
+ * deleted: a run which is interrupted leaves states that can be rebuilt.
+ * 
+ * A dry run only reads the names of the documents, and reports what 
+ * would be deleted and rewritten.
+ * 
+ * @author marc
+ *
+ */
+public class RetentionEngine {
+	private static Logger logger = Logger.getLogger(RetentionEngine.class);
+	
+	// what becomes of a kept document
+	private static final int KEEP		= 0;
+	private static final int TO_FULL	= 1;	// its full structure is deleted
+	private static final int REBASE		= 2;	// deltas before it are deleted
+	
+	private IStorage storage;
+	private RetentionPolicy policy;
+	
+	// state of the mirror being thinned out, rebuilt from its documents
+	private ITreeMirrorStructure state;
+	private String fullContent;			// the full structure the state starts from
+	private ITreeMirrorStructure base;	// full structure of the rewritten deltas, null until needed
+	private boolean baseRewritten;		// the full structure of the state was deleted
+	
+	
+	public RetentionEngine(IStorage storage, RetentionPolicy policy) {
+		this.storage = storage;
+		this.policy = policy;
+	}
+	
+	/**
+	 * @param now time of the run in ms (the ages are relative to it)
+	 * @param dryRun true to report only
+	 * @param statistics true to thin out the statistics documents as well
+	 * @return what was done, or would be done
+	 * @throws StorageException if the compaction fails
+	 */
+	public synchronized RetentionReport run(long now, boolean dryRun, boolean statistics) 
+																throws StorageException {
+		RetentionReport report = new RetentionReport(policy, dryRun);
+		if(policy.isEmpty()) {
+			logger.info("No retention tier: every document is kept");
+			return report;
+		}
+		
+		Iterator<String> it = storage.getMirrorIDs().iterator();
+		while(it.hasNext())
+			retain(it.next(), now, dryRun, report);
+		
+		if(statistics)
+			retainStatistics(now, dryRun, report);
+		
+		if(!dryRun && (report.getDeleted() > 0 || report.getStatisticsDeleted() > 0))
+			storage.compact();
+		
+		logger.info(report);
+		return report;
+	}
+	
+	/**
+	 * Thins out the structures and deltas of a mirror. On error, the
+	 * documents left are kept.
+	 */
+	private void retain(String mirrorID, long now, boolean dryRun, RetentionReport report) {
+		List<String> names = storage.getDocuments(mirrorID, Long.MIN_VALUE, Long.MAX_VALUE);
+		long[] times = new long[names.size()];
+		for(int i = 0; i < times.length; i++)
+			times[i] = DeltaChain.getTimeStamp(names.get(i));	// indexed: the name has a timestamp
+		
+		boolean[] keep = policy.select(times, now);
+		int[] actions = plan(names, keep);
+		boolean rebuild = !dryRun && hasRewrites(actions);
+		
+		report.startMirror(mirrorID);
+		state = null;
+		fullContent = null;
+		base = null;
+		List<String> deleted = new ArrayList<String>();	// deleted once the next kept document is safe
+		try {
+			for(int i = 0; i < names.size(); i++) {
+				String name = names.get(i);
+				int action = actions[i];
+				if(rebuild && read(name) && action == KEEP && keep[i])
+					action = REBASE;	// relative to a full structure which was deleted
+				
+				if(!keep[i]) {
+					deleted.add(name);
+					continue;
+				}
+				
+				if(action == TO_FULL)
+					toFull(name, times[i], dryRun, report);
+				else if(action == REBASE)
+					rebase(name, times[i], dryRun, report);
+				report.kept();
+				
+				delete(deleted, dryRun, report);
+				deleted.clear();
+			}
+			
+		}catch(StorageException se) {
+			logger.error("Retention of " + mirrorID + " stopped: " + se.getMessage());
+			report.failed(se.getMessage());
+			
+		}catch(DocumentException de) {
+			logger.error("Retention of " + mirrorID + " stopped: " + de.getMessage());
+			report.failed(de.getMessage());
+			
+		}finally{
+			state = null;
+			fullContent = null;
+			base = null;
+		}
+		report.endMirror();
+	}
+	
+	/**
+	 * Chooses how each kept delta stays reconstructible, from the names 
+	 * of the documents only.
+	 * 
+	 * @param names the structures and deltas of a mirror, in chronological order
+	 * @param keep true for the documents kept
+	 * @return KEEP, TO_FULL or REBASE for each document
+	 */
+	static int[] plan(List<String> names, boolean[] keep) {
+		int[] actions = new int[names.size()];
+		boolean full = false;		// a full structure was met
+		boolean fullKept = false;	// the latest full structure stays
+		boolean gap = false;		// documents are deleted since the latest kept one
+		
+		for(int i = 0; i < actions.length; i++) {
+			boolean delta = DeltaChain.isDelta(names.get(i));
+			if(!delta) {
+				full = true;
+				fullKept = keep[i];
+			}
+			if(!keep[i]) {
+				gap = true;
+				continue;
+			}
+			
+			if(delta && full) {		// deltas before any full structure are left alone
+				if(!fullKept) {
+					actions[i] = TO_FULL;
+					fullKept = true;	// the new full structure
+				}else if(gap)
+					actions[i] = REBASE;
+			}
+			gap = false;
+		}
+		return actions;
+	}
+	
+	private static boolean hasRewrites(int[] actions) {
+		for(int i = 0; i < actions.length; i++)
+			if(actions[i] != KEEP)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Applies a document to the state of the mirror.
+	 * 
+	 * @return true if the document is a delta relative to a full structure
+	 * 			which was deleted (it has to be rewritten as well)
+	 */
+	private boolean read(String name) throws StorageException, DocumentException {
+		String content = storage.getDocument(name);
+		
+		if(!DeltaChain.isDelta(name)) {
+			state = new TreeMirrorStructure(content);
+			fullContent = content;
+			base = null;
+			baseRewritten = false;
+			return false;
+		}
+		if(state == null)
+			return false;	// no full structure before it
+		
+		DOMMirrorDelta delta = new DOMMirrorDelta(name, content);
+		if(!delta.isChained())
+			state = new TreeMirrorStructure(fullContent);	// relative to the full structure
+		state.patch(delta);
+		return !delta.isChained() && baseRewritten;
+	}
+	
+	/**
+	 * Stores the state as a full structure, which replaces the delta
+	 */
+	private void toFull(String name, long time, boolean dryRun, RetentionReport report) 
+											throws StorageException, DocumentException {
+		String fullName = name.substring(0, name.length() - "-delta.xml".length()) + ".xml";
+		report.rewritten(name, fullName);
+		if(dryRun)
+			return;
+		
+		ITreeMirrorStructure full = snapshot(time);
+		if(!fullName.equals(full.getDocumentID() + ".xml"))
+			throw new StorageException("Unable to rewrite " + name + ": the state is named " 
+											+ full.getDocumentID());
+		storage.saveHistorical(full);	// not the latest state: the crawls go on meanwhile
+		storage.deleteDocument(name);	// replaced (see DeltaChain.select())
+		base = full;
+		baseRewritten = true;
+	}
+	
+	/**
+	 * Replaces the delta by the changes since the full structure
+	 */
+	private void rebase(String name, long time, boolean dryRun, RetentionReport report) 
+											throws StorageException, DocumentException {
+		report.rewritten(name, "a delta of its full structure");
+		if(dryRun)
+			return;
+		
+		if(base == null)
+			base = new TreeMirrorStructure(fullContent);
+		DOMMirrorDelta delta = new DOMMirrorDelta(base, snapshot(time));
+		if(!name.equals(delta.getDocumentID() + ".xml"))
+			throw new StorageException("Unable to rewrite " + name + ": the delta is named " 
+											+ delta.getDocumentID());
+		
+		Attribute chained = delta.getDocument().getRootElement().attribute(IMirrorDelta.CHAINED);
+		if(chained != null)
+			delta.getDocument().getRootElement().remove(chained);
+		storage.save(delta);	// replaces the chained one
+	}
+	
+	/**
+	 * @return a copy of the state, timed at the given time
+	 */
+	private ITreeMirrorStructure snapshot(long time) throws DocumentException {
+		Document doc = (Document)state.getDocument().clone();
+		doc.getRootElement().addAttribute(IMirrorStructure.CHECKOUTTIME, Long.toString(time));
+		return new TreeMirrorStructure(doc.asXML());
+	}
+	
+	private void delete(List<String> names, boolean dryRun, RetentionReport report) {
+		for(int i = 0; i < names.size(); i++) {
+			report.deleted(names.get(i));
+			if(!dryRun)
+				storage.deleteDocument(names.get(i));
+		}
+	}
+	
+	/**
+	 * Thins out the statistics documents of each mirror
+	 */
+	private void retainStatistics(long now, boolean dryRun, RetentionReport report) {
+		Map<String, List<String>> byMirror = new LinkedHashMap<String, List<String>>();
+		Iterator<String> it = storage.getStatistics(Long.MIN_VALUE, Long.MAX_VALUE).iterator();
+		while(it.hasNext()) {
+			String name = it.next();
+			int dash = name.lastIndexOf('-');
+			String mirrorID = (dash < 0)?"":name.substring(0, dash);
+			List<String> names = byMirror.get(mirrorID);
+			if(names == null) {
+				names = new ArrayList<String>();
+				byMirror.put(mirrorID, names);
+			}
+			names.add(name);
+		}
+		
+		Iterator<List<String>> mirrors = byMirror.values().iterator();
+		while(mirrors.hasNext()) {
+			List<String> names = mirrors.next();
+			long[] times = new long[names.size()];
+			for(int i = 0; i < times.length; i++)
+				times[i] = DeltaChain.getTimeStamp(names.get(i));
+			
+			boolean[] keep = policy.select(times, now);
+			int deleted = 0;
+			for(int i = 0; i < keep.length; i++)
+				if(!keep[i]) {
+					deleted++;
+					if(!dryRun)
+						storage.deleteStatistics(names.get(i));
+				}
+			report.statistics(keep.length - deleted, deleted);
+		}
+	}
+}
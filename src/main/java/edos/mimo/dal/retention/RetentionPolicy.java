@@ -0,0 +1,146 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal.retention;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells which points of the history of a mirror are kept, by their age.
+ * Each tier applies from an age on, and keeps one point per interval of
+ * time (the first one stored in it); the points younger than the first
+ * tier are all kept. For example:
+ * 
+ *  after 7 days, 1 per day; after 90 days, 1 per week
+ * 
+ * keeps every run of the last week, then daily points until 3 months,
+ * then weekly points. A tier with an interval of 0 keeps nothing.
+ * 
+ * The intervals are aligned on the epoch, so the points kept are the 
+ * same from one run to the next: as long as the interval of a tier is
+ * a multiple of the interval of the tier before, the points aging into
+ * it were kept by the tier before.
+ * 
+ * The latest point is always kept (it is the current state).
+ * 
+ * @author marc
+ *
+ */
+public class RetentionPolicy {
+	public static final long DAY = 24L * 60 * 60 * 1000;
+	
+	private List<Tier> tiers = new ArrayList<Tier>();	// by age
+	
+	
+	/**
+	 * @param age in ms, from which the tier applies
+	 * @param interval in ms, one point is kept per interval (0 for none)
+	 * @throws IllegalArgumentException if negative, or if a tier has this age already
+	 */
+	public void addTier(long age, long interval) {
+		if(age < 0 || interval < 0)
+			throw new IllegalArgumentException("age and interval can't be negative");
+		
+		int i = 0;
+		while(i < tiers.size() && tiers.get(i).age < age)
+			i++;
+		if(i < tiers.size() && tiers.get(i).age == age)
+			throw new IllegalArgumentException("two tiers after " + age + " ms");
+		tiers.add(i, new Tier(age, interval));
+	}
+	
+	/**
+	 * @return true if every point is kept
+	 */
+	public boolean isEmpty() {
+		return tiers.isEmpty();
+	}
+	
+	/**
+	 * @param times times of the points in ms, in chronological order
+	 * @param now time of the selection in ms
+	 * @return for each point, true if kept
+	 */
+	public boolean[] select(long[] times, long now) {
+		boolean[] keep = new boolean[times.length];
+		int previousTier = -1;
+		long previousSlot = -1;
+		
+		for(int i = 0; i < times.length; i++) {
+			int t = tierOf(now - times[i]);
+			if(t < 0) {
+				keep[i] = true;		// younger than the tiers
+				continue;
+			}
+			
+			long interval = tiers.get(t).interval;
+			if(interval == 0)
+				continue;
+			
+			// the points are in chronological order: the first one of a slot opens it
+			long slot = times[i] / interval;
+			keep[i] = (t != previousTier || slot != previousSlot);
+			previousTier = t;
+			previousSlot = slot;
+		}
+		
+		if(times.length > 0)
+			keep[times.length - 1] = true;
+		return keep;
+	}
+	
+	/**
+	 * @return the oldest tier applying at this age, -1 if none
+	 */
+	private int tierOf(long age) {
+		int t = -1;
+		for(int i = 0; i < tiers.size() && tiers.get(i).age <= age; i++)
+			t = i;
+		return t;
+	}
+	
+	public String toString() {
+		if(tiers.isEmpty())
+			return "keep everything";
+		
+		StringBuffer sb = new StringBuffer("keep everything");
+		for(int i = 0; i < tiers.size(); i++) {
+			Tier tier = tiers.get(i);
+			sb.append(", after ").append(days(tier.age)).append(" days ");
+			if(tier.interval == 0)
+				sb.append("nothing");
+			else
+				sb.append("1 per ").append(days(tier.interval)).append(" days");
+		}
+		return sb.toString();
+	}
+	
+	private static String days(long millis) {
+		double days = millis / (double)DAY;
+		return (days == Math.floor(days))?Long.toString((long)days):Double.toString(days);
+	}
+	
+	private static class Tier {
+		long age;
+		long interval;
+		
+		Tier(long age, long interval) {
+			this.age = age;
+			this.interval = interval;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal.retention;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a retention run did, or would do in a dry run (see RetentionEngine):
+ * the documents kept, deleted and rewritten, mirror by mirror.
+ * 
+ * @author marc
+ *
+ */
+public class RetentionReport {
+	private boolean dryRun;
+	private String policy;
+	private List<String> lines = new ArrayList<String>();
+	
+	// totals
+	private int kept = 0;
+	private int deleted = 0;
+	private int rewritten = 0;
+	private int statisticsKept = 0;
+	private int statisticsDeleted = 0;
+	
+	// mirror being reported
+	private String mirrorID = null;
+	private int mirrorKept;
+	private int mirrorDeleted;
+	private int mirrorRewritten;
+	private List<String> actions;
+	
+	
+	public RetentionReport(RetentionPolicy policy, boolean dryRun) {
+		this.policy = policy.toString();
+		this.dryRun = dryRun;
+	}
+	
+	void startMirror(String mirrorID) {
+		this.mirrorID = mirrorID;
+		mirrorKept = 0;
+		mirrorDeleted = 0;
+		mirrorRewritten = 0;
+		actions = new ArrayList<String>();
+	}
+	
+	void kept() {
+		mirrorKept++;
+	}
+	
+	void deleted(String docName) {
+		mirrorDeleted++;
+		actions.add("  delete " + docName);
+	}
+	
+	void rewritten(String docName, String as) {
+		mirrorRewritten++;
+		actions.add("  rewrite " + docName + " as " + as);
+	}
+	
+	/**
+	 * The documents of the mirror not reported yet are kept as they are
+	 */
+	void failed(String reason) {
+		actions.add("  stopped: " + reason);
+	}
+	
+	void endMirror() {
+		kept += mirrorKept;
+		deleted += mirrorDeleted;
+		rewritten += mirrorRewritten;
+		lines.add(mirrorID + ": " + (mirrorKept + mirrorDeleted) + " documents, " + mirrorKept 
+					+ " kept (" + mirrorRewritten + " rewritten), " + mirrorDeleted + " deleted");
+		lines.addAll(actions);
+		mirrorID = null;
+		actions = null;
+	}
+	
+	void statistics(int kept, int deleted) {
+		statisticsKept += kept;
+		statisticsDeleted += deleted;
+	}
+	
+	public boolean isDryRun() {
+		return dryRun;
+	}
+	
+	/**
+	 * @return the number of structures and deltas kept (rewritten included)
+	 */
+	public int getKept() {
+		return kept;
+	}
+	
+	/**
+	 * @return the number of structures and deltas deleted
+	 */
+	public int getDeleted() {
+		return deleted;
+	}
+	
+	/**
+	 * @return the number of structures and deltas rewritten to stay reconstructible
+	 */
+	public int getRewritten() {
+		return rewritten;
+	}
+	
+	public int getStatisticsKept() {
+		return statisticsKept;
+	}
+	
+	public int getStatisticsDeleted() {
+		return statisticsDeleted;
+	}
+	
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Retention (").append(policy).append(")").append(dryRun?", dry run":"").append('\n');
+		for(int i = 0; i < lines.size(); i++)
+			sb.append(lines.get(i)).append('\n');
+		sb.append("Total: ").append(kept).append(" documents kept (").append(rewritten)
+			.append(" rewritten), ").append(deleted).append(" deleted; statistics: ")
+			.append(statisticsKept).append(" kept, ").append(statisticsDeleted).append(" deleted");
+		return sb.toString();
+	}
+}
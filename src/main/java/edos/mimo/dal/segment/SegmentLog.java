@@ -0,0 +1,882 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal.segment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of documents, stored in segment files of a directory.
+ * 
+ * Each document is a record appended to the current segment; a new segment
+ * is started when it is full. Replacing a document appends its new version,
+ * deleting it appends a tombstone: the files are only written sequentially.
+ * The records are:
+ *   magic (4) crc (4) operation (1) type (1) timestamp (8) 
+ *   mirror ID length (2) key length (2) value length (4)
+ *   mirror ID, key, value (UTF-8)
+ * The crc covers what follows it; a record failing it ends the segment 
+ * (a write interrupted by a crash).
+ * 
+ * The index of the live records (key -> segment, offset) is kept in memory,
+ * with the records of each mirror sorted by time. It is rebuilt by reading 
+ * the segments when the log is opened. The full segments are read through
+ * memory mappings.
+ * 
+ * The compaction copies the live records of the full segments to a new
+ * segment, and removes them: it runs in the background when the dead 
+ * records (replaced, deleted) reach a share of the full segments (see 
+ * startCompaction()), while the documents are still read and written.
+ * The new segment is written as segment-<id>.tmp, renamed segment-<id>.compacted 
+ * once complete, then replaces the segments up to <id>: a log opened after 
+ * a crash finishes or forgets an interrupted compaction.
+ * 
+ * @author marc
+ *
+ */
+public class SegmentLog {
+	private static Logger logger = Logger.getLogger(SegmentLog.class);
+	
+	private static final int MAGIC = 0x4D494D4F;	// "MIMO"
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final int HEADER = 26;
+	private static final int CRC_START = 8;			// the crc covers the record from there
+	
+	private static final String PREFIX = "segment-";
+	private static final String SEGMENT = ".log";
+	private static final String COMPACTED = ".compacted";
+	private static final String TEMPORARY = ".tmp";
+	
+	private File dir;
+	private long segmentSize;
+	
+	private List<Segment> segments = new ArrayList<Segment>();	// by id, the last one is written
+	private Map<String, Entry> index = new HashMap<String, Entry>();
+	private Map<String, TreeSet<Entry>> mirrors = new HashMap<String, TreeSet<Entry>>();
+	
+	// the index and the segment list are read concurrently, changed alone
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ReentrantLock appendLock = new ReentrantLock();	// one writer at a time
+	private final Object compactionLock = new Object();				// one compaction at a time
+	private Thread compactor = null;
+	private volatile boolean closed = false;
+	
+	// statistics
+	private int compactions = 0;
+	private long reclaimed = 0;	// bytes
+	
+	
+	/**
+	 * Opens the log, creating the directory if needed.
+	 * 
+	 * @param dir the directory of the segments
+	 * @param segmentSize the size in bytes above which a new segment is started
+	 * @throws IOException
+	 */
+	public SegmentLog(File dir, long segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create " + dir);
+		
+		recover();
+		
+		File[] files = listFiles(SEGMENT);
+		for(int i = 0; i < files.length; i++) {
+			Segment seg = new Segment(files[i], idOf(files[i]));
+			segments.add(seg);
+			replay(seg, i == files.length - 1);
+		}
+		
+		if(segments.isEmpty())
+			segments.add(new Segment(segmentFile(1, SEGMENT), 1));
+		for(int i = 0; i < segments.size() - 1; i++)
+			segments.get(i).sealed = true;
+		
+		logger.info("Opened " + dir + ": " + index.size() + " documents in " 
+						+ segments.size() + " segments");
+	}
+	
+	
+	/* WRITING */
+	
+	/**
+	 * Stores a document, replacing the one of the same key
+	 * 
+	 * @param key unique name of the document
+	 * @param mirrorID mirror of the document, "" if none
+	 * @param type type of document, chosen by the caller
+	 * @param timestamp time of the document (milliseconds), -1 if none
+	 * @param value content of the document
+	 * @param sync true to wait for the disk
+	 * @throws IOException
+	 */
+	public void put(String key, String mirrorID, byte type, long timestamp, byte[] value, boolean sync)
+													throws IOException {
+		append(PUT, key, mirrorID, type, timestamp, value, sync);
+	}
+	
+	/**
+	 * Deletes a document
+	 * 
+	 * @param key
+	 * @param sync true to wait for the disk
+	 * @return false if there was no such document
+	 * @throws IOException
+	 */
+	public boolean delete(String key, boolean sync) throws IOException {
+		Entry entry = getEntry(key);
+		if(entry == null)
+			return false;
+		
+		append(DELETE, key, entry.mirrorID, entry.type, entry.timestamp, new byte[0], sync);
+		return true;
+	}
+	
+	private void append(byte op, String key, String mirrorID, byte type, long timestamp, 
+							byte[] value, boolean sync) throws IOException {
+		byte[] record = encode(op, key, mirrorID, type, timestamp, value);
+		
+		appendLock.lock();
+		try {
+			if(closed)
+				throw new IOException("The log " + dir + " is closed");
+			
+			Segment seg = last();
+			if(seg.size > 0 && seg.size + record.length > segmentSize)
+				seg = roll();
+			
+			long offset = seg.size;
+			ByteBuffer buf = ByteBuffer.wrap(record);
+			while(buf.hasRemaining())
+				seg.channel.write(buf, offset + buf.position());
+			if(sync)
+				seg.channel.force(false);
+			
+			lock.writeLock().lock();
+			try {
+				seg.size += record.length;
+				apply(op, key, mirrorID, type, timestamp, seg, offset, record.length);
+			}finally{
+				lock.writeLock().unlock();
+			}
+			
+		}finally{
+			appendLock.unlock();
+		}
+	}
+	
+	/**
+	 * Seals the last segment and starts a new one
+	 */
+	private Segment roll() throws IOException {
+		Segment last = last();
+		last.channel.force(false);
+		Segment seg = new Segment(segmentFile(last.id + 1, SEGMENT), last.id + 1);
+		
+		lock.writeLock().lock();
+		try {
+			last.sealed = true;
+			segments.add(seg);
+		}finally{
+			lock.writeLock().unlock();
+		}
+		logger.debug("Started segment " + seg.file.getName());
+		return seg;
+	}
+	
+	/**
+	 * Updates the index with a record (lock held)
+	 */
+	private void apply(byte op, String key, String mirrorID, byte type, long timestamp,
+							Segment seg, long offset, int length) {
+		Entry old = index.remove(key);
+		if(old != null) {
+			old.segment.live -= old.length;
+			TreeSet<Entry> entries = mirrors.get(old.mirrorID);
+			entries.remove(old);
+			if(entries.isEmpty())
+				mirrors.remove(old.mirrorID);
+		}
+		if(op == DELETE)
+			return;
+		
+		Entry entry = new Entry(key, mirrorID, type, timestamp, seg, offset, length);
+		index.put(key, entry);
+		seg.live += length;
+		TreeSet<Entry> entries = mirrors.get(mirrorID);
+		if(entries == null) {
+			entries = new TreeSet<Entry>(CHRONOLOGICAL);
+			mirrors.put(mirrorID, entries);
+		}
+		entries.add(entry);
+	}
+	
+	
+	/* READING */
+	
+	/**
+	 * @param key
+	 * @return the content of the document, null if there is no such document
+	 * @throws IOException
+	 */
+	public byte[] get(String key) throws IOException {
+		lock.readLock().lock();
+		try {
+			Entry entry = index.get(key);
+			if(entry == null)
+				return null;
+			
+			byte[] record = entry.segment.read(entry.offset, entry.length);
+			int start = HEADER + readShort(record, 18) + readShort(record, 20);
+			byte[] value = new byte[record.length - start];
+			System.arraycopy(record, start, value, 0, value.length);
+			return value;
+			
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return the description of the document, null if there is no such document
+	 */
+	public Entry getEntry(String key) {
+		lock.readLock().lock();
+		try {
+			return index.get(key);
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @param from time in milliseconds
+	 * @param to time in milliseconds (included)
+	 * @return the documents of a mirror stored in this time range, in chronological order
+	 */
+	public List<Entry> list(String mirrorID, long from, long to) {
+		List<Entry> list = new ArrayList<Entry>();
+		lock.readLock().lock();
+		try {
+			TreeSet<Entry> entries = mirrors.get(mirrorID);
+			if(entries == null)
+				return list;
+			
+			Iterator<Entry> it = entries.iterator();
+			while(it.hasNext()) {
+				Entry entry = it.next();
+				if(entry.timestamp > to)
+					break;
+				if(entry.timestamp >= from)
+					list.add(entry);
+			}
+			return list;
+			
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the IDs of the mirrors having documents
+	 */
+	public List<String> getMirrorIDs() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<String>(mirrors.keySet());
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	/* COMPACTION */
+	
+	/**
+	 * Copies the live records of the full segments into a new segment,
+	 * and removes them.
+	 * 
+	 * @return the number of bytes reclaimed
+	 * @throws IOException
+	 */
+	public long compact() throws IOException {
+		synchronized(compactionLock) {
+			// the full segments and their live records, as they are now
+			List<Segment> sealed = new ArrayList<Segment>();
+			List<Entry> live = new ArrayList<Entry>();
+			long[] offsets;
+			long before = 0;
+			
+			lock.readLock().lock();
+			try {
+				for(int i = 0; i < segments.size() - 1; i++) {
+					sealed.add(segments.get(i));
+					before += segments.get(i).size;
+				}
+				if(sealed.isEmpty() || (sealed.size() == 1 && sealed.get(0).live == sealed.get(0).size))
+					return 0;	// nothing to gain
+				
+				Set<Segment> compacted = new HashSet<Segment>(sealed);
+				Iterator<Entry> it = index.values().iterator();
+				while(it.hasNext()) {
+					Entry entry = it.next();
+					if(compacted.contains(entry.segment))
+						live.add(entry);
+				}
+			}finally{
+				lock.readLock().unlock();
+			}
+			
+			// same order as in the segments: sequential reads
+			Entry[] entries = live.toArray(new Entry[live.size()]);
+			Arrays.sort(entries, SEGMENT_ORDER);
+			
+			/*
+			 * STEP 1 - write the new segment (the full segments are only
+			 * removed by this method: they can be read without the lock)
+			 */
+			long id = sealed.get(sealed.size() - 1).id;
+			File tmp = segmentFile(id, TEMPORARY);
+			File done = segmentFile(id, COMPACTED);
+			offsets = new long[entries.length];
+			long size = 0;
+			
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.setLength(0);
+				FileChannel channel = out.getChannel();
+				for(int i = 0; i < entries.length; i++) {
+					ByteBuffer buf = ByteBuffer.wrap(entries[i].segment.read(entries[i].offset, entries[i].length));
+					offsets[i] = size;
+					while(buf.hasRemaining())
+						size += channel.write(buf);
+				}
+				channel.force(false);
+			}finally{
+				out.close();
+			}
+			if(!tmp.renameTo(done))
+				throw new IOException("Unable to rename " + tmp + " to " + done);
+			
+			/*
+			 * STEP 2 - read the documents from the new segment (unless they 
+			 * have changed meanwhile)
+			 */
+			Segment seg = new Segment(done, id);
+			seg.sealed = true;
+			seg.size = size;
+			lock.writeLock().lock();
+			try {
+				for(int i = 0; i < entries.length; i++) {
+					Entry entry = entries[i];
+					if(index.get(entry.key) != entry)
+						continue;
+					entry.segment = seg;
+					entry.offset = offsets[i];
+					seg.live += entry.length;
+				}
+				segments.removeAll(sealed);
+				segments.add(0, seg);
+				
+			}finally{
+				lock.writeLock().unlock();
+			}
+			
+			/*
+			 * STEP 3 - remove the old segments
+			 */
+			for(int i = 0; i < sealed.size(); i++) {
+				Segment old = sealed.get(i);
+				old.close();
+				if(!old.file.delete())
+					logger.warn("Unable to delete " + old.file);
+			}
+			File target = segmentFile(id, SEGMENT);
+			if(done.renameTo(target))
+				seg.file = target;
+			else
+				logger.warn("Unable to rename " + done + " to " + target);
+			
+			compactions++;
+			reclaimed += before - size;
+			logger.info("Compacted " + sealed.size() + " segments of " + dir + ": " 
+							+ before + " -> " + size + " bytes");
+			return before - size;
+		}
+	}
+	
+	/**
+	 * @return the share of the full segments taken by dead records
+	 */
+	public double getGarbageRatio() {
+		lock.readLock().lock();
+		try {
+			long size = 0, live = 0;
+			for(int i = 0; i < segments.size() - 1; i++) {
+				size += segments.get(i).size;
+				live += segments.get(i).live;
+			}
+			return (size == 0)?0:(size - live) / (double)size;
+			
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Starts the background compaction
+	 * 
+	 * @param ratio share of dead records of the full segments starting a compaction
+	 * @param interval time in ms between two checks
+	 */
+	public synchronized void startCompaction(final double ratio, final long interval) {
+		if(compactor != null || interval <= 0)
+			return;
+		
+		compactor = new Thread("Compaction of " + dir.getName()) {
+			public void run() {
+				while(!closed) {
+					try {
+						Thread.sleep(interval);
+						if(!closed && getGarbageRatio() >= ratio)
+							compact();
+						
+					}catch(InterruptedException ie) {
+						return;
+					}catch(IOException ioe) {
+						logger.error("Compaction of " + dir + " failed: " + ioe.getMessage());
+					}
+				}
+			}
+		};
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+	
+	
+	/* STATISTICS */
+	
+	public int getDocumentCount() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the bytes of all the segments
+	 */
+	public long getSize() {
+		lock.readLock().lock();
+		try {
+			long size = 0;
+			for(int i = 0; i < segments.size(); i++)
+				size += segments.get(i).size;
+			return size;
+			
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	public int getCompactions() {
+		synchronized(compactionLock) {
+			return compactions;
+		}
+	}
+	
+	public long getReclaimedBytes() {
+		synchronized(compactionLock) {
+			return reclaimed;
+		}
+	}
+	
+	public String toString() {
+		return dir + ": " + getDocumentCount() + " documents, " + getSegmentCount() + " segments, " 
+				+ getSize() + " bytes (" + (int)(getGarbageRatio() * 100) + "% dead in the full segments), "
+				+ getCompactions() + " compactions";
+	}
+	
+	/**
+	 * Stops the compaction and closes the segments
+	 */
+	public void close() {
+		closed = true;
+		Thread thread;
+		synchronized(this) {
+			thread = compactor;
+			compactor = null;
+		}
+		if(thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			}catch(InterruptedException ie) {
+				// closing anyway
+			}
+		}
+		
+		synchronized(compactionLock) {
+			appendLock.lock();
+			lock.writeLock().lock();
+			try {
+				for(int i = 0; i < segments.size(); i++)
+					segments.get(i).close();
+				segments.clear();
+				index.clear();
+				mirrors.clear();
+				
+			}finally{
+				lock.writeLock().unlock();
+				appendLock.unlock();
+			}
+		}
+		logger.info("Closed " + dir);
+	}
+	
+	
+	/* OPENING */
+	
+	/**
+	 * Finishes or forgets the compaction interrupted by a crash
+	 */
+	private void recover() throws IOException {
+		File[] tmp = listFiles(TEMPORARY);
+		for(int i = 0; i < tmp.length; i++) {
+			logger.warn("Forgetting the interrupted compaction " + tmp[i].getName());
+			tmp[i].delete();
+		}
+		
+		File[] done = listFiles(COMPACTED);
+		for(int i = 0; i < done.length; i++) {
+			long id = idOf(done[i]);
+			logger.warn("Finishing the interrupted compaction " + done[i].getName());
+			
+			File[] files = listFiles(SEGMENT);
+			for(int j = 0; j < files.length; j++)
+				if(idOf(files[j]) <= id && !files[j].delete())
+					throw new IOException("Unable to delete " + files[j]);
+			if(!done[i].renameTo(segmentFile(id, SEGMENT)))
+				throw new IOException("Unable to rename " + done[i]);
+		}
+	}
+	
+	/**
+	 * Rebuilds the index from the records of a segment
+	 * 
+	 * @param last true for the segment being written: a truncated record
+	 * 			at its end is removed
+	 */
+	private void replay(Segment seg, boolean last) throws IOException {
+		long length = seg.channel.size();
+		ByteBuffer buf = seg.channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		CRC32 crc = new CRC32();
+		
+		int offset = 0;
+		while(offset < length) {
+			int size = checkRecord(buf, offset, (int)length, crc);
+			if(size < 0) {
+				if(last) {
+					logger.warn("Truncating " + seg.file.getName() + " at " + offset 
+									+ " (incomplete record)");
+					seg.channel.truncate(offset);
+				}else
+					logger.error("Invalid record in " + seg.file.getName() + " at " + offset 
+									+ ", the end of the segment is ignored");
+				break;
+			}
+			
+			byte[] header = new byte[HEADER];
+			buf.position(offset);
+			buf.get(header);
+			int mirrorLength = readShort(header, 18);
+			int keyLength = readShort(header, 20);
+			byte[] strings = new byte[mirrorLength + keyLength];
+			buf.get(strings);
+			
+			apply(header[8], string(strings, mirrorLength, keyLength), string(strings, 0, mirrorLength),
+					header[9], readLong(header, 10), seg, offset, size);
+			offset += size;
+		}
+		seg.size = offset;
+	}
+	
+	/**
+	 * @return the size of the record at this offset, -1 if it is incomplete or corrupted
+	 */
+	private static int checkRecord(ByteBuffer buf, int offset, int length, CRC32 crc) {
+		if(length - offset < HEADER || buf.getInt(offset) != MAGIC)
+			return -1;
+		
+		int mirrorLength = buf.getShort(offset + 18) & 0xFFFF;
+		int keyLength = buf.getShort(offset + 20) & 0xFFFF;
+		int valueLength = buf.getInt(offset + 22);
+		long size = (long)HEADER + mirrorLength + keyLength + valueLength;
+		if(valueLength < 0 || offset + size > length)
+			return -1;
+		
+		byte[] data = new byte[(int)size - CRC_START];
+		ByteBuffer copy = buf.duplicate();
+		copy.position(offset + CRC_START);
+		copy.get(data);
+		crc.reset();
+		crc.update(data);
+		if((int)crc.getValue() != buf.getInt(offset + 4))
+			return -1;
+		return (int)size;
+	}
+	
+	
+	/* HELPERS */
+	
+	private static byte[] encode(byte op, String key, String mirrorID, byte type, long timestamp, 
+									byte[] value) throws IOException {
+		byte[] k = bytes(key);
+		byte[] m = bytes(mirrorID);
+		if(k.length > 0xFFFF || m.length > 0xFFFF)
+			throw new IOException("Document name too long: " + key);
+		
+		ByteBuffer buf = ByteBuffer.allocate(HEADER + m.length + k.length + value.length);
+		buf.putInt(MAGIC).putInt(0).put(op).put(type).putLong(timestamp)
+			.putShort((short)m.length).putShort((short)k.length).putInt(value.length)
+			.put(m).put(k).put(value);
+		
+		byte[] record = buf.array();
+		CRC32 crc = new CRC32();
+		crc.update(record, CRC_START, record.length - CRC_START);
+		buf.putInt(4, (int)crc.getValue());
+		return record;
+	}
+	
+	private Segment last() {
+		return segments.get(segments.size() - 1);
+	}
+	
+	private File segmentFile(long id, String suffix) {
+		StringBuffer name = new StringBuffer(Long.toString(id));
+		while(name.length() < 10)
+			name.insert(0, '0');
+		return new File(dir, PREFIX + name + suffix);
+	}
+	
+	/**
+	 * @return the files of the directory with this suffix, by id
+	 */
+	private File[] listFiles(String suffix) {
+		List<File> list = new ArrayList<File>();
+		File[] files = dir.listFiles();
+		for(int i = 0; files != null && i < files.length; i++)
+			if(files[i].getName().startsWith(PREFIX) && files[i].getName().endsWith(suffix))
+				list.add(files[i]);
+		
+		File[] sorted = list.toArray(new File[list.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long id1 = idOf(f1), id2 = idOf(f2);
+				return (id1 < id2)?-1:((id1 == id2)?0:1);
+			}
+		});
+		return sorted;
+	}
+	
+	private static long idOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.lastIndexOf('.')));
+	}
+	
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		}catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());	// UTF-8 is always supported
+		}
+	}
+	
+	private static String string(byte[] b, int offset, int length) {
+		try {
+			return new String(b, offset, length, "UTF-8");
+		}catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+	
+	private static int readShort(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+	}
+	
+	private static long readLong(byte[] b, int offset) {
+		return ByteBuffer.wrap(b, offset, 8).getLong();
+	}
+	
+	// records of a mirror: by time, then by name
+	private static final Comparator<Entry> CHRONOLOGICAL = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			if(e1.timestamp != e2.timestamp)
+				return (e1.timestamp < e2.timestamp)?-1:1;
+			return e1.key.compareTo(e2.key);
+		}
+	};
+	
+	// records by segment, then by offset
+	private static final Comparator<Entry> SEGMENT_ORDER = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			if(e1.segment.id != e2.segment.id)
+				return (e1.segment.id < e2.segment.id)?-1:1;
+			return (e1.offset < e2.offset)?-1:((e1.offset == e2.offset)?0:1);
+		}
+	};
+	
+	
+	/**
+	 * A live document: where its record is
+	 */
+	public static class Entry {
+		private final String key;
+		private final String mirrorID;
+		private final byte type;
+		private final long timestamp;
+		private Segment segment;	// changed by the compaction
+		private long offset;
+		private final int length;
+		
+		Entry(String key, String mirrorID, byte type, long timestamp, Segment segment, long offset, int length) {
+			this.key = key;
+			this.mirrorID = mirrorID;
+			this.type = type;
+			this.timestamp = timestamp;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		public String getKey() {
+			return key;
+		}
+		
+		public String getMirrorID() {
+			return mirrorID;
+		}
+		
+		public byte getType() {
+			return type;
+		}
+		
+		public long getTimeStamp() {
+			return timestamp;
+		}
+		
+		/**
+		 * @return the size of the record, in bytes
+		 */
+		public int getLength() {
+			return length;
+		}
+	}
+	
+	
+	/**
+	 * A segment file. The full segments are read through a memory mapping,
+	 * the one being written through its channel.
+	 */
+	private static class Segment {
+		final long id;
+		File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		long size = 0;				// bytes of the complete records
+		long live = 0;				// bytes of the live records
+		volatile boolean sealed = false;
+		private MappedByteBuffer map = null;
+		
+		Segment(File file, long id) throws IOException {
+			this.file = file;
+			this.id = id;
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+		}
+		
+		/**
+		 * @return a complete record
+		 */
+		byte[] read(long offset, int length) throws IOException {
+			byte[] record = new byte[length];
+			
+			if(sealed && size <= Integer.MAX_VALUE) {
+				ByteBuffer buf = mapping().duplicate();
+				buf.position((int)offset);
+				buf.get(record);
+				return record;
+			}
+			
+			ByteBuffer buf = ByteBuffer.wrap(record);
+			while(buf.hasRemaining())
+				if(channel.read(buf, offset + buf.position()) < 0)
+					throw new IOException("Unexpected end of " + file);
+			return record;
+		}
+		
+		private synchronized MappedByteBuffer mapping() throws IOException {
+			if(map == null)
+				map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return map;
+		}
+		
+		void close() {
+			try {
+				raf.close();
+			}catch(IOException ioe) {
+				logger.error("Unable to close " + file + ": " + ioe.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,361 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dal.segment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dom4j.DocumentException;
+
+import edos.mimo.Config;
+import edos.mimo.IMirrorDelta;
+import edos.mimo.MirrorStructureFactory;
+import edos.mimo.dal.AbstractStorage;
+import edos.mimo.dom.DOMMirrorDiff;
+import edos.mimo.dom.IDOMMirrorDiff;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.db.DeltaChain;
+import edos.mimo.dom.db.StructureCache;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
+import edos.mimo.filesystem.IMirrorDiff;
+import edos.mimo.statistics.WorkflowStatistics;
+
+/**
+ * Storage of the documents in an append-only log of segment files (see 
+ * SegmentLog), in pure Java: no native library, no XQuery.
+ * 
+ * The documents are the same as in the Berkeley DB XML containers 
+ * (BDBXMLManager), under the same names; the statistics are named 
+ * "statistics/<name>". The states of the mirrors are rebuilt and cached
+ * the same way (see AbstractStorage).
+ * 
+ * The structures, deltas and diffs are written to the disk before save()
+ * returns, the relaxed documents (see Config.isRelaxedDocument()) may not
+ * be yet.
+ * 
+ * @author marc
+ *
+ */
+public class SegmentStorage extends AbstractStorage {
+	private static Logger logger = Logger.getLogger(SegmentStorage.class);
+	
+	// types of the records
+	private static final byte STRUCTURE		= 1;
+	private static final byte DELTA			= 2;
+	private static final byte DIFF			= 3;
+	private static final byte STATISTICS	= 4;
+	private static final String[] TYPE_NAMES = { null, "structure", "delta", "diff", "statistics" };
+	
+	private static final String STATISTICS_PREFIX = "statistics/";
+	
+	private static SegmentStorage instance = null;
+	private SegmentLog log;
+	
+	
+	/**
+	 * Singleton access method, opens the store of Config.getSegmentStoreHome()
+	 * @return an instance of me
+	 * @throws StorageException
+	 */
+	public static synchronized SegmentStorage getInstance() throws StorageException {
+		if(instance == null)
+			instance = new SegmentStorage(new File(Config.getSegmentStoreHome()));
+		return instance;
+	}
+	
+	private SegmentStorage(File home) throws StorageException {
+		logger.info("Opening the segment store " + home);
+		
+		if(!Config.isLoaded())
+			throw new StorageException("Config has not been loaded. The storage can't be started");
+		try {
+			config = Config.getInstance();
+		}catch(ConfigException e) {
+			throw new StorageException("Unable to read the configuration", e);
+		}
+		cache = new StructureCache(config.getCacheSize() * 1024L * 1024L);
+		
+		try {
+			log = new SegmentLog(home, config.getSegmentSize() * 1024L * 1024L);
+		}catch(IOException ioe) {
+			throw new StorageException("Unable to open the segment store " + home, ioe);
+		}
+		log.startCompaction(config.getCompactionRatio(), config.getCompactionInterval());
+	}
+	
+	
+	/* STRUCTURES AND DELTAS */
+	
+	protected void storeStructure(String mirrorID, String docName, String content) 
+											throws StorageException {
+		put(STRUCTURE, mirrorID, docName, timeStampOf(docName), content);
+	}
+	
+	protected void storeDelta(IMirrorDelta delta) throws StorageException {
+		String docName = delta.getDocumentID() + ".xml";
+		put(DELTA, delta.getMirrorID(), docName, timeStampOf(docName), delta.toString());
+	}
+	
+	public ITreeMirrorStructure getLatestStructure(String mirrorID) throws StorageException, DocumentException {
+		String docName = latest(mirrorID, STRUCTURE);
+		if(docName == null) {
+			logger.error("Unable to retrieve latest structure document for " + mirrorID);
+			return null;
+		}
+		return MirrorStructureFactory.loadTreeStructure(getDocument(docName));
+	}
+	
+	
+	/* DIFFS */
+	
+	/**
+	 * Stores the diff of a mirror, timestamped with the current time,
+	 * after removing the previous one.
+	 */
+	public void save(IMirrorDiff diff) throws StorageException {
+		String docName = diff.getDocumentID() + ".xml";
+		
+		String previous = latest(diff.getMirrorID(), DIFF);
+		if(previous != null && !previous.equals(docName))
+			deleteDocument(previous);
+		put(DIFF, diff.getMirrorID(), docName, System.currentTimeMillis(), diff.toString());
+	}
+	
+	public IDOMMirrorDiff getLatestDiffForMirror(String mirrorID) throws StorageException, DocumentException {
+		String docName = latest(mirrorID, DIFF);
+		if(docName == null)
+			throw new DocumentException("Unable to retrieve Diff document");
+		return new DOMMirrorDiff(getDocument(docName));
+	}
+	
+	
+	/* STATISTICS */
+	
+	public void save(WorkflowStatistics jobStat) throws StorageException {
+		String docID = jobStat.getDocumentID();		// mirrorID-<millis>
+		int dash = docID.lastIndexOf('-');
+		String mirrorID = (dash < 0)?"":docID.substring(0, dash);
+		String docName = docID + ".xml";
+		
+		put(STATISTICS, mirrorID, STATISTICS_PREFIX + docName, timeStampOf(docName), jobStat.toString());
+	}
+	
+	/**
+	 * Replaces the statistics document (the log keeps only the new one)
+	 */
+	public void update(WorkflowStatistics jobStat) throws StorageException {
+		save(jobStat);
+	}
+	
+	/**
+	 * @return the names of the statistics documents (mirrorID-<millis>.xml) 
+	 * 			stored from one time to another (included), in chronological order
+	 */
+	public List<String> getStatistics(long from, long to) {
+		List<SegmentLog.Entry> entries = new ArrayList<SegmentLog.Entry>();
+		List<String> mirrorIDs = log.getMirrorIDs();
+		for(int i = 0; i < mirrorIDs.size(); i++) {
+			List<SegmentLog.Entry> list = log.list(mirrorIDs.get(i), from, to);
+			for(int j = 0; j < list.size(); j++)
+				if(list.get(j).getType() == STATISTICS)
+					entries.add(list.get(j));
+		}
+		
+		Collections.sort(entries, new Comparator<SegmentLog.Entry>() {
+			public int compare(SegmentLog.Entry a, SegmentLog.Entry b) {
+				return (a.getTimeStamp() < b.getTimeStamp())?-1:((a.getTimeStamp() == b.getTimeStamp())?0:1);
+			}
+		});
+		
+		List<String> names = new ArrayList<String>(entries.size());
+		for(int i = 0; i < entries.size(); i++)
+			names.add(entries.get(i).getKey().substring(STATISTICS_PREFIX.length()));
+		return names;
+	}
+	
+	public void deleteStatistics(String docName) {
+		deleteDocument(STATISTICS_PREFIX + docName);
+	}
+	
+	
+	/* DOCUMENTS */
+	
+	public String getDocument(String docName) throws StorageException {
+		byte[] content;
+		try {
+			content = log.get(docName);
+		}catch(IOException ioe) {
+			throw new StorageException("Unable to read " + docName, ioe);
+		}
+		
+		if(content == null) {
+			String message = "Unable to find " + docName + " in the database";
+			logger.error(message);
+			throw new StorageException(message);
+		}
+		return string(content);
+	}
+	
+	public void deleteDocument(String docName) {
+		SegmentLog.Entry entry = log.getEntry(docName);
+		if(entry == null) {
+			logger.warn("Unable to delete " + docName + ": no such document");
+			return;
+		}
+		
+		try {
+			log.delete(docName, isStrict(entry.getType()));
+			
+		}catch(IOException ioe) {
+			logger.error("Unable to delete " + docName + ": " + ioe.getMessage());
+			
+		}finally{
+			// the document may have been part of a cached state
+			deleted(entry.getMirrorID());
+		}
+	}
+	
+	/**
+	 * @return the IDs of the mirrors having structures or deltas
+	 */
+	public List<String> getMirrorIDs() {
+		List<String> ids = new ArrayList<String>();
+		List<String> all = log.getMirrorIDs();
+		for(int i = 0; i < all.size(); i++)
+			if(getDocumentCount(all.get(i)) > 0)
+				ids.add(all.get(i));
+		return ids;
+	}
+	
+	/**
+	 * @return the number of structures and deltas of a mirror
+	 */
+	public int getDocumentCount(String mirrorID) {
+		return getDocuments(mirrorID, Long.MIN_VALUE, Long.MAX_VALUE).size();
+	}
+	
+	/**
+	 * @return the names of the structures and deltas of a mirror stored
+	 * 			from one time to another (included), in chronological order
+	 */
+	public List<String> getDocuments(String mirrorID, long from, long to) {
+		List<String> names = new ArrayList<String>();
+		List<SegmentLog.Entry> entries = log.list(mirrorID, from, to);
+		for(int i = 0; i < entries.size(); i++) {
+			SegmentLog.Entry entry = entries.get(i);
+			if(entry.getType() == STRUCTURE || entry.getType() == DELTA)
+				names.add(entry.getKey());
+		}
+		return names;
+	}
+	
+	/**
+	 * Compacts the full segments now, without waiting for the background 
+	 * compaction (see Config.getCompactionRatio())
+	 */
+	public void compact() throws StorageException {
+		try {
+			long reclaimed = log.compact();
+			logger.info("Compaction reclaimed " + reclaimed + " bytes");
+			
+		}catch(IOException ioe) {
+			throw new StorageException("Unable to compact the segments", ioe);
+		}
+	}
+	
+	/**
+	 * @return the log of the documents (compaction, sizes)
+	 */
+	public SegmentLog getSegmentLog() {
+		return log;
+	}
+	
+	public void close() {
+		synchronized(SegmentStorage.class) {
+			logger.info(log);
+			logger.info(cache);
+			log.close();
+			if(instance == this)
+				instance = null;
+		}
+	}
+	
+	
+	/* HELPERS */
+	
+	private void put(byte type, String mirrorID, String docName, long timestamp, String content)
+											throws StorageException {
+		boolean strict = isStrict(type);
+		try {
+			log.put(docName, (mirrorID == null)?"":mirrorID, type, timestamp, bytes(content), strict);
+			
+		}catch(IOException ioe) {
+			throw new StorageException("Unable to store " + docName, ioe);
+		}
+		logger.info(((strict)?"Added doc ":"Appended doc (no sync) ") + docName);
+	}
+	
+	/**
+	 * @return the name of the latest document of this type, null if none
+	 */
+	private String latest(String mirrorID, byte type) {
+		List<SegmentLog.Entry> entries = log.list(mirrorID, Long.MIN_VALUE, Long.MAX_VALUE);
+		for(int i = entries.size() - 1; i >= 0; i--)
+			if(entries.get(i).getType() == type)
+				return entries.get(i).getKey();
+		return null;
+	}
+	
+	/**
+	 * @return false if the documents of this type are written without waiting for the disk
+	 */
+	private boolean isStrict(byte type) {
+		return !config.isRelaxedDocument(TYPE_NAMES[type]);
+	}
+	
+	private static long timeStampOf(String docName) {
+		try {
+			return DeltaChain.getTimeStamp(docName);
+		}catch(NumberFormatException nfe) {
+			logger.warn("No timestamp in the name of " + docName);
+			return -1;
+		}
+	}
+	
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		}catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());	// UTF-8 is always supported
+		}
+	}
+	
+	private static String string(byte[] b) {
+		try {
+			return new String(b, "UTF-8");
+		}catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
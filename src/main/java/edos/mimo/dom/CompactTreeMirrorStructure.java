@@ -0,0 +1,733 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom;
+
+import java.io.BufferedInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import edos.mimo.AbstractMirror;
+import edos.mimo.Access;
+import edos.mimo.Config;
+import edos.mimo.Date;
+import edos.mimo.IMirror;
+import edos.mimo.IMirrorDelta;
+import edos.mimo.Identity;
+import edos.mimo.MirrorFactory;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.filesystem.IDirectory;
+import edos.mimo.filesystem.MirrorDirectory;
+import edos.mimo.filesystem.NamePool;
+
+/**
+ * Memory-saving implementation of ITreeMirrorStructure.
+ *
+ * A TreeMirrorStructure keeps each file as a dom4j element with its
+ * attributes (including the date as a string), which takes hundreds of
+ * bytes per file. This class keeps the same tree in parallel arrays of
+ * primitives, the nodes being stored in document order:
+ *  . parent index and end of subtree (index following its last node)
+ *  . name, as an index in the table of the distinct names of the structure
+ *    (the names themselves are shared with the other mirrors, see NamePool)
+ *  . modification time and size, as long values
+ *  . type (directory or file) and which attributes are present
+ *
+ * The dom4j document is only built when it is asked for (diff, delta,
+ * XQuery, pretty print) and is then kept as long as memory allows it.
+ * It is a view: changes made to it are not reflected in the structure.
+ * The XML of the structure (toString(), save()) is written straight from
+ * the arrays.
+ *
+ * Dates are kept as found in the document, whether ISO8601 or milliseconds
+ * (older documents). Attributes other than name, date and size are not kept.
+ *
+ * @author marc
+ *
+ */
+public class CompactTreeMirrorStructure implements ITreeMirrorStructure {
+	private static Logger logger = Logger.getLogger(CompactTreeMirrorStructure.class);
+
+	// node flags
+	private static final byte DIR 			= 1;
+	private static final byte HAS_DATE 		= 2;
+	private static final byte HAS_SIZE 		= 4;
+	private static final byte MILLIS_DATE 	= 8;	// date written as milliseconds
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final String ROOT = "mirror";
+
+	/*
+	 * NODES in document order
+	 */
+	private int count = 0;
+	private int[] parent;		// index of the parent directory, -1 for the children of the root
+	private int[] end;			// index following the last node of the subtree
+	private int[] nameId;		// index in names, -1 without a name
+	private long[] mtime;
+	private long[] size;
+	private byte[] flags;
+	private String[] names;		// distinct names
+
+	// values which would not be written back the same way, kept as found
+	private HashMap<Integer,String> rawDates = new HashMap<Integer,String>();
+	private HashMap<Integer,String> rawSizes = new HashMap<Integer,String>();
+
+	// attributes of the root element in document order: name, value, name, value...
+	private String[] rootAttributes = new String[0];
+
+	private IMirror mirror;
+	private long timestamp = 0;
+	private String type = null;		// master | mirror
+
+	// the dom4j view, built on demand
+	private SoftReference<Document> view = null;
+
+
+	/**
+	 * Compacts a structure (eg. right after its acquisition).
+	 * The mirror then refers to the compact structure.
+	 * @param struct
+	 */
+	public CompactTreeMirrorStructure(ITreeMirrorStructure struct) {
+		Element root = struct.getDocument().getRootElement();
+
+		Loader loader = new Loader();
+		loader.setRoot(root);
+		loader.addChildren(root);
+		loader.finish();
+
+		mirror = struct.getMirror();
+		timestamp = struct.getTimeStamp();
+		type = rootAttribute(TYPE);
+		if(mirror != null)
+			mirror.setStructure(this);
+	}
+
+	/**
+	 * Load the structure from file or database, as an InputStream.
+	 * XML is read with SAX: no dom4j document is built.
+	 * A binary snapshot (see SnapshotCodec) is decoded, then compacted.
+	 *
+	 * @param InputStream is
+	 * @throws DocumentException
+	 */
+	public CompactTreeMirrorStructure(InputStream is) throws DocumentException {
+		if(!is.markSupported())
+			is = new BufferedInputStream(is);
+
+		Loader loader = new Loader();
+		try {
+			if(SnapshotCodec.isSnapshot(is))
+				load(loader, SnapshotCodec.read(is));
+			else
+				parse(loader, new InputSource(is));
+
+		}catch(IOException ioe) {
+			throw new DocumentException(ioe.getMessage(), ioe);
+		}
+		loader.finish();
+
+		setup();
+	}
+
+	/**
+	 * Load the structure from file or database, as a String.
+	 *
+	 * @param s the XML document, packed or not (see SnapshotCodec.pack())
+	 * @throws DocumentException
+	 */
+	public CompactTreeMirrorStructure(String s) throws DocumentException {
+		Loader loader = new Loader();
+		if(SnapshotCodec.isPacked(s))
+			load(loader, SnapshotCodec.load(s));
+		else
+			parse(loader, new InputSource(new StringReader(s)));	// no charset: already decoded
+		loader.finish();
+
+		setup();
+	}
+
+	/**
+	 * Reads an XML document with SAX
+	 */
+	private void parse(Loader loader, InputSource is) throws DocumentException {
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.newSAXParser().parse(is, new SAXLoader(loader));
+
+		}catch(SAXException saxe) {
+			throw new DocumentException(saxe.getMessage(), saxe);
+		}catch(ParserConfigurationException pce) {
+			throw new DocumentException(pce.getMessage(), pce);
+		}catch(IOException ioe) {
+			throw new DocumentException(ioe.getMessage(), ioe);
+		}
+	}
+
+	private void load(Loader loader, Document doc) {
+		Element root = doc.getRootElement();
+		loader.setRoot(root);
+		loader.addChildren(root);
+	}
+
+	/**
+	 * Sets up the mirror from the attributes of the root element,
+	 * as TreeMirrorStructure does when loading a document.
+	 */
+	private void setup() {
+		type = rootAttribute(TYPE);
+		String name = rootAttribute(NAME);
+		String host = rootAttribute(HOST);
+		String protocol = rootAttribute(PROTOCOL);
+		String localPath = rootAttribute(PATH);
+
+		Access access = new Access(host, protocol, localPath);
+		Identity id = new Identity("fake name", "fake password", null);
+
+		MirrorFactory factory = MirrorFactory.getInstance();
+	    mirror = (AbstractMirror.MASTER.equals(type))?
+	    		factory.getMaster(name, access, id):factory.getSecondary(name, access, id);
+
+	    mirror.setStructure(this);
+
+		// Timestamp the structure as the time its acquisition was completed
+		try{
+			Date checkoutTime = new Date(rootAttribute(CHECKOUTTIME), Date.ISO8601);
+			timestamp = checkoutTime.getTimeInMillis();
+
+		    mirror.setCheckinTime(new Date(rootAttribute(CHECKINTIME), Date.ISO8601));
+		    mirror.setCheckoutTime(checkoutTime);
+
+		}catch(ParseException pe) {
+			logger.error("Unable to parse timestamp " + rootAttribute(CHECKOUTTIME)
+					+ " or " + rootAttribute(CHECKINTIME) +  " - " + pe.getMessage());
+			timestamp = -1;	// error
+		}
+
+	    mirror.setActivePass(mirror.getPasses().get(0));
+	}
+
+	/**
+	 * @return the number of directories and files
+	 */
+	public int countNodes() {
+		return count;
+	}
+
+	/**
+	 * @return the number of distinct names
+	 */
+	public int countNames() {
+		return names.length;
+	}
+
+	/**
+	 * The dom4j document, built from the arrays if it is not available.
+	 * It is a view of the structure: changes made to it are not reflected
+	 * in the structure and may be lost.
+	 */
+	public synchronized Document getDocument() {
+		Document doc = (view == null)?null:view.get();
+		if(doc == null) {
+			logger.debug("building the document of " + getDocumentID());
+			doc = buildDocument();
+			view = new SoftReference<Document>(doc);
+		}
+		return doc;
+	}
+
+	private Document buildDocument() {
+		Document doc = DocumentHelper.createDocument();
+		Element root = doc.addElement(ROOT);
+		for(int i = 0; i < rootAttributes.length; i += 2)
+			root.addAttribute(rootAttributes[i], rootAttributes[i + 1]);
+
+		// open directories, from the root down
+		Element[] elements = new Element[16];
+		int[] indexes = new int[16];
+		int depth = 0;
+
+		for(int i = 0; i < count; i++) {
+			while(depth > 0 && end[indexes[depth - 1]] <= i)
+				depth--;
+
+			Element parentElt = (depth == 0)?root:elements[depth - 1];
+			Element elt = parentElt.addElement(((flags[i] & DIR) != 0)?DIRECTORY:FILE);
+			addAttributes(elt, i);
+
+			if((flags[i] & DIR) != 0 && end[i] > i + 1) {
+				if(depth == elements.length) {
+					elements = grow(elements);
+					indexes = grow(indexes, depth * 2);
+				}
+				elements[depth] = elt;
+				indexes[depth++] = i;
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Writes the document without building it, one element at a time.
+	 */
+	private void writeXML(Writer out) throws IOException {
+		XMLWriter writer = new XMLWriter(out, new OutputFormat());
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+
+		Element root = DocumentHelper.createElement(ROOT);
+		for(int i = 0; i < rootAttributes.length; i += 2)
+			root.addAttribute(rootAttributes[i], rootAttributes[i + 1]);
+		if(count == 0) {
+			writer.write(root);
+			writer.flush();
+			return;
+		}
+		writer.writeOpen(root);
+
+		Element[] open = new Element[16];
+		int[] indexes = new int[16];
+		int depth = 0;
+
+		for(int i = 0; i < count; i++) {
+			while(depth > 0 && end[indexes[depth - 1]] <= i)
+				writer.writeClose(open[--depth]);
+
+			Element elt = DocumentHelper.createElement(((flags[i] & DIR) != 0)?DIRECTORY:FILE);
+			addAttributes(elt, i);
+
+			if((flags[i] & DIR) != 0 && end[i] > i + 1) {
+				writer.writeOpen(elt);
+				if(depth == open.length) {
+					open = grow(open);
+					indexes = grow(indexes, depth * 2);
+				}
+				open[depth] = elt;
+				indexes[depth++] = i;
+			}else{
+				writer.write(elt);
+			}
+		}
+		while(depth > 0)
+			writer.writeClose(open[--depth]);
+		writer.writeClose(root);
+		writer.flush();
+	}
+
+	/**
+	 * Adds name, date and size, in the order used by the acquisition
+	 */
+	private void addAttributes(Element elt, int i) {
+		if(nameId[i] >= 0)
+			elt.addAttribute(NAME, names[nameId[i]]);
+
+		if((flags[i] & HAS_DATE) != 0) {
+			String date = rawDates.get(Integer.valueOf(i));
+			if(date == null)
+				date = ((flags[i] & MILLIS_DATE) != 0)?
+						Long.toString(mtime[i]):Date.formatISO8601(mtime[i]);
+			elt.addAttribute(DATE, date);
+		}
+
+		if((flags[i] & HAS_SIZE) != 0) {
+			String s = rawSizes.get(Integer.valueOf(i));
+			elt.addAttribute(SIZE, (s == null)?Long.toString(size[i]):s);
+		}
+	}
+
+	/**
+	 * Applies the delta to the document, which is then compacted again.
+	 */
+	public synchronized void patch(IMirrorDelta delta) {
+		Document doc = buildDocument();
+		Element root = doc.getRootElement();
+		TreeMirrorStructure.patch(root, delta);
+
+		Loader loader = new Loader();
+		loader.setRoot(root);
+		loader.addChildren(root);
+		loader.finish();
+
+		view = new SoftReference<Document>(doc);
+	}
+
+	public List<IDirectory> getTopDirectories() {
+		Iterator dirs = getDocument().getRootElement().elementIterator(DIRECTORY);
+		List<IDirectory> list = new LinkedList<IDirectory>();
+
+		while(dirs.hasNext())
+			list.add(new MirrorDirectory((Element)dirs.next()));
+
+		return list;
+	}
+
+	public void save() throws IOException {
+		if(SnapshotCodec.useSnapshots())
+			saveSnapshot();
+		else
+			save(true);
+	}
+
+	/**
+	 * Saves the binary snapshot to the file given by getSnapshotPath().
+	 * The snapshot is written from the dom4j document.
+	 */
+	public void saveSnapshot() throws IOException {
+		OutputStream out = new FileOutputStream(getSnapshotPath());
+		try {
+			SnapshotCodec.write(getDocument(), out);
+		}finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Saves the structure to the file given by getFilePath().
+	 * The pretty print needs the dom4j document.
+	 */
+	public synchronized void save(boolean pretty) throws IOException {
+		PrintWriter out = new PrintWriter(getFilePath());
+		try {
+			if(pretty) {
+				XMLWriter writer = new XMLWriter(out, OutputFormat.createPrettyPrint());
+				writer.write(getDocument());
+				writer.flush();
+			}else
+				writeXML(out);
+
+		}finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns an XML String, written from the arrays.
+	 */
+	public synchronized String toString() {
+		StringWriter out = new StringWriter(count * 64);
+		try {
+			writeXML(out);
+		}catch(IOException ioe) {
+			logger.error("Unable to write " + getDocumentID() + ": " + ioe.getMessage());
+		}
+		return out.toString();
+	}
+
+	public String getFilename() {
+		return getDocumentID() + ".xml";
+	}
+
+	public String getFilePath() {
+		return Config.getBasePathXMLStorage() + getFilename();
+	}
+
+	public String getSnapshotPath() {
+		return Config.getBasePathXMLStorage() + getDocumentID() + SnapshotCodec.FILE_EXTENSION;
+	}
+
+	public String getMirrorID() {
+        String mirrorID = "none";
+		try {
+			mirrorID = mirror.getMirrorID();
+
+		} catch (ConfigException e) {
+			logger.error("At this point the mirror must have a mirrorID which it has not: " + e.getMessage());
+		}
+		return mirrorID;
+	}
+
+	public String getDocumentID() {
+		return getMirrorID() + "-" + timestamp;	// reputed unique among structures
+	}
+
+	public long getTimeStamp() {
+		return timestamp;
+	}
+
+	public IMirror getMirror() {
+		return mirror;
+	}
+
+	public boolean isMaster() {
+		return AbstractMirror.MASTER.equals(type);
+	}
+
+	private String rootAttribute(String attributeName) {
+		for(int i = 0; i < rootAttributes.length; i += 2)
+			if(rootAttributes[i].equals(attributeName))
+				return rootAttributes[i + 1];
+		return null;
+	}
+
+	private static int[] grow(int[] a, int length) {
+		int[] b = new int[length];
+		System.arraycopy(a, 0, b, 0, Math.min(a.length, length));	// also trims
+		return b;
+	}
+
+	private static long[] grow(long[] a, int length) {
+		long[] b = new long[length];
+		System.arraycopy(a, 0, b, 0, Math.min(a.length, length));	// also trims
+		return b;
+	}
+
+	private static byte[] grow(byte[] a, int length) {
+		byte[] b = new byte[length];
+		System.arraycopy(a, 0, b, 0, Math.min(a.length, length));	// also trims
+		return b;
+	}
+
+	private static Element[] grow(Element[] a) {
+		Element[] b = new Element[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/**
+	 * Fills the arrays, from a dom4j document or SAX events.
+	 * The nodes are added in document order.
+	 */
+	private class Loader {
+		private HashMap<String,Integer> nameIds = new HashMap<String,Integer>();
+		private ArrayList<String> nameList = new ArrayList<String>();
+		private int[] stack = new int[16];		// open directories
+		private int depth = 0;
+
+		Loader() {
+			count = 0;
+			parent = new int[INITIAL_CAPACITY];
+			end = new int[INITIAL_CAPACITY];
+			nameId = new int[INITIAL_CAPACITY];
+			mtime = new long[INITIAL_CAPACITY];
+			size = new long[INITIAL_CAPACITY];
+			flags = new byte[INITIAL_CAPACITY];
+			rawDates.clear();
+			rawSizes.clear();
+		}
+
+		void setRoot(Element root) {
+			List attributes = root.attributes();
+			rootAttributes = new String[attributes.size() * 2];
+			for(int i = 0; i < attributes.size(); i++) {
+				Attribute a = (Attribute)attributes.get(i);
+				rootAttributes[2 * i] = a.getQualifiedName();
+				rootAttributes[2 * i + 1] = a.getValue();
+			}
+		}
+
+		void setRoot(Attributes attributes) {
+			rootAttributes = new String[attributes.getLength() * 2];
+			for(int i = 0; i < attributes.getLength(); i++) {
+				rootAttributes[2 * i] = attributes.getQName(i);
+				rootAttributes[2 * i + 1] = attributes.getValue(i);
+			}
+		}
+
+		void addChildren(Element dir) {
+			for(Iterator it = dir.elementIterator(); it.hasNext(); ) {
+				Element elt = (Element)it.next();
+				boolean isDir = elt.getName().equals(DIRECTORY);
+				if(!isDir && !elt.getName().equals(FILE)) {
+					logger.warn("Ignoring element " + elt.getName() + " in " + getDocumentID());
+					continue;
+				}
+
+				open(isDir, elt.attributeValue(NAME), elt.attributeValue(DATE), elt.attributeValue(SIZE));
+				if(isDir)
+					addChildren(elt);
+				close();
+			}
+		}
+
+		void open(boolean isDir, String name, String date, String sizeValue) {
+			int i = count++;
+			if(i == parent.length) {
+				int capacity = parent.length * 2;
+				parent = grow(parent, capacity);
+				end = grow(end, capacity);
+				nameId = grow(nameId, capacity);
+				mtime = grow(mtime, capacity);
+				size = grow(size, capacity);
+				flags = grow(flags, capacity);
+			}
+
+			parent[i] = (depth == 0)?-1:stack[depth - 1];
+			end[i] = i + 1;
+			nameId[i] = nameId(name);
+			flags[i] = isDir?DIR:0;
+			setDate(i, date);
+			setSize(i, sizeValue);
+
+			if(depth == stack.length)
+				stack = grow(stack, depth * 2);
+			stack[depth++] = i;
+		}
+
+		void close() {
+			int i = stack[--depth];
+			end[i] = count;
+		}
+
+		/**
+		 * Trims the arrays and drops the name index
+		 */
+		void finish() {
+			parent = grow(parent, count);
+			end = grow(end, count);
+			nameId = grow(nameId, count);
+			mtime = grow(mtime, count);
+			size = grow(size, count);
+			flags = grow(flags, count);
+
+			names = nameList.toArray(new String[nameList.size()]);
+			nameIds = null;
+			nameList = null;
+		}
+
+		private int nameId(String name) {
+			if(name == null)
+				return -1;
+			Integer id = nameIds.get(name);
+			if(id == null) {
+				id = Integer.valueOf(nameList.size());
+				nameIds.put(name, id);
+				nameList.add(NamePool.getInstance().intern(name));	// shared with the other mirrors
+			}
+			return id.intValue();
+		}
+
+		private void setDate(int i, String date) {
+			if(date == null)
+				return;
+			flags[i] |= HAS_DATE;
+
+			try {
+				if(isNumber(date)) {
+					mtime[i] = Long.parseLong(date);
+					flags[i] |= MILLIS_DATE;
+					if(Long.toString(mtime[i]).equals(date))
+						return;
+
+				}else{
+					mtime[i] = Date.parseISO8601(date);
+					if(Date.formatISO8601(mtime[i]).equals(date))
+						return;
+				}
+			}catch(ParseException pe) {
+				// kept as found
+			}catch(NumberFormatException nfe) {
+				// kept as found
+			}
+			rawDates.put(Integer.valueOf(i), date);
+		}
+
+		private void setSize(int i, String sizeValue) {
+			if(sizeValue == null)
+				return;
+			flags[i] |= HAS_SIZE;
+
+			try {
+				size[i] = Long.parseLong(sizeValue);
+				if(Long.toString(size[i]).equals(sizeValue))
+					return;
+			}catch(NumberFormatException nfe) {
+				// kept as found
+			}
+			rawSizes.put(Integer.valueOf(i), sizeValue);
+		}
+
+		private boolean isNumber(String s) {
+			if(s.length() == 0)
+				return false;
+			for(int i = 0; i < s.length(); i++)
+				if(s.charAt(i) < '0' || s.charAt(i) > '9')
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Reads a structure document into a Loader
+	 */
+	private class SAXLoader extends DefaultHandler {
+		private Loader loader;
+		private int depth = 0;
+		private int skipped = 0;	// depth within an unknown element
+
+		SAXLoader(Loader loader) {
+			this.loader = loader;
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			depth++;
+			if(skipped > 0) {
+				skipped++;
+				return;
+			}
+
+			if(depth == 1) {
+				loader.setRoot(attributes);
+
+			}else if(qName.equals(DIRECTORY) || qName.equals(FILE)) {
+				loader.open(qName.equals(DIRECTORY), attributes.getValue(NAME),
+						attributes.getValue(DATE), attributes.getValue(SIZE));
+
+			}else{
+				logger.warn("Ignoring element " + qName);
+				skipped = 1;
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName) {
+			depth--;
+			if(skipped > 0) {
+				skipped--;
+				return;
+			}
+			if(depth > 0)
+				loader.close();
+		}
+	}
+}
@@ -21,6 +21,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.GregorianCalendar;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -28,9 +30,7 @@ import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
-import org.dom4j.Node;
 import org.dom4j.io.OutputFormat;
-import org.dom4j.io.SAXReader;
 import org.dom4j.io.XMLWriter;
 
 import edos.distribution.mirror.DOMMirrorDelta;
@@ -49,10 +49,14 @@ import edos.mimo.filesystem.IFile;
 
 /**
 * A delta is a simple XML document saying what has changed
-* since the last (full) mirror state. Deltas are not 
-* cumulative. A delta refers always to the latest full
-* structure document (eg. mymirror_proto-12345.xml), and
-* never to other deltas.
+* since the last mirror state. Deltas are chained: a delta 
+* refers to the latest full structure document (eg. 
+* mymirror_proto-12345.xml) patched with the deltas stored
+* after it (see BDBXMLManager.getStructureAt()).
+* 
+* Deltas stored by earlier versions were not cumulative and
+* referred to the latest full structure only: they have no
+* "chained" attribute.
 * 
 * Deltas are currently implemented as Dom4j XML documents
 * which are simply <code>IDOMMirrorDiff</code>s with a 
@@ -70,6 +74,9 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 	private static Logger logger = Logger.getLogger(DOMMirrorDelta.class);
 	
 	private int deltaSize = 0;	// how many changes in this delta
+	private int newCount = 0;		// how many ADD records
+	private int deletedCount = 0;	// how many DEL records
+	private int updatedCount = 0;	// how many UPDATE records
 	private Document oldestDoc;
 	private Document latestDoc;
 	private Document deltaDoc;
@@ -77,6 +84,9 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 	
 	private IMirror mirror;
 	
+	// elements of the latest document paired with the reference document
+	private IdentityHashMap<Element,Boolean> matched;
+	
 	private String documentID;	// the name of the XML document (without extension)
 	private String fileName;	// the name of the XML document (with extension)
 	
@@ -110,7 +120,8 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 			.addAttribute(PROTOCOL, pass.getAccess().getProtocol())
 			.addAttribute(PATH, pass.getAccess().getLocalPath())
 	    	//.addAttribute(TIMESTAMP, Long.toString(new GregorianCalendar().getTimeInMillis()));
-			.addAttribute(TIMESTAMP, new Date().asISO8601());
+			.addAttribute(TIMESTAMP, new Date().asISO8601())
+			.addAttribute(CHAINED, "true");
 
        
 		/*
@@ -123,8 +134,10 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 				+ ")");
 		
 		// traverse the base tree to visit elements one by one
+		matched = new IdentityHashMap<Element,Boolean>();
 		treeWalkTheReferenceDocument(oldestDoc);
 		treeWalkSearchingForNewFiles(latestDoc);
+		matched = null;	// not needed anymore
 		
 		logger.info("Delta completed: " + fileName);
 		
@@ -139,12 +152,24 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 	 * @throws IOException
 	 */
 	public DOMMirrorDelta(String filename, FileInputStream fin) throws DocumentException {
-	    SAXReader xmlReader = new SAXReader();
-	    this.deltaDoc = xmlReader.read(fin);	
+	    this.deltaDoc = SnapshotCodec.read(fin);	// XML or binary snapshot
 	    
 	   setup(filename);
 	}
 
+	/**
+	 * Load the delta from the database, as a String.
+	 * 
+	 * @param docName name of the document (eg. mymirror_proto-12345-delta.xml)
+	 * @param content the XML document, packed or not (see SnapshotCodec.pack())
+	 * @throws DocumentException
+	 */
+	public DOMMirrorDelta(String docName, String content) throws DocumentException {
+	    this.deltaDoc = SnapshotCodec.load(content);	
+	    
+	   setup(docName);
+	}
+
 	/**
 	 * This method is called by DOMMirrorDelta(String filename, FileInputStream fin)
 	 * to instantiate delta documents from file.
@@ -187,144 +212,167 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
         //oldestDoc = latestFull.getDocument();
         //latestDoc = newOne.getDocument();
 		
+		// counters
+		newCount = root.elements(ADD).size();
+		deletedCount = root.elements(DEL).size();
+		updatedCount = root.elements(UPDATE).size();
+		deltaSize = newCount + deletedCount + updatedCount;
+		
 	    this.fileName = filename;
 		documentID = filename.split("\\.")[0]; // remove the ".xml" part
 		fileName = documentID + ".xml";
 	}
 
 	/**
-	 * Traverse all nodes of the master tree
+	 * Traverse all nodes of the reference tree, paired with the
+	 * nodes of the latest tree
 	 * @param document
 	 */
 	private void treeWalkTheReferenceDocument(Document document) {
-		treeWalkTheReferenceDocument(document.getRootElement());
+		treeWalkTheReferenceDocument(document.getRootElement(), 
+				latestDoc.getRootElement(), "/" + document.getRootElement().getName());
 	}
 
 	/**
-	 * Traverse all child nodes of element
-	 * @param element
+	 * Traverse all child nodes of element.
+	 * 
+	 * The children of both elements are paired with a sorted merge 
+	 * (see SiblingMatcher) instead of looking up each one of them in 
+	 * the latest document; the XPATH of each node is built while descending.
+	 * 
+	 * @param element in the reference document
+	 * @param latestElt the matching element in the latest document
+	 * @param xpath the indexed XPATH of both elements
 	 */
-	private void treeWalkTheReferenceDocument(Element element) {
-		for (int i = 0, length = element.nodeCount(); i < length; i++) {
-			Node baseNode = element.node(i);
-			String xpath = baseNode.getPath();	// non-indexed XPATH
+	private void treeWalkTheReferenceDocument(Element element, Element latestElt, String xpath) {
+		List children = element.elements();
+		int length = children.size();
+		if(length == 0)
+			return;
+		
+		// counterpart[i] is the element of the latest doc matching the i-th child
+		Element[] counterpart = new Element[length];
+		SiblingMatcher.pair(children, latestElt.elements(), counterpart, matched);
+		
+		for (int i = 0; i < length; i++) {
+			Element baseElt = (Element)children.get(i);
+			Element elt = counterpart[i];
+			String  name		= baseElt.attributeValue(IFile.NAME);
+			
+			// same XPATH as given by TreeMirrorStructure.enrichXPATH()
+			String eltXPath = childXPath(xpath, baseElt);
 			
-			if (baseNode instanceof Element) {
-				Element baseElt = (Element)baseNode;
+			/*
+			 * FILE REMOVED
+			 */
+			if(elt == null) {
+				root.addElement(DEL)
+					.addAttribute(XPATH, eltXPath);
+				deltaSize++;
+				deletedCount++;
 				
-				// completing the XPATH here with our own indexing by file name
-				// (which are unique in a given directory)
-				xpath = TreeMirrorStructure.enrichXPATH(xpath, baseElt);
-								
-				// looking for the corresponding element in the latest doc
-				Element elt = (Element)latestDoc.selectSingleNode(xpath);
-				logger.debug(baseElt);
-				String  name		= baseElt.attributeValue(IFile.NAME);
+				logger.info("[" + mirror.getFilename() + "] removed: " + name );
 				
-				/*
-				 * FILE REMOVED
-				 */
-				if(elt == null) {
-					root.addElement(DEL)
-						.addAttribute(XPATH, xpath);
+			}else{
+				
+				// get file information
+				String baseTimeStamp = baseElt.attributeValue(IFile.DATE);
+				String eltTimeStramp = elt.attributeValue(IFile.DATE);
+				long  baseSize	= Long.parseLong(baseElt.attributeValue(IFile.SIZE));
+				long  eltSize	= Long.parseLong(elt.attributeValue(IFile.SIZE));
+				Element newElt = null;
+				
+				// is there a change?
+				if(!baseTimeStamp.equals(eltTimeStramp)
+						|| baseSize != eltSize) {
+					newElt = root.addElement(UPDATE)
+								 .addAttribute(XPATH, eltXPath);
 					deltaSize++;
-					
-					logger.info("[" + mirror.getFilename() + "] removed: " + name );
-					
-				}else{
-					
-					// get file information
-					String baseTimeStamp = baseElt.attributeValue(IFile.DATE);
-					String eltTimeStramp = elt.attributeValue(IFile.DATE);
-					int  baseSize	= Integer.parseInt(baseElt.attributeValue(IFile.SIZE));
-					int  eltSize	= Integer.parseInt(elt.attributeValue(IFile.SIZE));
-					Element newElt = null;
-					
-					// is there a change?
-					if(!baseTimeStamp.equals(eltTimeStramp)
-							|| baseSize != eltSize) {
-						newElt = root.addElement(UPDATE)
-									 .addAttribute(XPATH, xpath);
-						deltaSize++;
-					
-						/*
-						 * TIMESTAMP change
-						 */
-						if(!baseTimeStamp.equals(eltTimeStramp)) {
-							newElt.addAttribute(IFile.DATE, eltTimeStramp);
-							logger.info("[" + mirror.getFilename() + "] update: " + name +
-									" : timestamp is now " + eltTimeStramp + " (before=" + baseTimeStamp + ")");
-						}
-		
-						/*
-						 * FILE SIZE mismath
-						 */
-						if(baseSize != eltSize) {
-							newElt.addAttribute(IFile.SIZE, Integer.toString(eltSize));
-							logger.info("[" + mirror.getFilename() + "] update: " + name +
-									" : size is now " + eltSize + " (before=" + eltSize + ")");
-						}
+					updatedCount++;
+				
+					/*
+					 * TIMESTAMP change
+					 */
+					if(!baseTimeStamp.equals(eltTimeStramp)) {
+						newElt.addAttribute(IFile.DATE, eltTimeStramp);
+						logger.info("[" + mirror.getFilename() + "] update: " + name +
+								" : timestamp is now " + eltTimeStramp + " (before=" + baseTimeStamp + ")");
 					}
+	
 					/*
-					 * TRAVERSE next
+					 * FILE SIZE mismath
 					 */
-					treeWalkTheReferenceDocument((Element) baseNode);
+					if(baseSize != eltSize) {
+						newElt.addAttribute(IFile.SIZE, Long.toString(eltSize));
+						logger.info("[" + mirror.getFilename() + "] update: " + name +
+								" : size is now " + eltSize + " (before=" + baseSize + ")");
+					}
 				}
+				/*
+				 * TRAVERSE next
+				 */
+				treeWalkTheReferenceDocument(baseElt, elt, eltXPath);
 			}
 		}
 	}
 
 	/**
 	 * Compares the oldest structure with the newest one to find
-	 * new files
+	 * new files: the ones which were not paired while walking
+	 * the reference document
 	 * @param doc
 	 */
 	public void treeWalkSearchingForNewFiles(Document doc) {
-		treeWalkSearchingForNewFiles(doc.getRootElement());
+		treeWalkSearchingForNewFiles(doc.getRootElement(), 
+				"/" + doc.getRootElement().getName(), false);
 	}
 	
 	/**
 	 * Compares the oldest structure with the newest one to find
 	 * new files
-	 * @param doc
+	 * @param element in the latest document
+	 * @param xpath its indexed XPATH
+	 * @param added true when an ancestor is a new directory
 	 */	
-	private void treeWalkSearchingForNewFiles(Element element) {
+	private void treeWalkSearchingForNewFiles(Element element, String xpath, boolean added) {
 
-		for (int i = 0, length = element.nodeCount(); i < length; i++) {
-			Node newNode = element.node(i);
-			String xpath = newNode.getPath();	// non-indexed XPATH
+		for (Iterator it = element.elementIterator(); it.hasNext(); ) {
+			Element newElt = (Element)it.next();
 			
-			if (newNode instanceof Element) {
-				Element newElt = (Element)newNode;
-				
-				// completing the XPATH here with our own indexing by file name
-				// (which are unique in a given directory)
-				xpath = TreeMirrorStructure.enrichXPATH(xpath, newElt);
-
-				// looking for the corresponding element in the oldest doc
-				Element elt = (Element)oldestDoc.selectSingleNode(xpath);
-				
-				
-				if(elt == null) {
-					String name = newElt.attributeValue(IFile.NAME);
-					String date = newElt.attributeValue(IFile.DATE);
-					String fileSize = newElt.attributeValue(IFile.SIZE);								
-					
-					root.addElement(ADD)
-						.addAttribute(XPATH, xpath)
-						.addAttribute(IFile.NAME, name)
-						.addAttribute(IFile.DATE, date)
-						.addAttribute(IFile.SIZE, fileSize);
-
-					deltaSize++;
-					logger.info("[" + mirror.getFilename() + "] new: " + name );
-				}
+			// same XPATH as given by TreeMirrorStructure.enrichXPATH()
+			String eltXPath = childXPath(xpath, newElt);
+			boolean isNew = added || !matched.containsKey(newElt);
+			
+			if(isNew) {
+				String name = newElt.attributeValue(IFile.NAME);
+				String date = newElt.attributeValue(IFile.DATE);
+				String fileSize = newElt.attributeValue(IFile.SIZE);								
 				
-				treeWalkSearchingForNewFiles((Element)newNode);
+				root.addElement(ADD)
+					.addAttribute(XPATH, eltXPath)
+					.addAttribute(IFile.NAME, name)
+					.addAttribute(IFile.DATE, date)
+					.addAttribute(IFile.SIZE, fileSize);
+
+				deltaSize++;
+				newCount++;
+				logger.info("[" + mirror.getFilename() + "] new: " + name );
 			}
 			
+			treeWalkSearchingForNewFiles(newElt, eltXPath, isNew);
 		}
 	}
+	
+	/**
+	 * Builds the indexed XPATH of a child element, 
+	 * eg. /mirror/dir[@name='x'] + file y gives /mirror/dir[@name='x']/file[@name='y']
+	 */
+	private static String childXPath(String parentXPath, Element elt) {
+		StringBuffer sb = new StringBuffer(parentXPath);
+		sb.append('/').append(elt.getName())
+		  .append("[@name='").append(elt.attributeValue(IFile.NAME)).append("']");
+		return sb.toString();
+	}
 
 	/**
 	 * Returns how many changes are stored in this delta
@@ -334,6 +382,13 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 		return deltaSize;
 	}
 	
+	/**
+	 * @return the delta as a dom4j document
+	 */
+	public Document getDocument() {
+		return deltaDoc;
+	}
+	
 	/**
 	 * Returns the delta content as an XML document
 	 * @return a big <code>String</code> containing the complete document
@@ -419,29 +474,38 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 	}
 
 	public int countDeletedFiles() {
-		return root.selectNodes("//" + DEL).size();
+		return deletedCount;
 	}
 
 
 	public int countNewFiles() {
-		return root.selectNodes("//" + ADD).size();
+		return newCount;
 	}
 
 
 	public int countUpdatedFiles() {
-		return root.selectNodes("//" + UPDATE).size();
+		return updatedCount;
 	}
 
 	public String getFilename() {
 		return fileName;
 	}
 
+	/**
+	 * @return true if the delta refers to the state left by the previous
+	 * 			delta, false if it refers to the latest full structure only
+	 * 			(deltas stored by earlier versions)
+	 */
+	public boolean isChained() {
+		return "true".equals(root.attributeValue(CHAINED));
+	}
+
 	/**
 	 * Returns a list of Dom4j nodes.
 	 * TODO a layer of separation between the internal representation (dom4j) and the others...
 	 */
 	public List getDeletedFiles() {
-		return root.selectNodes("//" + DEL);
+		return root.elements(DEL);
 	}
 
 	/**
@@ -449,7 +513,7 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 	 * TODO a layer of separation between the internal representation (dom4j) and the others...
 	 */
 	public List getNewFiles() {
-		return root.selectNodes("//" + ADD);
+		return root.elements(ADD);
 	}
 
 	/**
@@ -457,7 +521,7 @@ public class DOMMirrorDelta implements IDOMMirrorDelta {
 	 * TODO a layer of separation between the internal representation (dom4j) and the others...
 	 */
 	public List getUpdatedFiles() {
-		return root.selectNodes("//" + UPDATE);
+		return root.elements(UPDATE);
 	}
 
 	public void save(String relativePathToDirectory) throws IOException {
@@ -0,0 +1,123 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import org.dom4j.Element;
+
+import edos.mimo.filesystem.IFile;
+
+/**
+ * Finds the elements of a structure document referenced by the
+ * indexed XPATH expressions of the deltas, eg.
+ * 		/mirror/dir[@name='x']/file[@name='y']
+ * 
+ * Instead of evaluating each expression on the whole document, the
+ * path is followed from the root, one step at a time, with an index
+ * of the children of each directory. The index of a directory is
+ * built the first time it is crossed, so that only the directories
+ * touched by the delta are indexed.
+ * 
+ * As with the XPATH query, the first child in document order
+ * having the given type and name is found.
+ * 
+ * @author marc
+ *
+ */
+class ElementLocator {
+	private Element root;
+	private IdentityHashMap<Element,HashMap<String,Element>> indexes
+				= new IdentityHashMap<Element,HashMap<String,Element>>();
+	
+	ElementLocator(Element root) {
+		this.root = root;
+	}
+	
+	/**
+	 * @param xpath indexed XPATH of an element
+	 * @return the element, or null if there is none
+	 */
+	Element find(String xpath) {
+		String prefix = "/" + root.getName();
+		if(!xpath.startsWith(prefix))
+			return null;
+		
+		Element cur = root;
+		int pos = prefix.length();
+		while(pos < xpath.length() && cur != null) {
+			// /type[@name='name']
+			int open = xpath.indexOf("[@name='", pos);
+			int close = xpath.indexOf("']", open + 1);
+			if(xpath.charAt(pos) != '/' || open < 0 || close < 0)
+				return null;
+			
+			String type = xpath.substring(pos + 1, open);
+			String name = xpath.substring(open + 8, close);
+			cur = child(cur, type, name);
+			pos = close + 2;
+		}
+		return cur;
+	}
+	
+	/**
+	 * @return the first child of dir having the given type and name, or null
+	 */
+	Element child(Element dir, String type, String name) {
+		HashMap<String,Element> index = indexes.get(dir);
+		if(index == null) {
+			index = new HashMap<String,Element>();
+			for(Iterator it = dir.elementIterator(); it.hasNext(); ) {
+				Element child = (Element)it.next();
+				String key = key(child.getName(), child.attributeValue(IFile.NAME));
+				if(!index.containsKey(key))
+					index.put(key, child);	// the first one in document order
+			}
+			indexes.put(dir, index);
+		}
+		return index.get(key(type, name));
+	}
+	
+	/**
+	 * To be called once child has been added (at the end) to dir
+	 */
+	void added(Element dir, Element child) {
+		HashMap<String,Element> index = indexes.get(dir);
+		if(index != null) {
+			String key = key(child.getName(), child.attributeValue(IFile.NAME));
+			if(!index.containsKey(key))
+				index.put(key, child);
+		}
+	}
+	
+	/**
+	 * To be called once elt has been detached from dir
+	 */
+	void removed(Element dir, Element elt) {
+		indexes.remove(elt);
+		// a sibling with the same name may take its place: indexed again if needed
+		HashMap<String,Element> index = indexes.get(dir);
+		if(index != null && index.get(key(elt.getName(), elt.attributeValue(IFile.NAME))) == elt)
+			indexes.remove(dir);
+	}
+	
+	private static String key(String type, String name) {
+		return (name == null)?type:type + '/' + name;
+	}
+}
@@ -16,9 +16,12 @@
  */
 package edos.mimo.dom;
 
+import org.dom4j.Document;
+
 import edos.mimo.IMirrorDelta;
 import edos.mimo.dom.db.IXmlDocument;
 
 public interface IDOMMirrorDelta extends IMirrorDelta, IXmlDocument {
 
+	public Document getDocument();	// returns the delta as a dom4j document (see SnapshotCodec)
 }
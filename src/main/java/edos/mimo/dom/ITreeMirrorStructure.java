@@ -16,6 +16,8 @@
  */
 package edos.mimo.dom;
 
+import java.io.IOException;
+
 import org.dom4j.Document;
 
 import edos.mimo.IMirror;
@@ -34,6 +36,7 @@ public interface ITreeMirrorStructure extends IMirrorStructure {
 
 	public String getFilename();		// unique filename for file system storage
 	public String getFilePath();		// filename prefixed by the path defined in Config
+	public String getSnapshotPath();	// same, for the binary snapshot (see SnapshotCodec)
 	public String getMirrorID();		// unique name for the mirror
 	public String getDocumentID();		// unique document name (including timestamp)
 	public long getTimeStamp();			// creation time in millis (for uniqueness)
@@ -41,6 +44,7 @@ public interface ITreeMirrorStructure extends IMirrorStructure {
 	public IMirror  getMirror();		// get a mirror containing all info
 	public Document getDocument();	// returns the structure as a dom4j document
 	public boolean isMaster();		// returns true if represents the master structure
+	public void saveSnapshot() throws IOException;	// saves the binary snapshot to getSnapshotPath()
 	
 	// implemented as constructors
 	// TODO load(File file) as a constructor
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom;
+
+import java.text.ParseException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Document;
+import org.dom4j.Element;
+
+import edos.mimo.Date;
+import edos.mimo.IMasterMirror;
+import edos.mimo.ISecondaryMirror;
+import edos.mimo.filesystem.FileDiff;
+import edos.mimo.filesystem.IDiffGenerator;
+import edos.mimo.filesystem.IDiffGeneratorListener;
+import edos.mimo.filesystem.IFileDiff;
+import edos.mimo.filesystem.IMirrorDiff;
+import edos.mimo.filesystem.MirrorFile;
+import edos.mimo.filesystem.MirrorFileFactory;
+
+/**
+ * Merge-join implementation of the diff between the master and
+ * a secondary mirror.
+ *
+ * DOMDiffGenerator looks up every master node in the mirror document
+ * (and every mirror node in the master document) with an XPATH query,
+ * which makes the diff roughly quadratic on large trees.
+ *
+ * This generator walks both trees together instead: for each pair of
+ * matching directories, the children of both sides are sorted once
+ * by (type, name) and then paired in a single merge pass (see
+ * SiblingMatcher). File paths are built incrementally while descending.
+ *
+ * The output is the same as the one of DOMDiffGenerator, diffs being
+ * added to the <code>IMirrorDiff</code> in the same order:
+ *  . master nodes in document order (missing, older, newer, corrupted)
+ *  . then mirror nodes in document order (superfluous)
+ * As in DOMDiffGenerator a node is identified by its type and its name,
+ * so that a directory replaced by a file (or the reverse) is reported
+ * as missing + superfluous.
+ *
+ * @author marc
+ *
+ */
+public class MergeDiffGenerator implements IDiffGenerator {
+	private static Logger logger = Logger.getLogger(MergeDiffGenerator.class);
+
+	private ITreeMirrorStructure mirrorStruct;
+	private IMirrorDiff diff;
+	private List<IDiffGeneratorListener> listeners;
+
+	// the mirror structures are available as dom4j documents
+	private Document masterDoc;
+	private Document mirrorDoc;
+
+	// mirror elements having a counterpart in the master
+	private IdentityHashMap<Element,Boolean> matched;
+
+
+	public MergeDiffGenerator(IMasterMirror master, ISecondaryMirror mirror) throws ParseException {
+		/*
+		 * SET UP
+		 */
+		mirrorStruct = (ITreeMirrorStructure)mirror.getStructure();
+		listeners = new LinkedList<IDiffGeneratorListener>();
+
+		masterDoc = ((ITreeMirrorStructure)master.getStructure()).getDocument();
+		mirrorDoc = ((ITreeMirrorStructure)mirror.getStructure()).getDocument();
+
+		matched = new IdentityHashMap<Element,Boolean>();
+
+		diff = new DOMMirrorDiff(master, mirror);
+
+		/*
+		 * COMPUTE DIFF
+		 */
+		logger.info("Starting merge diff generation for " + mirrorStruct.getMirrorID());
+
+		// pairs master and mirror nodes, reporting differences on the master side
+		mergeWalk(masterDoc.getRootElement(), mirrorDoc.getRootElement(), "/");
+
+		// what was not paired in the mirror is superfluous
+		treeWalkMirror(mirrorDoc.getRootElement(), "/", false);
+
+		matched = null;	// not needed anymore
+		logger.info("Diff completed for " + mirrorStruct.getFilename());
+
+		// notify all listeners that we are done
+		notifyAllListeners();
+		logger.info("listeners were notified");
+	}
+
+	/**
+	 * Get method returning the <code>IMirrorDiff</code> to the listeners.
+	 */
+	public void notifyAllListeners() {
+		Iterator<IDiffGeneratorListener> it = listeners.iterator();
+		while (it.hasNext()) {
+			IDiffGeneratorListener listener = it.next();
+			if (listener == null)
+				continue;
+
+			listener.diffCompleted(diff);
+		}
+	}
+
+	/**
+	 * Set up the listener(s)
+	 * @param listener
+	 */
+	public void addListener(IDiffGeneratorListener listener) {
+		if(listener == null)
+			return;
+		listeners.add(listener);
+	}
+
+	/**
+	 * Pairs the children of 2 matching directories and compares them.
+	 *
+	 * @param masterDir directory element in the master (or the root)
+	 * @param mirrorDir matching element in the mirror, null when missing
+	 * @param dirPath file system path of these directories (ending with /)
+	 * @throws ParseException
+	 */
+	private void mergeWalk(Element masterDir, Element mirrorDir, String dirPath) throws ParseException {
+		List masterChildren = masterDir.elements();
+		int size = masterChildren.size();
+		if(size == 0 && mirrorDir == null)
+			return;
+
+		/*
+		 * PAIRING
+		 * counterpart[i] is the mirror element matching the i-th master child
+		 */
+		Element[] counterpart = new Element[size];
+		if(mirrorDir != null)
+			SiblingMatcher.pair(masterChildren, mirrorDir.elements(), counterpart, matched);
+
+		/*
+		 * COMPARING in master document order
+		 */
+		for(int i = 0; i < size; i++) {
+			Element masterElt = (Element)masterChildren.get(i);
+			Element mirrorElt = counterpart[i];
+			String path = childPath(dirPath, masterElt);
+			logger.debug("checking master:" + path);
+
+			if(mirrorElt == null) {
+				/*
+				 * MISSING FILE
+				 */
+				IFileDiff fileDiff = new FileDiff(MirrorFileFactory.create(masterElt, path),
+											FileDiff.FILE_MISSING);
+				diff.addDiff(fileDiff);
+
+			}else{
+				compare(masterElt, mirrorElt, path);
+			}
+
+			/*
+			 * TRAVERSE next
+			 */
+			if(masterElt.getName().equals(MirrorFile.DIRECTORY))
+				mergeWalk(masterElt, mirrorElt, path);
+		}
+	}
+
+	/**
+	 * Compares timestamps and sizes of 2 matching elements
+	 * @throws ParseException
+	 */
+	private void compare(Element masterElt, Element mirrorElt, String path) throws ParseException {
+		/*
+		 * TIMESTAMP mismatch
+		 */
+		Date masterDate = new Date(masterElt.attributeValue(MirrorFile.DATE));
+		Date mirrorDate = new Date(mirrorElt.attributeValue(MirrorFile.DATE));
+
+		if(masterDate.greaterThan(mirrorDate) ) {
+			IFileDiff fileDiff = new FileDiff(
+					MirrorFileFactory.create(masterElt, path),
+					MirrorFileFactory.create(mirrorElt, path),
+					FileDiff.FILE_OLDER);
+
+			diff.addDiff(fileDiff);
+
+		}else if(mirrorDate.greaterThan(masterDate)) {
+			IFileDiff fileDiff = new FileDiff(
+					MirrorFileFactory.create(masterElt, path),
+					MirrorFileFactory.create(mirrorElt, path),
+					FileDiff.FILE_NEWER);
+
+			diff.addDiff(fileDiff);
+		}
+
+		/*
+		 * FILE SIZE mismatch
+		 */
+		long masterSize = Long.parseLong(masterElt.attributeValue(MirrorFile.SIZE));
+		long mirrorSize = Long.parseLong(mirrorElt.attributeValue(MirrorFile.SIZE));
+
+		if(masterSize != mirrorSize){
+			IFileDiff fileDiff = new FileDiff(MirrorFileFactory.create(mirrorElt, path),
+										FileDiff.FILE_CORRUPTED);
+			diff.addDiff(fileDiff);
+		}
+	}
+
+	/**
+	 * Traverse all child nodes of a mirror element to report
+	 * the ones which were not paired during the merge.
+	 *
+	 * @param element mirror element
+	 * @param dirPath its file system path
+	 * @param superfluous true when an ancestor is already superfluous
+	 * @throws ParseException
+	 */
+	private void treeWalkMirror(Element element, String dirPath, boolean superfluous) throws ParseException {
+		for(Iterator it = element.elementIterator(); it.hasNext(); ) {
+			Element mirrorElt = (Element)it.next();
+			String path = childPath(dirPath, mirrorElt);
+			boolean extra = superfluous || !matched.containsKey(mirrorElt);
+
+			/*
+			 * EXTRA FILES?
+			 */
+			if(extra) {
+				IFileDiff fileDiff = new FileDiff(MirrorFileFactory.create(mirrorElt, path),
+											FileDiff.FILE_SUPERFLUOUS);
+				diff.addDiff(fileDiff);
+			}
+
+			/*
+			 * TRAVERSE next
+			 */
+			if(mirrorElt.getName().equals(MirrorFile.DIRECTORY))
+				treeWalkMirror(mirrorElt, path, extra);
+		}
+	}
+
+	/**
+	 * Same path as TreeMirrorStructure.computePath() would give:
+	 * directories end with a slash, files do not.
+	 */
+	private static String childPath(String dirPath, Element elt) {
+		String path = dirPath + elt.attributeValue(MirrorFile.NAME);
+		if(elt.getName().equals(MirrorFile.DIRECTORY))
+			return path + "/";
+		return path;
+	}
+
+	public IMirrorDiff getDiff() {
+		return diff;
+	}
+
+}
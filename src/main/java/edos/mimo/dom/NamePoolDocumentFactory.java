@@ -0,0 +1,46 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom;
+
+import org.dom4j.Attribute;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.QName;
+
+import edos.mimo.filesystem.IFile;
+import edos.mimo.filesystem.NamePool;
+
+/**
+ * dom4j factory sharing the file names of the documents it builds
+ * through the NamePool, eg. when structures are loaded with a SAXReader.
+ *
+ * @author marc
+ *
+ */
+public class NamePoolDocumentFactory extends DocumentFactory {
+	private static final NamePoolDocumentFactory instance = new NamePoolDocumentFactory();
+
+	public static DocumentFactory getInstance() {
+		return instance;
+	}
+
+	public Attribute createAttribute(Element owner, QName qname, String value) {
+		if(IFile.NAME.equals(qname.getName()))
+			value = NamePool.getInstance().intern(value);
+		return super.createAttribute(owner, qname, value);
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.dom4j.Element;
+
+import edos.mimo.filesystem.IFile;
+import edos.mimo.filesystem.NamePool;
+
+/**
+ * Pairs the children of 2 directory elements (one from each tree)
+ * with a sorted merge, instead of looking up each node of a tree
+ * in the other one with a XPATH query.
+ *
+ * A node is identified by its type (dir/file) and its name, just
+ * like the XPATH expressions built by TreeMirrorStructure.enrichXPATH().
+ * As with such a lookup, a reference node is paired with the first
+ * node in document order having the same type and name.
+ *
+ * Names are compared by their ids in the NamePool first.
+ *
+ * Used by the diff (MergeDiffGenerator) and the delta (DOMMirrorDelta).
+ *
+ * @author marc
+ *
+ */
+class SiblingMatcher {
+
+	// orders sibling keys by type, then by name
+	private static final Comparator<Key> SIBLING_ORDER = new Comparator<Key>() {
+		public int compare(Key k1, Key k2) {
+			return compareKeys(k1, k2);
+		}
+	};
+
+	/**
+	 * Sorts both sibling lists and pairs their elements in a single pass.
+	 *
+	 * @param refChildren children elements of the reference directory
+	 * @param otherChildren children elements of the other directory
+	 * @param counterpart filled with, at index i, the element of otherChildren
+	 * 			paired with the i-th reference child (or null)
+	 * @param matched receives every element of otherChildren having a counterpart
+	 */
+	static void pair(List refChildren, List otherChildren,
+						Element[] counterpart, IdentityHashMap<Element,Boolean> matched) {
+		int refSize = refChildren.size();
+		int otherSize = otherChildren.size();
+		if(refSize == 0 || otherSize == 0)
+			return;
+
+		// sorting is stable: duplicates keep document order
+		NamePool pool = NamePool.getInstance();
+		Key[] refSorted = keys(refChildren, pool);
+		Key[] otherSorted = keys(otherChildren, pool);
+		Arrays.sort(refSorted, SIBLING_ORDER);
+		Arrays.sort(otherSorted, SIBLING_ORDER);
+
+		/*
+		 * MERGE
+		 */
+		int i = 0, j = 0;
+		while(i < refSize && j < otherSize) {
+			int cmp = compareKeys(refSorted[i], otherSorted[j]);
+
+			if(cmp < 0) {
+				i++;
+
+			}else if(cmp > 0) {
+				j++;
+
+			}else{
+				Key first = otherSorted[j];
+
+				// all reference duplicates match the first element
+				while(i < refSize && compareKeys(refSorted[i], first) == 0) {
+					counterpart[refSorted[i].index] = first.element;
+					i++;
+				}
+
+				// and all duplicates on the other side have a counterpart
+				while(j < otherSize && compareKeys(otherSorted[j], first) == 0) {
+					matched.put(otherSorted[j].element, Boolean.TRUE);
+					j++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the type and name of each element once, before sorting
+	 */
+	private static Key[] keys(List children, NamePool pool) {
+		Key[] keys = new Key[children.size()];
+		for(int i = 0; i < keys.length; i++) {
+			Element elt = (Element)children.get(i);
+			String name = elt.attributeValue(IFile.NAME);
+			keys[i] = new Key(elt, i, name, pool.id(name));
+		}
+		return keys;
+	}
+
+	/**
+	 * Compares 2 siblings by type, then by name.
+	 * Names having the same id in the NamePool are equal: most
+	 * matching names are found equal without comparing them.
+	 */
+	private static int compareKeys(Key k1, Key k2) {
+		if(k1.type != k2.type) {
+			int cmp = k1.type.compareTo(k2.type);
+			if(cmp != 0)
+				return cmp;
+		}
+
+		if(k1.id == k2.id)
+			return 0;	// same name, or both without a name
+		if(k1.name == null)
+			return k2.name == null ? 0 : -1;
+		if(k2.name == null)
+			return 1;
+		return k1.name.compareTo(k2.name);
+	}
+
+	/**
+	 * Sort key of a sibling element
+	 */
+	private static class Key {
+		final Element element;
+		final int index;		// in document order
+		final String type;		// element name: dir or file
+		final String name;
+		final int id;			// id of the name in the NamePool
+
+		Key(Element element, int index, String name, int id) {
+			this.element = element;
+			this.index = index;
+			this.type = element.getName();
+			this.name = name;
+			this.id = id;
+		}
+	}
+
+}
@@ -0,0 +1,735 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.QName;
+import org.dom4j.io.SAXReader;
+
+import edos.mimo.Config;
+import edos.mimo.exception.ConfigException;
+
+/**
+ * Binary snapshots of the structure and delta documents.
+ *
+ * The XML of a structure is mostly made of the same element and attribute
+ * names, repeated for every file, and of long dates written in full. A
+ * snapshot writes the elements in document order as:
+ *  . the element name, as a reference to a table of the names already seen
+ *  . the attributes: name reference, then the value
+ *  . the text, if not blank (the indentation of pretty printed documents
+ *    is dropped, as are comments)
+ *  . the number of child elements, then the children
+ *
+ * Values which are plain numbers (dates in milliseconds, sizes) are written
+ * as the difference with the previous value of the same attribute; other
+ * values as the number of characters they share with the previous value of
+ * the same attribute (file names are sorted, xpaths of a delta share their
+ * directories), followed by the rest. Numbers and lengths are varints.
+ * The whole is then deflated.
+ *
+ * A snapshot starts with a header which is not compressed:
+ *  "MIMO", the format version, the length of the uncompressed data and
+ *  about the length of the XML document (to weigh it without decoding it).
+ *
+ * The documents in the XML database are queried on the attributes of their
+ * root element (type, checkoutTime, timestamp...): the database keeps the
+ * root element as is and its content is packed, the snapshot being encoded
+ * in base64 (see pack()). Both are read back with load().
+ *
+ * @author marc
+ *
+ */
+public class SnapshotCodec {
+	public static final String FILE_EXTENSION	= ".snapshot";
+	public static final String PACKED			= "snapshot";	// root attribute of a packed document (XML length)
+	private static final String PACKED_ATTRIBUTE = " " + PACKED + "=\"";
+
+	private static final byte[] MAGIC 	= { 'M', 'I', 'M', 'O' };
+	private static final int VERSION	= 1;
+	private static final int LEVEL		= Deflater.BEST_SPEED;	// see SnapshotCodecBenchmark
+
+	// value tags
+	private static final int TEXT		= 0;
+	private static final int NUMBER		= 1;
+
+	private static final char[] BASE64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final int[] BASE64_VALUES = new int[128];
+	static {
+		for(int i = 0; i < BASE64_VALUES.length; i++)
+			BASE64_VALUES[i] = -1;
+		for(int i = 0; i < BASE64.length; i++)
+			BASE64_VALUES[BASE64[i]] = i;
+	}
+
+
+	/**
+	 * @return true if the configuration asks for binary snapshots
+	 * 			(false if it is not loaded)
+	 */
+	public static boolean useSnapshots() {
+		if(!Config.isLoaded())
+			return false;
+		
+		try {
+			return Config.getInstance().getSnapshotFormat() == Config.BINARY_SNAPSHOT;
+			
+		}catch(ConfigException e) {
+			return false;	// cannot happen once loaded
+		}
+	}
+
+	/**
+	 * @param doc structure or delta document
+	 * @return the snapshot
+	 */
+	public static byte[] encode(Document doc) {
+		Encoder encoder = new Encoder();
+		encoder.element(doc.getRootElement());
+		return encoder.finish();
+	}
+
+	/**
+	 * Writes the snapshot of a document
+	 * @param doc
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(Document doc, OutputStream out) throws IOException {
+		out.write(encode(doc));
+		out.flush();
+	}
+
+	/**
+	 * Builds the document of a snapshot.
+	 * The file names are shared through the NamePool.
+	 *
+	 * @param data snapshot
+	 * @return the document
+	 * @throws DocumentException if this is not a valid snapshot
+	 */
+	public static Document decode(byte[] data) throws DocumentException {
+		if(!isSnapshot(data))
+			throw new DocumentException("Not a snapshot");
+		if(data[MAGIC.length] != VERSION)
+			throw new DocumentException("Unsupported snapshot version: " + data[MAGIC.length]);
+
+		try {
+			Decoder decoder = new Decoder(data);
+			return decoder.document();
+
+		}catch(DataFormatException dfe) {
+			throw new DocumentException("Corrupted snapshot: " + dfe.getMessage(), dfe);
+		}catch(IndexOutOfBoundsException ioobe) {
+			throw new DocumentException("Truncated snapshot", ioobe);
+		}
+	}
+
+	/**
+	 * Reads a document from a snapshot or from XML, whichever the stream is.
+	 *
+	 * @param in
+	 * @return the document
+	 * @throws DocumentException
+	 */
+	public static Document read(InputStream in) throws DocumentException {
+		if(!in.markSupported())
+			in = new BufferedInputStream(in);
+
+		try {
+			if(isSnapshot(in))
+				return decode(readAll(in));
+
+		}catch(IOException ioe) {
+			throw new DocumentException(ioe.getMessage(), ioe);
+		}
+
+		return new SAXReader(NamePoolDocumentFactory.getInstance()).read(in);
+	}
+
+	/**
+	 * Tells if a stream is a snapshot, without consuming it.
+	 *
+	 * @param in a stream supporting mark()
+	 * @return true if the stream starts like a snapshot
+	 * @throws IOException
+	 */
+	public static boolean isSnapshot(InputStream in) throws IOException {
+		in.mark(MAGIC.length);
+		byte[] magic = new byte[MAGIC.length];
+		int n = 0;
+		while(n < magic.length) {
+			int r = in.read(magic, n, magic.length - n);
+			if(r < 0)
+				break;
+			n += r;
+		}
+		in.reset();
+
+		return n == MAGIC.length && isSnapshot(magic);
+	}
+
+	/**
+	 * @param data
+	 * @return true if the data starts like a snapshot
+	 */
+	public static boolean isSnapshot(byte[] data) {
+		if(data.length < MAGIC.length)
+			return false;
+		for(int i = 0; i < MAGIC.length; i++)
+			if(data[i] != MAGIC[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Packs a document for the XML database: the root element keeps its
+	 * attributes, and its content is the snapshot of the document in base64.
+	 * The PACKED attribute is added, with the length of the XML document.
+	 *
+	 * @param doc
+	 * @return the packed document
+	 */
+	public static String pack(Document doc) {
+		Encoder encoder = new Encoder();
+		Element root = doc.getRootElement();
+		encoder.element(root);
+		byte[] data = encoder.finish();
+
+		StringBuffer sb = new StringBuffer(data.length * 4 / 3 + 512);
+		sb.append('<').append(root.getName());
+		for(int i = 0, n = root.attributeCount(); i < n; i++) {
+			Attribute a = root.attribute(i);
+			sb.append(' ').append(a.getQualifiedName()).append("=\"");
+			escape(a.getValue(), sb);
+			sb.append('"');
+		}
+		sb.append(' ').append(PACKED).append("=\"").append(encoder.xmlLength).append("\">");
+		base64(data, sb);
+		sb.append("</").append(root.getName()).append('>');
+		return sb.toString();
+	}
+
+	/**
+	 * @param xml document from the database
+	 * @return true if it was packed (see pack())
+	 */
+	public static boolean isPacked(String xml) {
+		int start = rootStart(xml);
+		if(start < 0)
+			return false;
+		int end = xml.indexOf('>', start);
+		int packed = xml.indexOf(PACKED_ATTRIBUTE, start);
+		return packed > 0 && packed < end;
+	}
+
+	/**
+	 * Loads a document from the database, whether it was packed or not.
+	 *
+	 * @param xml
+	 * @return the document
+	 * @throws DocumentException
+	 */
+	public static Document load(String xml) throws DocumentException {
+		if(!isPacked(xml))
+			return new SAXReader(NamePoolDocumentFactory.getInstance()).read(new StringReader(xml));
+
+		int start = xml.indexOf('>', rootStart(xml)) + 1;
+		int end = xml.lastIndexOf("</");
+		if(end < start)
+			throw new DocumentException("Invalid packed document");
+		return decode(unbase64(xml, start, end));
+	}
+
+	/**
+	 * The length of a document as XML, eg. to weigh it in a cache.
+	 *
+	 * @param xml document from the database
+	 * @return the length of the XML document, about that if it was packed
+	 */
+	public static long xmlLength(String xml) {
+		if(!isPacked(xml))
+			return xml.length();
+
+		int start = xml.indexOf(PACKED_ATTRIBUTE, rootStart(xml)) + PACKED_ATTRIBUTE.length();
+		long length = 0;
+		for(int i = start; i < xml.length() && Character.isDigit(xml.charAt(i)); i++)
+			length = length * 10 + (xml.charAt(i) - '0');
+		return length;
+	}
+
+	/**
+	 * @return the index of the start tag of the root element, -1 if none
+	 */
+	private static int rootStart(String xml) {
+		int i = xml.indexOf('<');
+		while(i >= 0 && i + 1 < xml.length()
+				&& (xml.charAt(i + 1) == '?' || xml.charAt(i + 1) == '!'))
+			i = xml.indexOf('<', i + 1);	// prolog
+		return i;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	private static void escape(String value, StringBuffer sb) {
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+			case '&':	sb.append("&amp;"); break;
+			case '<':	sb.append("&lt;"); break;
+			case '>':	sb.append("&gt;"); break;
+			case '"':	sb.append("&quot;"); break;
+			default:	sb.append(c);
+			}
+		}
+	}
+
+	/*
+	 * BASE64
+	 */
+
+	static void base64(byte[] data, StringBuffer sb) {
+		int i = 0;
+		for(; i + 2 < data.length; i += 3) {
+			int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+			sb.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f])
+			  .append(BASE64[(bits >>> 6) & 0x3f]).append(BASE64[bits & 0x3f]);
+		}
+		int left = data.length - i;
+		if(left == 1) {
+			int bits = (data[i] & 0xff) << 16;
+			sb.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f]).append("==");
+		}else if(left == 2) {
+			int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8);
+			sb.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f])
+			  .append(BASE64[(bits >>> 6) & 0x3f]).append('=');
+		}
+	}
+
+	/**
+	 * Decodes s[start, end[, skipping white spaces
+	 */
+	static byte[] unbase64(String s, int start, int end) throws DocumentException {
+		byte[] data = new byte[(end - start) * 3 / 4];
+		int length = 0;
+		int bits = 0;
+		int count = 0;
+		for(int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if(c == '=')
+				break;
+			if(Character.isWhitespace(c))
+				continue;
+			int value = (c < BASE64_VALUES.length)?BASE64_VALUES[c]:-1;
+			if(value < 0)
+				throw new DocumentException("Invalid base64 character in packed document: " + c);
+
+			bits = (bits << 6) | value;
+			if(++count == 4) {
+				data[length++] = (byte)(bits >>> 16);
+				data[length++] = (byte)(bits >>> 8);
+				data[length++] = (byte)bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if(count == 3) {
+			data[length++] = (byte)(bits >>> 10);
+			data[length++] = (byte)(bits >>> 2);
+		}else if(count == 2)
+			data[length++] = (byte)(bits >>> 4);
+
+		if(length == data.length)
+			return data;
+		byte[] result = new byte[length];
+		System.arraycopy(data, 0, result, 0, length);
+		return result;
+	}
+
+
+	/**
+	 * Writes the elements of a document, then deflates them
+	 */
+	private static class Encoder {
+		private byte[] data = new byte[8192];
+		private int length = 0;
+		long xmlLength = 0;
+
+		private HashMap<String,Integer> names = new HashMap<String,Integer>();
+		private List<String> lastTexts = new ArrayList<String>();	// by name
+		private long[] lastNumbers = new long[16];					// by name
+		private long number;	// set by isNumber()
+
+		void element(Element e) {
+			int nodes = e.nodeCount();
+			int children = 0;
+			String text = null;
+			for(int i = 0; i < nodes; i++) {
+				Node node = e.node(i);
+				short type = node.getNodeType();
+				if(type == Node.ELEMENT_NODE)
+					children++;
+				else if(type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+					String t = node.getText();
+					if(t.trim().length() > 0)
+						text = (text == null)?t:text + t;
+				}
+			}
+
+			String name = e.getName();
+			name(name);
+			int attributes = e.attributeCount();
+			writeVarLong((attributes << 1) | ((text == null)?0:1));
+			xmlLength += name.length() + 1;
+
+			for(int i = 0; i < attributes; i++) {
+				Attribute a = e.attribute(i);
+				int id = name(a.getName());
+				value(id, a.getValue());
+				xmlLength += a.getName().length() + a.getValue().length() + 4;
+			}
+			if(text != null) {
+				writeString(text, 0);
+				xmlLength += text.length();
+			}
+
+			writeVarLong(children);
+			if(children == 0 && text == null) {
+				xmlLength += 2;
+				return;
+			}
+			xmlLength += name.length() + 4;
+			for(int i = 0; i < nodes; i++) {
+				Node node = e.node(i);
+				if(node.getNodeType() == Node.ELEMENT_NODE)
+					element((Element)node);
+			}
+		}
+
+		/**
+		 * @return the id of the name
+		 */
+		private int name(String name) {
+			Integer id = names.get(name);
+			if(id != null) {
+				writeVarLong(id.intValue() + 1);
+				return id.intValue();
+			}
+
+			int newId = names.size();
+			names.put(name, new Integer(newId));
+			lastTexts.add("");
+			if(newId == lastNumbers.length) {
+				long[] numbers = new long[newId * 2];
+				System.arraycopy(lastNumbers, 0, numbers, 0, newId);
+				lastNumbers = numbers;
+			}
+			writeVarLong(0);
+			writeString(name, 0);
+			return newId;
+		}
+
+		private void value(int id, String value) {
+			if(isNumber(value)) {
+				writeByte(NUMBER);
+				long delta = number - lastNumbers[id];
+				writeVarLong((delta << 1) ^ (delta >> 63));	// zigzag
+				lastNumbers[id] = number;
+				return;
+			}
+
+			String last = lastTexts.get(id);
+			int max = Math.min(last.length(), value.length());
+			int prefix = 0;
+			while(prefix < max && last.charAt(prefix) == value.charAt(prefix))
+				prefix++;
+
+			writeByte(TEXT);
+			writeVarLong(prefix);
+			writeString(value, prefix);
+			lastTexts.set(id, value);
+		}
+
+		/**
+		 * A number written back the same way (no sign +, no leading 0)
+		 * which fits in a long: its value is kept in <code>number</code>.
+		 */
+		private boolean isNumber(String s) {
+			int n = s.length();
+			int i = (n > 0 && s.charAt(0) == '-')?1:0;
+			if(n == i || n - i > 18)
+				return false;
+			if(s.charAt(i) == '0' && (n > i + 1 || i == 1))
+				return false;	// leading zero, or -0
+
+			long value = 0;
+			for(; i < n; i++) {
+				char c = s.charAt(i);
+				if(c < '0' || c > '9')
+					return false;
+				value = value * 10 + (c - '0');
+			}
+			number = (s.charAt(0) == '-')?-value:value;
+			return true;
+		}
+
+		/**
+		 * Writes s[from..] as its UTF-8 length followed by the UTF-8 bytes
+		 * (surrogates are written one by one).
+		 */
+		private void writeString(String s, int from) {
+			int n = s.length();
+			int bytes = 0;
+			for(int i = from; i < n; i++) {
+				char c = s.charAt(i);
+				bytes += (c < 0x80)?1:(c < 0x800)?2:3;
+			}
+			writeVarLong(bytes);
+			ensure(bytes);
+			for(int i = from; i < n; i++) {
+				char c = s.charAt(i);
+				if(c < 0x80)
+					data[length++] = (byte)c;
+				else if(c < 0x800) {
+					data[length++] = (byte)(0xc0 | (c >> 6));
+					data[length++] = (byte)(0x80 | (c & 0x3f));
+				}else{
+					data[length++] = (byte)(0xe0 | (c >> 12));
+					data[length++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					data[length++] = (byte)(0x80 | (c & 0x3f));
+				}
+			}
+		}
+
+		private void writeVarLong(long value) {
+			ensure(10);
+			while((value & ~0x7fL) != 0) {
+				data[length++] = (byte)((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte)value;
+		}
+
+		private void writeByte(int b) {
+			ensure(1);
+			data[length++] = (byte)b;
+		}
+
+		private void ensure(int n) {
+			if(length + n <= data.length)
+				return;
+			byte[] bigger = new byte[Math.max(data.length * 2, length + n)];
+			System.arraycopy(data, 0, bigger, 0, length);
+			data = bigger;
+		}
+
+		/**
+		 * @return the header followed by the deflated data
+		 */
+		byte[] finish() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+			out.write(MAGIC, 0, MAGIC.length);
+			out.write(VERSION);
+			writeVarLong(out, length);
+			writeVarLong(out, xmlLength);
+
+			Deflater deflater = new Deflater(LEVEL);
+			try {
+				deflater.setInput(data, 0, length);
+				deflater.finish();
+				byte[] buffer = new byte[8192];
+				while(!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					out.write(buffer, 0, n);
+				}
+			}finally{
+				deflater.end();
+			}
+			return out.toByteArray();
+		}
+
+		private static void writeVarLong(ByteArrayOutputStream out, long value) {
+			while((value & ~0x7fL) != 0) {
+				out.write((int)((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int)value);
+		}
+	}
+
+
+	/**
+	 * Inflates a snapshot, then builds its elements
+	 */
+	private static class Decoder {
+		private DocumentFactory factory = NamePoolDocumentFactory.getInstance();
+		private byte[] data;
+		private int position;
+
+		private List<QName> names = new ArrayList<QName>();
+		private List<String> lastTexts = new ArrayList<String>();	// by name
+		private long[] lastNumbers = new long[16];					// by name
+		private char[] chars = new char[256];
+
+		Decoder(byte[] snapshot) throws DataFormatException {
+			data = snapshot;
+			position = MAGIC.length + 1;
+			int length = (int)readVarLong();
+			readVarLong();	// XML length
+
+			byte[] inflated = new byte[length];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(snapshot, position, snapshot.length - position);
+				int n = 0;
+				while(n < length) {
+					int r = inflater.inflate(inflated, n, length - n);
+					if(r == 0 && (inflater.finished() || inflater.needsInput()))
+						throw new DataFormatException("expected " + length + " bytes, got " + n);
+					n += r;
+				}
+			}finally{
+				inflater.end();
+			}
+			data = inflated;
+			position = 0;
+		}
+
+		Document document() {
+			Document doc = factory.createDocument();
+			doc.setRootElement(element());
+			return doc;
+		}
+
+		private Element element() {
+			Element e = factory.createElement(names.get(name()));
+			long header = readVarLong();
+			int attributes = (int)(header >>> 1);
+
+			for(int i = 0; i < attributes; i++) {
+				int id = name();
+				QName qname = names.get(id);
+				e.add(factory.createAttribute(e, qname, value(id)));
+			}
+			if((header & 1) != 0)
+				e.addText(readString(null, 0));
+
+			int children = (int)readVarLong();
+			for(int i = 0; i < children; i++)
+				e.add(element());
+			return e;
+		}
+
+		private int name() {
+			int ref = (int)readVarLong();
+			if(ref > 0)
+				return ref - 1;
+
+			int id = names.size();
+			names.add(factory.createQName(readString(null, 0)));
+			lastTexts.add("");
+			if(id == lastNumbers.length) {
+				long[] numbers = new long[id * 2];
+				System.arraycopy(lastNumbers, 0, numbers, 0, id);
+				lastNumbers = numbers;
+			}
+			return id;
+		}
+
+		private String value(int id) {
+			int tag = data[position++];
+			if(tag == NUMBER) {
+				long zigzag = readVarLong();
+				long value = lastNumbers[id] + ((zigzag >>> 1) ^ -(zigzag & 1));
+				lastNumbers[id] = value;
+				return Long.toString(value);
+			}
+
+			int prefix = (int)readVarLong();
+			String value = readString(lastTexts.get(id), prefix);
+			lastTexts.set(id, value);
+			return value;
+		}
+
+		/**
+		 * @param last the characters of the prefix, null if none
+		 * @param prefix length of the prefix
+		 */
+		private String readString(String last, int prefix) {
+			int bytes = (int)readVarLong();
+			int max = prefix + bytes;
+			if(chars.length < max)
+				chars = new char[Math.max(max, chars.length * 2)];
+			if(prefix > 0)
+				last.getChars(0, prefix, chars, 0);
+
+			int n = prefix;
+			int end = position + bytes;
+			while(position < end) {
+				int b = data[position++] & 0xff;
+				if(b < 0x80)
+					chars[n++] = (char)b;
+				else if(b < 0xe0)
+					chars[n++] = (char)(((b & 0x1f) << 6) | (data[position++] & 0x3f));
+				else{
+					chars[n++] = (char)(((b & 0x0f) << 12) | ((data[position] & 0x3f) << 6)
+											| (data[position + 1] & 0x3f));
+					position += 2;
+				}
+			}
+			return new String(chars, 0, n);
+		}
+
+		private long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = data[position++];
+				value |= (long)(b & 0x7f) << shift;
+				shift += 7;
+			}while((b & 0x80) != 0);
+			return value;
+		}
+	}
+}
@@ -16,16 +16,29 @@
  */
 package edos.mimo.dom;
 
-import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.dom4j.Attribute;
@@ -33,9 +46,7 @@ import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
-import org.dom4j.Node;
 import org.dom4j.io.OutputFormat;
-import org.dom4j.io.SAXReader;
 import org.dom4j.io.XMLWriter;
 
 import edos.distribution.mirror.ITreeMirrorStructure;
@@ -52,11 +63,14 @@ import edos.mimo.IPass;
 import edos.mimo.Identity;
 import edos.mimo.MirrorFactory;
 import edos.mimo.connection.IConnection;
+import edos.mimo.connection.IListingVisitor;
+import edos.mimo.connection.ITreeListing;
+import edos.mimo.connection.ITreeListingHandler;
 import edos.mimo.exception.ConfigException;
 import edos.mimo.filesystem.IDirectory;
-import edos.mimo.filesystem.IFile;
 import edos.mimo.filesystem.MirrorDirectory;
 import edos.mimo.filesystem.MirrorFile;
+import edos.mimo.filesystem.NamePool;
 
 /**
  * The implementation of IMirrorStructure is built around a dom4j document.
@@ -72,6 +86,7 @@ import edos.mimo.filesystem.MirrorFile;
  */
 public class TreeMirrorStructure implements ITreeMirrorStructure {
 	private static Logger logger = Logger.getLogger(TreeMirrorStructure.class);
+	private static final long LISTING_SHUTDOWN_WAIT = 30;	// s, for the listings still running after an error
 	private Document doc;
 	private Element  root;
 	private IConnection conn;
@@ -85,6 +100,7 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 	private String protocol = null;
 	private String name = null;
 	private String localPath = null;
+	
 
 	/**
 	 * Constructore provided for testing only.
@@ -186,8 +202,7 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 	 * @throws IOException
 	 */
 	public TreeMirrorStructure(InputStream is) throws DocumentException {
-	    SAXReader xmlReader = new SAXReader();
-	    this.doc = xmlReader.read(is);	
+	    this.doc = SnapshotCodec.read(is);	// XML or binary snapshot
 	    
 	   setup();
 	}
@@ -208,16 +223,31 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 	 * Load the structure from file or database, as a String.
 	 * 
 	 * This constructor can be called from the database manager
-	 * to re-instantiate a Mirror structure object from a XML string
+	 * to re-instantiate a Mirror structure object from a XML string,
+	 * packed or not (see SnapshotCodec.pack()).
 	 * 
 	 * @param InputStream is
 	 * @throws IOException
 	 */
 	public TreeMirrorStructure(String s) throws DocumentException {
-		this(new ByteArrayInputStream(s.getBytes()));
+		this.doc = SnapshotCodec.load(s);
 	    setup();
 	}
 	
+	/**
+	 * Binds a structure already in memory to a mirror of its own, as
+	 * when loading: the document is shared, not copied.
+	 * 
+	 * The pipeline diffs the structure of a run this way, whatever
+	 * the later crawls of the mirror made of its current structure.
+	 * 
+	 * @param doc
+	 */
+	public TreeMirrorStructure(Document doc) {
+		this.doc = doc;
+		setup();
+	}
+	
 	/**
 	 * Continue loading by filling all this attribute values
 	 * from the XML document content.
@@ -294,6 +324,11 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 	 * @throws IOException
 	 */
 	public void save() throws IOException {
+		if(SnapshotCodec.useSnapshots()) {
+			saveSnapshot();
+			return;
+		}
+		
 		// TODO for production disable XML pretty print
 		save(true);	// "pretty print" by default: it is much more efficient when loading in editor
 					// probably less efficient for production
@@ -318,6 +353,21 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 			serializetoXML(outG); // output to file
 	}
 	
+	/**
+	 * Save the <code>IMirrorStructure</code> as a binary snapshot (see SnapshotCodec)
+	 * to the file given by getSnapshotPath(). save(boolean) still exports the XML.
+	 * 
+	 * @throws IOException
+	 */
+	public void saveSnapshot() throws IOException {
+		OutputStream out = new FileOutputStream(getSnapshotPath());
+		try {
+			SnapshotCodec.write(doc, out);
+		}finally{
+			out.close();
+		}
+	}
+	
 	/**
 	 * Print the XML representation of the <code>IMirrorStructure</code>
 	 * to the <code>OutputStream</code>.
@@ -386,49 +436,324 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 	 * Populate the subtree from its elemRoot with the structure found on the mirror
 	 * at its path. 
 	 * The internal representation of the mirror structure is a dom4j XML document.
+	 * 
+	 * When the connection is able to list the whole tree at once, it is done
+	 * with a single request (see acquireInBulk()). Otherwise, directories are
+	 * listed one by one, in parallel when the mirror allows more than one 
+	 * connection (see acquireInParallel()).
 	 * @param element
 	 * @param path
 	 */
 	private void acquire(Element root, String path) throws IOException {
-		List<IFile> files = conn.lsFrom(path);		// can throw exception
+		int connections = mirror.getCrawlConnections();
+		
+		// a single listing of the whole tree, when the connection can do it
+		if(conn instanceof ITreeListing && acquireInBulk(root, path))
+			return;
+		
+		if(connections > 1)
+			acquireInParallel(root, path, connections);
+		else
+			acquireSerially(root, path);
+	}
+	
+	/**
+	 * Acquisition with a single recursive listing (eg. find over SSH).
+	 * 
+	 * The entries are gathered by directory, then added to the document
+	 * sorted by name as the entries of a directory come in no particular order.
+	 * 
+	 * @param root
+	 * @param path
+	 * @return false if the connection was unable to list the tree
+	 */
+	private boolean acquireInBulk(Element root, String path) throws IOException {
+		TreeListing listing = new TreeListing();
+		boolean dirsOnly = !analysis.getDepth().equals(AnalysisLevel.COMPLETE);
 		
-		if(files == null)
-			throw new IOException("Connection (" + conn + ") could not return a list of files");
+		if(!((ITreeListing)conn).lsTree(path, dirsOnly, listing))
+			return false;
+		
+		listing.addTo(root, "");
+		return true;
+	}
+	
+	/**
+	 * Depth-first acquisition over the single mirror connection.
+	 * @param element
+	 * @param path
+	 */
+	private void acquireSerially(Element root, String path) throws IOException {
+		DirectoryListing listing = new DirectoryListing(root);
+		conn.listInto(path, listing);		// can throw exception
+		
+		// recursive calls
+		Iterator<Element> dirs = listing.newDirs.iterator();
+		while(dirs.hasNext()) {
+			Element newDir = dirs.next();
+			acquireSerially(newDir, childPath(path, newDir.attributeValue(MirrorFile.NAME)));
+		}
+	}
+	
+	/**
+	 * Acquisition over a bounded set of connections to the mirror.
+	 * 
+	 * Directory listings are run by a pool of threads, each one holding
+	 * a connection, while this thread adds their results to the document 
+	 * and submits the listing of the new sub-directories. As each directory
+	 * gets its children in the order of its own listing, the resulting tree
+	 * is the same as with a serial acquisition.
+	 * 
+	 * If the extra connections cannot all be opened, the acquisition goes on
+	 * with the ones available (at least the mirror connection).
+	 * 
+	 * @param root
+	 * @param path
+	 * @param connections the maximum number of connections to use
+	 */
+	private void acquireInParallel(Element root, String path, int connections) throws IOException {
+		LinkedBlockingQueue<IConnection> pool = new LinkedBlockingQueue<IConnection>();
+		List<IConnection> extraConnections = new LinkedList<IConnection>();
+		pool.add(conn);
+		
+		/*
+		 * OPENING the extra connections
+		 */
+		for(int i = 1; i < connections; i++) {
+			try {
+				IConnection c = mirror.openConnection();
+				extraConnections.add(c);
+				pool.add(c);
+				
+			}catch(IOException ioe) {
+				logger.warn("Unable to open connection #" + (i+1) + " to " + host
+						+ ", crawling with " + i + " connection(s): " + ioe.getMessage());
+				break;
+			}
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(pool.size());
+		CompletionService<Listing> listings = new ExecutorCompletionService<Listing>(executor);
+		
+		try {
+			listings.submit(new Listing(root, path, pool));
+			int pending = 1;
+			
+			while(pending > 0) {
+				Listing listing;
+				try {
+					listing = listings.take().get();
+					
+				}catch(InterruptedException ie) {
+					throw new IOException("Acquisition of " + host + " interrupted");
+					
+				}catch(ExecutionException ee) {
+					// rethrow the cause (eg. IOException) as a serial acquisition would
+					Throwable cause = ee.getCause();
+					if(cause instanceof IOException)
+						throw (IOException)cause;
+					throw new IOException("Unable to list " + host + ": " + cause);
+				}
+				pending--;
+				
+				// adding to the document (this thread only) and going down
+				Iterator<Element> dirs = addListing(listing.dir, listing.entries).iterator();
+				while(dirs.hasNext()) {
+					Element newDir = dirs.next();
+					listings.submit(new Listing(newDir, 
+							childPath(listing.path, newDir.attributeValue(MirrorFile.NAME)), pool));
+					pending++;
+				}
+			}
+			
+		}finally{
+			// the listings still running (error path) are done with the connections first
+			executor.shutdownNow();
+			try {
+				if(!executor.awaitTermination(LISTING_SHUTDOWN_WAIT, TimeUnit.SECONDS))
+					logger.warn("Listings of " + host + " still running after " 
+							+ LISTING_SHUTDOWN_WAIT + " s, closing their connections");
+			}catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			
+			Iterator<IConnection> it = extraConnections.iterator();
+			while(it.hasNext())
+				it.next().close();
+		}
+	}
+	
+	/**
+	 * Adds the directories and files of a listing to a directory element.
+	 * @param dir
+	 * @param entries
+	 * @return the new directory elements, in the listing order
+	 */
+	private List<Element> addListing(Element dir, List<Entry> entries) {
+		List<Element> newDirs = new LinkedList<Element>();
 		
 		// filtering files from directories ; adding them to the structure
-		ListIterator<IFile> iterator = files.listIterator();
+		Iterator<Entry> iterator = entries.iterator();
 		while(iterator.hasNext()) {
-			IFile file = iterator.next();
+			Entry e = iterator.next();
+			Element newElt = addEntry(dir, e.name, e.dir, e.time, e.size);
+			if(e.dir)
+				newDirs.add(newElt);
+		}
+		return newDirs;
+	}
+	
+	/**
+	 * Adds a directory or a file to a directory element,
+	 * according to the analysis level.
+	 * @return the new element (null for a file out of the analysis)
+	 */
+	private Element addEntry(Element dir, String name, boolean isDir, long time, long size) {
+		name = NamePool.getInstance().intern(name);	// shared with the other mirrors
+		
+		if(isDir) {
+			// add the new directory to the structure
+			Element newDir = dir.addElement(DIRECTORY)
+				.addAttribute(MirrorFile.NAME, name);
+			logger.debug("acquiring dir: " + name);
 			
-			// debug::prints everything on the console
-			//System.err.println(file);
+			if(analysis.getVerbosity().equals(AnalysisLevel.VERBOSE))
+				newDir.addAttribute(MirrorFile.DATE, Date.formatISO8601(time))
+				.addAttribute(MirrorFile.SIZE, Long.toString(size));
 			
-			if(file instanceof IDirectory) {
-				// add the new directory to the structure
-				Element newDir = root.addElement(DIRECTORY)
-					.addAttribute(MirrorFile.NAME, file.getName());
-				logger.debug("acquiring dir: " + file.getName());
-				
+			return newDir;
+			
+		}else
+			if(analysis.getDepth().equals(AnalysisLevel.COMPLETE)) {
+				// add also the new file to the structure
+				Element newFile = dir.addElement(FILE);
+				logger.debug("acquiring file: " + name);
 				if(analysis.getVerbosity().equals(AnalysisLevel.VERBOSE))
-					newDir.addAttribute(MirrorFile.DATE, file.getDate().asISO8601())
-					.addAttribute(MirrorFile.SIZE, Long.valueOf(file.getSize()).toString());
+					newFile.addAttribute(NAME, name)
+					.addAttribute(MirrorFile.DATE, Date.formatISO8601(time))
+					.addAttribute(SIZE, Long.toString(size));
 				
-				// recursive call
-				if(path.endsWith("/"))
-					acquire(newDir, path + file.getName());
-				else
-					acquire(newDir, path + "/" + file.getName());
+				return newFile;
+			}
+		return null;
+	}
+	
+	
+	private static String childPath(String path, String name) {
+		if(path.endsWith("/"))
+			return path + name;
+		else
+			return path + "/" + name;
+	}
+	
+	/**
+	 * Gathers the entries of a recursive listing by directory
+	 */
+	private class TreeListing implements ITreeListingHandler {
+		private HashMap<String,List<Entry>> entries = new HashMap<String,List<Entry>>();
+		
+		public void entry(String dirPath, String name, boolean dir, long size, long timeInMillis) {
+			List<Entry> list = entries.get(dirPath);
+			if(list == null) {
+				list = new ArrayList<Entry>();
+				entries.put(dirPath, list);
+			}
+			list.add(new Entry(name, dir, size, timeInMillis));
+		}
+		
+		/**
+		 * Adds the entries of a directory, and recursively of its sub-directories
+		 * @param dir directory element
+		 * @param dirPath its path relative to the listed directory
+		 */
+		void addTo(Element dir, String dirPath) {
+			List<Entry> list = entries.remove(dirPath);
+			if(list == null)
+				return;	// empty directory
+			
+			Collections.sort(list);
+			Iterator<Entry> it = list.iterator();
+			while(it.hasNext()) {
+				Entry e = it.next();
+				Element newElt = addEntry(dir, e.name, e.dir, e.time, e.size);
 				
-			}else
-				if(analysis.getDepth().equals(AnalysisLevel.COMPLETE)) {
-					// add also the new file to the structure
-					Element newFile = root.addElement(FILE);
-					logger.debug("acquiring file: " + file.getName());
-					if(analysis.getVerbosity().equals(AnalysisLevel.VERBOSE))
-						newFile.addAttribute(NAME, file.getName())
-						.addAttribute(MirrorFile.DATE, file.getDate().asISO8601())
-						.addAttribute(SIZE, Long.valueOf(file.getSize()).toString());
-				}
+				if(e.dir)
+					addTo(newElt, (dirPath.length() == 0)?e.name:dirPath + "/" + e.name);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the entries of a directory listing to its element
+	 * as they come from the connection
+	 */
+	private class DirectoryListing implements IListingVisitor {
+		private Element dir;
+		private List<Element> newDirs = new LinkedList<Element>();
+		
+		DirectoryListing(Element dir) {
+			this.dir = dir;
+		}
+		
+		public void visit(String name, boolean isDir, long size, long timeInMillis) {
+			Element newElt = addEntry(dir, name, isDir, timeInMillis, size);
+			if(isDir)
+				newDirs.add(newElt);
+		}
+	}
+	
+	/**
+	 * One entry of a listing
+	 */
+	private static class Entry implements Comparable<Entry> {
+		private String name;
+		private boolean dir;
+		private long size;
+		private long time;
+		
+		Entry(String name, boolean dir, long size, long time) {
+			this.name = name;
+			this.dir = dir;
+			this.size = size;
+			this.time = time;
+		}
+		
+		public int compareTo(Entry e) {
+			return name.compareTo(e.name);
+		}
+	}
+	
+	/**
+	 * Lists one directory with any connection available in the pool
+	 * (a connection is used by one thread at a time).
+	 * The entries are kept until the coordinating thread adds them
+	 * to the document.
+	 */
+	private static class Listing implements Callable<Listing>, IListingVisitor {
+		private Element dir;
+		private String path;
+		private BlockingQueue<IConnection> pool;
+		private List<Entry> entries = new ArrayList<Entry>();
+		
+		Listing(Element dir, String path, BlockingQueue<IConnection> pool) {
+			this.dir = dir;
+			this.path = path;
+			this.pool = pool;
+		}
+		
+		public Listing call() throws Exception {
+			IConnection c = pool.take();
+			try {
+				c.listInto(path, this);
+				
+			}finally{
+				pool.put(c);
+			}
+			return this;
+		}
+		
+		public void visit(String name, boolean dir, long size, long timeInMillis) {
+			entries.add(new Entry(name, dir, size, timeInMillis));
 		}
 	}
 
@@ -454,6 +779,10 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 		//return Config.getBasePath() + getFilename();
 		return Config.getBasePathXMLStorage() + getFilename();
 	}
+
+	public String getSnapshotPath() {
+		return Config.getBasePathXMLStorage() + getDocumentID() + SnapshotCodec.FILE_EXTENSION;
+	}
 	
 	
 	public Document getDocument() {
@@ -616,6 +945,23 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 	 * based on the delta provided as a parameter
 	 */
 	public void patch(IMirrorDelta delta) {
+		patch(root, delta);
+	}
+	
+	/**
+	 * Applies a delta to the root element of a structure document
+	 * (also used by CompactTreeMirrorStructure).
+	 * 
+	 * The elements are found by following their XPATH through an index
+	 * of the directories (see ElementLocator) rather than by a XPATH
+	 * query on the whole document for each record.
+	 * Records which do not match the document are skipped.
+	 * 
+	 * @param root
+	 * @param delta
+	 */
+	static void patch(Element root, IMirrorDelta delta) {
+		ElementLocator locator = new ElementLocator(root);
 		
 		/*
 		 * ADDING new files
@@ -625,23 +971,26 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 		while(itAdd.hasNext()) {
 			Element elt = (Element)itAdd.next();
 			String xpath = elt.attributeValue(XPATH);
-			String date	= elt.attributeValue(DATE);
-			String size	= elt.attributeValue(SIZE);
 			
 			// count on the fact the above directories are already setup
-			// otherwise, introduce a new attribute depth in delta to proceed
-			// by directory depth (in case dom4j does change node order)
-			String dirXPATH = xpath.substring(0, xpath.lastIndexOf("/"));
-			
-			String targetPart = xpath.substring(xpath.lastIndexOf("/")+1);
+			// (the delta lists a new directory before its content)
+			int slash = xpath.lastIndexOf("/");
+			String targetPart = xpath.substring(slash + 1);
 			String type = targetPart.split("\\[")[0];
-			String name = targetPart.split("'")[1];
+			String name = elt.attributeValue(NAME);
+			if(name == null)
+				name = targetPart.split("'")[1];
 			
-			Element dir = (Element)root.selectSingleNode(dirXPATH);
-			dir.addElement(type)
+			Element dir = locator.find(xpath.substring(0, slash));
+			if(dir == null) {
+				logger.warn("Unable to add " + xpath + ": no such directory");
+				continue;
+			}
+			Element newElt = dir.addElement(type)
 				.addAttribute(NAME, name)
-				.addAttribute(DATE, date)
-				.addAttribute(SIZE, size);
+				.addAttribute(DATE, elt.attributeValue(DATE))
+				.addAttribute(SIZE, elt.attributeValue(SIZE));
+			locator.added(dir, newElt);
 		}
 		
 		/*
@@ -653,9 +1002,14 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 			Element elt = (Element)itDel.next();
 			String xpath = elt.attributeValue(XPATH);
 			
-			Node node = root.selectSingleNode(xpath);
-			node.detach();
-			node = null;
+			Element cur = locator.find(xpath);
+			if(cur == null) {
+				logger.warn("Unable to delete " + xpath + ": not found");
+				continue;
+			}
+			Element dir = cur.getParent();
+			cur.detach();
+			locator.removed(dir, cur);
 		}
 		
 		/*
@@ -668,19 +1022,21 @@ public class TreeMirrorStructure implements ITreeMirrorStructure {
 			String xpath = elt.attributeValue(XPATH);
 			
 			// get the referenced element
-			Element cur = (Element)root.selectSingleNode(xpath);
+			Element cur = locator.find(xpath);
+			if(cur == null) {
+				logger.warn("Unable to update " + xpath + ": not found");
+				continue;
+			}
 			
 			// update date if requested
 			Attribute attr = elt.attribute(DATE);
-			if(attr != null) {
-				Attribute a = cur.attribute(DATE);
-				a.setValue(attr.getValue());
-			}		
+			if(attr != null)
+				cur.addAttribute(DATE, attr.getValue());
 
 			// update size if requested
 			attr = elt.attribute(SIZE);
 			if(attr != null) 
-				cur.attribute(SIZE).setValue(attr.getValue());
+				cur.addAttribute(SIZE, attr.getValue());
 		}
 		
 	}
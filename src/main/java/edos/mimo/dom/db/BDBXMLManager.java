@@ -24,6 +24,7 @@ import com.sleepycat.dbxml.XmlContainerConfig;
 import com.sleepycat.dbxml.XmlDocument;
 import com.sleepycat.dbxml.XmlDocumentConfig;
 import com.sleepycat.dbxml.XmlException;
+import com.sleepycat.dbxml.XmlIndexLookup;
 import com.sleepycat.dbxml.XmlManager;
 import com.sleepycat.dbxml.XmlManagerConfig;
 import com.sleepycat.dbxml.XmlQueryContext;
@@ -37,15 +38,13 @@ import edos.distribution.mirror.BDBXMLManager;
 import edos.mimo.Config;
 import edos.mimo.IMirror;
 import edos.mimo.IMirrorDelta;
-import edos.mimo.IMirrorStatus;
-import edos.mimo.MonitorApplication;
+import edos.mimo.MirrorStructureFactory;
 import edos.mimo.MonitoredMirrors;
+import edos.mimo.dal.AbstractStorage;
 import edos.mimo.dom.DOMMirrorDiff;
-import edos.mimo.dom.IDOMMirrorDelta;
 import edos.mimo.dom.IDOMMirrorDiff;
 import edos.mimo.dom.IRepository;
 import edos.mimo.dom.ITreeMirrorStructure;
-import edos.mimo.dom.TreeMirrorStructure;
 import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
 import edos.mimo.filesystem.IMirrorDiff;
@@ -55,11 +54,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -75,7 +78,12 @@ import org.dom4j.DocumentException;
  * This instance is called to get a handle on the
  * XML documents (to be) stored in the database.
  * 
- * TODO (note): this singleton can have synchronized methods (instead of transactions)
+ * THREADS
+ * The manager is used by the jobs, the listener and the downloaders at once:
+ *  . it is created once, whichever thread asks first (getInstance())
+ *  . each thread has its own query context and prepared queries
+ *  . queries run concurrently; the writes (DocumentWriter) are serialized
+ *    in the writer thread and committed while no query runs
  * 
  * TODO when Berkeley DB XML makes it available for the Java API, use XmlDocument::getContentAsDOM()
  * (currently works only with C++ API ; better than serializing to string to re-parse it!)
@@ -88,16 +96,23 @@ import org.dom4j.DocumentException;
  * @author marc
  *
  */
-public class BDBXMLManager {
+public class BDBXMLManager extends AbstractStorage {
 	private static Logger logger = Logger.getLogger(BDBXMLManager.class);
 	
 	// DBXML debugging
 	private static boolean BDBXMLDebug = false;
 	
-	private static BDBXMLManager instance = null;
+	private static volatile BDBXMLManager instance = null;
 	private static XmlManager manager = null;
-	private static Config config = null;
-	private static Hashtable<String, XmlContainer> containers = new Hashtable<String,XmlContainer>();
+	private static final ConcurrentHashMap<String, XmlContainer> containers = new ConcurrentHashMap<String,XmlContainer>();
+	
+	// readers run concurrently, the writer (DocumentWriter) alone
+	private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	// query context and prepared queries of each thread (see ThreadQueries)
+	private static ThreadLocal<ThreadQueries> threadQueries = new ThreadLocal<ThreadQueries>();
+	private static List<ThreadQueries> allThreadQueries = Collections.synchronizedList(new ArrayList<ThreadQueries>());
+	private static DocumentWriter writer = null;	// see Config.getWriterQueue()
 
 	private static final String MASTER_CONTAINER 	= "master.dbxml";
 	private static final String MONITORED_CONTAINER = "monitored.dbxml";
@@ -107,9 +122,18 @@ public class BDBXMLManager {
 	private static final String CONTAINER			= "container";	// name of the XQUERY container variable
 	private static final String DOCUMENT 			= "doc";	// name of the XQUERY doc variable
 	private static final String MIRRORID 			= "mirrorid";// name of the XQUERY mirrorid variable
-
-
-
+	
+	// document metadata: time of the structures and deltas, from their names
+	static final String MIMO_URI			= "http://www.edos-project.org/mimo";
+	static final String TIMESTAMP_METADATA	= "timestamp";
+	private static final String TIMESTAMP_INDEX	= "metadata-equality-decimal";
+	
+	// document types (durability of their writes, see Config.isRelaxedDocument())
+	public static final String STRUCTURE_DOCUMENT	= "structure";
+	public static final String DELTA_DOCUMENT		= "delta";
+	public static final String DIFF_DOCUMENT		= "diff";
+	public static final String STATISTICS_DOCUMENT	= "statistics";
+	public static final String OTHER_DOCUMENT		= "other";
 
 	
 	/*
@@ -118,60 +142,35 @@ public class BDBXMLManager {
 	 * XQUERY can be used for XML database and relational databases.
 	 * 
 	 * These queries are documented under /doc/XQuery
+	 * They are prepared for each thread, see prepared(String).
 	 */
-	private XmlQueryContext defaultContext;
-	
-	private static String latestMasterStructQuery =
-			"collection('" + MASTER_CONTAINER + "')/mirror[last()]";
-	
-	private static String latestFullStructInContainerQuery = 
-		  "let $latestTimestamp := max(xs:dateTime(collection($container)/mirror/@checkoutTime))\n"
-		+ "return collection($container)/mirror[@checkoutTime = $latestTimestamp]";
-
-	private static String latestDeltaInContainerQuery = 
-	 		  "let $latestTimestamp := max(collection($container)/delta/@timestamp)\n"
-			+ "return collection($container)[delta/@timestamp = $latestTimestamp][1]";
 	
+	// the diffs of the mirror are looked up once, through the /diff/@mirror index
 	private static String latestDiffForMirrorInContainerQuery = 
-			  "for $latestTimestamp in max(collection($container)/diff[@mirror = $mirrorid]/xs:dateTime(@timestamp))"
-			+ "return collection($container)[diff/@mirror = $mirrorid and diff/@timestamp = $latestTimestamp]";
+			  "let $diffs := collection($container)[diff/@mirror = $mirrorid]\n"
+			+ "let $latestTimestamp := max($diffs/diff/xs:dateTime(@timestamp))\n"
+			+ "return $diffs[diff/xs:dateTime(@timestamp) = $latestTimestamp]";
 	
 	private static String aGivenDocumentInContainerQuery = "doc(concat($container, '/', $doc))";
-	private static String allDocumentsInContainerQuery = "collection($container)";
-	
-	private static String allDeltasFromLastFullStructQuery = 
-			  "let $latestFullStructTimestamp := max(collection($container)/mirror/@checkoutTime)\n"
-			+ "return collection($container)[delta/@timestamp > $latestFullStructTimestamp]";
 	
 	private static String mirrorTypeQuery = "collection($container)/mirror[@type = 'master']";
-	
-	// statistics
-	private static String countFullStructsInContainerQuery = "count(collection($container)[mirror])";
-	private static String countDeltasInContainerQuery = "count(collection($container)[delta])";
-	private static String countAllDocsInContainerQuery = "count(collection($container))";
 
 	
-	private XmlQueryExpression latestMasterStructQueryExp = null;
-	private XmlQueryExpression latestFullStructInContainerQueryExp = null;
-	private XmlQueryExpression latestDeltaInContainerQueryExp = null;
-	private XmlQueryExpression latestDiffForMirrorInContainerQueryExp = null;
-	private XmlQueryExpression aGivenDocumentQueryExp = null;
-	private XmlQueryExpression allDocumentsQueryExp = null;
-	private XmlQueryExpression allDeltasFromLastFullStructQueryExp = null;
-	private XmlQueryExpression countFullStructsInContainerQueryExp = null;
-	private XmlQueryExpression countDeltasInContainerQueryExp = null;
-	private XmlQueryExpression countAllDocsInContainerQueryExp = null;
-	private XmlQueryExpression mirrorTypeQueryExp = null;
 	
 	/**
 	 * Singleton access method
 	 * @return an instance of me
 	 */
 	public static BDBXMLManager getInstance() throws BDBXMLException {
-		if(instance == null)
-			instance = new BDBXMLManager();
+		BDBXMLManager db = instance;
+		if(db == null)
+			synchronized(BDBXMLManager.class) {
+				if(instance == null)
+					instance = new BDBXMLManager();	// once, even if called by several threads
+				db = instance;
+			}
 		
-		return instance;
+		return db;
 	}
 
 	/**
@@ -182,7 +181,7 @@ public class BDBXMLManager {
 	 * @param BDBXMLDebug (true of false)
 	 * @return an instance of me
 	 */
-	public static BDBXMLManager getInstance(boolean debug) throws BDBXMLException {
+	public static synchronized BDBXMLManager getInstance(boolean debug) throws BDBXMLException {
 		if(BDBXMLDebug != debug) {
 			BDBXMLDebug = debug;
 			
@@ -224,6 +223,7 @@ public class BDBXMLManager {
 				throw new BDBXMLException("Config has not been loaded. The database can't be started");
 			}
 			config = Config.getInstance();
+			cache = new StructureCache(config.getCacheSize() * 1024L * 1024L);
 			
 			// BDB XML Configuration
 		    EnvironmentConfig envConf = new EnvironmentConfig();
@@ -275,23 +275,20 @@ public class BDBXMLManager {
 			
 			logger.info("All containers open and ready for transaction");
 			
+			/*
+			 * WRITER
+			 * Documents queued by the jobs are written together (see DocumentWriter)
+			 */
+			writer = new DocumentWriter(this, config.getWriterQueue(), config.getWriterFlush());
+			
 			
 			/*
 			 * PREPARED QUERIES
 			 * Creating queries is expensive, hence preparing queries is recommanded.
+			 * They are prepared for each thread on first use (see ThreadQueries).
 			 */
 			
-			// this default context is not thread-safe
-			// and it should not be used at query execution time
-			// Here it tells the query compiler about the presence of variables...
-			defaultContext = manager.createQueryContext();
-			defaultContext.setReturnType(XmlQueryContext.DeadValues);
-			defaultContext.setEvaluationType(XmlQueryContext.Eager);
-			defaultContext.setVariableValue(CONTAINER, new XmlValue("undefined"));
-			defaultContext.setVariableValue(DOCUMENT, new XmlValue("undefined"));
-			defaultContext.setVariableValue(MIRRORID, new XmlValue("undefined"));
-			
-			// next query needs an open master.dbxml container
+			// the master query needs an open master.dbxml container
 			if(manager.existsContainer(MASTER_CONTAINER) == 0) {
 				XmlContainerConfig containerConf = new XmlContainerConfig();
 				containerConf.setTransactional(true);
@@ -300,74 +297,9 @@ public class BDBXMLManager {
 				txn = manager.createTransaction();
 				manager.createContainer(txn, MASTER_CONTAINER);
 				txn.commit();
-				if(txn != null) txn.delete();
+				txn.delete();
+				txn = null;
 			}
-			
-			txn = manager.createTransaction();
-			latestMasterStructQueryExp = manager.prepare(txn,
-						latestMasterStructQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			latestFullStructInContainerQueryExp = manager.prepare(txn,
-						latestFullStructInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			latestDeltaInContainerQueryExp = manager.prepare(txn,
-						latestDeltaInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			latestDiffForMirrorInContainerQueryExp = manager.prepare(txn,
-						latestDiffForMirrorInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			aGivenDocumentQueryExp = manager.prepare(txn, aGivenDocumentInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-			
-			txn = manager.createTransaction();
-			allDocumentsQueryExp = manager.prepare(txn, allDocumentsInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-			
-			txn = manager.createTransaction();
-			allDeltasFromLastFullStructQueryExp = manager.prepare(txn,
-						allDeltasFromLastFullStructQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			countFullStructsInContainerQueryExp = manager.prepare(txn,
-						countFullStructsInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			countDeltasInContainerQueryExp = manager.prepare(txn,
-						countDeltasInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			countAllDocsInContainerQueryExp = manager.prepare(txn,
-						countAllDocsInContainerQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-
-			txn = manager.createTransaction();
-			mirrorTypeQueryExp = manager.prepare(txn, 
-						mirrorTypeQuery, defaultContext);
-			txn.commit();
-			if(txn != null) txn.delete();
-			
-			logger.info("Prepared queries... done.");
 
 			
 			
@@ -405,6 +337,139 @@ public class BDBXMLManager {
 
 	}
 		
+	/**
+	 * Query context and prepared queries of a thread: XmlQueryContext is
+	 * not thread-safe, and neither are the expressions prepared with it.
+	 */
+	private static class ThreadQueries {
+		XmlManager owner;	// queries are prepared again after a restart
+		XmlQueryContext context;
+		HashMap<String, XmlQueryExpression> expressions = new HashMap<String, XmlQueryExpression>();
+		
+		void delete() {
+			Iterator<XmlQueryExpression> it = expressions.values().iterator();
+			while(it.hasNext())
+				it.next().delete();
+			expressions.clear();
+			context.delete();
+		}
+	}
+	
+	private ThreadQueries getThreadQueries() throws XmlException {
+		ThreadQueries q = threadQueries.get();
+		if(q == null || q.owner != manager) {
+			q = new ThreadQueries();
+			q.owner = manager;
+			q.context = manager.createQueryContext();
+			q.context.setReturnType(XmlQueryContext.DeadValues);
+			q.context.setEvaluationType(XmlQueryContext.Eager);
+			// tells the query compiler about the presence of variables...
+			q.context.setVariableValue(CONTAINER, new XmlValue("undefined"));
+			q.context.setVariableValue(DOCUMENT, new XmlValue("undefined"));
+			q.context.setVariableValue(MIRRORID, new XmlValue("undefined"));
+			
+			threadQueries.set(q);
+			allThreadQueries.add(q);
+		}
+		return q;
+	}
+	
+	/**
+	 * @return the query context of the calling thread
+	 * 			(return and evaluation types are those of its latest query)
+	 */
+	private XmlQueryContext queryContext() throws XmlException {
+		return getThreadQueries().context;
+	}
+	
+	/**
+	 * @param query one of the XQUERY above
+	 * @return the query prepared for the calling thread
+	 */
+	private XmlQueryExpression prepared(String query) throws XmlException {
+		ThreadQueries q = getThreadQueries();
+		XmlQueryExpression exp = q.expressions.get(query);
+		if(exp == null) {
+			XmlTransaction txn = manager.createTransaction();
+			try {
+				exp = manager.prepare(txn, query, q.context);
+				txn.commit();
+			}catch(XmlException e) {
+				txn.abort();
+				throw e;
+			}finally{
+				txn.delete();
+			}
+			q.expressions.put(query, exp);
+		}
+		return exp;
+	}
+	
+	/**
+	 * Taken by the writer to commit, while no query runs.
+	 */
+	Lock getWriteLock() {
+		return lock.writeLock();
+	}
+	
+	/**
+	 * Declares the indexes of a container. Declaring an index which
+	 * exists already does nothing, a new one is built at once.
+	 * 
+	 *  . node indexes on the attributes queried by value
+	 *  . edge (path) indexes for /mirror/@checkoutTime, /delta/@timestamp
+	 *    and /diff/@mirror
+	 *  . a metadata index on the time of the document (structures and 
+	 *    deltas): it gives the documents in chronological order, and 
+	 *    the latest one, without reading them.
+	 */
+	private void declareIndexes(XmlTransaction txn, XmlContainer container, XmlUpdateContext uc)
+														throws XmlException {
+		container.addIndex(txn, "", "mirror",       "node-attribute-equality-string", uc);
+		container.addIndex(txn, "", "timestamp",    "unique-node-attribute-equality-dateTime", uc);
+		container.addIndex(txn, "", "checkoutTime", "unique-node-attribute-equality-dateTime", uc);
+		container.addIndex(txn, "", "type", 		"node-attribute-equality-string", uc);
+		
+		container.addIndex(txn, "", "checkoutTime", "edge-attribute-equality-dateTime", uc);
+		container.addIndex(txn, "", "timestamp",    "edge-attribute-equality-dateTime", uc);
+		container.addIndex(txn, "", "mirror",       "edge-attribute-equality-string", uc);
+		container.addIndex(txn, MIMO_URI, TIMESTAMP_METADATA, TIMESTAMP_INDEX, uc);
+	}
+	
+	/**
+	 * One-shot migration of a container created by an earlier version:
+	 * sets the timestamp metadata of its structures and deltas (from their
+	 * names), so that they are found by the metadata index.
+	 */
+	private void addTimestamps(XmlTransaction txn, XmlContainer container, XmlUpdateContext uc)
+														throws XmlException {
+		logger.info("Reindexing container " + container.getName() + "...");
+		int count = 0;
+		
+		XmlResults res = container.getAllDocuments(txn, new XmlDocumentConfig());
+		try {
+			XmlValue value = res.next();
+			while(value != null) {
+				XmlDocument doc = value.asDocument();
+				try {
+					long time = DeltaChain.getTimeStamp(doc.getName());
+					doc.setMetaData(MIMO_URI, TIMESTAMP_METADATA, new XmlValue((double)time));
+					container.updateDocument(txn, doc, uc);
+					count++;
+					
+				}catch(NumberFormatException nfe) {
+					logger.debug("no timestamp in " + doc.getName());
+				}finally{
+					doc.delete();
+				}
+				value = res.next();
+			}
+		}finally{
+			res.delete();
+		}
+		logger.info("Container " + container.getName() + " reindexed (" + count + " documents)");
+	}
+	
 	/**
 	 * Open a container and set it up for transactional support
 	 * 
@@ -432,11 +497,12 @@ public class BDBXMLManager {
 			txn = manager.createTransaction();
 			container = manager.openContainer(txn , name, containerConf);
 			XmlUpdateContext uc = manager.createUpdateContext();
-			container.addIndex(txn, "", "mirror",       "node-attribute-equality-string", uc);
-			container.addIndex(txn, "", "timestamp",    "unique-node-attribute-equality-dateTime", uc);
-			container.addIndex(txn, "", "checkoutTime", "unique-node-attribute-equality-dateTime", uc);
-			container.addIndex(txn, "", "type", 			"node-attribute-equality-string", uc);
-			// TODO add more index here
+			
+			// containers created before the timestamp metadata need a migration
+			boolean migrate = (container.getIndexSpecification(txn).find(MIMO_URI, TIMESTAMP_METADATA) == null);
+			declareIndexes(txn, container, uc);
+			if(migrate)
+				addTimestamps(txn, container, uc);
 			txn.commit();
 			
 			logger.info("Container " + name + " is now open (node container: " 
@@ -456,7 +522,8 @@ public class BDBXMLManager {
 		}
 		
 		// this hashtable keeps track of the open containers
-		containers.put(name, container);
+		if(container != null)
+			containers.put(name, container);
 		
 		return container;
 	}
@@ -473,47 +540,48 @@ public class BDBXMLManager {
 	 * @param name
 	 * @throws XmlException 
 	 */
-	private XmlContainer initContainer(String name) {
-		XmlContainer container = (XmlContainer)containers.get(name);
+	XmlContainer initContainer(String name) {
+		XmlContainer container = containers.get(name);
+		if(container != null)
+			return container;
 		
-		if(container == null) {
-			XmlContainerConfig containerConf = new XmlContainerConfig();
-			containerConf.setTransactional(true);
-			containerConf.setAllowCreate(true);
+		synchronized(containers) {
+			container = containers.get(name);	// created by another thread meanwhile?
+			if(container == null) {
+				XmlContainerConfig containerConf = new XmlContainerConfig();
+				containerConf.setTransactional(true);
+				containerConf.setAllowCreate(true);
 			
-			if(name.equals(Config.LATEST_DIFFS_CONTAINER))
-				containerConf.setNodeContainer(false); // wholedoc container (retrieve all docs usually)
+				if(name.equals(Config.LATEST_DIFFS_CONTAINER))
+					containerConf.setNodeContainer(false); // wholedoc container (retrieve all docs usually)
 			
-			XmlTransaction txn = null;
-			try {
-				txn = manager.createTransaction();
-				container = manager.createContainer(txn, name, containerConf);
-				XmlUpdateContext uc = manager.createUpdateContext();
-				container.addIndex(txn, "", "mirror",       "node-attribute-equality-string", uc);
-				container.addIndex(txn, "", "timestamp",    "unique-node-attribute-equality-dateTime", uc);
-				container.addIndex(txn, "", "checkoutTime", "unique-node-attribute-equality-dateTime", uc);
-				container.addIndex(txn, "", "type", 		"node-attribute-equality-string", uc);
-				// TODO add more index here
-				txn.commit();
-				containers.put(name, container);
+				XmlTransaction txn = null;
+				try {
+					txn = manager.createTransaction();
+					container = manager.createContainer(txn, name, containerConf);
+					XmlUpdateContext uc = manager.createUpdateContext();
+					declareIndexes(txn, container, uc);
+					txn.commit();
+					containers.put(name, container);
 				
-				logger.info("created container: " + name + " (node container: " 
-						+ containerConf.getNodeContainer()
-						+ " ; index nodes: " + containerConf.getIndexNodes() + ")");
+					logger.info("created container: " + name + " (node container: " 
+							+ containerConf.getNodeContainer()
+							+ " ; index nodes: " + containerConf.getIndexNodes() + ")");
 				
-			}catch(XmlException e) {
-				logger.error("Unable to create container " + name 
-						+ "\n" + e.getMessage());
-				if(txn !=null)
-					try {
-						txn.abort();
-					}catch(XmlException e2) {
-						logger.error(e2.getMessage());
-					}
-			}finally{
-				if(txn != null) 
-					txn.delete();
-				txn = null;
+				}catch(XmlException e) {
+					logger.error("Unable to create container " + name 
+							+ "\n" + e.getMessage());
+					if(txn !=null)
+						try {
+							txn.abort();
+						}catch(XmlException e2) {
+							logger.error(e2.getMessage());
+						}
+				}finally{
+					if(txn != null) 
+						txn.delete();
+					txn = null;
+				}
 			}
 		}
 		
@@ -530,152 +598,96 @@ public class BDBXMLManager {
 	 *
 	 */
 	public void close() {
+		synchronized(BDBXMLManager.class) {
 
-	    try {
-	    	/*
-	    	 * STEP 1 - close all containers
-	    	 */
-	    	Collection conts = containers.values();
-	    	Iterator it = conts.iterator();
-	    	while(it.hasNext()) {
-	    		XmlContainer container = (XmlContainer)it.next();
-	    		if(container != null) {
-	    			String contName = container.getName();
-	    			//container.close();
-	    			container.delete();
-	    			logger.info("Container " + contName + " closed");
-	    		}
-	    	}
-	    	
-	    	/*
-	    	 * STEP 2 - delete prepared queries
-	    	 */
-	    	if(latestMasterStructQueryExp != null)
-	    		latestMasterStructQueryExp.delete();
+		    try {
+		    	/*
+		    	 * STEP 0 - write the queued documents
+		    	 */
+		    	if(writer != null)
+		    		writer.close();
 	    	
-	    	if(latestFullStructInContainerQueryExp != null)
-	    		latestFullStructInContainerQueryExp.delete();
+		    	/*
+		    	 * STEP 1 - close all containers
+		    	 */
+		    	Collection conts = containers.values();
+		    	Iterator it = conts.iterator();
+		    	while(it.hasNext()) {
+		    		XmlContainer container = (XmlContainer)it.next();
+		    		if(container != null) {
+		    			String contName = container.getName();
+		    			//container.close();
+		    			container.delete();
+		    			logger.info("Container " + contName + " closed");
+		    		}
+		    	}
 	    	
-	    	if(latestDeltaInContainerQueryExp != null)
-	    		latestDeltaInContainerQueryExp.delete();
+		    	/*
+		    	 * STEP 2 - delete prepared queries (of all threads)
+		    	 */
+		    	synchronized(allThreadQueries) {
+		    		Iterator<ThreadQueries> qit = allThreadQueries.iterator();
+		    		while(qit.hasNext())
+		    			qit.next().delete();
+		    		allThreadQueries.clear();
+		    	}
 	    	
-	    	if(aGivenDocumentQueryExp != null)
-	    		aGivenDocumentQueryExp.delete();
 	    	
-	    	if(allDocumentsQueryExp != null)
-	    		allDocumentsQueryExp.delete();
+		    	/*
+		    	 * STEP 3 - close the manager and the environment
+		    	 */
+		    	if(cache != null)
+		    		logger.info(cache);
 	    	
-	    	if(allDeltasFromLastFullStructQueryExp != null)
-	    		allDeltasFromLastFullStructQueryExp.delete();
-	    	
-	    	if(countFullStructsInContainerQueryExp != null)
-	    		countFullStructsInContainerQueryExp.delete();
-	    	
-	    	if(countDeltasInContainerQueryExp != null)
-	    		countDeltasInContainerQueryExp.delete();
-	    	
-	    	if(countAllDocsInContainerQueryExp != null)
-	    		countAllDocsInContainerQueryExp.delete();
-	    	
-	    	if(mirrorTypeQueryExp != null)
-	    		mirrorTypeQueryExp.delete();
-	    		
-	    	
-	    	/*
-	    	 * STEP 3 - close the manager and the environment
-	    	 */
-	        if (manager != null) {
-	            //manager.close();
-	        	manager.delete();
-	            manager = null;
-	            // environment has been closed by manager
-	        }
+		        if (manager != null) {
+		            //manager.close();
+		        	manager.delete();
+		            manager = null;
+		            // environment has been closed by manager
+		        }
 	        
-	    	logger.info("Closed successfullly");
+		    	logger.info("Closed successfullly");
 	    	
-	    } catch (XmlException ce) {
-	    	logger.fatal("Unable to close properly");
-	    	logger.fatal(ce.getStackTrace());
+		    } catch (XmlException ce) {
+		    	logger.fatal("Unable to close properly");
+		    	logger.fatal(ce.getStackTrace());
 	    
-	    }finally{
-	    	instance = null;	// total cleanup
-	    	containers = new Hashtable<String,XmlContainer>();
-	    	config = null;
-	    }
+		    }finally{
+		    	instance = null;	// total cleanup
+		    	containers.clear();
+		    	config = null;
+		    	cache = null;
+		    	writer = null;
+		    }
+		}
 	}
 	
 	/**
 	 * Store the mirror structure as XML in the database.
+	 * With binary snapshots (see Config), the root element is stored as 
+	 * XML and its content is packed (see SnapshotCodec.pack()).
 	 * 
-	 * @param struct to be stored
-	 * @return success of failure
-	 * @throws BDBXMLException
-	 */
-	public void save(ITreeMirrorStructure struct) throws BDBXMLException {
-		String containerName 	= struct.getMirrorID() + ".dbxml";
-		String docName			= struct.getDocumentID() + ".xml";
-		String content			= struct.toString();		
-		
-		storeContent(containerName, docName, content);
-	}
-
-	/**
-	 * Store the new version of the mirror structure.
-	 * 
-	 * This method contains optimization logic to save
-	 * on space. Instead of storing redundant data all 
-	 * the time, it stores only the changes (delta structure)
-	 * while they are in small number (as defined in Config).
-	 * 
-	 * @param status
 	 * @throws BDBXMLException
 	 */
-	public void save(IMirrorStatus status) throws BDBXMLException {
-		IMirrorDelta delta = null;
-		ITreeMirrorStructure struct = null;
-		
-		if(status.getMirrorStructure() instanceof ITreeMirrorStructure)
-			struct = (ITreeMirrorStructure)status.getMirrorStructure();
-		else
-			throw new BDBXMLException("Error: BDBXML saves only ITreeMirrorStructures " +
-					"and nothing else");
-
-		if(status.getDelta() instanceof IDOMMirrorDelta)
-			delta = (IDOMMirrorDelta)status.getDelta();
-		else
-			throw new BDBXMLException("Error: BDBXML saves only IDOMMirrorDelta " +
-					"and nothing else");
-		
-		// config can't be null, @see BDBXMLManager()
-		if(delta.getSize() > config.getDeltaLimit()) {
-			save(struct);
-			logger.info("Storing full structure: " + struct.getFilename());
-			
-		}else{
-			save(delta);
-			logger.info("Storing delta (" + delta.getSize() + " changes): " + delta.getFilename());
-		}
+	protected void storeStructure(String mirrorID, String docName, String content) 
+											throws BDBXMLException {
+		storeContent(STRUCTURE_DOCUMENT, mirrorID + ".dbxml", docName, content, false);
 	}
 	
 	/**
-	 * Store the delta mirror structure in the database
+	 * Store the delta mirror structure in the database.
+	 * A delta of the same name is replaced (rewritten by RetentionEngine).
 	 * 
-	 * Should be private for the application, the entry point
-	 * is through save(IMirrorStatus) but kept public for
-	 * unit testing.
-	 *  
-	 * @see save(IMirrorStatus) 
 	 * @throws BDBXMLException
-	 * @param delta
 	 */
-	public void save(IMirrorDelta delta) throws BDBXMLException {
+	protected void storeDelta(IMirrorDelta delta) throws BDBXMLException {
 		logger.info("Saving " + delta.getDocumentID());
 		
 		String containerName 	= delta.getMirrorID() + ".dbxml";
 		String docName			= delta.getDocumentID() + ".xml";
 		String content			= delta.toString();		
 		
-		storeContent(containerName, docName, content);
+		storeContent(DELTA_DOCUMENT, containerName, docName, content, true);
 	}
 	
 	/**
@@ -696,7 +708,7 @@ public class BDBXMLManager {
 		
 		// removing old one first
 		removeLatestDiffForMirror(diff.getMirrorID());
-		storeContent(containerName, docName, content);
+		storeContent(DIFF_DOCUMENT, containerName, docName, content, false);
 	}
 
 	
@@ -710,7 +722,7 @@ public class BDBXMLManager {
 		String docName			= jobStat.getDocumentID() + ".xml";
 		
 		String content = jobStat.toString();
-		storeContent(containerName, docName, content);
+		storeContent(STATISTICS_DOCUMENT, containerName, docName, content, false);
 	}
 	
 	/**
@@ -718,26 +730,28 @@ public class BDBXMLManager {
 	 * directory.
 	 */
 	public void saveMonitored(String docName, String xmlString)  throws BDBXMLException {
-		storeContent(MONITORED_CONTAINER, docName, xmlString);
+		storeContent(OTHER_DOCUMENT, MONITORED_CONTAINER, docName, xmlString, false);
 	}
 	
 
 	public void saveRepository(IRepository rep) throws BDBXMLException{
 		String docName = rep.getFilename();
 		String xmlString = rep.toString();
-		storeContent(REPOSITORY_CONTAINER, docName, xmlString);		
+		storeContent(OTHER_DOCUMENT, REPOSITORY_CONTAINER, docName, xmlString, false);
 	}
 	
 	public void saveMonitoredMirrorsList(MonitoredMirrors mirrors) throws BDBXMLException{
 		String docName = mirrors.getFilename();
 		String xmlString = mirrors.toString();
-		storeContent(MIRRORS_CONTAINER, docName, xmlString);		
+		storeContent(OTHER_DOCUMENT, MIRRORS_CONTAINER, docName, xmlString, false);
 	}
 	
 	/**
 	 * Temporary method using add/remove strategy to update a document
 	 * This is to be replaced by a XQUERY targeted to the node(s) to 
 	 * be replaced (for efficiency).
+	 * The document is removed by the writer, in the same transaction
+	 * (it may still be queued).
 	 * @deprecated
 	 * @param jobStat
 	 * @throws BDBXMLException
@@ -747,8 +761,55 @@ public class BDBXMLManager {
 		String docName			= jobStat.getDocumentID() + ".xml";
 		
 		String content = jobStat.toString();
-		deleteDocument(docName);
-		storeContent(containerName, docName, content);
+		storeContent(STATISTICS_DOCUMENT, containerName, docName, content, true);
+	}
+	
+	/**
+	 * Names of the statistics documents (mirrorID-<millis>.xml) stored 
+	 * from one time to another, timed by their names.
+	 * 
+	 * @param from time in milliseconds
+	 * @param to time in milliseconds (included)
+	 * @return the names, in chronological order
+	 */
+	public List<String> getStatistics(long from, long to) {
+		final HashMap<String, Long> times = new HashMap<String, Long>();
+		List<String> names = new ArrayList<String>();
+		Iterator<String> it = getDocuments(STATISTICS_CONTAINER).iterator();
+		while(it.hasNext()) {
+			String name = it.next();
+			long time;
+			try {
+				time = DeltaChain.getTimeStamp(name);
+			}catch(NumberFormatException nfe) {
+				logger.warn("Skipping statistics " + name + ": no timestamp in its name");
+				continue;
+			}
+			if(time >= from && time <= to) {
+				names.add(name);
+				times.put(name, new Long(time));
+			}
+		}
+		
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return times.get(a).compareTo(times.get(b));
+			}
+		});
+		return names;
+	}
+	
+	/**
+	 * Removes a statistics document (see RetentionEngine)
+	 * @param docName eg. host_ftp-1141113730566.xml
+	 */
+	public void deleteStatistics(String docName) {
+		try {
+			writer.delete(STATISTICS_CONTAINER, docName);
+			
+		}catch (BDBXMLException e) {
+			logger.error("Unable to delete statistics " + docName + ": " + e.getMessage());
+		}
 	}
 	
 	
@@ -756,50 +817,48 @@ public class BDBXMLManager {
 	 * Private method to handle storing a document as a specific
 	 * file within a specific container.
 	 * 
+	 * The document is handed to the writer, which groups the documents
+	 * of all jobs into transactions. Depending on the document type, this
+	 * method waits until it is committed or returns as soon as it is queued.
+	 * 
+	 * @param type of document (durability), eg. STRUCTURE_DOCUMENT
 	 * @param container name
 	 * @param document name
 	 * @param content as a <code>String</code>
-	 * @return true or false
+	 * @param replace true to replace an existing document
 	 * @throws BDBXMLException
 	 */
-	private void storeContent(String containerName, String docName, String content)
-														throws BDBXMLException {
-
-		XmlContainer container = null;
-		XmlUpdateContext uc = null;
-		XmlTransaction txn = null;
+	private void storeContent(String type, String containerName, String docName, String content,
+									boolean replace) throws BDBXMLException {
+		// containers are all assumed open
+		String cName = (containerName==null)?convertToContainer(docName):containerName;
+		if(containerName == null)
+			logger.warn("container name " + containerName + " is invalid, using " + cName +" instead");
 		
-		try {
-			// containers are all assumed open
-			String cName = (containerName==null)?convertToContainer(docName):containerName;
-			container = initContainer(cName);
-			uc = manager.createUpdateContext();
-			
-			txn = manager.createTransaction();
-			container.putDocument(txn, docName, content, uc, null);
-			txn.commit();
-			
-			if(containerName == null)
-				logger.warn("container name " + containerName + " is invalid, using " + cName +" instead");
-			logger.info("Added doc " + docName + " to container " + cName);
-			
-		} catch (XmlException e) {
-			logger.error("BDB XML error in storeContent(): " + e.getMessage());
-			logger.error(e.getStackTrace());
-			if(txn != null)
-				try {
-					txn.abort();
-				} catch (XmlException e1) {
-					logger.error(e1.getMessage());
-				}
-			throw new BDBXMLException("BDB XML error: " + e.getMessage());
-			
-		}finally{
-			if(uc != null)
-				uc.delete();
-			if(txn != null) 
-				txn.delete();
-		}
+		// structures and deltas are indexed by their time (see lookupDocumentNames())
+		long timestamp = -1;
+		if(type.equals(STRUCTURE_DOCUMENT) || type.equals(DELTA_DOCUMENT))
+			try {
+				timestamp = DeltaChain.getTimeStamp(docName);
+			}catch(NumberFormatException nfe) {
+				logger.warn("No timestamp in the name of " + docName + ", it won't be indexed");
+			}
+		
+		int durability = config.isRelaxedDocument(type)?DocumentWriter.RELAXED:DocumentWriter.STRICT;
+		writer.write(cName, docName, content, timestamp, durability, replace);
+		logger.info(((durability == DocumentWriter.STRICT)?"Added doc ":"Queued doc ") 
+						+ docName + " to container " + cName);
+	}
+	
+	XmlManager getXmlManager() {
+		return manager;
+	}
+	
+	/**
+	 * @return the writer of the documents (document and transaction counts)
+	 */
+	public DocumentWriter getDocumentWriter() {
+		return writer;
 	}
 	
 	/**
@@ -815,8 +874,6 @@ public class BDBXMLManager {
 	 * @param mirrorID
 	 */
 	public void removeLatestDiffForMirror(String mirrorID) {
-		XmlContainer container = null;
-		XmlUpdateContext uc = null;
 		XmlTransaction txn = null;
 		XmlResults res = null;
 		XmlDocument doc = null;
@@ -834,16 +891,13 @@ public class BDBXMLManager {
 			doc = value.asDocument();
 			logger.debug("Deleting doc with name='" + doc.getName() + "'");
 			
-			uc = manager.createUpdateContext();
-			txn = manager.createTransaction();
-			//container.deleteDocument(txn, doc, uc);
-			container.deleteDocument(txn, doc.getName(), uc);
-			txn.commit();
+			// through the writer, which serializes all writes
+			writer.delete(Config.LATEST_DIFFS_CONTAINER, doc.getName());
 			
 			/*
 			// containers are all assumed open
 			container = initContainer(Config.LATEST_DIFFS_CONTAINER);
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
+			XmlQueryContext context = queryContext();
 			//context.setReturnType(XmlQueryContext.DeadValues);
 			//context.setEvaluationType(XmlQueryContext.Lazy);
 			//context.setReturnType(XmlQueryContext.LiveValues);
@@ -852,7 +906,7 @@ public class BDBXMLManager {
 			uc = manager.createUpdateContext();
 			
 			txn = manager.createTransaction();
-			res = latestDiffForMirrorInContainerQueryExp.execute(txn, context);
+			res = prepared(latestDiffForMirrorInContainerQuery).execute(txn, context);
 			
 			XmlValue value = res.next();
 			while(value != null) {
@@ -893,6 +947,9 @@ public class BDBXMLManager {
 				
 		}catch(NullPointerException npe) {
 			logger.error("NULL: Something unexpected is happening when calling BDBXML container.deleteDocument()");
+			
+		}catch(BDBXMLException bdbe) {
+			logger.error("Unable to delete latest diff for mirror " + mirrorID + ": " + bdbe.getMessage());
 		
 		}finally {
 				if(txn != null) 
@@ -917,17 +974,18 @@ public class BDBXMLManager {
 		XmlResults res = null;
 		XmlValue value = null;
 		
+		lock.readLock().lock();
 		try {
 			// containers are all assumed open
 			initContainer(Config.LATEST_DIFFS_CONTAINER);
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
+			XmlQueryContext context = queryContext();
 			context.setReturnType(XmlQueryContext.LiveValues);	// mandatory to be able to call doc.getName()
 			context.setEvaluationType(XmlQueryContext.Eager);
 			context.setVariableValue(CONTAINER, new XmlValue(Config.LATEST_DIFFS_CONTAINER));
 			context.setVariableValue(MIRRORID, new XmlValue(mirrorID));
 			
 			txn = manager.createTransaction();
-			res = latestDiffForMirrorInContainerQueryExp.execute(txn, context);			
+			res = prepared(latestDiffForMirrorInContainerQuery).execute(txn, context);			
 			value = res.next();
 			
 			txn.commit();
@@ -945,6 +1003,7 @@ public class BDBXMLManager {
 				}
 				
 		}finally {
+			lock.readLock().unlock();
 				if(txn != null) 
 					txn.delete();
 				if(res != null)
@@ -971,6 +1030,100 @@ public class BDBXMLManager {
 		return containers;
 	}
 	
+	/**
+	 * Compacts the containers, giving back to the disk the pages of the 
+	 * deleted documents (see RetentionEngine). A container is closed to 
+	 * be compacted, and opened again by the next access: the queries and
+	 * the writer wait meanwhile.
+	 * 
+	 * @throws BDBXMLException
+	 */
+	public void compact() throws BDBXMLException {
+		File home = new File(Config.getBDBXMLEnvHome());
+		List<String> names = getContainers();
+		
+		lock.writeLock().lock();
+		try {
+			for(int i = 0; i < names.size(); i++) {
+				String name = names.get(i);
+				long before = new File(home, name).length();
+				
+				XmlContainer container = containers.remove(name);
+				if(container != null)
+					container.delete();		// closes the handle
+				
+				XmlTransaction txn = null;
+				XmlUpdateContext uc = null;
+				try {
+					uc = manager.createUpdateContext();
+					txn = manager.createTransaction();
+					manager.compactContainer(txn, name, uc);
+					txn.commit();
+					
+				}catch(XmlException e) {
+					if(txn != null)
+						try {
+							txn.abort();
+						}catch(XmlException e2) {
+							logger.error(e2.getMessage());
+						}
+					throw new BDBXMLException("Unable to compact " + name + ": " + e.getMessage());
+					
+				}finally{
+					if(uc != null)
+						uc.delete();
+					if(txn != null)
+						txn.delete();
+				}
+				logger.info("Compacted container " + name + ": " + before + " -> " 
+								+ new File(home, name).length() + " bytes");
+			}
+			
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the IDs of the mirrors having a container of structures and deltas
+	 */
+	public List<String> getMirrorIDs() {
+		List<String> ids = new ArrayList<String>();
+		List<String> names = getContainers();
+		for(int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			if(name.equals(MONITORED_CONTAINER) || name.equals(REPOSITORY_CONTAINER)
+					|| name.equals(MIRRORS_CONTAINER) || name.equals(STATISTICS_CONTAINER)
+					|| name.equals(Config.LATEST_DIFFS_CONTAINER))
+				continue;
+			ids.add(name.substring(0, name.length() - ".dbxml".length()));
+		}
+		return ids;
+	}
+	
+	/**
+	 * Names of the structures and deltas of a mirror stored from one time 
+	 * to another, found with the timestamp index.
+	 * 
+	 * @param mirrorID
+	 * @param from time in milliseconds
+	 * @param to time in milliseconds (included)
+	 * @return the names, in chronological order
+	 */
+	public List<String> getDocuments(String mirrorID, long from, long to) {
+		List<String> names = new ArrayList<String>();
+		Iterator<String> it = getDocumentsInChronologicalOrder(convertMirrorIDToContainer(mirrorID)).iterator();
+		while(it.hasNext()) {
+			String name = it.next();
+			long time = DeltaChain.getTimeStamp(name);	// indexed: the name has a timestamp
+			if(time > to)
+				break;
+			if(time >= from)
+				names.add(name);
+		}
+		return names;
+	}
+	
 	/**
 	 * Get the list of documents in a given container.
 	 * 
@@ -985,6 +1138,7 @@ public class BDBXMLManager {
 		XmlTransaction txn = null;
 		XmlDocumentConfig docConf = null;
 		
+		lock.readLock().lock();
 		try {
 
 			// all containers are open with the database
@@ -1010,6 +1164,7 @@ public class BDBXMLManager {
 					logger.error(e2.getMessage());
 				}
 		}finally {
+			lock.readLock().unlock();
 				if(doc != null)
 					doc.delete();
 				if(res != null)
@@ -1030,37 +1185,50 @@ public class BDBXMLManager {
 	 * @return the sorted list of documents
 	 */
 	public Collection<String> getDocumentsInChronologicalOrder(String container) {
-		TreeMap<Long,String> docs = new TreeMap<Long,String>();
+		return lookupDocumentNames(container, false, false);
+	}
+	
+	/**
+	 * Names of the documents of a container having a timestamp (structures
+	 * and deltas), ordered by the timestamp metadata index: the documents
+	 * themselves are not read.
+	 * 
+	 * @param container
+	 * @param latestFirst true for the reverse chronological order
+	 * @param latestFull true to stop at the first full structure (only its name is returned)
+	 * @return the names of the documents
+	 */
+	private List<String> lookupDocumentNames(String container, boolean latestFirst, boolean latestFull) {
+		List<String> names = new ArrayList<String>();
+		XmlIndexLookup lookup = null;
 		XmlResults res = null;
-		XmlDocument doc = null;
 		XmlTransaction txn = null;
 		
+		lock.readLock().lock();
 		try {
-
-			initContainer(container);	// initialization
+			XmlContainer cont = initContainer(container);	// initialization
 			
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
-			context.setReturnType(XmlQueryContext.DeadValues);
-			context.setEvaluationType(XmlQueryContext.Eager);
-			context.setVariableValue(CONTAINER, new XmlValue(container));
+			XmlQueryContext context = queryContext();
+			XmlDocumentConfig docConf = new XmlDocumentConfig();
+			docConf.setLazyDocs(true);		// names only
+			docConf.setReverseOrder(latestFirst);
 			
+			lookup = manager.createIndexLookup(cont, MIMO_URI, TIMESTAMP_METADATA, TIMESTAMP_INDEX);
 			txn = manager.createTransaction();
-			res = allDocumentsQueryExp.execute(txn, context);
+			res = lookup.execute(txn, context, docConf);
 			
 			XmlValue value = res.next();
 			while(value != null) {
-				doc = value.asDocument();
-				String fullName = new String(doc.getName());
-				String sLong = null;
-				try{
-					sLong = extractTimeStampFromDocName(fullName);
-					
-				}catch(BDBXMLException bdbe) {
-					logger.error("Parsing error: " + bdbe.getMessage());
-					continue;	// skip this one
+				XmlDocument doc = value.asDocument();
+				String name = doc.getName();
+				doc.delete();
+				
+				if(!latestFull)
+					names.add(name);
+				else if(!DeltaChain.isDelta(name)) {
+					names.add(name);
+					break;
 				}
-				Long timeStamp = new Long(sLong);
-				docs.put(timeStamp, fullName);
 				value = res.next();
 			}
 			
@@ -1077,15 +1245,16 @@ public class BDBXMLManager {
 				}
 				
 		}finally {
-				if(txn != null) 
-					txn.delete();
+			lock.readLock().unlock();
 				if(res != null)
 					res.delete();
-				if(doc!= null)
-					doc.delete();
+				if(lookup != null)
+					lookup.delete();
+				if(txn != null) 
+					txn.delete();
 		}
 		
-		return docs.values();
+		return names;
 	}
 	
 	
@@ -1107,18 +1276,19 @@ public class BDBXMLManager {
 		XmlResults res = null;
 		XmlTransaction txn = null;
 		
+		lock.readLock().lock();
 		try {
 
 			initContainer(container);
 			
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
+			XmlQueryContext context = queryContext();
 			context.setReturnType(XmlQueryContext.DeadValues);
 			context.setEvaluationType(XmlQueryContext.Eager);
 			context.setVariableValue(CONTAINER, new XmlValue(container));
 			context.setVariableValue(DOCUMENT, new XmlValue(docName));
 			
 			txn = manager.createTransaction();
-			res = aGivenDocumentQueryExp.execute(txn, context);
+			res = prepared(aGivenDocumentInContainerQuery).execute(txn, context);
 			
 			XmlValue value = res.next();
 			if(value != null)
@@ -1140,6 +1310,7 @@ public class BDBXMLManager {
 				}
 			
 		}finally {
+			lock.readLock().unlock();
 			if(res != null)
 				res.delete();
 			if(doc != null)
@@ -1165,90 +1336,19 @@ public class BDBXMLManager {
 	 */
 	public void deleteDocument(String docName) {
 		String container = convertToContainer(docName);
-		XmlContainer cont = null;
-		XmlUpdateContext uc = null;
-		XmlTransaction txn = null;
-
-		try {
-
-			// all containers are open with the database (init time)
-			cont = initContainer(container);
-			
-			uc = manager.createUpdateContext();
 
-			txn = manager.createTransaction();
-			cont.deleteDocument(txn, docName, uc);
-			txn.commit();
-			
-		}catch (XmlException e) {
-			logger.error("(deleteDocument: Unable to retrieve " + docName);
-			logger.error(e.getStackTrace());
-			if(txn !=null)
-				try {
-					txn.abort();
-				}catch(XmlException e2) {
-					logger.error("deleteDocument: Unable to abort transaction: " 
-							+ e2.getMessage());
-				}
-		}finally {
-			if(uc != null)
-				uc.delete();
-			if(txn != null) 
-				txn.delete();
-		}		
-	}
-	
-	/**
-	 * Gets the latest and freshest master structure.
-	 * 
-	 * @return the latest master structure
-	 * @throws DocumentException
-	 */
-	public ITreeMirrorStructure getLatestMasterStructure() 
-												throws DocumentException {
-		ITreeMirrorStructure struct = null;
-		XmlResults res = null;
-		XmlTransaction txn = null;
-		
 		try {
-			initContainer(MASTER_CONTAINER); // initializes it if necessary
-			
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
-			context.setReturnType(XmlQueryContext.DeadValues);
-			context.setEvaluationType(XmlQueryContext.Eager);
+			// through the writer: after the documents queued before
+			writer.delete(container, docName);
 			
-			txn = manager.createTransaction();
-			res = latestMasterStructQueryExp.execute(txn, context);
-			txn.commit();
-			
-			String content = null;
-			XmlValue value = res.next();
-			if(value != null)
-				content = value.asString();
-			
-			struct = new TreeMirrorStructure(content);
-			
-		}catch (XmlException e) {
-			logger.fatal("Unable to retrieve latest structure document for master mirror");
-			logger.fatal(e.getStackTrace());
-			if(res != null)
-				res.delete();
-			if(txn !=null)
-				try {
-					txn.abort();
-				}catch(XmlException e2) {
-					logger.error(e2.getMessage());
-				}
-			MonitorApplication.exit(MonitorApplication.ABORT);
+		}catch (BDBXMLException e) {
+			logger.error("(deleteDocument: Unable to delete " + docName);
+			logger.error(e.getMessage());
 			
-		}finally {
-			if(res != null)
-				res.delete();
-			if(txn != null) 
-				txn.delete();
+		}finally{
+			// the document may have been part of a cached state
+			deleted(DeltaChain.getMirrorID(docName));
 		}
-		
-		return struct;
 	}
 	
 	/**
@@ -1256,8 +1356,9 @@ public class BDBXMLManager {
 	 * defined as mirrorID (host+protocol).
 	 * 
 	 * All representations of the same mirror are stored in the
-	 * same container. And all these docs have a unique timestamp.
-	 * This method uses the above properties to load the structure.
+	 * same container. And all these docs have a unique timestamp,
+	 * indexed as metadata: the latest full structure is found
+	 * without reading the others.
 	 * 
 	 * @param mirrorID
 	 * @return the mirror structure
@@ -1266,55 +1367,23 @@ public class BDBXMLManager {
 	 */
 	public ITreeMirrorStructure getLatestStructure(String mirrorID)
 												throws DocumentException {
-		//logger.setLevel(Level.DEBUG);
-		ITreeMirrorStructure struct = null;
 		String container = convertMirrorIDToContainer(mirrorID);
-		XmlResults res = null;
-		XmlTransaction txn = null;
+		
+		// the latest full structure is found from the end of the timestamp index
+		List<String> names = lookupDocumentNames(container, true, true);
+		if(names.isEmpty()) {
+			logger.error("Unable to retrieve latest structure document for " + mirrorID);
+			return null;
+		}
 		
 		try {
-
-			initContainer(container);	// initization
-			
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
-			context.setReturnType(XmlQueryContext.DeadValues);
-			context.setEvaluationType(XmlQueryContext.Eager);
-			context.setVariableValue(CONTAINER, new XmlValue(container));
-			
-			txn = manager.createTransaction();
-			logger.debug("latestFullStructInContainerQueryExp=" + latestFullStructInContainerQueryExp);
-			res = latestFullStructInContainerQueryExp.execute(txn, context);
-			txn.commit();
-			if(txn != null) {
-				txn.delete();
-				txn = null;
-			}
-
-			String content = null;
-			XmlValue value = res.next();
-			if(value != null)
-				content = value.asString();
-			
-			struct = new TreeMirrorStructure(content);
+			return MirrorStructureFactory.loadTreeStructure(getDocument(names.get(0)));
 			
-		}catch (XmlException e) {
+		}catch(BDBXMLException e) {
 			logger.error("Unable to retrieve latest structure document for " + mirrorID);
 			logger.error("\t" + e.getMessage());
-			if(txn !=null)
-				try {
-					txn.abort();
-				}catch(XmlException e2) {
-					logger.error(e2.getMessage());
-				}
-			
-		}finally {
-			if(res != null)
-				res.delete();
-			if(txn != null) 
-				txn.delete();
+			return null;
 		}
-		
-		return struct;
 	}
 
 	/**
@@ -1355,44 +1424,19 @@ public class BDBXMLManager {
 	 * @return number of documents in this container
 	 */
 	public int getDocumentCount(String mirrorID) {
-		XmlResults res = null;
 		String container = convertMirrorIDToContainer(mirrorID);
 		int count = -1;
-		XmlTransaction txn = null;
 		
+		lock.readLock().lock();
 		try {
-			initContainer(container);
-			
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
-			context.setReturnType(XmlQueryContext.LiveValues);
-			context.setEvaluationType(XmlQueryContext.Lazy);
-			context.setVariableValue(CONTAINER, new XmlValue(container));
-
-			txn = manager.createTransaction();
-			res = countAllDocsInContainerQueryExp.execute(txn, context);
-			
-			
-			XmlValue value = res.next();
-			if(value != null)
-				count = (int)value.asNumber();
-			
-			txn.commit();
+			// kept by the container, no need to read the documents
+			count = initContainer(container).getNumDocuments();
 			
 		}catch(XmlException e) {
 			logger.error("Unable to determine the number of documents in " + container);
 			logger.error(e.getStackTrace());
-			if(txn !=null)
-				try {
-					txn.abort();
-				}catch(XmlException e2) {
-					logger.error(e2.getMessage());
-				}
-			
-		}finally {
-			if(res != null)
-				res.delete();
-			if(txn != null) 
-				txn.delete();
+		}finally{
+			lock.readLock().unlock();
 		}
 		
 		return count;
@@ -1412,17 +1456,18 @@ public class BDBXMLManager {
 		XmlResults res = null;
 		XmlTransaction txn = null;
 		
+		lock.readLock().lock();
 		try {
 			initContainer(container);	// initialization
 			
-			XmlQueryContext context = manager.createQueryContext();	// not thread-safe
+			XmlQueryContext context = queryContext();
 			context.setReturnType(XmlQueryContext.DeadValues);
 			context.setEvaluationType(XmlQueryContext.Eager);
 			context.setVariableValue(CONTAINER, new XmlValue(container));
 			context.setVariableValue(DOCUMENT, new XmlValue(docName));
 			
 			txn = manager.createTransaction();
-			res = mirrorTypeQueryExp.execute(txn, context);
+			res = prepared(mirrorTypeQuery).execute(txn, context);
 			txn.commit();
 			
 			if(res != null && res.size() > 0)
@@ -1441,6 +1486,7 @@ public class BDBXMLManager {
 				}
 			
 		}finally {
+			lock.readLock().unlock();
 			if(res != null)
 				res.delete();
 			if(txn != null) 
@@ -1462,10 +1508,11 @@ public class BDBXMLManager {
 		String result = null;
 		XmlTransaction txn = null;
 		
+		lock.readLock().lock();
 		try {
 			
 			// Get a query context
-			XmlQueryContext context = manager.createQueryContext();
+			XmlQueryContext context = queryContext();
 			context.setEvaluationType(XmlQueryContext.Eager);
 			context.setReturnType(XmlQueryContext.LiveValues);
 
@@ -1486,6 +1533,7 @@ public class BDBXMLManager {
 			throw new BDBXMLException("Unable to run XQUERY=" + xquery, e);
 			
 		}finally {
+			lock.readLock().unlock();
 				if(res != null)
 					res.delete();
 				if(txn != null) 
@@ -1519,28 +1567,5 @@ public class BDBXMLManager {
 	private static String convertToContainer(String docName) {
 		return docName.split("-")[0] + ".dbxml";
 	}
-	
-	/**
-	 * Extract the timestamp from the document name
-	 * 
-	 * Examples
-	 * 		testmachine_ftp-1141113730566-delta.xml
-	 * 		testmachine_ftp-1141113730566.xml
-	 * 		testmachine_ftp-1141113730566-diff.xml
-	 * 
-	 * @param docName
-	 * @return the time stamp contained in document name
-	 */
-	private static String extractTimeStampFromDocName(String docName) throws BDBXMLException {
-		if(!docName.contains("-"))
-			throw new BDBXMLException("Illegal filename: " + docName);	// problem, this does not look like a good file name!
-		
-		String lastPart = docName.split("-")[1];	// after the mirror ID
-		
-		if(lastPart.split("-").length > 0) // diff or delta
-			return lastPart.split("-")[0].split("\\.")[0];
-		else
-			return docName.split("-")[1].split("\\.")[0];
-	}
 
 }
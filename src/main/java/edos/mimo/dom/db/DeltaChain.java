@@ -0,0 +1,146 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+
+/**
+ * Rebuilds the state of a mirror from the documents stored for it:
+ * a full structure, patched with the deltas stored after it
+ * (see doc/XQuery/allDeltasFromLastFullStruct.xquery).
+ * 
+ * Documents are told apart and ordered by their names, eg.
+ * 		testmachine_ftp-1141113730566.xml			full structure
+ * 		testmachine_ftp-1141114200000-delta.xml	delta
+ * 
+ * Deltas stored by earlier versions (not chained) refer to the full
+ * structure only: the state is then given by the last one of them
+ * and the chained deltas stored after it.
+ * 
+ * @author marc
+ *
+ */
+public class DeltaChain {
+	private static Logger logger = Logger.getLogger(DeltaChain.class);
+
+	private static final String DELTA_SUFFIX = "-delta.xml";
+	
+	/**
+	 * Chooses the documents giving the state of a mirror at a given time.
+	 * 
+	 * @param docNames names of the documents of the mirror, in chronological order
+	 * @param timestamp time of the state (milliseconds)
+	 * @return the latest full structure stored until timestamp, followed 
+	 * 			by the deltas stored after it until timestamp; empty if there 
+	 * 			is no such full structure
+	 * 
+	 * A delta having the time of the full structure is ignored: the full 
+	 * structure replaces it (see RetentionEngine).
+	 */
+	public static List<String> select(Collection<String> docNames, long timestamp) {
+		List<String> chain = new ArrayList<String>();
+		long fullTime = Long.MIN_VALUE;
+		
+		Iterator<String> it = docNames.iterator();
+		while(it.hasNext()) {
+			String docName = it.next();
+			long time;
+			try {
+				time = getTimeStamp(docName);
+			}catch(NumberFormatException nfe) {
+				logger.warn("Skipping document " + docName + ": no timestamp in its name");
+				continue;
+			}
+			if(time > timestamp)
+				break;
+			
+			if(isDelta(docName)) {
+				if(!chain.isEmpty() && time != fullTime)
+					chain.add(docName);
+			}else{
+				chain.clear();		// a newer full structure
+				chain.add(docName);
+				fullTime = time;
+			}
+		}
+		return chain;
+	}
+	
+	/**
+	 * Patches a full structure with deltas.
+	 * 
+	 * @param full the full structure, modified
+	 * @param deltas the deltas stored after it, in chronological order
+	 * @return the number of deltas applied
+	 */
+	public static int rebuild(ITreeMirrorStructure full, List<DOMMirrorDelta> deltas) {
+		// the last delta which is not chained replaces all the ones before
+		int start = 0;
+		for(int i = 0; i < deltas.size(); i++)
+			if(!deltas.get(i).isChained())
+				start = i;
+		
+		for(int i = start; i < deltas.size(); i++) {
+			DOMMirrorDelta delta = deltas.get(i);
+			logger.debug("applying " + delta.getDocumentID() + " (" + delta.getSize() + " changes)");
+			full.patch(delta);
+		}
+		return deltas.size() - start;
+	}
+	
+	public static boolean isDelta(String docName) {
+		return docName.endsWith(DELTA_SUFFIX);
+	}
+	
+	/**
+	 * @param docName eg. testmachine_ftp-1141113730566-delta.xml
+	 * @return the timestamp of the document, eg. 1141113730566
+	 * @throws NumberFormatException if the name has no timestamp
+	 */
+	public static long getTimeStamp(String docName) {
+		// the mirror ID may contain '-' (host name): the timestamp is after the last one
+		int end = end(docName);
+		return Long.parseLong(docName.substring(docName.lastIndexOf('-', end - 1) + 1, end));
+	}
+	
+	/**
+	 * @param docName eg. test-machine_ftp-1141113730566-delta.xml
+	 * @return the mirror of the document, eg. test-machine_ftp
+	 */
+	public static String getMirrorID(String docName) {
+		int start = docName.lastIndexOf('-', end(docName) - 1);
+		return (start < 0)?docName:docName.substring(0, start);
+	}
+	
+	/**
+	 * @return the end of the timestamp in the name of a document
+	 */
+	private static int end(String docName) {
+		int end = isDelta(docName)?docName.length() - DELTA_SUFFIX.length():docName.lastIndexOf('.');
+		if(end < 0)
+			end = docName.length();
+		return end;
+	}
+}
@@ -0,0 +1,428 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.log4j.Logger;
+
+import com.sleepycat.dbxml.XmlContainer;
+import com.sleepycat.dbxml.XmlDocument;
+import com.sleepycat.dbxml.XmlException;
+import com.sleepycat.dbxml.XmlManager;
+import com.sleepycat.dbxml.XmlTransaction;
+import com.sleepycat.dbxml.XmlUpdateContext;
+import com.sleepycat.dbxml.XmlValue;
+
+import edos.mimo.exception.BDBXMLException;
+
+/**
+ * Writes documents to the database from a single thread, grouping the 
+ * documents queued by the jobs into one transaction (group commit): 
+ * many documents are made durable by one synchronization of the log.
+ * 
+ * Each document is written with a durability:
+ *  . STRICT: the caller waits until its document is committed and
+ *    synchronized on disk, and gets the error if it could not be written.
+ *    Strict documents are committed as soon as the writer is free, 
+ *    together with all the documents queued meanwhile.
+ *  . RELAXED: the caller goes on as soon as the document is queued.
+ *    Relaxed documents may wait up to the flush interval to be grouped
+ *    with others, and are committed without synchronizing the log when
+ *    no strict document is part of the group. Errors are only logged.
+ *    
+ * Documents are written in the order they were queued. When a group 
+ * can't be committed, its documents are written again one at a time
+ * so that a bad document does not fail the others. An unexpected error
+ * (eg. a container which can't be opened) fails the whole group, and 
+ * the writer goes on with the next one.
+ * 
+ * With a queue size of 0, documents are written in the calling thread,
+ * each in its own transaction.
+ * 
+ * All the writes to the database go through the writer (deletions too),
+ * and are committed while no query runs (see BDBXMLManager.getWriteLock()).
+ * 
+ * @author marc
+ *
+ */
+public class DocumentWriter {
+	private static Logger logger = Logger.getLogger(DocumentWriter.class);
+
+	// durability
+	public static final int STRICT = 1;
+	public static final int RELAXED = 2;
+	
+	private static final Pending STOP = new Pending(null, null, null, -1, RELAXED, false);
+	private static final long CLOSE_WAIT = 60;	// s, for room in the queue when closing
+	
+	private BDBXMLManager db;
+	private XmlManager manager;
+	private BlockingQueue<Pending> queue = null;
+	private int batchSize;
+	private long flushInterval;
+	private Thread thread = null;
+	private boolean closed = false;
+	private Object lock = new Object();
+	
+	// statistics
+	private long documents = 0;
+	private long transactions = 0;
+	
+	/**
+	 * @param db the database the containers belong to
+	 * @param queueSize number of documents waiting to be written, 0 to write synchronously
+	 * @param flushInterval how long (ms) relaxed documents may wait to be grouped
+	 */
+	public DocumentWriter(BDBXMLManager db, int queueSize, long flushInterval) {
+		this.db = db;
+		this.manager = db.getXmlManager();
+		this.flushInterval = flushInterval;
+		this.batchSize = Math.max(queueSize, 1);
+		
+		if(queueSize > 0) {
+			queue = new ArrayBlockingQueue<Pending>(queueSize);
+			thread = new Thread(new Runnable() {
+				public void run() {
+					loop();
+				}
+			}, "DocumentWriter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Writes a document.
+	 * 
+	 * @param containerName
+	 * @param docName
+	 * @param content
+	 * @param durability STRICT or RELAXED
+	 * @param replace true to replace the document if it exists
+	 * @throws BDBXMLException if a strict document can't be written, 
+	 * 			or if the writer is closed
+	 */
+	public void write(String containerName, String docName, String content, 
+						int durability, boolean replace) throws BDBXMLException {
+		write(containerName, docName, content, -1, durability, replace);
+	}
+	
+	/**
+	 * Writes a document with its timestamp metadata (indexed, see BDBXMLManager).
+	 * 
+	 * @param timestamp time of the document in milliseconds, -1 if none
+	 * @see write(String, String, String, int, boolean)
+	 */
+	public void write(String containerName, String docName, String content, long timestamp,
+						int durability, boolean replace) throws BDBXMLException {
+		Pending p = new Pending(containerName, docName, content, timestamp, durability, replace);
+		
+		if(queue == null) {
+			commit(Collections.singletonList(p));
+			
+		}else{
+			synchronized(lock) {
+				if(closed)
+					throw new BDBXMLException("Document writer closed, unable to write " + docName);
+				try {
+					queue.put(p);	// waits when the queue is full
+				}catch(InterruptedException ie) {
+					throw new BDBXMLException("Interrupted while queuing " + docName);
+				}
+			}
+			if(durability == RELAXED)
+				return;
+			
+			try {
+				p.done.await();
+			}catch(InterruptedException ie) {
+				throw new BDBXMLException("Interrupted while writing " + docName);
+			}
+		}
+		
+		if(p.error != null)
+			throw p.error;
+	}
+	
+	/**
+	 * Deletes a document, after the documents queued before.
+	 * A document which does not exist is ignored.
+	 * 
+	 * @param containerName
+	 * @param docName
+	 * @throws BDBXMLException
+	 */
+	public void delete(String containerName, String docName) throws BDBXMLException {
+		write(containerName, docName, null, -1, STRICT, true);
+	}
+	
+	/**
+	 * Writes the documents still queued and stops the writer thread.
+	 * Documents can't be written any more.
+	 */
+	public void close() {
+		synchronized(lock) {
+			if(closed)
+				return;
+			closed = true;
+			if(queue != null)
+				try {
+					if(!queue.offer(STOP, CLOSE_WAIT, TimeUnit.SECONDS)) {
+						logger.error("Writer still busy after " + CLOSE_WAIT 
+										+ " s: queued documents may be lost");
+						return;
+					}
+				}catch(InterruptedException ie) {
+					logger.error("Interrupted while closing: queued documents may be lost");
+					return;
+				}
+		}
+		
+		if(thread != null)
+			try {
+				thread.join();
+			}catch(InterruptedException ie) {
+				logger.error("Interrupted while waiting for the queued documents to be written");
+			}
+		logger.info(this);
+	}
+	
+	/**
+	 * Writer thread
+	 */
+	private void loop() {
+		boolean stop = false;
+		while(!stop) {
+			List<Pending> batch = new ArrayList<Pending>();
+			try {
+				Pending p = queue.take();
+				if(p == STOP)
+					break;
+				batch.add(p);
+				boolean strict = (p.durability == STRICT);
+				
+				/*
+				 * GROUP
+				 * everything already queued, and relaxed documents
+				 * wait for others until the flush interval
+				 */
+				long deadline = System.currentTimeMillis() + flushInterval;
+				while(batch.size() < batchSize) {
+					p = queue.poll();
+					if(p == null) {
+						long wait = deadline - System.currentTimeMillis();
+						if(strict || wait <= 0)
+							break;
+						p = queue.poll(wait, TimeUnit.MILLISECONDS);
+						if(p == null)
+							break;
+					}
+					if(p == STOP) {
+						stop = true;
+						break;
+					}
+					batch.add(p);
+					strict = strict || (p.durability == STRICT);
+				}
+				
+			}catch(InterruptedException ie) {
+				logger.warn("Writer thread interrupted");
+				stop = closed;
+			}
+			
+			if(!batch.isEmpty())
+				commit(batch);
+		}
+		logger.debug("Writer thread stopped");
+	}
+	
+	/**
+	 * Writes documents in one transaction, then one at a time if it fails.
+	 * The callers of the documents are released.
+	 */
+	private void commit(List<Pending> batch) {
+		XmlTransaction txn = null;
+		XmlUpdateContext uc = null;
+		boolean strict = false;
+		
+		Lock lock = db.getWriteLock();
+		lock.lock();
+		try {
+			uc = manager.createUpdateContext();
+			txn = manager.createTransaction();
+			
+			Iterator<Pending> it = batch.iterator();
+			while(it.hasNext()) {
+				Pending p = it.next();
+				strict = strict || (p.durability == STRICT);
+				put(txn, uc, p);
+			}
+			
+			if(strict)
+				txn.commitSync();
+			else
+				txn.commitNoSync();
+			
+			synchronized(this) {
+				documents += batch.size();
+				transactions++;
+			}
+			logger.debug("Committed " + batch.size() + " documents" + (strict?"":" (no sync)"));
+			release(batch, null);
+			
+		}catch(XmlException e) {
+			if(txn != null)
+				try {
+					txn.abort();
+				}catch(XmlException e2) {
+					logger.error(e2.getMessage());
+				}
+			
+			if(batch.size() > 1) {
+				logger.warn("Unable to commit " + batch.size() + " documents (" + e.getMessage() 
+								+ "), writing them one at a time");
+				if(txn != null) {
+					txn.delete();
+					txn = null;
+				}
+				Iterator<Pending> it = batch.iterator();
+				while(it.hasNext())
+					commit(Collections.singletonList(it.next()));
+				
+			}else{
+				Pending p = batch.get(0);
+				logger.error("BDB XML error writing " + p.docName + ": " + e.getMessage());
+				release(batch, new BDBXMLException("BDB XML error: " + e.getMessage()));
+			}
+			
+		}catch(RuntimeException e) {
+			// not the fault of a document: the group fails, the writer goes on
+			if(txn != null)
+				try {
+					txn.abort();
+				}catch(XmlException e2) {
+					logger.error(e2.getMessage());
+				}
+			logger.error("Unable to write " + batch.size() + " documents: " + e);
+			release(batch, new BDBXMLException("Unable to write the document: " + e));
+			
+		}finally{
+			if(uc != null)
+				uc.delete();
+			if(txn != null) 
+				txn.delete();
+			lock.unlock();
+		}
+	}
+	
+	private void put(XmlTransaction txn, XmlUpdateContext uc, Pending p) throws XmlException {
+		XmlContainer container = db.initContainer(p.containerName);
+		if(container == null)
+			throw new IllegalStateException("Unable to open container " + p.containerName);
+		
+		if(p.replace)
+			try {
+				container.deleteDocument(txn, p.docName, uc);
+			}catch(XmlException e) {
+				if(e.getErrorCode() != XmlException.DOCUMENT_NOT_FOUND)
+					throw e;
+				logger.debug("no document " + p.docName + " to remove");
+			}
+		
+		if(p.content == null) {
+			logger.debug("Removed doc " + p.docName + " from container " + p.containerName);
+			return;
+		}
+		
+		if(p.timestamp < 0) {
+			container.putDocument(txn, p.docName, p.content, uc, null);
+			
+		}else{
+			XmlDocument doc = manager.createDocument();
+			try {
+				doc.setName(p.docName);
+				doc.setContent(p.content);
+				doc.setMetaData(BDBXMLManager.MIMO_URI, BDBXMLManager.TIMESTAMP_METADATA,
+									new XmlValue((double)p.timestamp));
+				container.putDocument(txn, doc, uc);
+			}finally{
+				doc.delete();
+			}
+		}
+		logger.debug("Added doc " + p.docName + " to container " + p.containerName);
+	}
+	
+	private void release(List<Pending> batch, BDBXMLException error) {
+		Iterator<Pending> it = batch.iterator();
+		while(it.hasNext()) {
+			Pending p = it.next();
+			p.error = error;
+			p.done.countDown();
+		}
+	}
+	
+	/**
+	 * @return the number of documents written
+	 */
+	public synchronized long getDocumentCount() {
+		return documents;
+	}
+	
+	/**
+	 * @return the number of transactions committed
+	 */
+	public synchronized long getTransactionCount() {
+		return transactions;
+	}
+	
+	public synchronized String toString() {
+		return "document writer: " + documents + " documents in " + transactions + " transactions";
+	}
+	
+	/**
+	 * A document waiting to be written
+	 */
+	private static class Pending {
+		String containerName;
+		String docName;
+		String content;
+		long timestamp;
+		int durability;
+		boolean replace;
+		BDBXMLException error = null;
+		CountDownLatch done = new CountDownLatch(1);
+		
+		Pending(String containerName, String docName, String content, long timestamp,
+					int durability, boolean replace) {
+			this.containerName = containerName;
+			this.docName = docName;
+			this.content = content;
+			this.timestamp = timestamp;
+			this.durability = durability;
+			this.replace = replace;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.dom.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.dom.ITreeMirrorStructure;
+
+/**
+ * Keeps the latest parsed structure of the mirrors (and of the master)
+ * so that the jobs do not query and parse them again for every run.
+ * 
+ * The cache is bounded by the size of the XML documents the structures
+ * were loaded from (the parsed trees take several times this size):
+ * the least recently used structures are evicted first.
+ * 
+ * Cached structures are shared: they must not be modified by the callers.
+ * 
+ * The storages record the structures and deltas they save with stored()
+ * and replace() (write-through): the latest master structure, cached
+ * under MASTER_KEY, is dropped whenever the master changes.
+ * 
+ * @author marc
+ *
+ */
+public class StructureCache {
+	private static Logger logger = Logger.getLogger(StructureCache.class);
+	
+	public static final String MASTER_KEY = "latest master structure";	// apart from the mirror IDs
+
+	private long limit;		// in bytes of XML, 0 to disable the cache
+	private long weight = 0;
+	
+	// statistics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	
+	// access ordered: the eldest entry is the least recently used
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	
+	/**
+	 * @param limit size of the cached documents, in bytes of XML
+	 */
+	public StructureCache(long limit) {
+		this.limit = limit;
+	}
+	
+	/**
+	 * @param key mirror ID
+	 * @return the cached structure, or null
+	 */
+	public synchronized ITreeMirrorStructure get(String key) {
+		Entry e = entries.get(key);
+		if(e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.struct;
+	}
+	
+	/**
+	 * Caches a structure, replacing the previous one for this key.
+	 * 
+	 * @param key mirror ID
+	 * @param struct
+	 * @param size length of its XML document
+	 */
+	public synchronized void put(String key, ITreeMirrorStructure struct, long size) {
+		remove(key);
+		if(size > limit) {
+			logger.debug("not caching " + key + " (" + size + " bytes)");
+			return;
+		}
+		
+		entries.put(key, new Entry(struct, size));
+		weight += size;
+		
+		/*
+		 * EVICTION
+		 */
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while(weight > limit && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			weight -= eldest.getValue().size;
+			it.remove();
+			evictions++;
+			logger.debug("evicted " + eldest.getKey());
+		}
+	}
+	
+	/**
+	 * @return the size given when the structure was cached, -1 if not cached
+	 */
+	public synchronized long sizeOf(String key) {
+		Entry e = entries.get(key);
+		return (e == null)?-1:e.size;
+	}
+	
+	/**
+	 * Write-through of a stored full structure: it is the new state
+	 * of its mirror.
+	 * 
+	 * @param mirrorID
+	 * @param struct
+	 * @param size length of its XML document
+	 */
+	public synchronized void stored(String mirrorID, ITreeMirrorStructure struct, long size) {
+		put(mirrorID, struct, size);
+		if(Config.MASTER.equals(mirrorID))
+			remove(MASTER_KEY);
+	}
+	
+	/**
+	 * Write-through of a state stored as a delta: the structure it leads to
+	 * replaces the cached state, weighing as much (its size is about the 
+	 * same). Nothing is cached if the previous state was not.
+	 * 
+	 * @param mirrorID
+	 * @param struct the new state, null if unknown (the cached state is dropped)
+	 */
+	public synchronized void replace(String mirrorID, ITreeMirrorStructure struct) {
+		long size = sizeOf(mirrorID);
+		if(struct == null || size < 0)
+			remove(mirrorID);
+		else
+			put(mirrorID, struct, size);
+		if(Config.MASTER.equals(mirrorID))
+			remove(MASTER_KEY);
+	}
+	
+	public synchronized void invalidate(String key) {
+		remove(key);
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+	
+	private void remove(String key) {
+		Entry e = entries.remove(key);
+		if(e != null)
+			weight -= e.size;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * @return the number of cached structures
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return the size of the cached documents, in bytes of XML
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+	
+	public long getLimit() {
+		return limit;
+	}
+	
+	public synchronized String toString() {
+		return "structure cache: " + entries.size() + " structures, " 
+				+ (weight / 1024) + "/" + (limit / 1024) + " KB, " 
+				+ hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+	
+	private static class Entry {
+		ITreeMirrorStructure struct;
+		long size;
+		
+		Entry(ITreeMirrorStructure struct, long size) {
+			this.struct = struct;
+			this.size = size;
+		}
+	}
+}
@@ -28,9 +28,10 @@ import org.apache.log4j.xml.DOMConfigurator;
 import edos.distribution.mirror.ExtractDocument;
 import edos.mimo.Config;
 import edos.mimo.MonitorApplication;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 
 /**
  * This example shows how a document is extracted from the database
@@ -50,12 +51,12 @@ public class ExtractDocument {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -111,7 +112,7 @@ public class ExtractDocument {
 			System.err.println("An error happened while copying the document " + docName 
 					+ " from the database to the file system");
 		*/
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			System.err.println(e.getMessage());
 			//e.printStackTrace();
 		}finally{
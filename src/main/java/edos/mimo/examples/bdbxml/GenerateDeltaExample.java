@@ -27,12 +27,13 @@ import org.dom4j.DocumentException;
 import edos.distribution.mirror.GenerateDeltaExample;
 import edos.mimo.Config;
 import edos.mimo.MonitorApplication;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.DOMMirrorDelta;
 import edos.mimo.dom.ITreeMirrorStructure;
 import edos.mimo.dom.TreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 import edos.mimo.statistics.MirrorDeltaStatistics;
 
 /**
@@ -56,12 +57,12 @@ public class GenerateDeltaExample {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -81,15 +82,15 @@ public class GenerateDeltaExample {
 		System.out.println("Step 1. loading 2 historical versions of the same document from the database");
 		
 		try {
-			// retrieve all documents from the test data collection
-			Collection<String> docs = manager.getDocumentsInChronologicalOrder("testmachine_ftp.dbxml");
+			// retrieve all documents of the test data mirror
+			Collection<String> docs = manager.getDocuments("testmachine_ftp", Long.MIN_VALUE, Long.MAX_VALUE);
 			
 			// take the latest 2
 			Object[] docsArray = docs.toArray();
 			int size = docsArray.length;
 			if(size < 2) {
 				System.err.println("Please make sure you have at least 2 documents "
-						+"in container testmachine_ftp.dbxml for this test.");
+						+"of testmachine_ftp for this test.");
 				System.err.println("Aborted");
 				System.exit(1);
 			}
@@ -114,7 +115,7 @@ public class GenerateDeltaExample {
 			logger.fatal(doce.getStackTrace());
 			//doce.printStackTrace();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			System.err.println(e.getMessage());
 			logger.fatal(e.getStackTrace());
 			//e.printStackTrace();
@@ -29,12 +29,13 @@ import edos.mimo.Config;
 import edos.mimo.IMasterMirror;
 import edos.mimo.ISecondaryMirror;
 import edos.mimo.MonitorApplication;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.DOMDiffGenerator;
 import edos.mimo.dom.DOMMirrorDiff;
 import edos.mimo.dom.ITreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 import edos.mimo.filesystem.DiffGeneratorFactory;
 import edos.mimo.filesystem.IMirrorDiff;
 import edos.mimo.statistics.MirrorDiffStatistics;
@@ -92,12 +93,12 @@ public class GenerateTreeDiffExample {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -131,6 +132,9 @@ public class GenerateTreeDiffExample {
 		}catch(DocumentException doce) {
 			System.err.println("Unable to load mirror from file...");
 			doce.printStackTrace();
+		}catch(StorageException e) {
+			System.err.println(e.getMessage());
+			MonitorApplication.exit(MonitorApplication.ABORT);
 		}catch(NullPointerException npe) {
 			if(master == null || mirror == null) {
 				System.err.println("Please ensure you have mirror data in the database first!");
@@ -26,10 +26,12 @@ import org.apache.log4j.xml.DOMConfigurator;
 
 import edos.distribution.mirror.ListDocuments;
 import edos.mimo.Config;
+import edos.mimo.IMirror;
 import edos.mimo.MonitorApplication;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 
 
 /**
@@ -48,12 +50,12 @@ public class ListDocuments {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -66,12 +68,12 @@ public class ListDocuments {
 		
 		
 		/*
-		 * CONTAINERS LIST
+		 * MIRRORS LIST
 		 */
-		System.out.println("List of containers (by mirror access):");
-		System.out.println("--------------------------------------");
-		List<String> containers = manager.getContainers();
-		ListIterator<String> listIt = containers.listIterator();
+		System.out.println("List of mirrors (by mirror access):");
+		System.out.println("-----------------------------------");
+		List<String> mirrors = manager.getMirrorIDs();
+		ListIterator<String> listIt = mirrors.listIterator();
 		while(listIt.hasNext()) {
 			System.out.println("\t- " + listIt.next());
 		}
@@ -80,29 +82,23 @@ public class ListDocuments {
 		/*
 		 * DOCUMENT LIST
 		 */
-		listIt = containers.listIterator();
+		listIt = mirrors.listIterator();
 		while(listIt.hasNext()) {
-			String container = listIt.next();
+			String mirrorID = listIt.next();
 			System.out.println("--------------------------------------------------");
-			System.out.println("Documents in " + container );
+			System.out.println("Documents of " + mirrorID );
 			
-			/* ------------ Start options --------------- */
-			// OPTION 1: Unsorted list of documents
-			//List<String> docs = manager.getDocuments(container);
-			//ListIterator<String> docsIt = docs.listIterator();
-			
-			// OPTION 2: sorted collection documents in chronological order
-			Collection<String> docs = manager.getDocumentsInChronologicalOrder(container);
+			// structures and deltas in chronological order
+			Collection<String> docs = manager.getDocuments(mirrorID, Long.MIN_VALUE, Long.MAX_VALUE);
 			if(docs.size() < 1) {
 				System.out.println("\t<empty>\n");
 				continue;
 			}
-			Iterator<String> docsIt = docs.iterator();
-			/* ------------ Ed options --------------- */
 			
+			String type = mirrorID.equals(Config.MASTER)?IMirror.MASTER:IMirror.MIRROR;
+			Iterator<String> docsIt = docs.iterator();
 			while(docsIt.hasNext()) {
 				String xmlDoc = docsIt.next();
-				String type = manager.getMirrorType(container, xmlDoc);
 				System.out.println("\t- " + xmlDoc + "\t("  + type + ")");				
 			}
 
@@ -28,10 +28,11 @@ import edos.mimo.ISecondaryMirror;
 import edos.mimo.Identity;
 import edos.mimo.MirrorFactory;
 import edos.mimo.MonitorApplication;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.ITreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 
 /**
  * Sample session with a Master Mirror.
@@ -55,12 +56,12 @@ public class MirrorStatusViaFTP {
 		DOMConfigurator.configure("log4j-config-4debugging.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -28,10 +28,11 @@ import edos.mimo.ISecondaryMirror;
 import edos.mimo.Identity;
 import edos.mimo.MirrorFactory;
 import edos.mimo.MonitorApplication;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.ITreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 
 /**
  * Example showing how a mirror structure can be acquiring
@@ -52,12 +53,12 @@ public class MirrorStatusViaHTTP {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -25,9 +25,10 @@ import org.apache.log4j.xml.DOMConfigurator;
 import edos.distribution.mirror.RemoveDocument;
 import edos.mimo.Config;
 import edos.mimo.MonitorApplication;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 
 /**
  * This example shows how a document is removed from the database.
@@ -44,12 +45,12 @@ public class RemoveDocument {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			logger.info("Database shutdown. Task complete.");
 			MonitorApplication.exit(MonitorApplication.ABORT);
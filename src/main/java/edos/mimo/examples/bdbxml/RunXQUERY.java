@@ -34,6 +34,9 @@ import edos.mimo.exception.ConfigException;
 
 /**
  * Gives the possibility to run any XQUERY within the database.
+ * XQUERY is particular to the Berkeley DB XML backend: this example
+ * opens BDBXMLManager itself instead of the storage of the config file
+ * (see StorageFactory).
  * 
  * Note:
  * oXygenXML Editor allows to do that (not free software, but 
@@ -30,10 +30,11 @@ import edos.distribution.mirror.StoreDeltaDocument;
 import edos.mimo.Config;
 import edos.mimo.IMirrorDelta;
 import edos.mimo.MonitorApplication;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.DOMMirrorDelta;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 
 
 /**
@@ -54,12 +55,12 @@ public class StoreDeltaDocument {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -117,7 +118,7 @@ public class StoreDeltaDocument {
 			logger.info("Database shutdown. Task complete.");
 			System.exit(1);
 			
-		}catch(BDBXMLException bdbe) {
+		}catch(StorageException se) {
 			logger.fatal("Unable to store " + delta.getFilename());
 		}
 
@@ -29,11 +29,12 @@ import org.dom4j.DocumentException;
 import edos.distribution.mirror.StoreStructureDocument;
 import edos.mimo.Config;
 import edos.mimo.MonitorApplication;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.ITreeMirrorStructure;
 import edos.mimo.dom.TreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
 
 
 /**
@@ -54,12 +55,12 @@ public class StoreStructureDocument {
 		DOMConfigurator.configure("log4j-config-4testing.xml");
 		
 		// initializing the database
-		BDBXMLManager manager = null;
+		IStorage manager = null;
 		try {
 			Config.getInstance();	// load default configuration from file
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal(e.getStackTrace());
 			MonitorApplication.exit(MonitorApplication.ABORT);
 			
@@ -116,7 +117,7 @@ public class StoreStructureDocument {
 			logger.info("Database shutdown. Task complete.");
 			System.exit(1);
 			
-		}catch(BDBXMLException bdbe) {
+		}catch(StorageException se) {
 			logger.fatal("Unable to store " + struct.getFilename());
 		}
 
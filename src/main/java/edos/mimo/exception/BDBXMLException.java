@@ -16,11 +16,9 @@
  */
 package edos.mimo.exception;
 
-import java.io.IOException;
-
 import com.sleepycat.dbxml.XmlException;
 
-public class BDBXMLException extends IOException {
+public class BDBXMLException extends StorageException {
 	private static final long serialVersionUID = 1L;
 	
 	
@@ -0,0 +1,39 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.exception;
+
+import java.io.IOException;
+
+/**
+ * Raised by the storage backends (see edos.mimo.dal.IStorage) when a 
+ * document can't be written or read.
+ * 
+ * @author marc
+ *
+ */
+public class StorageException extends IOException {
+	private static final long serialVersionUID = 1L;
+	
+	public StorageException(String message) {
+		super(message);
+	}
+	
+	public StorageException(String message, Throwable cause) {
+		super(message + ": " + cause.getMessage());
+		initCause(cause);
+	}
+}
@@ -16,13 +16,19 @@
  */
 package edos.mimo.filesystem;
 
+import java.sql.SQLException;
 import java.text.ParseException;
 
+import org.apache.log4j.Logger;
+
 import edos.distribution.mirror.IDiffGenerator;
 import edos.mimo.Config;
 import edos.mimo.IMasterMirror;
 import edos.mimo.ISecondaryMirror;
 import edos.mimo.dom.DOMDiffGenerator;
+import edos.mimo.dom.MergeDiffGenerator;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.rdbms.TableDiffGenerator;
 
 /**
  * Coping with many possible modelizations for the file system,
@@ -33,21 +39,53 @@ import edos.mimo.dom.DOMDiffGenerator;
  *
  */
 public class DiffGeneratorFactory {
+	private static Logger logger = Logger.getLogger(DiffGeneratorFactory.class);
 
 	/**
 	 * Generate a concrete implementation based on the 
-	 * choosen implementation model
+	 * choosen implementation model, with the diff engine
+	 * defined in the configuration (if loaded)
 	 * @throws ParseException 
 	 */
 	public static IDiffGenerator getDiffGenerator(int type, IMasterMirror master, ISecondaryMirror mirror) throws ParseException {
+		int engine = Config.XPATH_DIFF;	// default
+		
+		if(Config.isLoaded()) {
+			try {
+				engine = Config.getInstance().getDiffEngine();
+				
+			} catch (ConfigException e) {
+				// cannot happen once loaded, keep the default
+			}
+		}
+		
+		return getDiffGenerator(type, engine, master, mirror);
+	}
+	
+	/**
+	 * Generate a concrete implementation based on the 
+	 * choosen implementation model and diff engine
+	 * (Config.XPATH_DIFF or Config.MERGE_DIFF; the table model has a
+	 * single engine, computing the diff in the database)
+	 * @return the generator, null if the table diff failed
+	 * @throws ParseException 
+	 */
+	public static IDiffGenerator getDiffGenerator(int type, int engine, IMasterMirror master, ISecondaryMirror mirror) throws ParseException {
 		IDiffGenerator gen = null;
 		
 		if(type == Config.TREE) {
-			gen =  new DOMDiffGenerator(master, mirror);
+			if(engine == Config.MERGE_DIFF)
+				gen = new MergeDiffGenerator(master, mirror);
+			else
+				gen = new DOMDiffGenerator(master, mirror);
 			
 		}else if(type == Config.TABLE) {
-			// add your own implementation here
-			// eg. table-based adapted to RDBMS
+			try {
+				gen = new TableDiffGenerator(master, mirror);
+				
+			}catch(SQLException e) {
+				logger.fatal("Unable to compute the table diff: " + e.getMessage());
+			}
 		}
 		
 		return gen;
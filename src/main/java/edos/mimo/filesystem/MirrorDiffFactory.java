@@ -20,6 +20,7 @@ import edos.mimo.Config;
 import edos.mimo.IMasterMirror;
 import edos.mimo.ISecondaryMirror;
 import edos.mimo.dom.DOMMirrorDiff;
+import edos.mimo.rdbms.TableMirrorDiff;
 
 /**
  * Coping with many possible modelizations of the file system,
@@ -38,7 +39,7 @@ public class MirrorDiffFactory {
 			mDiff = new DOMMirrorDiff(master, mirror);
 			
 		}else if(type == Config.TABLE) {
-			// add your own implementation for a table-based model
+			mDiff = new TableMirrorDiff(master, mirror);
 		}
 		
 		return mDiff;
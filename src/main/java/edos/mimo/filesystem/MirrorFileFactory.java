@@ -42,18 +42,12 @@ public class MirrorFileFactory {
 	 * @return
 	 */
 	public static IFile create(String path, FTPFile f) {
-		IFile file;
-		
-		if(f.isDirectory())
-			file = new MirrorDirectory(f.getName(), new Date(f.getTimestamp()), f.getSize(), path);
-		else
-			file = new MirrorFile(f.getName(), new Date(f.getTimestamp()), f.getSize(), path);
-		
-		return file;
+		return create(f.getName(), new Date(f.getTimestamp()), f.getSize(), path, f.isDirectory());
 	}
 
 	/**
 	 * Creates the file by individually setting up every attribute.
+	 * The name is shared with the other mirrors through the NamePool.
 	 * @param name
 	 * @param date
 	 * @param size
@@ -62,6 +56,7 @@ public class MirrorFileFactory {
 	 */
 	public static IFile create(String name, Date date, long size, String path, boolean dir) {
 		IFile file;
+		name = NamePool.getInstance().intern(name);
 		
 		if(dir)
 			file = new MirrorDirectory(name, date, size, path);
@@ -106,15 +101,13 @@ public class MirrorFileFactory {
 			// the line contains a file name eventually followed by a '/' character
 			// in lieu of a directory
 			if(ssh2RawListing.endsWith("/")) {
-				IFile file = new MirrorDirectory(ssh2RawListing.substring(0, ssh2RawListing.length()-1),
-						MirrorFile.UNKNOWN_DATE, MirrorFile.UNKNOWN_SIZE, MirrorFile.UNKNOWN_PATH);
-				return file;
+				return create(ssh2RawListing.substring(0, ssh2RawListing.length()-1),
+						MirrorFile.UNKNOWN_DATE, MirrorFile.UNKNOWN_SIZE, MirrorFile.UNKNOWN_PATH, true);
 			}
 			
 			// a regular file -not a directory
-			IFile file = new MirrorFile(ssh2RawListing,
-					MirrorFile.UNKNOWN_DATE, MirrorFile.UNKNOWN_SIZE, path);	
-			return file;	
+			return create(ssh2RawListing,
+					MirrorFile.UNKNOWN_DATE, MirrorFile.UNKNOWN_SIZE, path, false);
 			
 		}else if(command.contains(Shell.COMMAND_LS_L)){
 			// this should not happen because the commands filters the header
@@ -159,12 +152,10 @@ public class MirrorFileFactory {
 			if(ssh2RawListing.startsWith("d")) {
 				if(name.endsWith("/"))
 					name = name.substring(0, name.length() -1);
-				IFile file = new MirrorDirectory(name, new Date(cal), size, path );
-				return file;
+				return create(name, new Date(cal), size, path, true);
 			}
 			
-			IFile file = new MirrorFile(name, new Date(cal), size, path);
-			return file;
+			return create(name, new Date(cal), size, path, false);
 			
 		}else
 			throw new SSH2Exception("Command " + command
@@ -0,0 +1,188 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.filesystem;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.exception.ConfigException;
+
+/**
+ * Dictionary of the file and directory names shared by all the mirrors.
+ *
+ * The mirrors of a distribution have the same hundreds of thousands of
+ * file names: each structure, file and diff holding its own copies would
+ * keep as many copies of every name as there are mirrors. Names go through
+ * the pool when the mirrors are crawled, when structures are loaded and
+ * when they are compared, so that they share a single String instance.
+ *
+ * Each name also gets an integer id. Ids are never reused: 2 names with
+ * the same id are equal, and comparing names known to the pool becomes
+ * an int compare (see SiblingMatcher). The reverse does not hold: a name
+ * dropped from the pool gets a new id when it comes back.
+ *
+ * The pool is bounded by generations: names are added to the young
+ * generation; when it is full it becomes the old one and the previous
+ * old generation is dropped. A name found in the old generation is
+ * moved back to the young one with its id. Names which have not been
+ * seen for 2 generations are thus forgotten (the structures still
+ * referring to them keep their instances).
+ *
+ * Thread-safe.
+ *
+ * @author marc
+ *
+ */
+public class NamePool {
+	private static Logger logger = Logger.getLogger(NamePool.class);
+
+	public static final int DEFAULT_GENERATION_SIZE = 500000;
+	public static final int NO_ID = -1;
+
+	private static NamePool instance;
+
+	private final int generationSize;
+	private volatile ConcurrentHashMap<String,Entry> young;
+	private volatile ConcurrentHashMap<String,Entry> old;
+	private final AtomicInteger youngSize = new AtomicInteger(0);
+	private final AtomicInteger nextId = new AtomicInteger(0);
+	private int generations = 0;
+
+
+	/**
+	 * @param generationSize number of names of a generation
+	 * 			(the pool keeps up to twice that number)
+	 */
+	public NamePool(int generationSize) {
+		if(generationSize <= 0)
+			throw new IllegalArgumentException("Invalid generation size: " + generationSize);
+		this.generationSize = generationSize;
+		young = new ConcurrentHashMap<String,Entry>();
+		old = new ConcurrentHashMap<String,Entry>();
+	}
+
+	/**
+	 * The pool shared by all the mirrors, sized as defined in
+	 * the configuration (if loaded).
+	 */
+	public static synchronized NamePool getInstance() {
+		if(instance == null) {
+			int size = DEFAULT_GENERATION_SIZE;
+			if(Config.isLoaded()) {
+				try {
+					size = Config.getInstance().getNamePoolGeneration();
+
+				} catch (ConfigException e) {
+					// cannot happen once loaded, keep the default
+				}
+			}
+			instance = new NamePool(size);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param name
+	 * @return the instance of the pool equal to name (null for null)
+	 */
+	public String intern(String name) {
+		if(name == null)
+			return null;
+		return lookup(name).name;
+	}
+
+	/**
+	 * @param name
+	 * @return the id of name, NO_ID for null
+	 */
+	public int id(String name) {
+		if(name == null)
+			return NO_ID;
+		return lookup(name).id;
+	}
+
+	/**
+	 * @return the number of names in the pool (approximate under concurrent use)
+	 */
+	public int size() {
+		return young.size() + old.size();
+	}
+
+	/**
+	 * @return the number of generations dropped so far
+	 */
+	public synchronized int getGenerations() {
+		return generations;
+	}
+
+	/**
+	 * Forgets all names (ids are not reused)
+	 */
+	public synchronized void clear() {
+		young = new ConcurrentHashMap<String,Entry>();
+		old = new ConcurrentHashMap<String,Entry>();
+		youngSize.set(0);
+	}
+
+	private Entry lookup(String name) {
+		ConcurrentHashMap<String,Entry> y = young;
+		Entry e = y.get(name);
+		if(e != null)
+			return e;
+
+		e = old.get(name);
+		if(e == null)	// copied: name may be a substring of a whole listing line
+			e = new Entry(new String(name), nextId.getAndIncrement());
+
+		Entry previous = y.putIfAbsent(e.name, e);
+		if(previous != null)
+			return previous;
+
+		if(youngSize.incrementAndGet() > generationSize)
+			rotate(y);
+		return e;
+	}
+
+	/**
+	 * Starts a new generation, unless another thread already did it.
+	 * @param full the young generation found full
+	 */
+	private synchronized void rotate(ConcurrentHashMap<String,Entry> full) {
+		if(young != full)
+			return;
+
+		old = full;
+		young = new ConcurrentHashMap<String,Entry>();
+		youngSize.set(0);
+		generations++;
+		logger.debug("name pool: generation " + generations + " started, "
+						+ old.size() + " names kept in the old one");
+	}
+
+	private static class Entry {
+		final String name;
+		final int id;
+
+		Entry(String name, int id) {
+			this.name = name;
+			this.id = id;
+		}
+	}
+}
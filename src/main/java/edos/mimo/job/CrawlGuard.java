@@ -0,0 +1,169 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.job;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a mirror from being crawled twice at the same time.
+ * 
+ * A crawl running past the next fire time of its trigger (or
+ * stuck on a slow mirror) used to be joined by a second crawl of
+ * the same mirror, which opened one more connection and raced on
+ * the structure of the mirror. Now the fires arriving during the
+ * crawl are coalesced: they are counted, and a single follow-up
+ * crawl runs once the current one is over.
+ * 
+ *  if(guard.enter(mirrorID)) {
+ *  	// crawl
+ *  	if(guard.exit(mirrorID))
+ *  		// fire the follow-up crawl
+ *  }
+ * 
+ * @author marc
+ *
+ */
+public class CrawlGuard {
+	private static Logger logger = Logger.getLogger(CrawlGuard.class);
+	
+	private static CrawlGuard instance = null;
+	
+	private Set<String> running;		// mirrors being crawled
+	private Set<String> pending;		// mirrors fired during their crawl
+	private Hashtable<String,Integer> coalesced;	// fires folded, by mirror
+	private Hashtable<String,Integer> timeouts;		// crawls aborted, by mirror
+	private List<CrawlListener> listeners;
+	
+	public CrawlGuard() {
+		running = new HashSet<String>();
+		pending = new HashSet<String>();
+		coalesced = new Hashtable<String,Integer>();
+		timeouts = new Hashtable<String,Integer>();
+		listeners = new ArrayList<CrawlListener>();
+	}
+	
+	/**
+	 * Guard shared by the downloader jobs
+	 * @return
+	 */
+	public static synchronized CrawlGuard getInstance() {
+		if(instance == null)
+			instance = new CrawlGuard();
+		return instance;
+	}
+	
+	public synchronized void addListener(CrawlListener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Called before crawling a mirror
+	 * @param mirrorID
+	 * @return true if the crawl may start, false if the mirror is
+	 * 			already being crawled (the fire is then coalesced)
+	 */
+	public boolean enter(String mirrorID) {
+		synchronized(this) {
+			if(running.add(mirrorID))
+				return true;
+			
+			pending.add(mirrorID);
+			increment(coalesced, mirrorID);
+		}
+		logger.warn(mirrorID + " is still being crawled, coalescing into a follow-up crawl");
+		
+		long now = System.currentTimeMillis();
+		CrawlListener[] l = getListeners();
+		for(int i = 0; i < l.length; i++) {
+			try {
+				l[i].crawlCoalesced(mirrorID, now);
+			}catch(RuntimeException e) {
+				logger.error("Crawl listener failed: " + e.getMessage());
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Called when the crawl of a mirror is over (and its connection closed)
+	 * @param mirrorID
+	 * @return true if the mirror was fired during the crawl: one
+	 * 			follow-up crawl is due
+	 */
+	public synchronized boolean exit(String mirrorID) {
+		running.remove(mirrorID);
+		return pending.remove(mirrorID);
+	}
+	
+	/**
+	 * Called when the crawl of a mirror is aborted after its timeout
+	 * (the mirror stays guarded until the crawl really ends)
+	 * @param mirrorID
+	 */
+	public void timedOut(String mirrorID) {
+		synchronized(this) {
+			increment(timeouts, mirrorID);
+		}
+		
+		long now = System.currentTimeMillis();
+		CrawlListener[] l = getListeners();
+		for(int i = 0; i < l.length; i++) {
+			try {
+				l[i].crawlTimedOut(mirrorID, now);
+			}catch(RuntimeException e) {
+				logger.error("Crawl listener failed: " + e.getMessage());
+			}
+		}
+	}
+	
+	public synchronized boolean isRunning(String mirrorID) {
+		return running.contains(mirrorID);
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @return the number of fires coalesced for the mirror
+	 */
+	public synchronized int getCoalesced(String mirrorID) {
+		Integer count = coalesced.get(mirrorID);
+		return (count == null)?0:count.intValue();
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @return the number of crawls of the mirror aborted after their timeout
+	 */
+	public synchronized int getTimeouts(String mirrorID) {
+		Integer count = timeouts.get(mirrorID);
+		return (count == null)?0:count.intValue();
+	}
+	
+	private synchronized CrawlListener[] getListeners() {
+		return listeners.toArray(new CrawlListener[listeners.size()]);
+	}
+	
+	private static void increment(Hashtable<String,Integer> counts, String mirrorID) {
+		Integer count = counts.get(mirrorID);
+		counts.put(mirrorID, new Integer((count == null)?1:count.intValue() + 1));
+	}
+}
@@ -0,0 +1,194 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.job;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.exception.ConfigException;
+
+/**
+ * Bounds the number of crawls running at the same time, so that the
+ * connections and the trees being built stay about constant instead
+ * of all coming at once.
+ * 
+ * The limit follows the measured crawls: each mirror takes on average
+ * duration / interval of a crawler (its crawl time over the time between
+ * its crawls), the sum over the mirrors is the number of crawls needed
+ * to keep up with the schedule. The limit is this load with some headroom,
+ * between 1 and the ceiling set in the configuration:
+ * 
+ *  limit = min(ceiling, max(1, ceil(HEADROOM * sum(duration / interval))))
+ * 
+ * The mirrors not crawled yet count for the average duration of the
+ * others; before any crawl is over, the limit is the ceiling.
+ * 
+ * A crawl over the limit waits for a running one to end. An abandoned
+ * crawl (see DownloaderJob) keeps its place until it really ends, its
+ * connection being open until then.
+ * 
+ * @author marc
+ *
+ */
+public class CrawlLimiter {
+	private static Logger logger = Logger.getLogger(CrawlLimiter.class);
+	
+	public static final double HEADROOM = 1.5;	// crawlers over the measured load
+	private static final double WEIGHT = 0.3;	// of the latest measure in the averages
+	
+	private static CrawlLimiter instance = null;
+	
+	private int ceiling;	// 0 for no limit
+	private int running = 0;
+	private int waits = 0;	// crawls which had to wait
+	
+	private Hashtable<String,Long> durations;	// average crawl time, by mirror
+	private Hashtable<String,Long> intervals;	// average time between the crawls
+	private Hashtable<String,Long> lastFires;	// latest crawl asked for
+	
+	/**
+	 * @param ceiling highest number of crawls at the same time, 0 for no limit
+	 */
+	public CrawlLimiter(int ceiling) {
+		if(ceiling < 0)
+			throw new IllegalArgumentException("Invalid crawl ceiling: " + ceiling);
+		this.ceiling = ceiling;
+		durations = new Hashtable<String,Long>();
+		intervals = new Hashtable<String,Long>();
+		lastFires = new Hashtable<String,Long>();
+	}
+	
+	/**
+	 * Limiter shared by the downloader jobs, with the ceiling
+	 * of the configuration
+	 * @return
+	 * @throws ConfigException
+	 */
+	public static synchronized CrawlLimiter getInstance() throws ConfigException {
+		if(instance == null)
+			instance = new CrawlLimiter(Config.getInstance().getCrawlCeiling());
+		return instance;
+	}
+	
+	/**
+	 * Waits until the mirror may be crawled
+	 * @param mirrorID
+	 * @param interval time to the next scheduled crawl of the mirror (in ms),
+	 * 			0 if unknown: the time since its previous crawl is taken instead,
+	 * 			negative for a crawl out of the schedule (eg. the follow-up of 
+	 * 			coalesced fires): it says nothing about the interval
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(String mirrorID, long interval) throws InterruptedException {
+		if(interval >= 0) {
+			long now = System.currentTimeMillis();
+			Long last = lastFires.put(mirrorID, new Long(now));
+			if(interval == 0 && last != null)
+				interval = now - last.longValue();
+			if(interval > 0)
+				average(intervals, mirrorID, interval);
+		}
+		
+		if(ceiling > 0 && running >= getLimit()) {
+			waits++;
+			logger.info(mirrorID + " waiting, " + running + " crawls running (limit " + getLimit() + ")");
+			while(running >= getLimit())
+				wait();
+		}
+		running++;
+	}
+	
+	/**
+	 * Called when a crawl ends (connection closed)
+	 * @param mirrorID
+	 * @param duration of the crawl, in ms
+	 */
+	public synchronized void release(String mirrorID, long duration) {
+		running--;
+		if(duration > 0)
+			average(durations, mirrorID, duration);
+		notifyAll();
+	}
+	
+	/**
+	 * @return the number of crawls allowed at the same time
+	 */
+	public synchronized int getLimit() {
+		if(ceiling <= 0)
+			return Integer.MAX_VALUE;
+		if(durations.isEmpty())
+			return ceiling;
+		
+		int limit = (int)Math.ceil(HEADROOM * getLoad());
+		return Math.min(ceiling, Math.max(1, limit));
+	}
+	
+	/**
+	 * @return the number of crawls needed to keep up with the schedule
+	 */
+	public synchronized double getLoad() {
+		if(durations.isEmpty())
+			return 0;
+		
+		long total = 0;
+		Iterator<Long> d = durations.values().iterator();
+		while(d.hasNext())
+			total += d.next().longValue();
+		long mean = total / durations.size();
+		
+		double load = 0;
+		Iterator<String> it = intervals.keySet().iterator();
+		while(it.hasNext()) {
+			String mirrorID = it.next();
+			Long duration = durations.get(mirrorID);
+			load += (double)((duration == null)?mean:duration.longValue()) 
+						/ intervals.get(mirrorID).longValue();
+		}
+		return load;
+	}
+	
+	public synchronized int getRunning() {
+		return running;
+	}
+	
+	/**
+	 * @return the number of crawls which had to wait
+	 */
+	public synchronized int getWaits() {
+		return waits;
+	}
+	
+	public synchronized String toString() {
+		StringBuffer sb = new StringBuffer("crawls: ").append(running).append(" running");
+		if(ceiling > 0)
+			sb.append(", limit ").append(getLimit()).append(" (ceiling ").append(ceiling)
+			  .append(", load ").append(Math.round(getLoad() * 100) / 100.0).append(")");
+		return sb.append(", ").append(waits).append(" waited").toString();
+	}
+	
+	private static void average(Hashtable<String,Long> averages, String mirrorID, long value) {
+		Long average = averages.get(mirrorID);
+		if(average == null)
+			averages.put(mirrorID, new Long(value));
+		else
+			averages.put(mirrorID, new Long(Math.round(WEIGHT * value 
+												+ (1 - WEIGHT) * average.longValue())));
+	}
+}
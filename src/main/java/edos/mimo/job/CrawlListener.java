@@ -0,0 +1,41 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.job;
+
+/**
+ * Told about the crawls which did not run as scheduled (see CrawlGuard).
+ * 
+ * @author marc
+ *
+ */
+public interface CrawlListener {
+	
+	/**
+	 * The mirror was fired while still being crawled: the fire is
+	 * folded into the follow-up crawl
+	 * @param mirrorID
+	 * @param time of the fire, in milliseconds
+	 */
+	public void crawlCoalesced(String mirrorID, long time);
+	
+	/**
+	 * The crawl ran past its timeout and was aborted
+	 * @param mirrorID
+	 * @param time of the abort, in milliseconds
+	 */
+	public void crawlTimedOut(String mirrorID, long time);
+}
@@ -17,38 +17,43 @@
 package edos.mimo.job;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.GregorianCalendar;
 
 import org.apache.log4j.Logger;
 import org.quartz.Job;
 import org.quartz.JobDataMap;
-import org.quartz.JobDetail;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
-import org.quartz.SchedulerFactory;
-import org.quartz.SimpleTrigger;
 import org.quartz.Trigger;
 
-import edos.distribution.mirror.DOMDeltaGeneratorJob;
-import edos.distribution.mirror.DOMDiffGeneratorJob;
-import edos.distribution.mirror.DownloaderJob;
+import edos.mimo.Config;
 import edos.mimo.IMirror;
-import edos.mimo.ISecondaryMirror;
 import edos.mimo.MonitorApplication;
 import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.pipeline.Pipeline;
+import edos.mimo.pipeline.PipelineRun;
 
 /**
  * Downloads the data from the mirror
- * and fires up the next process in the pipeline.
+ * and hands it over to the next steps of the pipeline.
  * 
- * The next jobs (dealing with delta and diff generation)
+ * The next steps (dealing with delta and diff generation)
  * are more CPU intensive while the download is obviously
  * more IO intensive -and depending on external network 
- * conditions. Therefore it may make sense to separate
- * these jobs to be run in different threads to give the
- * scheduler a chance to perform optimization.
+ * conditions. Therefore they run in the threads of their
+ * own stages (see Pipeline), and the download waits when
+ * they lag behind.
+ * 
+ * A mirror is crawled by one job at a time: a fire arriving
+ * during the crawl is coalesced into a single follow-up crawl
+ * (see CrawlGuard). The crawl itself runs in a thread of its
+ * own, aborted with its connection when it exceeds the crawl
+ * timeout (see Config.getCrawlTimeout()). The crawls running at
+ * the same time are bounded (see CrawlLimiter).
  * 
  * @author marc
  *
@@ -59,9 +64,6 @@ public class DownloaderJob implements Job {
 	private IMirror mirror;					// holds a reference to the current mirror
 	private ITreeMirrorStructure mirrorStructure;	// holds a reference to the internal representation of this mirror
 
-	private JobDetail diffJobDetail;
-	private JobDetail deltaJobDetail;
-
 	/**
 	 * Required public no-argument constructor
 	 *
@@ -82,27 +84,72 @@ public class DownloaderJob implements Job {
 		 */
 		JobDataMap dataMap = context.getJobDetail().getJobDataMap();
 		mirror = (IMirror)dataMap.get(MonitorApplication.MIRROR);
-		//deltaJobDetail = (JobDetail)dataMap.get(MonitorApplication.DELTA_GENERATOR);
-		//diffJobDetail = (JobDetail)dataMap.get(MonitorApplication.DIFF_GENERATOR);	// null for master
+		String mirrorID = context.getJobDetail().getName();
+		
+		Pipeline pipeline;
+		try {
+			pipeline = Pipeline.getInstance();
+		} catch (ConfigException e) {
+			logger.fatal(e.getMessage());
+			throw new JobExecutionException(e);
+		}
+		
+		// one crawl at a time for a mirror
+		CrawlGuard guard = CrawlGuard.getInstance();
+		if(!guard.enter(mirrorID))
+			return;
+		
+		CrawlLimiter limiter;
+		long timeout;
+		try {
+			limiter = CrawlLimiter.getInstance();
+			timeout = Config.getInstance().getCrawlTimeout();
+			
+			// and no more crawls than the limit
+			limiter.acquire(mirrorID, getInterval(context.getTrigger()));
+			
+		} catch (ConfigException e) {
+			logger.fatal(e.getMessage());
+			skip(pipeline, mirrorID);
+			throw new JobExecutionException(e);
+			
+		} catch (InterruptedException e) {
+			logger.warn("Crawl of " + mirrorID + " interrupted while waiting");
+			skip(pipeline, mirrorID);
+			return;
+		}
+		
+		PipelineRun run = pipeline.begin(mirrorID, mirror);
 
 		logger.info("\tstarting download: " + mirror.getName());
 		
 		/*
 		 * JOB
 		 */
+		Crawl crawl = new Crawl(mirror, mirrorID, context, limiter);
+		boolean crawled = false;
 		try {
-			// connection and processing
-			mirror.connect();
+			Thread thread = new Thread(crawl, "Crawl " + mirrorID);
+			thread.setDaemon(true);
+			thread.start();
+			thread.join(timeout);
 			
-			mirror.setCheckinTime(GregorianCalendar.getInstance().getTimeInMillis() );
-			mirror.acquire();
-			mirror.setCheckoutTime(GregorianCalendar.getInstance().getTimeInMillis());
-
-			// data manipulation, reports using a custom tree structure
-			mirrorStructure = (ITreeMirrorStructure)mirror.getStructure(); 
+			if(crawl.abandon()) {
+				// stuck: closing the connection breaks the blocked reads
+				String message = "Crawl aborted after " + (timeout / 1000) + " seconds";
+				mirror.setErrorMessage(message);
+				logger.error(mirror.getName() + ": " + message);
+				mirror.disconnect();
+				thread.interrupt();
+				guard.timedOut(mirrorID);
+				return;
+			}
 			
-			//BDBXMLManager manager = BDBXMLManager.getInstance();
-			//manager.save(mirrorStructure);
+			if(crawl.getError() != null)
+				throw crawl.getError();
+			
+			// data manipulation, reports using a custom tree structure
+			mirrorStructure = crawl.getStructure();
 			
 			logger.info("Completed download: " + mirror.getName() 
 					+ " ("+ mirror.getActivePass().getAccess() + ")"
@@ -110,14 +157,12 @@ public class DownloaderJob implements Job {
 					+ " milliseconds");
 				
 			/*
-			 * NEXT JOBS IN THE PIPELINE
-			 *  	- Delta is for everybody
+			 * NEXT STEPS IN THE PIPELINE
+			 *  	- Delta and storage are for everybody
 			 * 		- Diff is only for mirrors (!= master)
 			 */
-			fireDeltaJob();
-			
-			if(mirror instanceof ISecondaryMirror)
-				fireDiffJob();
+			crawled = true;
+			pipeline.submit(run, mirrorStructure);
 			
 			// if everything is fine ; nothing to report
 			mirror.setErrorMessage(null);
@@ -131,76 +176,135 @@ public class DownloaderJob implements Job {
 			logger.error(e.getMessage());
 
 		} finally {
-			if (mirror != null)
-				mirror.disconnect();
+			if (!crawled)
+				pipeline.abort(run);
+			// a crawl still running releases the mirror when it ends
+			if (!crawl.abandon())
+				release(mirrorID, context.getScheduler(), context.getJobDetail().getGroup());
 		}
 		
 	}
 	
-	private void fireDeltaJob() {
-
-		try{
-			/*
-			 * FIRE UP NEXT JOBS in the pipeline (for mirrors only ie != master)
-			 * ------------------
-			 * From here 2 actions must be taken:
-			 * 		1. diff generation then outputed in a publicly accessible directory
-			 * 		2. storage of the structure (including delta generation and DB access)
-			 * 
-			 * Each action is taken care of by a specific job (ie Thread).
-			 */
-			SchedulerFactory schedFact = new org.quartz.impl.StdSchedulerFactory();
-			Scheduler sched = schedFact.getScheduler();
-			
-			String mirrorID = mirrorStructure.getMirrorID();
-						
-			// DELTA GENERATION & STORAGE
-			
-			JobDetail deltaJobDetail  =  new JobDetail("DeltaGenerator for " + mirrorID,
-										MonitorApplication.DELTA_GENERATOR, // default group
-										DOMDeltaGeneratorJob.class); // the delta job
-			deltaJobDetail.getJobDataMap().put("structure", mirrorStructure);
-			
-			Trigger deltaTrigger = new SimpleTrigger("Delta trigger for " + mirrorID, null);
-			sched.scheduleJob(deltaJobDetail, deltaTrigger);
-			logger.info("Fired DeltaGeneratorJob for " + mirrorID);
+	/**
+	 * Ends a crawl which did not start: its run is begun and aborted
+	 * at once, so that the listeners of the pipeline know it failed
+	 * (eg. the adaptive polling sets the next crawl of the mirror)
+	 */
+	private void skip(Pipeline pipeline, String mirrorID) {
+		pipeline.abort(pipeline.begin(mirrorID, mirror));
+		CrawlGuard.getInstance().exit(mirrorID);
+	}
+	
+	/**
+	 * @param trigger
+	 * @return the time between this fire and the next one (in ms),
+	 * 			0 if there is no next fire (eg. one-shot trigger),
+	 * 			-1 for the follow-up of coalesced fires (see release())
+	 */
+	private static long getInterval(Trigger trigger) {
+		if(trigger == null)
+			return 0;
+		if(Scheduler.DEFAULT_MANUAL_TRIGGERS.equals(trigger.getGroup()))
+			return -1;	// fired by Scheduler.triggerJob(), out of the schedule
+		Date previous = trigger.getPreviousFireTime();
+		Date next = trigger.getNextFireTime();
+		if(previous == null || next == null)
+			return 0;
+		return next.getTime() - previous.getTime();
+	}
+	
+	/**
+	 * Ends the crawl of a mirror, then fires the follow-up crawl
+	 * if the mirror was fired in the meantime
+	 */
+	private static void release(String mirrorID, Scheduler sched, String group) {
+		if(!CrawlGuard.getInstance().exit(mirrorID))
+			return;
 		
-		}catch(SchedulerException se) {
-			logger.error(se.getMessage());
+		try {
+			logger.info("Firing the follow-up crawl of " + mirrorID);
+			sched.triggerJob(mirrorID, group);
+			
+		} catch (SchedulerException e) {
+			logger.error("Unable to fire the follow-up crawl of " + mirrorID + ": " + e.getMessage());
 		}
-		
 	}
 	
-	private void fireDiffJob() {
-
-		try{
-			/*
-			 * FIRE UP NEXT JOBS in the pipeline (for mirrors only ie != master)
-			 * ------------------
-			 * From here 2 actions must be taken:
-			 * 		1. diff generation then outputed in a publicly accessible directory
-			 * 		2. storage of the structure (including delta generation and DB access)
-			 * 
-			 * Each action is taken care of by a specific job (ie Thread).
-			 */
-			SchedulerFactory schedFact = new org.quartz.impl.StdSchedulerFactory();
-			Scheduler sched = schedFact.getScheduler();
-			
-			String mirrorID = mirrorStructure.getMirrorID();
-			
-			// I) DIFF GENERATION
-			
-			JobDetail diffJobDetail = new JobDetail("DiffGenerator for " + mirrorID,
-										MonitorApplication.DIFF_GENERATOR, // default group
-										DOMDiffGeneratorJob.class); // the diff job
-										
-			diffJobDetail.getJobDataMap().put("mirror", mirror);
-			Trigger diffTrigger = new SimpleTrigger("Diff trigger for " + mirrorID, null);
-			sched.scheduleJob(diffJobDetail, diffTrigger);
-			logger.info("Fired DiffGeneratorJob for " + mirrorID);
-					
-		}catch(SchedulerException se) {
-			logger.error(se.getMessage());
+	/**
+	 * Connection and download, in a thread of their own. 
+	 * 
+	 * The job waits for the crawl up to the timeout; past it, the
+	 * crawl is abandoned and releases the mirror itself when it
+	 * eventually ends (no other crawl of the mirror starts before).
+	 */
+	private static class Crawl implements Runnable {
+		private IMirror mirror;
+		private String mirrorID;
+		private Scheduler sched;
+		private String group;
+		private CrawlLimiter limiter;
+		
+		private ITreeMirrorStructure structure = null;
+		private Exception error = null;
+		private boolean finished = false;
+		private boolean abandoned = false;
+		
+		Crawl(IMirror mirror, String mirrorID, JobExecutionContext context, CrawlLimiter limiter) {
+			this.mirror = mirror;
+			this.mirrorID = mirrorID;
+			this.sched = context.getScheduler();
+			this.group = context.getJobDetail().getGroup();
+			this.limiter = limiter;
+		}
+		
+		public void run() {
+			long start = System.currentTimeMillis();
+			try {
+				mirror.connect();
+				
+				mirror.setCheckinTime(GregorianCalendar.getInstance().getTimeInMillis() );
+				mirror.acquire();
+				mirror.setCheckoutTime(GregorianCalendar.getInstance().getTimeInMillis());
+				
+				structure = (ITreeMirrorStructure)mirror.getStructure();
+				
+			} catch (Exception e) {
+				error = e;
+				
+			} finally {
+				mirror.disconnect();
+				limiter.release(mirrorID, (error == null)?System.currentTimeMillis() - start:0);
+				if(finish())
+					release(mirrorID, sched, group);
+			}
+		}
+		
+		/**
+		 * @return true if the job gave up waiting
+		 */
+		private synchronized boolean finish() {
+			finished = true;
+			if(abandoned)
+				logger.info("Abandoned crawl of " + mirrorID + " ended");
+			return abandoned;
+		}
+		
+		/**
+		 * Called by the job when it stops waiting
+		 * @return true if the crawl is still running (it is then abandoned)
+		 */
+		synchronized boolean abandon() {
+			if(!finished)
+				abandoned = true;
+			return abandoned;
+		}
+		
+		ITreeMirrorStructure getStructure() {
+			return structure;
+		}
+		
+		Exception getError() {
+			return error;
 		}
 	}
 }
@@ -0,0 +1,76 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.job;
+
+import org.apache.log4j.Logger;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.StatefulJob;
+
+import edos.mimo.Config;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dal.retention.RetentionEngine;
+import edos.mimo.dal.retention.RetentionReport;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
+
+/**
+ * Thins out the history of the mirrors in the background, as set in the
+ * retention element of the config file (see RetentionEngine).
+ * Stateful: two runs never overlap.
+ * 
+ * @author marc
+ *
+ */
+public class RetentionJob implements StatefulJob {
+	private static Logger logger = Logger.getLogger(RetentionJob.class);
+	
+	/**
+	 * Required public no-argument constructor
+	 */
+	public RetentionJob() {
+		
+	}
+	
+	/**
+	 * Method fired up by the job scheduler
+	 */
+	public void execute(JobExecutionContext context) throws JobExecutionException {
+		logger.info("Retention starting...");
+		
+		try {
+			Config config = Config.getInstance();
+			IStorage storage = StorageFactory.getStorage();
+			RetentionEngine engine = new RetentionEngine(storage, config.getRetentionPolicy());
+			
+			RetentionReport report = engine.run(System.currentTimeMillis(), 
+									config.isRetentionDryRun(), config.isRetentionOfStatistics());
+			logger.info("Retention done: " + report.getDeleted() + " documents and " 
+							+ report.getStatisticsDeleted() + " statistics deleted, " 
+							+ report.getRewritten() + " documents rewritten");
+			
+		}catch(ConfigException e) {
+			logger.fatal(e.getMessage());
+			throw new JobExecutionException("ConfigException: " + e);
+			
+		}catch(StorageException e) {
+			logger.error(e.getMessage());
+			throw new JobExecutionException("StorageException: " + e);
+		}
+	}
+}
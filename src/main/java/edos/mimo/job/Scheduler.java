@@ -27,6 +27,7 @@ import org.quartz.SchedulerFactory;
 import edos.distribution.mirror.DownloaderJob;
 import edos.distribution.mirror.Scheduler;
 import edos.distribution.mirror.org;
+import edos.mimo.Config;
 import edos.mimo.IMirror;
 import edos.mimo.exception.ConfigException;
 import edos.mimo.statistics.ApplicationListener;
@@ -47,14 +48,17 @@ public class Scheduler {
 	
 	private static Scheduler instance;
 	private static org.quartz.Scheduler quartzScheduler;
+	private TriggerSpread spread;		// null to fire the cron expressions as they are
 	
 	
 	private Scheduler() throws SchedulerException, ConfigException {
 		SchedulerFactory schedFact = new org.quartz.impl.StdSchedulerFactory();
 		quartzScheduler = schedFact.getScheduler();
+		spread = Config.getInstance().getTriggerSpread();
 		
 
 		quartzScheduler.addTriggerListener(ApplicationListener.getInstance());
+		CrawlGuard.getInstance().addListener(ApplicationListener.getInstance());
 		quartzScheduler.start();
 		
 	}
@@ -98,17 +102,24 @@ public class Scheduler {
 
 		jobDetail.getJobDataMap().put(MIRROR, mirror);
 		
+		// the mirrors sharing an expression do not all fire at once (see TriggerSpread)
+		String cronExpression = mirror.getCronExpression();
+		if(spread != null)
+			cronExpression = spread.spread(cronExpression, jobNameAKAMirrorID);
+		
 		CronTrigger trigger = new CronTrigger("CronTrigger for " + mirror,
 									downloaderGroupName, jobNameAKAMirrorID, downloaderGroupName,
-									mirror.getCronExpression() );
+									cronExpression);
 
 		trigger.setStartTime(new java.util.Date());
 		trigger.setName("Download Job for " + mirror);
+		// fires missed during a long crawl make a single one (see CrawlGuard)
+		trigger.setMisfireInstruction(CronTrigger.MISFIRE_INSTRUCTION_FIRE_ONCE_NOW);
 		quartzScheduler.scheduleJob(jobDetail, trigger);
 		mirror.setScheduled(true);
 		
 		logger.info("\t->Scheduled job for " + mirror 
-				+ " with cron expression '" + mirror.getCronExpression() + "'");
+				+ " with cron expression '" + cronExpression + "'");
 		
 	}
 
@@ -0,0 +1,172 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.job;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Spreads the crawls of the mirrors sharing a cron expression over
+ * its interval, instead of firing them all at the same second.
+ * 
+ * Each mirror is given an offset from a stable hash of its ID (the
+ * same across restarts), moved by a bounded jitter taken from another
+ * hash of the ID; the seconds and minutes of its cron expression are
+ * shifted by this offset:
+ * 
+ *  "15 0/2 * * * ?"	fires at 0:00:15, 0:02:15, ...
+ *  "50 1/2 * * * ?"	same interval, offset of 95 seconds
+ * 
+ * Only the expressions with a number of seconds and a number, a step
+ * (0/2, * /2) or any (*) for the minutes are shifted, within their
+ * interval (2 minutes, 1 hour and 1 minute for "15 0/2 ...", "15 0 ..."
+ * and "15 * ..."); the others are left as they are.
+ * 
+ * @author marc
+ *
+ */
+public class TriggerSpread {
+	private static Logger logger = Logger.getLogger(TriggerSpread.class);
+	
+	private static final String JITTER_SALT = "#jitter";
+	
+	private long window;	// ms, 0 for the whole interval
+	private long jitter;	// ms
+	
+	/**
+	 * @param window the offsets are taken within this window (in ms), or
+	 * 			within the whole interval of the cron expression when 0
+	 * @param jitter bound of the jitter added to the offsets (in ms)
+	 */
+	public TriggerSpread(long window, long jitter) {
+		if(window < 0 || jitter < 0)
+			throw new IllegalArgumentException("Invalid spread: " + window + ", " + jitter);
+		this.window = window;
+		this.jitter = jitter;
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @param interval time between the crawls of the mirror, in ms
+	 * @return the offset of the mirror within the interval, in ms
+	 */
+	public long getOffset(String mirrorID, long interval) {
+		long range = (window > 0)?Math.min(window, interval):interval;
+		if(range <= 0)
+			return 0;
+		
+		long offset = hash(mirrorID) % range;
+		if(jitter > 0)
+			offset += (hash(mirrorID + JITTER_SALT) % (2 * jitter + 1)) - jitter;
+		
+		// stays within the interval
+		offset %= range;
+		return (offset < 0)?offset + range:offset;
+	}
+	
+	/**
+	 * @param cronExpression
+	 * @param mirrorID
+	 * @return the expression shifted by the offset of the mirror, or the
+	 * 			same expression if it can not be shifted
+	 */
+	public String spread(String cronExpression, String mirrorID) {
+		String[] fields = cronExpression.trim().split("\\s+");
+		if(fields.length < 6 || !isNumber(fields[0])) {
+			logger.debug("Not spreading " + cronExpression);
+			return cronExpression;
+		}
+		
+		int seconds = Integer.parseInt(fields[0]);
+		String minutes = fields[1];
+		
+		// interval of the expression (below the hour), and first minute
+		int step;
+		int first;
+		if(minutes.equals("*")) {
+			step = 1;
+			first = 0;
+		}else if(isNumber(minutes)) {
+			step = 60;
+			first = Integer.parseInt(minutes);
+		}else{
+			int slash = minutes.indexOf('/');
+			if(slash < 0 || !isNumber(minutes.substring(slash + 1))) {
+				logger.debug("Not spreading " + cronExpression);
+				return cronExpression;
+			}
+			String start = minutes.substring(0, slash);
+			if(!start.equals("*") && !isNumber(start)) {
+				logger.debug("Not spreading " + cronExpression);
+				return cronExpression;
+			}
+			step = Integer.parseInt(minutes.substring(slash + 1));
+			first = start.equals("*")?0:Integer.parseInt(start);
+			if(step <= 0 || step > 60 || first >= step) {
+				logger.debug("Not spreading " + cronExpression);
+				return cronExpression;
+			}
+		}
+		
+		long offset = getOffset(mirrorID, step * 60000L) / 1000;
+		long total = seconds + offset;
+		fields[0] = String.valueOf(total % 60);
+		
+		// every minute (*): the seconds are enough
+		long shifted = (first + total / 60) % step;
+		if(!minutes.equals("*"))
+			fields[1] = (step == 60)?String.valueOf(shifted):shifted + "/" + step;
+		
+		StringBuffer sb = new StringBuffer();
+		for(int i = 0; i < fields.length; i++) {
+			if(i > 0)
+				sb.append(' ');
+			sb.append(fields[i]);
+		}
+		return sb.toString();
+	}
+	
+	public String toString() {
+		return "spread within " + ((window > 0)?(window / 1000) + " s":"the interval")
+				+ ", jitter " + (jitter / 1000) + " s";
+	}
+	
+	/**
+	 * Stable hash of a mirror ID: a CRC32 of its bytes, which does
+	 * not depend on the JVM
+	 */
+	private static long hash(String s) {
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(s.getBytes("UTF-8"));
+		}catch(UnsupportedEncodingException e) {
+			crc.update(s.getBytes());
+		}
+		return crc.getValue();
+	}
+	
+	private static boolean isNumber(String s) {
+		if(s.length() == 0)
+			return false;
+		for(int i = 0; i < s.length(); i++)
+			if(!Character.isDigit(s.charAt(i)))
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,69 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+
+/**
+ * Generates the delta of a run: the changes between the latest state of
+ * the mirror (the latest full structure patched with the deltas stored
+ * since) and the structure downloaded. No delta is generated for the
+ * first download of a mirror.
+ * 
+ * The previous run of the mirror is persisted first, or the delta
+ * would skip its changes.
+ * 
+ * @author marc
+ *
+ */
+class DeltaStage extends Stage {
+	private static Logger logger = Logger.getLogger(DeltaStage.class);
+	
+	DeltaStage(int workers, int queueSize) {
+		super(Pipeline.DELTA, workers, queueSize);
+	}
+
+	protected void process(PipelineRun run) throws Exception {
+		run.awaitPrevious();
+		
+		ITreeMirrorStructure latest = run.getStructure();
+		IStorage manager = StorageFactory.getStorage();
+		
+		// No delta is necessary for the first download! (no data to compare to)
+		if(manager.getDocumentCount(latest.getMirrorID()) < 1) {
+			logger.info("First download: skipping delta generation for " + latest.getMirrorID());
+			return;
+		}
+		
+		ITreeMirrorStructure oldest = manager.getLatestState(latest.getMirrorID());
+		if(oldest == null) {
+			logger.info("No full structure to compare " + latest.getMirrorID() + " to");
+			return;
+		}
+		
+		if(oldest.getDocumentID().equals(latest.getDocumentID()))
+			throw new IllegalStateException("Tentative to generate a delta with itself: " 
+												+ latest.getDocumentID());
+		
+		run.setDelta(new DOMMirrorDelta(oldest, latest));
+	}
+}
@@ -0,0 +1,327 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.db.DeltaChain;
+import edos.mimo.exception.StorageException;
+
+/**
+ * Decides which diffs are worth computing, from the versions of the
+ * structures: the version of a mirror is the document ID of its latest
+ * structure with changes (a delta of size 0 leaves it unchanged).
+ * 
+ *  . the diff of a crawl is skipped when neither the master nor the mirror
+ *    changed since the latest diff of the mirror
+ *  . when a new version of the master is stored, the diffs of all the
+ *    mirrors are out of date: they are computed again from the latest
+ *    state of each mirror, without waiting for its next crawl
+ *    
+ * The re-diffs wait in a priority queue, the mirrors whose diff is the
+ * oldest first, a mirror at most once. They are fed to the diff stage 
+ * by a thread of their own, which waits when the stage is full. A 
+ * re-diff made useless meanwhile (eg. by a crawl of the mirror) is skipped.
+ * 
+ * The versions are kept in memory: after a restart the first diff of
+ * each mirror is computed.
+ * 
+ * @author marc
+ *
+ */
+public class DiffScheduler {
+	private static Logger logger = Logger.getLogger(DiffScheduler.class);
+	
+	private static final Rediff STOP = new Rediff(null, -1, -1);
+	
+	private Map<String,String> versions = new HashMap<String,String>();	// mirrorID -> version
+	private Map<String,String[]> diffs = new HashMap<String,String[]>();	// mirrorID -> { master, mirror } versions of its latest diff
+	private Map<String,Long> diffTimes = new HashMap<String,Long>();		// mirrorID -> time of its latest diff
+	
+	private PriorityBlockingQueue<Rediff> rediffs = new PriorityBlockingQueue<Rediff>();
+	private Set<String> pending = new HashSet<String>();	// mirrors waiting for a re-diff
+	private long sequence = 0;
+	private Thread thread = null;
+	private volatile boolean closed = false;
+	
+	// statistics
+	private long skipped = 0;
+	private long scheduled = 0;
+	
+	
+	/**
+	 * Starts feeding the re-diffs to the pipeline
+	 * @param pipeline
+	 */
+	void start(final Pipeline pipeline) {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				loop(pipeline);
+			}
+		}, "DiffScheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Records the version of a run once it is stored, and schedules the 
+	 * re-diffs if it is a new version of the master
+	 * 
+	 * @param run
+	 */
+	public void persisted(PipelineRun run) {
+		DOMMirrorDelta delta = run.getDelta();
+		synchronized(this) {
+			if(delta != null && delta.getSize() == 0) {
+				run.setVersion(versions.get(run.getMirrorID()));
+				logger.debug("No change for " + run.getMirrorID());
+				return;
+			}
+			run.setVersion(run.getStructure().getDocumentID());
+			versions.put(run.getMirrorID(), run.getVersion());
+		}
+		
+		if(Config.MASTER.equals(run.getMirrorID())) {
+			logger.info("New version of the master: " + run.getStructure().getDocumentID());
+			List<String> mirrorIDs = getMirrorIDs();
+			for(int i = 0; i < mirrorIDs.size(); i++)
+				if(!Config.MASTER.equals(mirrorIDs.get(i)))
+					schedule(mirrorIDs.get(i));
+		}
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @return false if the master and the mirror are unchanged since the latest diff
+	 */
+	public synchronized boolean needsDiff(String mirrorID) {
+		String[] latest = diffs.get(mirrorID);
+		String[] current = getVersions(mirrorID);
+		if(latest != null && same(latest[0], current[0]) && same(latest[1], current[1])) {
+			skipped++;
+			logger.debug("Diff of " + mirrorID + " up to date, skipped");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @return the current { master, mirror } versions (null when unknown)
+	 */
+	public synchronized String[] getVersions(String mirrorID) {
+		return new String[] { versions.get(Config.MASTER), versions.get(mirrorID) };
+	}
+	
+	/**
+	 * Records the diff of a mirror
+	 * @param mirrorID
+	 * @param versions the { master, mirror } versions it was computed from (see getVersions())
+	 */
+	public synchronized void diffed(String mirrorID, String[] versions) {
+		diffs.put(mirrorID, versions);
+		diffTimes.put(mirrorID, new Long(System.currentTimeMillis()));
+	}
+	
+	/**
+	 * The diffs of a mirror may end out of order (the diff stage has 
+	 * several workers): an older one must not replace a newer one.
+	 * 
+	 * @param mirrorID
+	 * @param versions the { master, mirror } versions of a diff
+	 * @return true if the diff recorded for the mirror is of newer versions
+	 */
+	public synchronized boolean isOutdated(String mirrorID, String[] versions) {
+		String[] latest = diffs.get(mirrorID);
+		if(latest == null)
+			return false;
+		
+		long mirror = timeOf(versions[1]);
+		long latestMirror = timeOf(latest[1]);
+		if(mirror != latestMirror)
+			return mirror < latestMirror;
+		return timeOf(versions[0]) < timeOf(latest[0]);
+	}
+	
+	/**
+	 * Queues the re-diff of a mirror, unless it is already waiting
+	 * @param mirrorID
+	 */
+	public synchronized void schedule(String mirrorID) {
+		if(closed || pending.contains(mirrorID))
+			return;
+		
+		Long diffTime = diffTimes.get(mirrorID);
+		pending.add(mirrorID);
+		rediffs.add(new Rediff(mirrorID, (diffTime == null)?0:diffTime.longValue(), sequence++));
+		scheduled++;
+	}
+	
+	/**
+	 * @return the mirrors waiting for a re-diff, in the order they will be processed
+	 */
+	public List<String> getPending() {
+		List<Rediff> queued = new ArrayList<Rediff>(rediffs);
+		Collections.sort(queued);
+		
+		List<String> mirrorIDs = new ArrayList<String>();
+		Iterator<Rediff> it = queued.iterator();
+		while(it.hasNext())
+			mirrorIDs.add(it.next().mirrorID);
+		return mirrorIDs;
+	}
+	
+	/**
+	 * Drops the re-diffs still waiting and stops the thread
+	 */
+	void close() {
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+			if(!pending.isEmpty())
+				logger.info(pending.size() + " re-diffs dropped, done at the next crawl");
+			rediffs.clear();
+			pending.clear();
+			rediffs.add(STOP);
+		}
+		
+		if(thread != null)
+			try {
+				thread.join();
+			}catch(InterruptedException ie) {
+				logger.error("Interrupted while waiting for the re-diffs to be fed");
+			}
+	}
+	
+	/**
+	 * @return the mirrors whose diff may be out of date when the master changes
+	 */
+	protected List<String> getMirrorIDs() {
+		try {
+			return StorageFactory.getStorage().getMirrorIDs();
+			
+		}catch(StorageException e) {
+			logger.error("Unable to list the mirrors to diff again: " + e.getMessage());
+			return new ArrayList<String>();
+		}
+	}
+	
+	/**
+	 * Feeder thread
+	 */
+	private void loop(Pipeline pipeline) {
+		while(true) {
+			Rediff rediff;
+			try {
+				rediff = rediffs.take();
+			}catch(InterruptedException ie) {
+				logger.warn("Diff scheduler interrupted");
+				continue;
+			}
+			if(rediff == STOP)
+				break;
+			
+			synchronized(this) {
+				pending.remove(rediff.mirrorID);
+			}
+			if(!needsDiff(rediff.mirrorID))
+				continue;
+			
+			try {
+				// read first: the state is at least as new as the version (at worst, diffed again)
+				String version = getVersions(rediff.mirrorID)[1];
+				ITreeMirrorStructure state = StorageFactory.getStorage().getLatestState(rediff.mirrorID);
+				if(state == null)
+					continue;
+				
+				PipelineRun run = new PipelineRun(rediff.mirrorID, state.getMirror());
+				run.setStructure(state);
+				run.setVersion(version);
+				logger.info("Diffing " + rediff.mirrorID + " again against the new master");
+				pipeline.submit(Pipeline.DIFF, run);
+				
+			}catch(InterruptedException ie) {
+				logger.warn("Interrupted while queuing the re-diff of " + rediff.mirrorID);
+				
+			}catch(Exception e) {
+				logger.error("Unable to diff " + rediff.mirrorID + " again: " + e.getMessage());
+			}
+		}
+		logger.debug("Diff scheduler stopped");
+	}
+	
+	private static boolean same(String a, String b) {
+		return (a == null)?(b == null):a.equals(b);
+	}
+	
+	/**
+	 * @param version document ID, eg. testmachine_ftp-1141113730566
+	 * @return its time, the lowest if unknown
+	 */
+	private static long timeOf(String version) {
+		if(version == null)
+			return Long.MIN_VALUE;
+		try {
+			return DeltaChain.getTimeStamp(version + ".xml");
+		}catch(NumberFormatException nfe) {
+			return Long.MIN_VALUE;
+		}
+	}
+	
+	public synchronized String toString() {
+		return "diff scheduler: " + skipped + " diffs skipped, " + scheduled + " re-diffs scheduled";
+	}
+	
+	/**
+	 * A mirror waiting for its re-diff: the oldest diffs first, 
+	 * then in the order they were scheduled
+	 */
+	private static class Rediff implements Comparable<Rediff> {
+		String mirrorID;
+		long diffTime;
+		long sequence;
+		
+		Rediff(String mirrorID, long diffTime, long sequence) {
+			this.mirrorID = mirrorID;
+			this.diffTime = diffTime;
+			this.sequence = sequence;
+		}
+		
+		public int compareTo(Rediff other) {
+			if(diffTime != other.diffTime)
+				return (diffTime < other.diffTime)?-1:1;
+			if(sequence != other.sequence)
+				return (sequence < other.sequence)?-1:1;
+			return 0;
+		}
+	}
+}
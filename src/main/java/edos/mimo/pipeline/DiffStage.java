@@ -0,0 +1,67 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.IMasterMirror;
+import edos.mimo.ISecondaryMirror;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.filesystem.DiffGeneratorFactory;
+
+/**
+ * Generates the diff of a secondary mirror: the changes between the
+ * structure downloaded and the latest structure of the master.
+ * The runs of the master skip this stage, as well as the runs of a mirror
+ * whose diff is up to date (see DiffScheduler).
+ * 
+ * @author marc
+ *
+ */
+class DiffStage extends Stage {
+	private static Logger logger = Logger.getLogger(DiffStage.class);
+	
+	DiffStage(int workers, int queueSize) {
+		super(Pipeline.DIFF, workers, queueSize);
+	}
+	
+	protected boolean accepts(PipelineRun run) {
+		return run.getMirror() instanceof ISecondaryMirror
+				&& getPipeline().getDiffScheduler().needsDiff(run.getMirrorID());
+	}
+
+	protected void process(PipelineRun run) throws Exception {
+		// read before the master: the master is at least as new as its version
+		// (its rebuilt state keeps the document ID of its full structure);
+		// at worst the diff is computed again
+		String masterVersion = getPipeline().getDiffScheduler().getVersions(run.getMirrorID())[0];
+		IMasterMirror master = (IMasterMirror)StorageFactory.getStorage()
+										.getLatestMasterStructure().getMirror();
+		
+		// the structure of this run: a newer crawl may already have replaced 
+		// the one of the mirror
+		ISecondaryMirror mirror = (ISecondaryMirror)new TreeMirrorStructure(
+										run.getStructure().getDocument()).getMirror();
+		
+		// the diff engine is chosen in the config file
+		run.setDiff(DiffGeneratorFactory.getDiffGenerator(Config.TREE, master, mirror).getDiff(), 
+						new String[] { masterVersion, run.getVersion() });
+		logger.debug("Diff generated: " + run.getDiff().getFileName());
+	}
+}
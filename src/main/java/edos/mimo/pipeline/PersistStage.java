@@ -0,0 +1,51 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.MirrorStatus;
+import edos.mimo.dal.StorageFactory;
+
+/**
+ * Stores the structure of a run: in full for the first download, 
+ * otherwise the store chooses between the structure and its delta
+ * (see MirrorStatus).
+ * 
+ * The version of the mirror is then known to the DiffScheduler.
+ * 
+ * @author marc
+ *
+ */
+class PersistStage extends Stage {
+	private static Logger logger = Logger.getLogger(PersistStage.class);
+	
+	PersistStage(int workers, int queueSize) {
+		super(Pipeline.PERSIST, workers, queueSize);
+	}
+
+	protected void process(PipelineRun run) throws Exception {
+		if(run.getDelta() == null)
+			StorageFactory.getStorage().save(run.getStructure());
+		else
+			StorageFactory.getStorage().save(new MirrorStatus(run.getStructure(), run.getDelta()));
+		
+		run.release();	// the next run of the mirror can compute its delta
+		getPipeline().getDiffScheduler().persisted(run);
+		logger.debug("Stored " + run.getStructure().getDocumentID());
+	}
+}
@@ -0,0 +1,302 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.IMirror;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.exception.ConfigException;
+
+/**
+ * Processes the structures downloaded by the crawls, in the same process:
+ * 
+ *   crawl -> delta -> persist -> diff -> publish
+ *   
+ *  . crawl: download of the mirror, in the thread of the Quartz job 
+ *    (DownloaderJob), the only step fired by the scheduler
+ *  . delta: changes since the latest state of the mirror (DeltaStage)
+ *  . persist: storage of the full structure or of the delta (PersistStage)
+ *  . diff: changes against the master, for the secondary mirrors (DiffStage),
+ *    when one of them changed since the latest diff (see DiffScheduler)
+ *  . publish: storage of the diff, delta file for the web (PublishStage)
+ *  
+ * Each stage has its own bounded queue and worker threads (sized in the 
+ * pipeline element of the config file), and keeps its latency statistics. 
+ * A full queue blocks the stage before it, up to the crawl.
+ * 
+ * A new version of the master brings the diffs of all the mirrors up to 
+ * date: the DiffScheduler feeds their latest states to the diff stage.
+ * 
+ * The listeners (eg. ApplicationListener) are told when a run enters and 
+ * leaves each stage.
+ * 
+ * @author marc
+ *
+ */
+public class Pipeline {
+	private static Logger logger = Logger.getLogger(Pipeline.class);
+	
+	public static final String CRAWL 	= "crawl";
+	public static final String DELTA 	= "delta";
+	public static final String PERSIST 	= "persist";
+	public static final String DIFF 	= "diff";
+	public static final String PUBLISH 	= "publish";
+	public static final String[] STAGES = { DELTA, PERSIST, DIFF, PUBLISH };
+	
+	private static Pipeline instance = null;
+	
+	private List<Stage> stages;
+	private StageStatistics crawl = new StageStatistics(CRAWL);
+	private DiffScheduler diffScheduler;
+	private List<StageListener> listeners = new CopyOnWriteArrayList<StageListener>();
+	private ConcurrentHashMap<String,PipelineRun> lastRuns = new ConcurrentHashMap<String,PipelineRun>();
+	private volatile boolean closed = false;
+	
+	/**
+	 * Starts the stages
+	 * @param stages in the order the runs go through them
+	 */
+	public Pipeline(List<Stage> stages) {
+		this(stages, new DiffScheduler());
+	}
+	
+	/**
+	 * @param stages in the order the runs go through them
+	 * @param diffScheduler
+	 */
+	public Pipeline(List<Stage> stages, DiffScheduler diffScheduler) {
+		this.stages = new ArrayList<Stage>(stages);
+		this.diffScheduler = diffScheduler;
+		diffScheduler.start(this);
+		
+		for(int i = 0; i < this.stages.size(); i++) {
+			Stage next = (i + 1 < this.stages.size())?this.stages.get(i + 1):null;
+			this.stages.get(i).start(this, next);
+		}
+	}
+	
+	/**
+	 * Singleton type access, stages sized as set in the config file
+	 * @return
+	 * @throws ConfigException
+	 */
+	public static synchronized Pipeline getInstance() throws ConfigException {
+		if(instance == null) {
+			Config config = Config.getInstance();
+			List<Stage> stages = new ArrayList<Stage>();
+			stages.add(new DeltaStage(config.getStageWorkers(DELTA), config.getStageQueue(DELTA)));
+			stages.add(new PersistStage(config.getStageWorkers(PERSIST), config.getStageQueue(PERSIST)));
+			stages.add(new DiffStage(config.getStageWorkers(DIFF), config.getStageQueue(DIFF)));
+			stages.add(new PublishStage(config.getStageWorkers(PUBLISH), config.getStageQueue(PUBLISH)));
+			
+			instance = new Pipeline(stages);
+			logger.info("Pipeline started: " + instance.describe());
+		}
+		return instance;
+	}
+	
+	/**
+	 * Closes the pipeline if it was started
+	 */
+	public static synchronized void shutdown() {
+		if(instance != null) {
+			instance.close();
+			instance = null;
+		}
+	}
+	
+	public void addListener(StageListener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Starts the run of a mirror, before its crawl
+	 * 
+	 * @param mirrorID
+	 * @param mirror
+	 * @return the run to submit once the mirror is crawled
+	 */
+	public PipelineRun begin(String mirrorID, IMirror mirror) {
+		PipelineRun run = new PipelineRun(mirrorID, mirror);
+		fireStageStarted(CRAWL, run, run.getStartTime());
+		return run;
+	}
+	
+	/**
+	 * Ends the crawl of a run and hands over its structure to the stages.
+	 * Waits if the first stage is full. The run is done with, whatever 
+	 * the outcome.
+	 * 
+	 * @param run
+	 * @param structure the structure downloaded
+	 * @throws InterruptedException
+	 */
+	public void submit(PipelineRun run, ITreeMirrorStructure structure) throws InterruptedException {
+		if(closed) {
+			abort(run);
+			throw new IllegalStateException("Pipeline closed, unable to process " + run);
+		}
+		
+		endCrawl(run, true);
+		run.setStructure(structure);
+		run.setPrevious(lastRuns.put(run.getMirrorID(), run));
+		
+		if(stages.isEmpty()) {
+			completed(run);
+			return;
+		}
+		try {
+			stages.get(0).submit(run);
+			
+		}catch(InterruptedException ie) {
+			completed(run);
+			throw ie;
+		}
+	}
+	
+	/**
+	 * Hands over a run to a stage, skipping the ones before it
+	 * (eg. the re-diffs go straight to the diff stage)
+	 * 
+	 * @param stage name of the stage
+	 * @param run
+	 * @throws InterruptedException
+	 */
+	void submit(String stage, PipelineRun run) throws InterruptedException {
+		Iterator<Stage> it = stages.iterator();
+		while(it.hasNext()) {
+			Stage s = it.next();
+			if(s.getName().equals(stage)) {
+				s.submit(run);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("No " + stage + " stage in the pipeline");
+	}
+	
+	/**
+	 * Ends a run whose crawl failed
+	 * @param run
+	 */
+	public void abort(PipelineRun run) {
+		endCrawl(run, false);
+		completed(run);
+	}
+	
+	private void endCrawl(PipelineRun run, boolean success) {
+		long end = System.currentTimeMillis();
+		crawl.record(0, end - run.getStartTime(), success);
+		fireStageCompleted(CRAWL, run, end, success);
+	}
+	
+	/**
+	 * Processes the runs already submitted, then stops the stages
+	 */
+	public void close() {
+		closed = true;
+		diffScheduler.close();
+		Iterator<Stage> it = stages.iterator();
+		while(it.hasNext())
+			it.next().close();
+		logger.info("Pipeline closed: " + this);
+	}
+	
+	public DiffScheduler getDiffScheduler() {
+		return diffScheduler;
+	}
+	
+	/**
+	 * @return the statistics of the crawl, then of each stage
+	 */
+	public List<StageStatistics> getStatistics() {
+		List<StageStatistics> statistics = new ArrayList<StageStatistics>();
+		statistics.add(crawl);
+		Iterator<Stage> it = stages.iterator();
+		while(it.hasNext())
+			statistics.add(it.next().getStatistics());
+		return statistics;
+	}
+	
+	void fireStageStarted(String stage, PipelineRun run, long time) {
+		Iterator<StageListener> it = listeners.iterator();
+		while(it.hasNext())
+			try {
+				it.next().stageStarted(stage, run, time);
+			}catch(RuntimeException e) {
+				logger.error("Stage listener failed: " + e.getMessage());
+			}
+	}
+	
+	void fireStageCompleted(String stage, PipelineRun run, long time, boolean success) {
+		Iterator<StageListener> it = listeners.iterator();
+		while(it.hasNext())
+			try {
+				it.next().stageCompleted(stage, run, time, success);
+			}catch(RuntimeException e) {
+				logger.error("Stage listener failed: " + e.getMessage());
+			}
+	}
+	
+	/**
+	 * The run leaves the pipeline
+	 */
+	void completed(PipelineRun run) {
+		run.release();
+		if(run.getMirrorID() != null)
+			lastRuns.remove(run.getMirrorID(), run);
+		
+		Iterator<StageListener> it = listeners.iterator();
+		while(it.hasNext())
+			try {
+				it.next().runCompleted(run);
+			}catch(RuntimeException e) {
+				logger.error("Stage listener failed: " + e.getMessage());
+			}
+	}
+	
+	/**
+	 * @return the stages with their workers and queue sizes
+	 */
+	private String describe() {
+		StringBuffer sb = new StringBuffer();
+		Iterator<Stage> it = stages.iterator();
+		while(it.hasNext()) {
+			Stage stage = it.next();
+			sb.append(stage.getName()).append(" (").append(stage.getWorkers()).append(" workers)");
+			if(it.hasNext())
+				sb.append(" -> ");
+		}
+		return sb.toString();
+	}
+	
+	public String toString() {
+		StringBuffer sb = new StringBuffer(crawl.toString());
+		Iterator<Stage> it = stages.iterator();
+		while(it.hasNext())
+			sb.append("\n\t").append(it.next());
+		sb.append("\n\t").append(diffScheduler);
+		return sb.toString();
+	}
+}
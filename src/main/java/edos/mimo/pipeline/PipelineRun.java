@@ -0,0 +1,152 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import java.util.concurrent.CountDownLatch;
+
+import edos.mimo.IMirror;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.filesystem.IMirrorDiff;
+
+/**
+ * One pass of a mirror through the pipeline: the structure downloaded
+ * by the crawl, and what the stages make out of it (delta, diff).
+ * 
+ * The runs of a mirror are persisted in the order they were crawled:
+ * each run knows the previous one, and waits for it to be persisted
+ * (or dropped) before its delta is computed against the stored state.
+ * 
+ * @author marc
+ *
+ */
+public class PipelineRun {
+	private String mirrorID;
+	private IMirror mirror;
+	private ITreeMirrorStructure structure = null;
+	private DOMMirrorDelta delta = null;		// null for the first download
+	private IMirrorDiff diff = null;			// null for the master
+	private String version = null;			// of the structure, once persisted (see DiffScheduler)
+	private String[] diffVersions = null;	// { master, mirror } versions of the diff (see DiffScheduler)
+	
+	private long startTime;				// crawl started
+	private long queueTime;				// queued for the current stage
+	private PipelineRun previous = null;	// previous run of the same mirror
+	private CountDownLatch persisted = new CountDownLatch(1);
+	
+	/**
+	 * @param mirrorID
+	 * @param mirror the mirror crawled (may be null when the stages don't need it)
+	 */
+	public PipelineRun(String mirrorID, IMirror mirror) {
+		this.mirrorID = mirrorID;
+		this.mirror = mirror;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	public String getMirrorID() {
+		return mirrorID;
+	}
+
+	public IMirror getMirror() {
+		return mirror;
+	}
+
+	public ITreeMirrorStructure getStructure() {
+		return structure;
+	}
+
+	public void setStructure(ITreeMirrorStructure structure) {
+		this.structure = structure;
+	}
+
+	/**
+	 * @return the version of the structure (see DiffScheduler), 
+	 * 			null if unknown
+	 */
+	public String getVersion() {
+		return version;
+	}
+	
+	void setVersion(String version) {
+		this.version = version;
+	}
+
+	public DOMMirrorDelta getDelta() {
+		return delta;
+	}
+
+	public void setDelta(DOMMirrorDelta delta) {
+		this.delta = delta;
+	}
+
+	public IMirrorDiff getDiff() {
+		return diff;
+	}
+
+	/**
+	 * @param diff
+	 * @param versions the { master, mirror } versions it was computed from
+	 */
+	public void setDiff(IMirrorDiff diff, String[] versions) {
+		this.diff = diff;
+		this.diffVersions = versions;
+	}
+	
+	public String[] getDiffVersions() {
+		return diffVersions;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	long getQueueTime() {
+		return queueTime;
+	}
+
+	void setQueueTime(long queueTime) {
+		this.queueTime = queueTime;
+	}
+
+	void setPrevious(PipelineRun previous) {
+		this.previous = previous;
+	}
+
+	/**
+	 * Waits until the previous run of this mirror is persisted or dropped
+	 * @throws InterruptedException
+	 */
+	public void awaitPrevious() throws InterruptedException {
+		if(previous != null) {
+			previous.persisted.await();
+			previous = null;	// no need to keep the history of the runs
+		}
+	}
+	
+	/**
+	 * Tells the next run of this mirror that this one is persisted, 
+	 * or will never be (calling it again does nothing)
+	 */
+	public void release() {
+		persisted.countDown();
+	}
+	
+	public String toString() {
+		return mirrorID + "-" + startTime;
+	}
+}
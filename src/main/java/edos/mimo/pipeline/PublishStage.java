@@ -0,0 +1,60 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.dal.StorageFactory;
+
+/**
+ * Makes the results of a run available: the diff is stored in the 
+ * database (readily queried, eg. to build a total diff) and the delta
+ * saved as a file in the XML storage directory. The diff is then up to 
+ * date for the DiffScheduler.
+ * 
+ * @author marc
+ *
+ */
+class PublishStage extends Stage {
+	private static Logger logger = Logger.getLogger(PublishStage.class);
+	
+	PublishStage(int workers, int queueSize) {
+		super(Pipeline.PUBLISH, workers, queueSize);
+	}
+
+	protected void process(PipelineRun run) throws Exception {
+		if(run.getDiff() != null) {
+			DiffScheduler scheduler = getPipeline().getDiffScheduler();
+			synchronized(this) {	// the workers publish the diffs one at a time
+				if(scheduler.isOutdated(run.getMirrorID(), run.getDiffVersions())) {
+					logger.info("Dropped outdated diff: " + run.getDiff().getFileName());
+					
+				}else{
+					StorageFactory.getStorage().save(run.getDiff());
+					scheduler.diffed(run.getMirrorID(), run.getDiffVersions());
+					logger.info("Saved diff: " + run.getDiff().getFileName());
+				}
+			}
+		}
+		
+		if(run.getDelta() != null) {
+			run.getDelta().save(Config.getBasePathXMLStorage());
+			logger.info("Delta saved in "+ Config.getBasePathXMLStorage() + ": " + run.getDelta().getFileName());
+		}
+	}
+}
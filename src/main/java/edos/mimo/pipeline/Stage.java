@@ -0,0 +1,226 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A step of the pipeline: a bounded queue of runs, processed by its own
+ * worker threads, which hand them over to the next stage.
+ * 
+ * When the queue is full, the thread submitting a run (the previous stage,
+ * or the crawl for the first stage) waits for room: a slow stage slows
+ * down the ones before it instead of piling up structures in memory.
+ * 
+ * A run which fails a stage is dropped: the next stages don't see it.
+ * 
+ * @author marc
+ *
+ */
+public abstract class Stage {
+	private static Logger logger = Logger.getLogger(Stage.class);
+	
+	private static final PipelineRun STOP = new PipelineRun(null, null);
+	
+	private String name;
+	private int workers;
+	private BlockingQueue<PipelineRun> queue;
+	private Thread[] threads = null;
+	private Stage next = null;
+	private Pipeline pipeline;
+	private StageStatistics statistics;
+	
+	/**
+	 * @param name
+	 * @param workers number of threads running the stage
+	 * @param queueSize number of runs waiting for the stage
+	 */
+	protected Stage(String name, int workers, int queueSize) {
+		this.name = name;
+		this.workers = Math.max(workers, 1);
+		this.queue = new ArrayBlockingQueue<PipelineRun>(Math.max(queueSize, 1));
+		this.statistics = new StageStatistics(name);
+	}
+	
+	/**
+	 * Does the job of the stage
+	 * 
+	 * @param run
+	 * @throws Exception to drop the run
+	 */
+	protected abstract void process(PipelineRun run) throws Exception;
+	
+	/**
+	 * @param run
+	 * @return false if the run goes straight to the next stage
+	 */
+	protected boolean accepts(PipelineRun run) {
+		return true;
+	}
+	
+	/**
+	 * Starts the workers
+	 * @param pipeline
+	 * @param next stage the runs go to, null for the last one
+	 */
+	void start(Pipeline pipeline, Stage next) {
+		this.pipeline = pipeline;
+		this.next = next;
+		
+		threads = new Thread[workers];
+		for(int i = 0; i < workers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					loop();
+				}
+			}, "Stage " + name + "-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+	
+	/**
+	 * Queues a run, waiting for room if the queue is full
+	 * @param run
+	 * @throws InterruptedException
+	 */
+	void submit(PipelineRun run) throws InterruptedException {
+		if(!accepts(run)) {
+			pass(run);
+			return;
+		}
+		
+		run.setQueueTime(System.currentTimeMillis());
+		if(!queue.offer(run)) {
+			statistics.blocked();
+			logger.debug(name + " stage full, waiting to queue " + run);
+			queue.put(run);
+		}
+	}
+	
+	/**
+	 * Processes the runs already queued, then stops the workers.
+	 * The stages before must be closed first.
+	 */
+	void close() {
+		if(threads == null)
+			return;
+		
+		try {
+			for(int i = 0; i < threads.length; i++)
+				queue.put(STOP);
+			for(int i = 0; i < threads.length; i++)
+				threads[i].join();
+			
+		}catch(InterruptedException ie) {
+			logger.error("Interrupted while closing the " + name + " stage: queued runs may be lost");
+		}
+		threads = null;
+	}
+	
+	/**
+	 * Worker thread
+	 */
+	private void loop() {
+		while(true) {
+			PipelineRun run;
+			try {
+				run = queue.take();
+			}catch(InterruptedException ie) {
+				logger.warn("Worker of the " + name + " stage interrupted");
+				continue;
+			}
+			if(run == STOP)
+				break;
+			execute(run);
+		}
+		logger.debug("Worker of the " + name + " stage stopped");
+	}
+	
+	private void execute(PipelineRun run) {
+		long start = System.currentTimeMillis();
+		long wait = start - run.getQueueTime();
+		pipeline.fireStageStarted(name, run, start);
+		
+		boolean success = false;
+		try {
+			process(run);
+			success = true;
+			
+		}catch(Exception e) {
+			logger.error("Stage " + name + " failed for " + run + ": " + e.getMessage());
+		}
+		
+		long end = System.currentTimeMillis();
+		statistics.record(wait, end - start, success);
+		pipeline.fireStageCompleted(name, run, end, success);
+		
+		if(!success) {
+			drop(run);
+			return;
+		}
+		try {
+			pass(run);
+			
+		}catch(InterruptedException ie) {
+			logger.error("Interrupted while handing over " + run + " to the next stage: dropped");
+			drop(run);
+		}
+	}
+	
+	private void pass(PipelineRun run) throws InterruptedException {
+		if(next == null)
+			pipeline.completed(run);
+		else
+			next.submit(run);
+	}
+	
+	private void drop(PipelineRun run) {
+		run.release();
+		pipeline.completed(run);
+	}
+	
+	protected Pipeline getPipeline() {
+		return pipeline;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getWorkers() {
+		return workers;
+	}
+	
+	/**
+	 * @return the number of runs waiting for the stage
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+	
+	public StageStatistics getStatistics() {
+		return statistics;
+	}
+	
+	public String toString() {
+		return statistics + ", " + queue.size() + " queued";
+	}
+}
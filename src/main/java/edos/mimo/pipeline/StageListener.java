@@ -0,0 +1,52 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+/**
+ * Told about the progress of the runs through the pipeline, 
+ * from the crawl to the last stage (see Pipeline).
+ * 
+ * The events of a run come one at a time, from the thread of
+ * the stage running it; the events of different runs may come
+ * at the same time.
+ * 
+ * @author marc
+ *
+ */
+public interface StageListener {
+	
+	/**
+	 * @param stage name of the stage (see Pipeline.CRAWL and Pipeline.STAGES)
+	 * @param run
+	 * @param time when the stage started, in milliseconds
+	 */
+	public void stageStarted(String stage, PipelineRun run, long time);
+	
+	/**
+	 * @param stage name of the stage
+	 * @param run
+	 * @param time when the stage ended, in milliseconds
+	 * @param success false if the stage failed (the run is then dropped)
+	 */
+	public void stageCompleted(String stage, PipelineRun run, long time, boolean success);
+	
+	/**
+	 * The run left the pipeline: done by the last stage, or dropped
+	 * @param run
+	 */
+	public void runCompleted(PipelineRun run);
+}
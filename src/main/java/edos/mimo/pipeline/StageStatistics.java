@@ -0,0 +1,105 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.pipeline;
+
+/**
+ * Latency of a stage of the pipeline: how long the runs waited in its
+ * queue, how long it took to process them, and how often the previous
+ * stage had to wait for room in the queue (backpressure).
+ * 
+ * @author marc
+ *
+ */
+public class StageStatistics {
+	private String name;
+	
+	private long processed = 0;
+	private long failed = 0;
+	private long blocked = 0;		// submissions which waited for room in the queue
+	private long totalLatency = 0;	// ms
+	private long maxLatency = 0;
+	private long totalWait = 0;		// ms spent in the queue
+	private long maxWait = 0;
+	
+	public StageStatistics(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Records a run processed by the stage
+	 * @param wait time spent in the queue (ms)
+	 * @param latency processing time (ms)
+	 * @param success
+	 */
+	synchronized void record(long wait, long latency, boolean success) {
+		processed++;
+		if(!success)
+			failed++;
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+		totalWait += wait;
+		maxWait = Math.max(maxWait, wait);
+	}
+	
+	synchronized void blocked() {
+		blocked++;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of runs processed, failed ones included
+	 */
+	public synchronized long getProcessed() {
+		return processed;
+	}
+
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the number of runs which waited for room in the queue
+	 */
+	public synchronized long getBlocked() {
+		return blocked;
+	}
+
+	public synchronized long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public synchronized long getAverageLatency() {
+		return (processed == 0)?0:totalLatency / processed;
+	}
+
+	public synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	public synchronized long getAverageWait() {
+		return (processed == 0)?0:totalWait / processed;
+	}
+	
+	public synchronized String toString() {
+		return name + ": " + processed + " runs (" + failed + " failed), latency " 
+				+ getAverageLatency() + " ms (max " + maxLatency + "), queued " 
+				+ getAverageWait() + " ms (max " + maxWait + "), " + blocked + " blocked submissions";
+	}
+}
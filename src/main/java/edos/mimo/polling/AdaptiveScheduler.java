@@ -0,0 +1,318 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.polling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.dom4j.io.XMLWriter;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.SimpleTrigger;
+import org.quartz.Trigger;
+
+import edos.mimo.filesystem.IMirrorDiff;
+import edos.mimo.job.TriggerSpread;
+import edos.mimo.pipeline.Pipeline;
+import edos.mimo.pipeline.PipelineRun;
+import edos.mimo.pipeline.StageListener;
+
+/**
+ * Crawls each mirror at its own pace instead of a fixed cron expression:
+ * once a run of a mirror leaves the pipeline, the next crawl is set by
+ * the PollingPolicy from the size of its delta, the time the crawl took
+ * and how long the mirror has been out of sync with the master, and 
+ * fired by a one-shot trigger.
+ * 
+ * The state of the mirrors, with their latest decisions, is written to
+ * a file after each decision: the schedule goes on after a restart 
+ * (the crawls which should have happened meanwhile are fired at once,
+ * or spread over their interval, see setSpread()).
+ * tools.PollingCLI prints it.
+ * 
+ * The jobs of the mirrors must be durable: they stay in the scheduler 
+ * between their triggers.
+ * 
+ * @author marc
+ *
+ */
+public class AdaptiveScheduler implements StageListener {
+	private static Logger logger = Logger.getLogger(AdaptiveScheduler.class);
+	
+	private static final String POLLING = "polling";
+	
+	private Scheduler sched;
+	private String group;		// group of the jobs and triggers
+	private PollingPolicy policy;
+	private File stateFile;
+	private TriggerSpread spread = null;	// null to fire the due crawls at once
+	
+	private Map<String,PollingState> states = new HashMap<String,PollingState>();
+	private Set<String> scheduled = new HashSet<String>();	// mirrors with a job
+	private Map<PipelineRun,Long> crawls = new Hashtable<PipelineRun,Long>();	// crawl times, -1 if failed
+	
+	/**
+	 * @param sched Quartz scheduler
+	 * @param group group of the downloader jobs
+	 * @param policy
+	 * @param stateFile where the state is kept between two runs of the application
+	 */
+	public AdaptiveScheduler(Scheduler sched, String group, PollingPolicy policy, File stateFile) {
+		this.sched = sched;
+		this.group = group;
+		this.policy = policy;
+		this.stateFile = stateFile;
+		
+		// no state file but a temporary one: crash while replacing it (see writeStates())
+		File file = stateFile.exists()?stateFile:getTemporaryFile(stateFile);
+		if(file.exists())
+			try {
+				Iterator<PollingState> it = readStates(file).iterator();
+				while(it.hasNext()) {
+					PollingState state = it.next();
+					states.put(state.getMirrorID(), state);
+				}
+				logger.info("Polling state of " + states.size() + " mirrors loaded from " + file);
+				
+			}catch(DocumentException e) {
+				logger.error("Unable to read the polling state " + file + ", starting afresh: " 
+								+ e.getMessage());
+			}
+	}
+	
+	/**
+	 * Spreads the first crawls which are due (new mirrors, restart)
+	 * over the intervals of the mirrors, instead of firing them all at once
+	 * @param spread
+	 */
+	public void setSpread(TriggerSpread spread) {
+		this.spread = spread;
+	}
+	
+	/**
+	 * Fires the first crawl of a mirror, when its state says (at once
+	 * for a new mirror, unless spread). Its job must be in the scheduler.
+	 * 
+	 * @param mirrorID name of the job
+	 * @throws SchedulerException
+	 */
+	public void schedule(String mirrorID) throws SchedulerException {
+		long next;
+		synchronized(this) {
+			scheduled.add(mirrorID);
+			PollingState state = getState(mirrorID);
+			long now = System.currentTimeMillis();
+			next = Math.max(now, state.getNextCrawl());
+			if(spread != null && next == now)
+				next += spread.getOffset(mirrorID, state.getInterval());
+		}
+		fire(mirrorID, next);
+		logger.info("First crawl of " + mirrorID + " at " + new Date(next));
+	}
+	
+	public void stageStarted(String stage, PipelineRun run, long time) {
+	}
+	
+	public void stageCompleted(String stage, PipelineRun run, long time, boolean success) {
+		if(stage.equals(Pipeline.CRAWL))
+			crawls.put(run, new Long(success?time - run.getStartTime():-1));
+	}
+	
+	/**
+	 * Sets the next crawl of the mirror
+	 */
+	public void runCompleted(PipelineRun run) {
+		Long crawlCost = crawls.remove(run);
+		if(crawlCost == null)
+			return;		// not a crawl (eg. a re-diff)
+		
+		int changes = (crawlCost.longValue() < 0 || run.getDelta() == null)?-1:run.getDelta().getSize();
+		int differences = (run.getDiff() == null)?-1:countDifferences(run.getDiff());
+		
+		PollingDecision decision;
+		long next;
+		synchronized(this) {
+			PollingState state = getState(run.getMirrorID());
+			decision = policy.decide(state, System.currentTimeMillis(), changes, crawlCost.longValue(),
+										differences, getLoad(run.getMirrorID()));
+			next = state.getNextCrawl();
+			save();
+		}
+		logger.info("Polling " + run.getMirrorID() + ": " + decision);
+		
+		try {
+			fire(run.getMirrorID(), next);
+			
+		}catch(SchedulerException e) {
+			logger.error("Unable to schedule the next crawl of " + run.getMirrorID() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @return the state of a mirror (a new one if unknown)
+	 */
+	public synchronized PollingState getState(String mirrorID) {
+		PollingState state = states.get(mirrorID);
+		if(state == null) {
+			state = policy.newState(mirrorID);
+			states.put(mirrorID, state);
+		}
+		return state;
+	}
+	
+	/**
+	 * @return the states of the mirrors, with their latest decisions
+	 */
+	public synchronized List<PollingState> getStates() {
+		return new ArrayList<PollingState>(states.values());
+	}
+	
+	/**
+	 * Reads the states written by an adaptive scheduler
+	 * @param file
+	 * @return the states
+	 * @throws DocumentException if the file is not a valid polling state
+	 */
+	public static List<PollingState> readStates(File file) throws DocumentException {
+		List<PollingState> list = new ArrayList<PollingState>();
+		Document doc = new SAXReader().read(file);
+		Iterator it = doc.getRootElement().elements(PollingState.MIRROR).iterator();
+		try {
+			while(it.hasNext())
+				list.add(new PollingState((Element)it.next()));
+			
+		}catch(NumberFormatException nfe) {
+			throw new DocumentException("Invalid polling state: " + nfe.getMessage());
+		}
+		return list;
+	}
+	
+	/**
+	 * @return the crawls per hour of the scheduled mirrors but one
+	 */
+	private double getLoad(String mirrorID) {
+		double load = 0;
+		Iterator<String> it = scheduled.iterator();
+		while(it.hasNext()) {
+			String id = it.next();
+			if(!id.equals(mirrorID))
+				load += PollingPolicy.getLoad(getState(id));
+		}
+		return load;
+	}
+	
+	/**
+	 * Files which the mirror misses or has outdated
+	 */
+	private static int countDifferences(IMirrorDiff diff) {
+		return diff.countMissingFiles() + diff.olderFiles() + diff.corruptedFiles() + diff.wrongTypeFiles();
+	}
+	
+	/**
+	 * Replaces the trigger of a mirror by a one-shot trigger
+	 */
+	private void fire(String mirrorID, long time) throws SchedulerException {
+		String name = "Adaptive trigger for " + mirrorID;
+		Trigger trigger = new SimpleTrigger(name, group, mirrorID, group, new Date(time), null, 0, 0);
+		if(sched.rescheduleJob(name, group, trigger) == null)
+			sched.scheduleJob(trigger);
+	}
+	
+	private void save() {
+		try {
+			writeStates(stateFile, states.values());
+			
+		}catch(IOException ioe) {
+			logger.error("Unable to save the polling state in " + stateFile + ": " + ioe.getMessage());
+		}
+	}
+	
+	/**
+	 * Writes the states, through a temporary file so that a crash 
+	 * leaves the previous version. The file is replaced by renaming
+	 * the temporary one over it; where it cannot (Windows), it is deleted 
+	 * first and a crash in between leaves the temporary file only, which 
+	 * the constructor reads instead.
+	 * 
+	 * @param file
+	 * @param states
+	 * @throws IOException
+	 */
+	public static void writeStates(File file, Collection<PollingState> states) throws IOException {
+		Document doc = DocumentHelper.createDocument();
+		Element root = doc.addElement(POLLING);
+		Iterator<PollingState> it = states.iterator();
+		while(it.hasNext())
+			root.add(it.next().toElement());
+		
+		File tmp = getTemporaryFile(file);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			XMLWriter writer = new XMLWriter(out, OutputFormat.createPrettyPrint());
+			writer.write(doc);
+			writer.flush();
+		}finally{
+			out.close();
+		}
+		
+		if(tmp.renameTo(file))
+			return;
+		file.delete();
+		if(!tmp.renameTo(file))
+			throw new IOException("unable to rename " + tmp);
+	}
+	
+	private static File getTemporaryFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+	
+	public synchronized String toString() {
+		StringBuffer sb = new StringBuffer("adaptive polling (").append(policy).append(")");
+		List<PollingState> list = getStates();
+		Collections.sort(list, new Comparator<PollingState>() {
+			public int compare(PollingState a, PollingState b) {
+				return a.getMirrorID().compareTo(b.getMirrorID());
+			}
+		});
+		Iterator<PollingState> it = list.iterator();
+		while(it.hasNext())
+			sb.append("\n\t").append(it.next());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,120 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.polling;
+
+import java.util.Date;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+/**
+ * Why the interval between two crawls of a mirror was set as it is:
+ * what was observed of the latest crawl, the previous and the new 
+ * intervals, and the reasons of the change.
+ * 
+ * @author marc
+ *
+ */
+public class PollingDecision {
+	static final String DECISION	= "decision";
+	private static final String TIME		= "time";
+	private static final String CHANGES		= "changes";
+	private static final String COST		= "cost";
+	private static final String LAG			= "lag";
+	private static final String PREVIOUS	= "previous";
+	private static final String INTERVAL	= "interval";
+	private static final String REASON		= "reason";
+	
+	private long time;
+	private int changes;		// size of the delta, -1 if unknown
+	private long crawlCost;		// ms, -1 if the crawl failed
+	private long lag;			// ms the mirror has been out of sync with the master
+	private long previous;		// previous interval (ms)
+	private long interval;		// new interval (ms)
+	private String reason;
+	
+	PollingDecision(long time, int changes, long crawlCost, long lag, 
+					long previous, long interval, String reason) {
+		this.time = time;
+		this.changes = changes;
+		this.crawlCost = crawlCost;
+		this.lag = lag;
+		this.previous = previous;
+		this.interval = interval;
+		this.reason = reason;
+	}
+	
+	/**
+	 * Reads a decision written by toElement()
+	 * @param e
+	 */
+	PollingDecision(Element e) {
+		this(Long.parseLong(e.attributeValue(TIME)), Integer.parseInt(e.attributeValue(CHANGES)),
+				Long.parseLong(e.attributeValue(COST)), Long.parseLong(e.attributeValue(LAG)),
+				Long.parseLong(e.attributeValue(PREVIOUS)), Long.parseLong(e.attributeValue(INTERVAL)),
+				e.attributeValue(REASON));
+	}
+	
+	Element toElement() {
+		Element e = DocumentHelper.createElement(DECISION);
+		e.addAttribute(TIME, Long.toString(time));
+		e.addAttribute(CHANGES, Integer.toString(changes));
+		e.addAttribute(COST, Long.toString(crawlCost));
+		e.addAttribute(LAG, Long.toString(lag));
+		e.addAttribute(PREVIOUS, Long.toString(previous));
+		e.addAttribute(INTERVAL, Long.toString(interval));
+		e.addAttribute(REASON, reason);
+		return e;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public int getChanges() {
+		return changes;
+	}
+
+	public long getCrawlCost() {
+		return crawlCost;
+	}
+
+	public long getLag() {
+		return lag;
+	}
+
+	public long getPreviousInterval() {
+		return previous;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+	
+	public String toString() {
+		return new Date(time) + ": " + minutes(previous) + " -> " + minutes(interval) 
+				+ " (" + reason + ")";
+	}
+	
+	static String minutes(long millis) {
+		return (millis / 60000) + " min";
+	}
+}
@@ -0,0 +1,179 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.polling;
+
+/**
+ * Sets the interval until the next crawl of a mirror from what its 
+ * latest crawl showed:
+ *  . changes in the delta shorten the interval, the more changes 
+ *    the shorter (divided by 1 + log10(1 + changes))
+ *  . a mirror out of sync with the master keeps its interval: it is
+ *    expected to catch up soon
+ *  . an unchanged mirror is polled less and less often (x 1.5)
+ *  . a mirror is not crawled more often than ten times its crawl takes
+ *  . the interval stays within the minimum and the maximum
+ *  . when all the mirrors together would be crawled more often than 
+ *    the budget (crawls per hour), the interval is stretched in 
+ *    proportion
+ * A failed crawl keeps the interval.
+ * 
+ * New mirrors start at the minimum interval.
+ * 
+ * @author marc
+ *
+ */
+public class PollingPolicy {
+	public static final long MINUTE = 60 * 1000;
+	public static final long HOUR = 60 * MINUTE;
+	
+	private static final double BACKOFF = 1.5;
+	private static final int COST_RATIO = 10;	// interval / crawl time
+	
+	private long minInterval;
+	private long maxInterval;
+	private int budget;			// crawls per hour, 0 for no limit
+	
+	/**
+	 * @param minInterval ms
+	 * @param maxInterval ms
+	 * @param budget crawls per hour of all the mirrors, 0 for no limit
+	 */
+	public PollingPolicy(long minInterval, long maxInterval, int budget) {
+		if(minInterval <= 0 || maxInterval < minInterval || budget < 0)
+			throw new IllegalArgumentException("Invalid polling intervals or budget: " 
+					+ minInterval + ", " + maxInterval + ", " + budget);
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.budget = budget;
+	}
+	
+	/**
+	 * @param mirrorID
+	 * @return the state of a mirror never crawled yet
+	 */
+	public PollingState newState(String mirrorID) {
+		return new PollingState(mirrorID, minInterval);
+	}
+	
+	/**
+	 * Sets the next crawl of a mirror after a crawl
+	 * 
+	 * @param state state of the mirror, updated
+	 * @param now time of the decision
+	 * @param changes size of the delta of the crawl, -1 if unknown (first crawl)
+	 * @param crawlCost time the crawl took (ms), -1 if it failed
+	 * @param differences files the mirror misses or has outdated compared to
+	 * 			the master, -1 if unknown (no diff)
+	 * @param otherLoad crawls per hour of the other mirrors (see getLoad())
+	 * @return the decision, also added to the state
+	 */
+	public PollingDecision decide(PollingState state, long now, int changes, long crawlCost, 
+									int differences, double otherLoad) {
+		long previous = state.getInterval();
+		double interval = previous;
+		StringBuffer reason = new StringBuffer();
+		
+		/*
+		 * OBSERVATIONS
+		 * average of the crawl times, out of sync period
+		 */
+		if(crawlCost >= 0)
+			state.setCrawlCost((state.getCrawlCost() == 0)?crawlCost:(state.getCrawlCost() * 3 + crawlCost) / 4);
+		if(differences == 0)
+			state.setOutOfSyncSince(0);
+		else if(differences > 0 && state.getOutOfSyncSince() == 0)
+			state.setOutOfSyncSince(now);
+		long lag = (state.getOutOfSyncSince() == 0)?0:now - state.getOutOfSyncSince();
+		
+		/*
+		 * ACTIVITY
+		 */
+		if(crawlCost < 0) {
+			reason.append("crawl failed");
+			
+		}else if(changes > 0) {
+			interval /= 1 + Math.log10(1 + changes);
+			reason.append(changes).append(" changes");
+			
+		}else if(state.getOutOfSyncSince() > 0) {
+			reason.append("out of sync with the master for ").append(PollingDecision.minutes(lag));
+			
+		}else if(changes == 0) {
+			interval *= BACKOFF;
+			reason.append("unchanged");
+			
+		}else{
+			reason.append("first crawl");
+		}
+		
+		/*
+		 * LIMITS
+		 */
+		if(interval < state.getCrawlCost() * COST_RATIO) {
+			interval = state.getCrawlCost() * COST_RATIO;
+			reason.append(", crawls take ").append(state.getCrawlCost() / 1000).append(" s");
+		}
+		if(interval < minInterval) {
+			interval = minInterval;
+			reason.append(", minimum");
+		}
+		if(interval > maxInterval) {
+			interval = maxInterval;
+			reason.append(", maximum");
+		}
+		
+		double load = otherLoad + HOUR / interval;
+		if(budget > 0 && load > budget && interval < maxInterval) {
+			interval = Math.min(interval * load / budget, maxInterval);
+			reason.append(", over the budget of ").append(budget).append(" crawls per hour");
+		}
+		
+		state.setInterval((long)interval);
+		state.setLastCrawl(now);
+		state.setNextCrawl(now + (long)interval);
+		
+		PollingDecision decision = new PollingDecision(now, changes, crawlCost, lag, 
+									previous, (long)interval, reason.toString());
+		state.addDecision(decision);
+		return decision;
+	}
+	
+	/**
+	 * @param state
+	 * @return the crawls per hour of a mirror
+	 */
+	public static double getLoad(PollingState state) {
+		return (double)HOUR / state.getInterval();
+	}
+
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	public int getBudget() {
+		return budget;
+	}
+	
+	public String toString() {
+		return "every " + PollingDecision.minutes(minInterval) + " to " + PollingDecision.minutes(maxInterval)
+				+ ((budget > 0)?", at most " + budget + " crawls per hour":"");
+	}
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.polling;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+/**
+ * What the adaptive polling knows about a mirror: its current interval,
+ * when it was crawled and will be next, how long its crawls take, since 
+ * when it is out of sync with the master, and the latest decisions.
+ * 
+ * @author marc
+ *
+ */
+public class PollingState {
+	static final String MIRROR = "mirror";
+	private static final String ID				= "id";
+	private static final String INTERVAL		= "interval";
+	private static final String LAST_CRAWL		= "lastCrawl";
+	private static final String NEXT_CRAWL		= "nextCrawl";
+	private static final String CRAWL_COST		= "crawlCost";
+	private static final String OUT_OF_SYNC		= "outOfSyncSince";
+	
+	static final int DECISIONS = 10;	// decisions kept
+	
+	private String mirrorID;
+	private long interval;
+	private long lastCrawl = 0;
+	private long nextCrawl = 0;			// 0 for as soon as possible
+	private long crawlCost = 0;			// average of the latest crawls (ms), 0 if unknown
+	private long outOfSyncSince = 0;	// 0 if in sync with the master
+	private LinkedList<PollingDecision> decisions = new LinkedList<PollingDecision>();
+	
+	/**
+	 * @param mirrorID
+	 * @param interval initial interval (ms)
+	 */
+	public PollingState(String mirrorID, long interval) {
+		this.mirrorID = mirrorID;
+		this.interval = interval;
+	}
+	
+	/**
+	 * Reads a state written by toElement()
+	 * @param e
+	 * @throws NumberFormatException if an attribute is invalid
+	 */
+	PollingState(Element e) {
+		this(e.attributeValue(ID), Long.parseLong(e.attributeValue(INTERVAL)));
+		lastCrawl = Long.parseLong(e.attributeValue(LAST_CRAWL));
+		nextCrawl = Long.parseLong(e.attributeValue(NEXT_CRAWL));
+		crawlCost = Long.parseLong(e.attributeValue(CRAWL_COST));
+		outOfSyncSince = Long.parseLong(e.attributeValue(OUT_OF_SYNC));
+		
+		Iterator it = e.elements(PollingDecision.DECISION).iterator();
+		while(it.hasNext())
+			decisions.add(new PollingDecision((Element)it.next()));
+	}
+	
+	Element toElement() {
+		Element e = DocumentHelper.createElement(MIRROR);
+		e.addAttribute(ID, mirrorID);
+		e.addAttribute(INTERVAL, Long.toString(interval));
+		e.addAttribute(LAST_CRAWL, Long.toString(lastCrawl));
+		e.addAttribute(NEXT_CRAWL, Long.toString(nextCrawl));
+		e.addAttribute(CRAWL_COST, Long.toString(crawlCost));
+		e.addAttribute(OUT_OF_SYNC, Long.toString(outOfSyncSince));
+		
+		Iterator<PollingDecision> it = decisions.iterator();
+		while(it.hasNext())
+			e.add(it.next().toElement());
+		return e;
+	}
+	
+	void addDecision(PollingDecision decision) {
+		decisions.add(decision);
+		if(decisions.size() > DECISIONS)
+			decisions.removeFirst();
+	}
+
+	public String getMirrorID() {
+		return mirrorID;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	public long getLastCrawl() {
+		return lastCrawl;
+	}
+
+	void setLastCrawl(long lastCrawl) {
+		this.lastCrawl = lastCrawl;
+	}
+
+	public long getNextCrawl() {
+		return nextCrawl;
+	}
+
+	void setNextCrawl(long nextCrawl) {
+		this.nextCrawl = nextCrawl;
+	}
+
+	public long getCrawlCost() {
+		return crawlCost;
+	}
+
+	void setCrawlCost(long crawlCost) {
+		this.crawlCost = crawlCost;
+	}
+
+	public long getOutOfSyncSince() {
+		return outOfSyncSince;
+	}
+
+	void setOutOfSyncSince(long outOfSyncSince) {
+		this.outOfSyncSince = outOfSyncSince;
+	}
+	
+	/**
+	 * @return the latest decisions, the oldest first
+	 */
+	public List<PollingDecision> getDecisions() {
+		return new ArrayList<PollingDecision>(decisions);
+	}
+	
+	public String toString() {
+		StringBuffer sb = new StringBuffer(mirrorID).append(": every ")
+			.append(PollingDecision.minutes(interval)).append(", next crawl ")
+			.append((nextCrawl == 0)?"as soon as possible":new java.util.Date(nextCrawl).toString());
+		if(outOfSyncSince > 0)
+			sb.append(", out of sync since ").append(new java.util.Date(outOfSyncSince));
+		return sb.toString();
+	}
+}
@@ -30,5 +30,9 @@ import edos.mimo.IMirrorStructure;
  *
  */
 public interface ITableMirrorStructure extends IMirrorStructure {
-
+	public String getMirrorID();		// unique name for the mirror
+	public long getSnapshot();			// checkout time in millis, identifies the rows of this structure
+	public TableStore getTableStore();	// the tables holding the rows
+	public int countFiles();			// number of files and directories stored
+	public String getFilename();		// unique name for this structure
 }
@@ -0,0 +1,101 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.rdbms;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.IMasterMirror;
+import edos.mimo.ISecondaryMirror;
+import edos.mimo.filesystem.IDiffGenerator;
+import edos.mimo.filesystem.IDiffGeneratorListener;
+import edos.mimo.filesystem.IMirrorDiff;
+
+/**
+ * Diff between the master and a secondary mirror stored as tables:
+ * the differences are found by the database (see TableStore.diff()),
+ * with the same rules as the tree engines (a file or directory is
+ * identified by its path, directories ending with a slash).
+ * 
+ * @author radu
+ *
+ */
+public class TableDiffGenerator implements IDiffGenerator {
+	private static Logger logger = Logger.getLogger(TableDiffGenerator.class);
+
+	private TableMirrorDiff diff;
+	private List<IDiffGeneratorListener> listeners = new LinkedList<IDiffGeneratorListener>();
+	private int differences;
+
+	/**
+	 * @throws SQLException if the diff could not be computed
+	 */
+	public TableDiffGenerator(IMasterMirror master, ISecondaryMirror mirror) throws SQLException {
+		this((ITableMirrorStructure)master.getStructure(), (ITableMirrorStructure)mirror.getStructure());
+	}
+
+	/**
+	 * @throws SQLException if the diff could not be computed
+	 */
+	public TableDiffGenerator(ITableMirrorStructure master, ITableMirrorStructure mirror) throws SQLException {
+		diff = new TableMirrorDiff(master, mirror);
+
+		logger.info("Starting table diff generation for " + mirror.getMirrorID());
+		differences = mirror.getTableStore().diff(master.getMirrorID(), master.getSnapshot(), 
+													mirror.getMirrorID(), mirror.getSnapshot());
+		logger.info("Diff completed for " + mirror.getFilename());
+	}
+
+	/**
+	 * Get method returning the <code>IMirrorDiff</code> to the listeners.
+	 */
+	public void notifyAllListeners() {
+		Iterator<IDiffGeneratorListener> it = listeners.iterator();
+		while (it.hasNext()) {
+			IDiffGeneratorListener listener = it.next();
+			if (listener == null)
+				continue;
+
+			listener.diffCompleted(diff);
+		}
+	}
+
+	/**
+	 * Set up the listener(s)
+	 * @param listener
+	 */
+	public void addListener(IDiffGeneratorListener listener) {
+		if(listener == null)
+			return;
+		listeners.add(listener);
+	}
+
+	/**
+	 * @return the number of differences found
+	 */
+	public int countDifferences() {
+		return differences;
+	}
+
+	public IMirrorDiff getDiff() {
+		return diff;
+	}
+}
@@ -0,0 +1,86 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.rdbms;
+
+import edos.mimo.Date;
+import edos.mimo.filesystem.IFileDiff;
+
+/**
+ * A difference read back from the MirrorDiff table:
+ * the path and the times are all there is to know.
+ * 
+ * @author radu
+ *
+ */
+public class TableFileDiff implements IFileDiff {
+	private int status;
+	private String path;
+	private long expected;		// master file time in millis, 0 if unknown
+	private long effective;		// mirror file time in millis, 0 if unknown
+
+	public TableFileDiff(int status, String path, long expected, long effective) {
+		this.status = status;
+		this.path = path;
+		this.expected = expected;
+		this.effective = effective;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getExpectedTimeInMillis() {
+		return expected;
+	}
+
+	public long getEffectiveTimeInMillis() {
+		return effective;
+	}
+
+	public String getExpectedDate() {
+		return (expected == 0)? "unknown" : new Date(expected).asISO8601();
+	}
+
+	public String getEffectiveDate() {
+		return (effective == 0)? "unknown" : new Date(effective).asISO8601();
+	}
+
+	public String toString() {
+		switch(status) {
+			case FILE_OK:
+				return MESSAGE_FILE_OK;
+			case FILE_MISSING:
+				return MESSAGE_FILE_MISSING;
+			case FILE_CORRUPTED:
+				return MESSAGE_FILE_CORRUPTED;
+			case FILE_OLDER:
+				return MESSAGE_FILE_OLDER;
+			case FILE_NEWER:
+				return MESSAGE_FILE_NEWER;
+			case FILE_SUPERFLUOUS:
+				return MESSAGE_FILE_SUPERFLUOUS;
+			case FILE_WRONG_TYPE:
+				return MESSAGE_FILE_WRONG_TYPE;
+			default:
+				return "Unexpected status " + status;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.rdbms;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.IMirrorDelta;
+
+/**
+ * Changes between 2 snapshots of a mirror stored as tables.
+ * 
+ * Nothing is stored: the added, deleted and updated files are found by
+ * the database when asked (see TableStore.getDelta()), as set operations
+ * on the paths of both snapshots.
+ * 
+ * @author radu
+ *
+ */
+public class TableMirrorDelta implements IMirrorDelta {
+	private static Logger logger = Logger.getLogger(TableMirrorDelta.class);
+
+	private TableStore store;
+	private String mirrorID;
+	private long from;
+	private long to;
+
+	/**
+	 * @param older structure
+	 * @param newer structure of the same mirror
+	 */
+	public TableMirrorDelta(ITableMirrorStructure older, ITableMirrorStructure newer) {
+		this(newer.getTableStore(), newer.getMirrorID(), older.getSnapshot(), newer.getSnapshot());
+		if(!older.getMirrorID().equals(newer.getMirrorID()))
+			throw new IllegalArgumentException("Delta between 2 mirrors: " 
+								+ older.getMirrorID() + ", " + newer.getMirrorID());
+	}
+
+	/**
+	 * @param store
+	 * @param mirrorID
+	 * @param from older snapshot
+	 * @param to newer snapshot
+	 */
+	public TableMirrorDelta(TableStore store, String mirrorID, long from, long to) {
+		this.store = store;
+		this.mirrorID = mirrorID;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * @return the number of changes, -1 if the database is not available
+	 */
+	public int getSize() {
+		int added = countNewFiles();
+		int deleted = countDeletedFiles();
+		int updated = countUpdatedFiles();
+		if(added < 0 || deleted < 0 || updated < 0)
+			return -1;
+		return added + deleted + updated;
+	}
+
+	public String getDocumentID() {
+		return mirrorID + "-" + to + "-delta";
+	}
+
+	public String getMirrorID() {
+		return mirrorID;
+	}
+
+	public String getFilename() {
+		return getDocumentID() + ".xml";
+	}
+
+	public long getFromSnapshot() {
+		return from;
+	}
+
+	public long getToSnapshot() {
+		return to;
+	}
+
+	public int countDeletedFiles() {
+		return count(DEL);
+	}
+
+	public int countNewFiles() {
+		return count(ADD);
+	}
+
+	public int countUpdatedFiles() {
+		return count(UPDATE);
+	}
+
+	/**
+	 * Returns a list of paths.
+	 */
+	public List getDeletedFiles() {
+		return get(DEL);
+	}
+
+	/**
+	 * Returns a list of paths.
+	 */
+	public List getNewFiles() {
+		return get(ADD);
+	}
+
+	/**
+	 * Returns a list of paths.
+	 */
+	public List getUpdatedFiles() {
+		return get(UPDATE);
+	}
+
+	private int count(String change) {
+		try {
+			return store.countDelta(mirrorID, from, to, change);
+			
+		}catch(SQLException e) {
+			logger.error("Unable to compute the delta of " + mirrorID + ": " + e.getMessage());
+			return -1;
+		}
+	}
+
+	private List<String> get(String change) {
+		try {
+			return store.getDelta(mirrorID, from, to, change);
+			
+		}catch(SQLException e) {
+			logger.error("Unable to compute the delta of " + mirrorID + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	public String toString() {
+		return "[" + getDocumentID() + " since " + from + ": " + countNewFiles() + " added, "
+				+ countDeletedFiles() + " deleted, " + countUpdatedFiles() + " updated]";
+	}
+}
@@ -17,100 +17,164 @@
 package edos.mimo.rdbms; 
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.sql.SQLException;
 import java.util.List;
 
+import org.apache.log4j.Logger;
+
+import edos.mimo.IMasterMirror;
 import edos.mimo.ISecondaryMirror;
 import edos.mimo.filesystem.IFile;
 import edos.mimo.filesystem.IFileDiff;
 import edos.mimo.filesystem.IMirrorDiff;
 
 /**
- * Basic implementation of <code>IMirrorDiff</code>
- * for a table-based model
+ * Implementation of <code>IMirrorDiff</code> for the table-based model:
+ * the differences are rows of the MirrorDiff table (see TableStore),
+ * counted and read by queries rather than kept in memory.
  * 
  * @author marc
  *
  */
 public class TableMirrorDiff  implements IMirrorDiff {
+	private static Logger logger = Logger.getLogger(TableMirrorDiff.class);
 
-	private ArrayList<IFile> missingFiles;
-	private ArrayList<IFileDiff> diffs;
-	private String mirrorFileName;
+	private TableStore store;
+	private String masterID;
+	private long masterSnapshot;
+	private String mirrorID;
+	private long snapshot;
 	
-	public TableMirrorDiff(ISecondaryMirror mirror) {
-		missingFiles = new ArrayList<IFile>();
-		diffs = new ArrayList<IFileDiff>();
-		mirrorFileName = mirror.getFilename();
+	/**
+	 * Diff of the table structures of the mirrors (computed or not yet)
+	 */
+	public TableMirrorDiff(IMasterMirror master, ISecondaryMirror mirror) {
+		this((ITableMirrorStructure)master.getStructure(), (ITableMirrorStructure)mirror.getStructure());
 	}
 
-	
-	public List<IFile> getMissingFiles() {
-		return missingFiles;
+	public TableMirrorDiff(ITableMirrorStructure master, ITableMirrorStructure mirror) {
+		this(mirror.getTableStore(), master.getMirrorID(), master.getSnapshot(), 
+				mirror.getMirrorID(), mirror.getSnapshot());
 	}
 
-	public int countMissingFiles() {
-		return missingFiles.size();
+	public TableMirrorDiff(TableStore store, String masterID, long masterSnapshot, String mirrorID, long snapshot) {
+		this.store = store;
+		this.masterID = masterID;
+		this.masterSnapshot = masterSnapshot;
+		this.mirrorID = mirrorID;
+		this.snapshot = snapshot;
 	}
 
-	public void addDiff(IFileDiff diff) {
-		diffs.add(diff);
+	/**
+	 * @return the files of the master missing on the mirror
+	 * 		(as diffs: only their path and time are stored)
+	 */
+	public List<IFileDiff> getMissingFiles() {
+		return getFileDiffs(IFileDiff.FILE_MISSING);
 	}
 
-
+	/**
+	 * @return all the differences, by status then path
+	 */
 	public List<IFileDiff> getFileDiffs() {
-		return diffs;
+		return getFileDiffs(-1);
 	}
 
-
-	public String getFileName() {
-		return mirrorFileName;
+	private List<IFileDiff> getFileDiffs(int status) {
+		try {
+			return store.getDiffs(mirrorID, snapshot, status);
+			
+		}catch(SQLException e) {
+			logger.error("Unable to read the diff of " + mirrorID + ": " + e.getMessage());
+			return null;
+		}
 	}
 
-
-	public void save() throws IOException {
-		
+	public int countMissingFiles() {
+		return count(IFileDiff.FILE_MISSING);
 	}
 
+	public int newerFiles() {
+		return count(IFileDiff.FILE_NEWER);
+	}
 
-	public String getDocumentID() {
-		return null;
+	public int olderFiles() {
+		return count(IFileDiff.FILE_OLDER);
 	}
 
+	public int corruptedFiles() {
+		return count(IFileDiff.FILE_CORRUPTED);
+	}
 
-	public int newerFiles() {
-		return 0;
+	public int superfluousFiles() {
+		return count(IFileDiff.FILE_SUPERFLUOUS);
 	}
 
+	public int wrongTypeFiles() {
+		return count(IFileDiff.FILE_WRONG_TYPE);
+	}
 
-	public int olderFiles() {
-		return 0;
+	/**
+	 * @return the number of differences of this kind, -1 if the database is not available
+	 */
+	private int count(int status) {
+		try {
+			return store.countDiffs(mirrorID, snapshot, status);
+			
+		}catch(SQLException e) {
+			logger.error("Unable to count the differences of " + mirrorID + ": " + e.getMessage());
+			return -1;
+		}
 	}
 
+	public void addDiff(IFileDiff diff) {
+		try {
+			store.addDiff(mirrorID, snapshot, masterID, masterSnapshot, diff);
+			
+		}catch(SQLException e) {
+			logger.error("Unable to store a difference of " + mirrorID + ": " + e.getMessage());
+		}
+	}
 
-	public int corruptedFiles() {
-		return 0;
+	public String getFileName() {
+		return getDocumentID() + ".xml";
 	}
 
+	/**
+	 * Nothing to do: the differences are stored as they are found
+	 */
+	public void save() throws IOException {
+	}
 
-	public int superfluousFiles() {
-		return 0;
+	/**
+	 * Nothing to do: the differences are stored as they are found
+	 */
+	public void save(String relativePathToDirectory) throws IOException {
 	}
 
+	public String getDocumentID() {
+		return mirrorID + "-" + snapshot + "-diff";
+	}
 
-	public int wrongTypeFiles() {
-		return 0;
+	public String getMirrorID() {
+		return mirrorID;
 	}
 
+	public String getMasterID() {
+		return masterID;
+	}
 
-	public void save(String relativePathToDirectory) throws IOException {
-		
+	public long getSnapshot() {
+		return snapshot;
 	}
 
+	public long getMasterSnapshot() {
+		return masterSnapshot;
+	}
 
-	public String getMirrorID() {
-		// TODO Auto-generated method stub
-		return null;
+	public String toString() {
+		return "[" + getDocumentID() + " against " + masterID + " " + masterSnapshot + ": "
+				+ countMissingFiles() + " missing, " + olderFiles() + " older, " + newerFiles() + " newer, "
+				+ corruptedFiles() + " corrupted, " + superfluousFiles() + " superfluous]";
 	}
-	
 }
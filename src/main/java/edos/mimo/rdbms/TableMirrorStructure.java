@@ -17,18 +17,53 @@
 package edos.mimo.rdbms;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.ParseException;
+import java.util.Iterator;
 import java.util.List;
 
-import edos.distribution.mirror.ITableMirrorStructure;
+import org.apache.log4j.Logger;
+import org.dom4j.Element;
+
 import edos.mimo.AnalysisLevel;
+import edos.mimo.Config;
+import edos.mimo.Date;
 import edos.mimo.IMirror;
 import edos.mimo.IMirrorDelta;
+import edos.mimo.dal.BatchInsert;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.exception.ConfigException;
 import edos.mimo.filesystem.IDirectory;
+import edos.mimo.filesystem.MirrorFile;
 
+/**
+ * Flat mirror structure: a snapshot of the mirror stored as one row per
+ * file or directory (see TableStore), nothing being kept in memory.
+ * 
+ * The files are added with addFile() or addTree(), in a transaction
+ * committed by save() (which replaces a snapshot stored before with the
+ * same checkout time).
+ * 
+ * @author radu
+ *
+ */
 public class TableMirrorStructure implements ITableMirrorStructure {
+	private static Logger logger = Logger.getLogger(TableMirrorStructure.class);
+
+	private static final int[] FILE_TYPES = { Types.VARCHAR, Types.BIGINT, Types.VARCHAR, Types.BIGINT, Types.BIGINT };
 
 	private AnalysisLevel analysis;
 	private IMirror mirror;
+	private TableStore store;
+	private String mirrorID;
+	private long snapshot;
+
+	// rows being added
+	private Connection conn = null;
+	private BatchInsert rows = null;
+	private int added = 0;
 	
 	// constants used to generate the file names
 	private static final String FILENAME_ENDING = "-structure.xml";
@@ -36,23 +71,194 @@ public class TableMirrorStructure implements ITableMirrorStructure {
 	private static final String FILENAME_COMPLETE = "-filesystem";
 	private static final String FILENAME_PARTIAL = "-directory";
 
-	public TableMirrorStructure(IMirror mirror) {
+	/**
+	 * Structure of the mirror at its checkout time, in the database
+	 * defined in the configuration
+	 * @throws IOException if the database is not available
+	 */
+	public TableMirrorStructure(IMirror mirror) throws IOException {
+		this.mirror = mirror;
+		this.analysis = mirror.getAnalysis();
+		snapshot = mirror.getCheckoutTime();
+		try {
+			mirrorID = mirror.getMirrorID();
+			store = TableStore.getInstance();
+			
+		}catch(ConfigException e) {
+			throw new IOException("Unable to set up the table storage: " + e.getMessage());
+		}catch(SQLException e) {
+			throw new IOException("Unable to set up the table storage: " + e.getMessage());
+		}
 	}
 
-	public List<IDirectory> getTopDirectories() {
-		return null;
+	/**
+	 * Structure stored (or to be stored) in the given tables
+	 * @param store
+	 * @param mirrorID
+	 * @param snapshot checkout time in millis
+	 */
+	public TableMirrorStructure(TableStore store, String mirrorID, long snapshot) {
+		this.store = store;
+		this.mirrorID = mirrorID;
+		this.snapshot = snapshot;
 	}
 
-	public void save() throws IOException {
+	/**
+	 * Adds a file or a directory to the snapshot
+	 * @param path from the mirror root, ending with a slash for a directory
+	 * @param timeInMillis modification time, or -1 if unknown
+	 * @param size or -1 if unknown
+	 * @throws SQLException (the snapshot is then abandoned)
+	 */
+	public void addFile(String path, long timeInMillis, long size) throws SQLException {
+		try {
+			if(rows == null)
+				begin();
+			rows.add(new Object[] { mirrorID, new Long(snapshot), path, 
+									(timeInMillis < 0)?null:new Long(timeInMillis),
+									(size < 0)?null:new Long(size) });
+			added++;
+			
+		}catch(SQLException e) {
+			abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds the files and directories of a tree structure
+	 * @throws SQLException (the snapshot is then abandoned)
+	 */
+	public void addTree(ITreeMirrorStructure tree) throws SQLException {
+		addChildren(tree.getDocument().getRootElement(), "/");
+	}
 
+	private void addChildren(Element dir, String dirPath) throws SQLException {
+		for(Iterator it = dir.elementIterator(); it.hasNext(); ) {
+			Element elt = (Element)it.next();
+			boolean isDir = elt.getName().equals(MirrorFile.DIRECTORY);
+			String path = dirPath + elt.attributeValue(MirrorFile.NAME) + (isDir?"/":"");
+			
+			long time = -1;
+			long size = -1;
+			try {
+				if(elt.attributeValue(MirrorFile.DATE) != null)
+					time = new Date(elt.attributeValue(MirrorFile.DATE)).getTimeInMillis();
+				if(elt.attributeValue(MirrorFile.SIZE) != null)
+					size = Long.parseLong(elt.attributeValue(MirrorFile.SIZE));
+				
+			}catch(ParseException pe) {
+				logger.warn("Unreadable date for " + path + ": " + pe.getMessage());
+			}catch(NumberFormatException nfe) {
+				logger.warn("Unreadable size for " + path + ": " + nfe.getMessage());
+			}
+			addFile(path, time, size);
+			
+			if(isDir)
+				addChildren(elt, path);
+		}
+	}
+
+	/**
+	 * Commits the files added, as the snapshot of the mirror
+	 */
+	public void save() throws IOException {
+		try {
+			if(rows == null)
+				begin();	// empty snapshot
+			rows.flush();
+			TableStore.update(conn, "insert into Snapshot (Mirror_ID, Snapshot, Files) values (?, ?, ?)",
+								new Object[] { mirrorID, new Long(snapshot), new Integer(added) });
+			conn.commit();
+			logger.info("Stored " + added + " files of " + mirrorID + " (" + snapshot + ")");
+			end();
+			
+		}catch(SQLException e) {
+			abort();
+			throw new IOException("Unable to store the structure of " + mirrorID + ": " + e.getMessage());
+		}
 	}
 
 	public void save(boolean pretty) throws IOException {
+		save();
+	}
 
+	/**
+	 * Abandons the files added since the last save()
+	 */
+	public void abort() {
+		if(conn != null)
+			logger.warn("Abandoning the snapshot " + snapshot + " of " + mirrorID);
+		end();	// rolls back
 	}
 
-	public void patch(IMirrorDelta delta) {
+	private void begin() throws SQLException {
+		int batchSize = Config.DEFAULT_JDBC_BATCH_SIZE;
+		int batchRows = Config.DEFAULT_JDBC_BATCH_ROWS;
+		if(Config.isLoaded()) {
+			try {
+				batchSize = Config.getInstance().getJdbcBatchSize();
+				batchRows = Config.getInstance().getJdbcBatchRows();
+				
+			} catch (ConfigException e) {
+				// cannot happen once loaded, keep the default
+			}
+		}
 		
+		conn = store.getConnectionPool().borrow();
+		conn.setAutoCommit(false);
+		store.deleteSnapshot(conn, mirrorID, snapshot);	// stored again
+		rows = new BatchInsert(conn, "SnapshotFile", FILE_TYPES, batchSize, batchRows);
+		added = 0;
+	}
+
+	private void end() {
+		if(rows != null)
+			rows.close();
+		store.getConnectionPool().release(conn);
+		rows = null;
+		conn = null;
+	}
+
+	/**
+	 * The flat model has no directory tree
+	 * @return null
+	 */
+	public List<IDirectory> getTopDirectories() {
+		return null;
+	}
+
+	/**
+	 * Snapshots are always complete in the tables: the deltas are computed
+	 * between them (see TableMirrorDelta), not applied.
+	 */
+	public void patch(IMirrorDelta delta) {
+		logger.warn("Table structures are not patched (" + delta.getDocumentID() + " ignored)");
+	}
+
+	public String getMirrorID() {
+		return mirrorID;
+	}
+
+	public long getSnapshot() {
+		return snapshot;
+	}
+
+	public TableStore getTableStore() {
+		return store;
+	}
+
+	/**
+	 * @return the number of rows stored, -1 if the database is not available
+	 */
+	public int countFiles() {
+		try {
+			return store.countFiles(mirrorID, snapshot);
+			
+		}catch(SQLException e) {
+			logger.error("Unable to count the files of " + mirrorID + ": " + e.getMessage());
+			return -1;
+		}
 	}
 
 	/**
@@ -60,6 +266,9 @@ public class TableMirrorStructure implements ITableMirrorStructure {
 	 * @return descriptive for a file dump in the file system
 	 */
 	public String getFilename() {
+		if(mirror == null || analysis == null)
+			return mirrorID + "-" + snapshot + FILENAME_ENDING;
+		
 		StringBuffer name = new StringBuffer(mirror.getName());
 		
 		if(analysis.getVerbosity().equals(AnalysisLevel.VERBOSE))
@@ -74,4 +283,7 @@ public class TableMirrorStructure implements ITableMirrorStructure {
 		return name.toString();
 	}
 
+	public String toString() {
+		return "[" + mirrorID + " snapshot " + snapshot + "]";
+	}
 }
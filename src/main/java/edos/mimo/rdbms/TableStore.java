@@ -0,0 +1,415 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.rdbms;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edos.mimo.Config;
+import edos.mimo.IMirrorDelta;
+import edos.mimo.dal.ConnectionPool;
+import edos.mimo.dal.DatabaseFactory;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.filesystem.IFileDiff;
+
+/**
+ * Relational storage of the mirror structures (table storage model):
+ * 
+ *  Snapshot		(Mirror_ID, Snapshot, Files)
+ *  SnapshotFile	(Mirror_ID, Snapshot, Path, MTime, Size)
+ *  MirrorDiff		(Mirror_ID, Snapshot, Master_ID, Master_Snapshot, Status, Path, Expected, Effective)
+ * 
+ * A snapshot is the complete list of files and directories of a mirror
+ * at a time (its checkout time in millis); directory paths end with a
+ * slash, as in the tree structures.
+ * 
+ * The diffs against the master and the deltas between 2 snapshots are
+ * computed by the database, as set operations on the paths (anti-joins
+ * for missing/superfluous or new/deleted files, joins for the others):
+ * no structure is loaded in memory. The primary keys index the rows by
+ * (mirror, snapshot, path), which is what these joins look up.
+ * 
+ * @author radu
+ *
+ */
+public class TableStore {
+	private static Logger logger = Logger.getLogger(TableStore.class);
+	private static TableStore instance = null;
+
+	public static final String DATABASE = "MIRRORDB";
+
+	private static final String[] SCHEMA = {
+		"create table if not exists Snapshot (Mirror_ID varchar(64) not null, Snapshot bigint not null, "
+			+ "Files integer, primary key (Mirror_ID, Snapshot))",
+		"create table if not exists SnapshotFile (Mirror_ID varchar(64) not null, Snapshot bigint not null, "
+			+ "Path varchar(512) not null, MTime bigint, Size bigint, primary key (Mirror_ID, Snapshot, Path))",
+		"create table if not exists MirrorDiff (Mirror_ID varchar(64) not null, Snapshot bigint not null, "
+			+ "Master_ID varchar(64), Master_Snapshot bigint, Status integer not null, Path varchar(512) not null, "
+			+ "Expected bigint, Effective bigint, primary key (Mirror_ID, Snapshot, Status, Path))"
+	};
+
+	/*
+	 * DIFF between the master (m) and a mirror (s) snapshot
+	 * parameters: mirror, snapshot, master, master snapshot, then per query below
+	 */
+	private static final String INSERT_DIFF = "insert into MirrorDiff (Mirror_ID, Snapshot, Master_ID, "
+			+ "Master_Snapshot, Status, Path, Expected, Effective) select ?, ?, ?, ?, ";
+	// (master, master snapshot, mirror, snapshot)
+	private static final String MISSING = IFileDiff.FILE_MISSING + ", m.Path, m.MTime, null "
+			+ "from SnapshotFile m where m.Mirror_ID = ? and m.Snapshot = ? and not exists "
+			+ "(select 1 from SnapshotFile s where s.Mirror_ID = ? and s.Snapshot = ? and s.Path = m.Path)";
+	private static final String MATCHING = "from SnapshotFile m join SnapshotFile s on s.Path = m.Path "
+			+ "where m.Mirror_ID = ? and m.Snapshot = ? and s.Mirror_ID = ? and s.Snapshot = ? and ";
+	private static final String OLDER = IFileDiff.FILE_OLDER + ", m.Path, m.MTime, s.MTime "
+			+ MATCHING + "m.MTime > s.MTime";
+	private static final String NEWER = IFileDiff.FILE_NEWER + ", m.Path, m.MTime, s.MTime "
+			+ MATCHING + "s.MTime > m.MTime";
+	private static final String CORRUPTED = IFileDiff.FILE_CORRUPTED + ", m.Path, m.MTime, s.MTime "
+			+ MATCHING + "m.Size <> s.Size";
+	// (mirror, snapshot, master, master snapshot)
+	private static final String SUPERFLUOUS = IFileDiff.FILE_SUPERFLUOUS + ", s.Path, null, s.MTime "
+			+ "from SnapshotFile s where s.Mirror_ID = ? and s.Snapshot = ? and not exists "
+			+ "(select 1 from SnapshotFile m where m.Mirror_ID = ? and m.Snapshot = ? and m.Path = s.Path)";
+
+	/*
+	 * DELTA between an older (o) and a newer (n) snapshot of a mirror
+	 * parameters: mirror, newer, mirror, older (ADD, UPDATE); mirror, older, mirror, newer (DEL)
+	 * (the deleted files are the files of the older snapshot not in the newer one)
+	 */
+	private static final String DELTA_ADD_DEL = "from SnapshotFile n where n.Mirror_ID = ? and n.Snapshot = ? "
+			+ "and not exists (select 1 from SnapshotFile o where o.Mirror_ID = ? and o.Snapshot = ? and o.Path = n.Path)";
+	private static final String DELTA_UPDATE = "from SnapshotFile n join SnapshotFile o on o.Path = n.Path "
+			+ "where n.Mirror_ID = ? and n.Snapshot = ? and o.Mirror_ID = ? and o.Snapshot = ? "
+			+ "and (n.MTime <> o.MTime or n.Size <> o.Size)";
+
+	private ConnectionPool pool;
+
+
+	/**
+	 * @param pool connections to the database holding the tables
+	 */
+	public TableStore(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * The store of the database defined in the configuration
+	 * (see the storage element), its tables created if needed.
+	 * 
+	 * @throws ConfigException
+	 * @throws SQLException if the tables cannot be created
+	 */
+	public static synchronized TableStore getInstance() throws ConfigException, SQLException {
+		if(instance == null) {
+			Config config = Config.getInstance();
+			DatabaseFactory.getDatabase(DatabaseFactory.RELATIONAL_DATABASE);	// loads the driver
+			TableStore store = new TableStore(DatabaseFactory.getConnectionPool(config.getJdbcHost(), DATABASE,
+							config.getJdbcUserName(), config.getJdbcUserPasswd(), config.getJdbcPoolSize(),
+							config.getJdbcPoolWait(), config.getJdbcValidationQuery()));
+			store.createTables();
+			instance = store;
+		}
+		return instance;
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Creates the tables which do not exist yet
+	 * @throws SQLException
+	 */
+	public void createTables() throws SQLException {
+		Connection conn = pool.borrow();
+		try {
+			Statement stmt = conn.createStatement();
+			try {
+				for(int i = 0; i < SCHEMA.length; i++)
+					stmt.execute(SCHEMA[i]);
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * @return the latest snapshot of the mirror, -1 if none
+	 * @throws SQLException
+	 */
+	public long getLatestSnapshot(String mirrorID) throws SQLException {
+		return queryLong("select max(Snapshot) from Snapshot where Mirror_ID = ?", 
+							new Object[] { mirrorID }, -1);
+	}
+
+	/**
+	 * @return the snapshots of the mirror, oldest first
+	 * @throws SQLException
+	 */
+	public List<Long> getSnapshots(String mirrorID) throws SQLException {
+		List<Long> snapshots = new ArrayList<Long>();
+		Connection conn = pool.borrow();
+		try {
+			PreparedStatement stmt = conn.prepareStatement(
+						"select Snapshot from Snapshot where Mirror_ID = ? order by Snapshot");
+			try {
+				stmt.setString(1, mirrorID);
+				ResultSet rs = stmt.executeQuery();
+				while(rs.next())
+					snapshots.add(new Long(rs.getLong(1)));
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			pool.release(conn);
+		}
+		return snapshots;
+	}
+
+	/**
+	 * @return the number of files and directories of the snapshot
+	 * @throws SQLException
+	 */
+	public int countFiles(String mirrorID, long snapshot) throws SQLException {
+		return (int)queryLong("select count(*) from SnapshotFile where Mirror_ID = ? and Snapshot = ?",
+							new Object[] { mirrorID, new Long(snapshot) }, 0);
+	}
+
+	/**
+	 * Removes a snapshot and the diffs computed for it
+	 * @throws SQLException
+	 */
+	public void deleteSnapshot(String mirrorID, long snapshot) throws SQLException {
+		Connection conn = pool.borrow();
+		try {
+			conn.setAutoCommit(false);
+			deleteSnapshot(conn, mirrorID, snapshot);
+			conn.commit();
+		}finally{
+			pool.release(conn);	// rolled back if not committed
+		}
+	}
+
+	/**
+	 * Removes a snapshot in the transaction of the connection
+	 */
+	void deleteSnapshot(Connection conn, String mirrorID, long snapshot) throws SQLException {
+		Object[] key = { mirrorID, new Long(snapshot) };
+		update(conn, "delete from SnapshotFile where Mirror_ID = ? and Snapshot = ?", key);
+		update(conn, "delete from MirrorDiff where Mirror_ID = ? and Snapshot = ?", key);
+		update(conn, "delete from Snapshot where Mirror_ID = ? and Snapshot = ?", key);
+	}
+
+	/**
+	 * Computes the diff between a mirror snapshot and a master snapshot,
+	 * replacing the diff computed before for this mirror snapshot.
+	 * 
+	 * @return the number of differences
+	 * @throws SQLException
+	 */
+	public int diff(String masterID, long masterSnapshot, String mirrorID, long snapshot) throws SQLException {
+		Object[] target = { mirrorID, new Long(snapshot), masterID, new Long(masterSnapshot) };
+		Object[] masterFirst = { masterID, new Long(masterSnapshot), mirrorID, new Long(snapshot) };
+		Object[] mirrorFirst = { mirrorID, new Long(snapshot), masterID, new Long(masterSnapshot) };
+
+		Connection conn = pool.borrow();
+		try {
+			conn.setAutoCommit(false);
+			update(conn, "delete from MirrorDiff where Mirror_ID = ? and Snapshot = ?", 
+							new Object[] { mirrorID, new Long(snapshot) });
+
+			int count = 0;
+			count += update(conn, INSERT_DIFF + MISSING, concat(target, masterFirst));
+			count += update(conn, INSERT_DIFF + OLDER, concat(target, masterFirst));
+			count += update(conn, INSERT_DIFF + NEWER, concat(target, masterFirst));
+			count += update(conn, INSERT_DIFF + CORRUPTED, concat(target, masterFirst));
+			count += update(conn, INSERT_DIFF + SUPERFLUOUS, concat(target, mirrorFirst));
+			conn.commit();
+
+			logger.info(count + " differences between " + mirrorID + " (" + snapshot + ") and "
+							+ masterID + " (" + masterSnapshot + ")");
+			return count;
+
+		}finally{
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * Records a difference found by other means than diff()
+	 * @throws SQLException
+	 */
+	public void addDiff(String mirrorID, long snapshot, String masterID, long masterSnapshot,
+							IFileDiff diff) throws SQLException {
+		Connection conn = pool.borrow();
+		try {
+			update(conn, "insert into MirrorDiff (Mirror_ID, Snapshot, Master_ID, Master_Snapshot, "
+							+ "Status, Path, Expected, Effective) values (?, ?, ?, ?, ?, ?, ?, ?)",
+					new Object[] { mirrorID, new Long(snapshot), masterID, new Long(masterSnapshot),
+							new Integer(diff.getStatus()), diff.getPath(),
+							new Long(diff.getExpectedTimeInMillis()), new Long(diff.getEffectiveTimeInMillis()) });
+		}finally{
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * @param status one of the IFileDiff statuses
+	 * @return the number of differences of this kind
+	 * @throws SQLException
+	 */
+	public int countDiffs(String mirrorID, long snapshot, int status) throws SQLException {
+		return (int)queryLong("select count(*) from MirrorDiff where Mirror_ID = ? and Snapshot = ? and Status = ?",
+							new Object[] { mirrorID, new Long(snapshot), new Integer(status) }, 0);
+	}
+
+	/**
+	 * @param status one of the IFileDiff statuses, or -1 for all of them
+	 * @return the differences, by status then path
+	 * @throws SQLException
+	 */
+	public List<IFileDiff> getDiffs(String mirrorID, long snapshot, int status) throws SQLException {
+		List<IFileDiff> diffs = new ArrayList<IFileDiff>();
+		StringBuffer sql = new StringBuffer("select Status, Path, Expected, Effective from MirrorDiff ");
+		sql.append("where Mirror_ID = ? and Snapshot = ?");
+		if(status >= 0)
+			sql.append(" and Status = ").append(status);
+		sql.append(" order by Status, Path");
+
+		Connection conn = pool.borrow();
+		try {
+			PreparedStatement stmt = conn.prepareStatement(sql.toString());
+			try {
+				stmt.setString(1, mirrorID);
+				stmt.setLong(2, snapshot);
+				ResultSet rs = stmt.executeQuery();
+				while(rs.next())
+					diffs.add(new TableFileDiff(rs.getInt(1), rs.getString(2), 
+												getLong(rs, 3), getLong(rs, 4)));
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			pool.release(conn);
+		}
+		return diffs;
+	}
+
+	/**
+	 * @param change IMirrorDelta.ADD, DEL or UPDATE
+	 * @return the number of files added, deleted or updated between the 2 snapshots
+	 * @throws SQLException
+	 */
+	public int countDelta(String mirrorID, long from, long to, String change) throws SQLException {
+		return (int)queryLong("select count(*) " + deltaQuery(change), deltaParameters(mirrorID, from, to, change), 0);
+	}
+
+	/**
+	 * @param change IMirrorDelta.ADD, DEL or UPDATE
+	 * @return the paths of the files added, deleted or updated between the 2 snapshots
+	 * @throws SQLException
+	 */
+	public List<String> getDelta(String mirrorID, long from, long to, String change) throws SQLException {
+		List<String> paths = new ArrayList<String>();
+		Connection conn = pool.borrow();
+		try {
+			PreparedStatement stmt = conn.prepareStatement("select n.Path " + deltaQuery(change) + " order by n.Path");
+			try {
+				bind(stmt, deltaParameters(mirrorID, from, to, change));
+				ResultSet rs = stmt.executeQuery();
+				while(rs.next())
+					paths.add(rs.getString(1));
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			pool.release(conn);
+		}
+		return paths;
+	}
+
+	private static String deltaQuery(String change) {
+		if(IMirrorDelta.ADD.equals(change) || IMirrorDelta.DEL.equals(change))
+			return DELTA_ADD_DEL;
+		if(IMirrorDelta.UPDATE.equals(change))
+			return DELTA_UPDATE;
+		throw new IllegalArgumentException("Unknown change: " + change);
+	}
+
+	private static Object[] deltaParameters(String mirrorID, long from, long to, String change) {
+		Long older = new Long(from);
+		Long newer = new Long(to);
+		if(IMirrorDelta.DEL.equals(change))
+			return new Object[] { mirrorID, older, mirrorID, newer };
+		return new Object[] { mirrorID, newer, mirrorID, older };
+	}
+
+	private long queryLong(String sql, Object[] parameters, long ifNull) throws SQLException {
+		Connection conn = pool.borrow();
+		try {
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			try {
+				bind(stmt, parameters);
+				ResultSet rs = stmt.executeQuery();
+				if(!rs.next())
+					return ifNull;
+				long value = rs.getLong(1);
+				return rs.wasNull()?ifNull:value;
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			pool.release(conn);
+		}
+	}
+
+	static int update(Connection conn, String sql, Object[] parameters) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		try {
+			bind(stmt, parameters);
+			return stmt.executeUpdate();
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static void bind(PreparedStatement stmt, Object[] parameters) throws SQLException {
+		for(int i = 0; i < parameters.length; i++)
+			stmt.setObject(i + 1, parameters[i]);
+	}
+
+	private static Object[] concat(Object[] a, Object[] b) {
+		Object[] all = new Object[a.length + b.length];
+		System.arraycopy(a, 0, all, 0, a.length);
+		System.arraycopy(b, 0, all, a.length, b.length);
+		return all;
+	}
+
+	private static long getLong(ResultSet rs, int column) throws SQLException {
+		long value = rs.getLong(column);
+		return rs.wasNull()?0:value;
+	}
+}
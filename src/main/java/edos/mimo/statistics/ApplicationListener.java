@@ -27,10 +27,14 @@ import org.quartz.TriggerListener;
 
 import edos.distribution.mirror.ApplicationListener;
 import edos.distribution.mirror.WorkflowStatistics;
-import edos.mimo.MonitorApplication;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
+import edos.mimo.job.CrawlListener;
+import edos.mimo.pipeline.Pipeline;
+import edos.mimo.pipeline.PipelineRun;
+import edos.mimo.pipeline.StageListener;
 
 /**
  * This class takes statistics on the mirror monitoring process itself.
@@ -45,16 +49,21 @@ import edos.mimo.exception.ConfigException;
  * XQUERY to update the proper XML document within the database
  * (create a DAO for the statistics class or other approach)
  * 
+ * The times of the workflow come from the stages of the pipeline
+ * (see Pipeline); only the misfires of the crawls come from Quartz,
+ * and the coalesced fires and timeouts from the crawls (see CrawlGuard).
+ * 
  * @author marc
  *
  */
-public class ApplicationListener implements TriggerListener {
+public class ApplicationListener implements TriggerListener, StageListener, CrawlListener {
 	private static Logger logger = Logger.getLogger(ApplicationListener.class);
 	
 	private static final String NAME = "Application Listener"; 
 	private static ApplicationListener instance = null;
-	private Hashtable<String,WorkflowStatistics> workflows;
-	private BDBXMLManager manager;
+	private Hashtable<String,WorkflowStatistics> workflows;	// latest workflow of each mirror
+	private Hashtable<PipelineRun,WorkflowStatistics> runs;	// workflows in the pipeline
+	private IStorage manager;
 	
 	/**
 	 * Private constructor for a singleton
@@ -63,11 +72,12 @@ public class ApplicationListener implements TriggerListener {
 	 */
 	private ApplicationListener() throws ConfigException {
 		workflows = new Hashtable<String,WorkflowStatistics>();
+		runs = new Hashtable<PipelineRun,WorkflowStatistics>();
 		
 		try {
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			logger.fatal("Unable to get an instance of the database manager - " + e.getMessage());
 			throw new ConfigException("Unable to get an instance of the database manager - "  + e.getMessage());
 		}
@@ -89,37 +99,102 @@ public class ApplicationListener implements TriggerListener {
 	}
 
 	/**
-	 * Called when some job has been fired.
+	 * Called when a stage starts processing a run.
 	 * 
-	 * If a Download job is fired, they create a new object to trace
-	 * the execution time of the whole process. Then tell the database
-	 * to store it. It will be updated next (until a new download job
-	 * is fired).
+	 * When the crawl of a mirror starts, a new object is created to trace
+	 * the execution time of the whole process. Then the database is told
+	 * to store it. It will be updated next (until the run leaves the pipeline).
 	 */
-	public void triggerFired(Trigger arg0, JobExecutionContext arg1) {
-		String jobGroup = arg0.getJobGroup();
-		String mirrorID	= arg0.getJobName();
-
-		logger.info("Firing " + jobGroup + " for " + mirrorID);
+	public void stageStarted(String stage, PipelineRun run, long time) {
+		String mirrorID = run.getMirrorID();
+		logger.info("Starting " + stage + " for " + mirrorID);
 		
-		long timestamp = new GregorianCalendar().getTimeInMillis();
+		WorkflowStatistics jobStat;
+		if(stage.equals(Pipeline.CRAWL)) {
+			jobStat = new WorkflowStatistics(mirrorID, time);
+			runs.put(run, jobStat);
+			workflows.put(mirrorID, jobStat);
+			jobStat.setDownloadStartTime(time);
+			insert(jobStat);
+			return;
+			
+		}else{
+			jobStat = runs.get(run);
+			if(jobStat == null)
+				return;
+		}
 		
-		WorkflowStatistics jobStat = null;
+		if(stage.equals(Pipeline.DELTA))
+			jobStat.setDeltaStartTime(time);
+		else if(stage.equals(Pipeline.DIFF))
+			jobStat.setDiffStartTime(time);
+		else
+			jobStat.setStageStartTime(stage, time);
+	}
+
+	/**
+	 * Called when a stage is done with a run
+	 */
+	public void stageCompleted(String stage, PipelineRun run, long time, boolean success) {
+		String mirrorID = run.getMirrorID();
+		logger.info(stage + (success?" completed for ":" failed for ") + mirrorID);
 		
-		if(jobGroup.equals(MonitorApplication.DOWNLOADER)) {
-			jobStat = new WorkflowStatistics(mirrorID, timestamp);
-			jobStat.setDownloadStartTime(timestamp);
+		WorkflowStatistics jobStat = runs.get(run);
+		if(jobStat == null)
+			return;
 		
-		}else if(jobGroup.equals(MonitorApplication.DIFF_GENERATOR)){
-			jobStat = workflows.get(mirrorID);
-			jobStat.setDiffStartTime(timestamp);
+		if(stage.equals(Pipeline.CRAWL))
+			jobStat.setDownloadEndTime(time);
+		else if(stage.equals(Pipeline.DELTA))
+			jobStat.setDeltaEndTime(time);
+		else if(stage.equals(Pipeline.DIFF))
+			jobStat.setDiffEndTime(time);
+		else
+			jobStat.setStageEndTime(stage, time);
 		
-		}else if(jobGroup.equals(MonitorApplication.DELTA_GENERATOR)){
-			jobStat = workflows.get(mirrorID);
-			jobStat.setDeltaStartTime(timestamp);
+		save(jobStat);
+	}
+	
+	/**
+	 * Persists a new workflow to the database
+	 */
+	private void insert(WorkflowStatistics jobStat) {
+		try {
+			manager.save(jobStat);
+			
+		} catch (StorageException e) {
+			logger.error("Unable to save " + jobStat.getDocumentID() 
+					+ " to the database");
+			logger.error(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Updates the workflow in the database (it was inserted when
+	 * its crawl started, see insert())
+	 * TODO create a xquery to update the field instead of add/remove
+	 */
+	private void save(WorkflowStatistics jobStat) {
+		try {
+			manager.update(jobStat);
+			
+		} catch (StorageException e) {
+			logger.error("Unable to update " + jobStat.getDocumentID() 
+					+ " to the database");
+			logger.error(e.getMessage());
 		}
-				
-		workflows.put(mirrorID, jobStat);
+	}
+	
+	public void runCompleted(PipelineRun run) {
+		runs.remove(run);
+	}
+	
+	/**
+	 * Called when a Quartz job has been fired (the times are taken 
+	 * from the stages of the pipeline)
+	 */
+	public void triggerFired(Trigger arg0, JobExecutionContext arg1) {
+		logger.debug("Firing " + arg0.getJobGroup() + " for " + arg0.getJobName());
 	}
 
 	/**
@@ -136,40 +211,47 @@ public class ApplicationListener implements TriggerListener {
 		logger.error(jobGroup + " has been misfired for " + mirrorID + " " + now); 	
 
 		WorkflowStatistics jobStat = workflows.get(mirrorID);
+		if(jobStat == null)
+			return;
+		
+		// saved now: the next crawl replaces the statistics of the mirror
 		jobStat.addMisfire(jobGroup, now);
+		save(jobStat);
 	}
 
 	/**
-	 * Called by Quartz when a Quartz job completes
+	 * Called when a mirror is fired during its crawl
 	 */
-	public void triggerComplete(Trigger arg0, JobExecutionContext arg1, int arg2) {
-		String jobGroup = arg0.getJobGroup();
-		String mirrorID	= arg0.getJobName();
-
-		logger.info(jobGroup + " job completed for " + mirrorID);
-		
+	public void crawlCoalesced(String mirrorID, long time) {
 		WorkflowStatistics jobStat = workflows.get(mirrorID);
-		long timestamp = new GregorianCalendar().getTimeInMillis();
-		
-		if(jobGroup.equals(MonitorApplication.DOWNLOADER))
-			jobStat.setDownloadEndTime(timestamp);
-		
-		else if(jobGroup.equals(MonitorApplication.DIFF_GENERATOR))
-			jobStat.setDiffEndTime(timestamp);
+		if(jobStat == null)
+			return;
 		
-		else if(jobGroup.equals(MonitorApplication.DELTA_GENERATOR))
-			jobStat.setDeltaEndTime(timestamp);
+		Calendar now = new GregorianCalendar();
+		now.setTimeInMillis(time);
+		jobStat.addCoalesce(now);
+		save(jobStat);
+	}
+
+	/**
+	 * Called when a crawl is aborted after its timeout
+	 */
+	public void crawlTimedOut(String mirrorID, long time) {
+		WorkflowStatistics jobStat = workflows.get(mirrorID);
+		if(jobStat == null)
+			return;
 		
-		// persist/update this to the database
-		// TODO create a xquery to update the field instead of add/remove
-		try {
-			manager.save(jobStat);
-			
-		} catch (BDBXMLException e) {
-			logger.error("Unable to update " + jobStat.getDocumentID() 
-					+ " to the database");
-			logger.error(e.getMessage());
-		}
+		Calendar now = new GregorianCalendar();
+		now.setTimeInMillis(time);
+		jobStat.addTimeout(now);
+		save(jobStat);
+	}
+
+	/**
+	 * Called by Quartz when a Quartz job completes
+	 */
+	public void triggerComplete(Trigger arg0, JobExecutionContext arg1, int arg2) {
+		logger.debug(arg0.getJobGroup() + " job completed for " + arg0.getJobName());
 	}
 
 }
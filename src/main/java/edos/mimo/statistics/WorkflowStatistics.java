@@ -59,6 +59,8 @@ public class WorkflowStatistics implements IXmlDocument {
 	private long deltaEndTime;
 	
 	private Vector<Misfire> misfires;	// registers the misfires occurred
+	private int coalesces = 0;			// fires folded into a follow-up crawl
+	private int timeouts = 0;			// crawls aborted
 	
 
 	private static final String TIMESTAMP 	= "timestamp";
@@ -67,6 +69,8 @@ public class WorkflowStatistics implements IXmlDocument {
 	private static final String END_TIME		= "end";
 	private static final String MISFIRE		= "misfire";
 	private static final String JOB			= "job";
+	private static final String COALESCE	= "coalesce";
+	private static final String TIMEOUT		= "timeout";
 	
 	
 	/**
@@ -208,6 +212,26 @@ public class WorkflowStatistics implements IXmlDocument {
 
 
 
+	/**
+	 * Records the start of a stage with no time of its own 
+	 * (eg. persist, publish, see Pipeline)
+	 * @param stage
+	 * @param startTime
+	 */
+	public void setStageStartTime(String stage, long startTime) {
+		root.addElement(stage)
+			.addAttribute(START_TIME, new Long(startTime).toString());
+	}
+	
+	
+	
+	public void setStageEndTime(String stage, long endTime) {
+		root.addElement(stage)
+			.addAttribute(END_TIME, new Long(endTime).toString());
+	}
+
+
+
 	public void addMisfire(String job, Calendar now) {
 		misfires.add(new Misfire(job, now));
 		
@@ -215,6 +239,51 @@ public class WorkflowStatistics implements IXmlDocument {
 			.addAttribute(JOB, job)
 			.addAttribute(TIMESTAMP, now.getTime().toString());
 	}
+	
+	
+	
+	/**
+	 * Records a fire of the crawl arriving while the mirror was still
+	 * being crawled (see CrawlGuard)
+	 * @param now
+	 */
+	public void addCoalesce(Calendar now) {
+		coalesces++;
+		
+		root.addElement(COALESCE)
+			.addAttribute(TIMESTAMP, now.getTime().toString());
+	}
+	
+	
+	
+	/**
+	 * Records the abort of the crawl after its timeout
+	 * @param now
+	 */
+	public void addTimeout(Calendar now) {
+		timeouts++;
+		
+		root.addElement(TIMEOUT)
+			.addAttribute(TIMESTAMP, now.getTime().toString());
+	}
+	
+	
+	
+	public int getMisfireCount() {
+		return misfires.size();
+	}
+	
+	
+	
+	public int getCoalesceCount() {
+		return coalesces;
+	}
+	
+	
+	
+	public int getTimeoutCount() {
+		return timeouts;
+	}
 
 
 	/**
@@ -0,0 +1,103 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edos.mimo.job.CrawlGuard;
+import edos.mimo.job.CrawlListener;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks a mirror is crawled by one job at a time, and that the fires
+ * arriving during a crawl make a single follow-up crawl.
+ */
+public class CrawlGuardTest extends TestCase {
+
+	public void testCoalesce() {
+		CrawlGuard guard = new CrawlGuard();
+		final StringBuffer events = new StringBuffer();
+		guard.addListener(new CrawlListener() {
+			public void crawlCoalesced(String mirrorID, long time) {
+				events.append("coalesced ").append(mirrorID).append(';');
+			}
+			public void crawlTimedOut(String mirrorID, long time) {
+				events.append("timeout ").append(mirrorID).append(';');
+			}
+		});
+
+		assertTrue(guard.enter("a"));
+		assertTrue(guard.enter("b"));		// other mirrors are not held
+		assertFalse(guard.enter("a"));
+		assertFalse(guard.enter("a"));
+		assertTrue(guard.isRunning("a"));
+		assertEquals(2, guard.getCoalesced("a"));
+		assertEquals(0, guard.getCoalesced("b"));
+
+		// one follow-up for both fires
+		assertTrue(guard.exit("a"));
+		assertFalse(guard.isRunning("a"));
+		assertTrue(guard.enter("a"));
+		assertFalse(guard.exit("a"));
+		assertFalse(guard.exit("b"));
+
+		guard.timedOut("b");
+		assertEquals(1, guard.getTimeouts("b"));
+		assertEquals("coalesced a;coalesced a;timeout b;", events.toString());
+	}
+
+	public void testConcurrentFires() throws Exception {
+		final CrawlGuard guard = new CrawlGuard();
+		final AtomicInteger crawling = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final AtomicInteger crawls = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] jobs = new Thread[8];
+
+		for(int i = 0; i < jobs.length; i++) {
+			jobs[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					}catch(InterruptedException e) {
+						return;
+					}
+					for(int j = 0; j < 50; j++) {
+						if(!guard.enter("a"))
+							continue;
+						if(crawling.incrementAndGet() > 1)
+							overlaps.incrementAndGet();
+						crawls.incrementAndGet();
+						Thread.yield();
+						crawling.decrementAndGet();
+						guard.exit("a");
+					}
+				}
+			});
+			jobs[i].start();
+		}
+		start.countDown();
+		for(int i = 0; i < jobs.length; i++)
+			jobs[i].join();
+
+		assertEquals(0, overlaps.get());
+		assertEquals(8 * 50, crawls.get() + guard.getCoalesced("a"));
+		assertFalse(guard.isRunning("a"));
+	}
+}
@@ -0,0 +1,146 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+
+import edos.mimo.Date;
+
+/**
+ * Compares the cost of reading and writing the dates of a structure
+ * document, for 1000000 dates:
+ *  . as Date used to do it: a calendar and a SimpleDateFormat for each date
+ *  . with the fixed-layout parser and formatter of Date
+ *
+ * The allocated bytes are read from the JVM thread statistics
+ * (com.sun.management.ThreadMXBean) when available.
+ *
+ * Usage: DateBenchmark [dates]
+ */
+public class DateBenchmark {
+	private static final int DEFAULT_DATES = 1000000;
+	private static final int RUNS = 5;
+
+	private String[] dates;
+	private long checksum = 0;	// keeps the work from being optimized away
+
+	public DateBenchmark(int count) {
+		dates = new String[count];
+		for(int i = 0; i < count; i++)
+			dates[i] = Date.formatISO8601(1141113730566L + i * 7919L);
+	}
+
+	public static void main(String[] args) throws ParseException {
+		int count = (args.length > 0)?Integer.parseInt(args[0]):DEFAULT_DATES;
+		DateBenchmark bench = new DateBenchmark(count);
+
+		System.out.println(count + " dates, last of " + RUNS + " runs");
+		for(int run = 0; run < RUNS; run++) {
+			// warming up, the last run is reported
+			long[] oldParse = bench.measure(true, true);
+			long[] newParse = bench.measure(false, true);
+			long[] oldFormat = bench.measure(true, false);
+			long[] newFormat = bench.measure(false, false);
+
+			if(run == RUNS - 1) {
+				report("parse  (calendar + SimpleDateFormat)", oldParse, count);
+				report("parse  (Date.parseISO8601)          ", newParse, count);
+				report("format (calendar + SimpleDateFormat)", oldFormat, count);
+				report("format (Date.formatISO8601)         ", newFormat, count);
+			}
+		}
+		System.out.println("(checksum " + bench.checksum + ")");
+	}
+
+	/**
+	 * @param old true for the former way
+	 * @param parse true to parse the dates, false to format them
+	 * @return { allocated bytes (-1 if unknown), elapsed ms }
+	 */
+	private long[] measure(boolean old, boolean parse) throws ParseException {
+		System.gc();
+		long allocated = allocatedBytes();
+		long start = System.currentTimeMillis();
+
+		for(int i = 0; i < dates.length; i++) {
+			if(parse) {
+				checksum += old?oldParse(dates[i]):Date.parseISO8601(dates[i]);
+
+			}else{
+				long time = 1141113730566L + i * 7919L;
+				checksum += (old?oldFormat(time):Date.formatISO8601(time)).length();
+			}
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		long after = allocatedBytes();
+		return new long[] { (allocated < 0)?-1:after - allocated, elapsed };
+	}
+
+	/**
+	 * What new Date(String) used to do
+	 */
+	private static long oldParse(String s) {
+		SimpleDateFormat formatter = new SimpleDateFormat(Date.ISO8601_PATTERN, Locale.FRANCE);
+		Calendar cal = new GregorianCalendar();
+		cal.setTimeInMillis(formatter.parse(s, new ParsePosition(0)).getTime());
+		return cal.getTimeInMillis();
+	}
+
+	/**
+	 * What new Date(long).asISO8601() used to do
+	 */
+	private static String oldFormat(long time) {
+		SimpleDateFormat formatter = new SimpleDateFormat(Date.ISO8601_PATTERN, Locale.FRANCE);
+		Calendar cal = new GregorianCalendar();
+		cal.setTimeInMillis(time);
+		return formatter.format(new java.util.Date(cal.getTimeInMillis()));
+	}
+
+	private static void report(String label, long[] result, int count) {
+		StringBuffer sb = new StringBuffer(label).append(": ");
+		if(result[0] >= 0)
+			sb.append(result[0] / count).append(" bytes/date, ");
+		else
+			sb.append("allocation unknown on this JVM, ");
+		sb.append(result[1] * 1000000 / count).append(" ns/date");
+		System.out.println(sb);
+	}
+
+	/**
+	 * @return bytes allocated so far by this thread, or -1
+	 */
+	private static long allocatedBytes() {
+		try {
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			Method m = c.getMethod("getThreadAllocatedBytes", new Class[] { long.class });
+			Object bytes = m.invoke(ManagementFactory.getThreadMXBean(),
+									new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+			return ((Long)bytes).longValue();
+
+		}catch(Exception e) {
+			return -1;
+		}
+	}
+}
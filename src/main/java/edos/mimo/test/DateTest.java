@@ -18,6 +18,9 @@ package edos.mimo.test;
 
 
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
 
 import edos.mimo.Date;
 import junit.framework.TestCase;
@@ -43,4 +46,89 @@ public class DateTest extends TestCase {
 		
 		assertEquals(1162019307978l, d1.getTimeInMillis());
 	}
+
+	/**
+	 * Dates of older documents are written as milliseconds
+	 */
+	public void testMillisParsing() throws ParseException {
+		assertEquals(1107493200000l, new Date("1107493200000").getTimeInMillis());
+		assertEquals(1141113730566l, new Date("1141113730566", Date.ISO8601).getTimeInMillis());
+	}
+
+	public void testInvalidDate() {
+		try {
+			new Date("not a date");
+			fail("ParseException expected");
+		}catch(ParseException pe) {
+			// expected
+		}
+	}
+
+	/**
+	 * The hand-written parser and formatter give what SimpleDateFormat gives
+	 */
+	public void testSameAsSimpleDateFormat() throws ParseException {
+		SimpleDateFormat formatter = new SimpleDateFormat(Date.ISO8601_PATTERN, Locale.FRANCE);
+		Random random = new Random(20061028);
+
+		for(int i = 0; i < 100000; i++) {
+			long time = 1000000000000l + (random.nextLong() % 1000000000000l);
+			String expected = formatter.format(new java.util.Date(time));
+
+			assertEquals(expected, Date.formatISO8601(time));
+			assertEquals(formatter.parse(expected).getTime(), Date.parseISO8601(expected));
+		}
+
+		// layouts left to SimpleDateFormat
+		assertEquals(formatter.parse("2006-2-3T1:02:03.4").getTime(), Date.parseISO8601("2006-2-3T1:02:03.4"));
+	}
+
+	public void testFullISO() throws ParseException {
+		SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		long time = Date.parseFullISO("2005-09-26 13:08:01.000000000 -0400");
+
+		assertEquals("2005-09-26 13:08:01", formatter.format(new java.util.Date(time)));
+		assertEquals("2005-09-26 13:08:01.000000000", Date.formatFullISO(time).substring(0, 29));
+	}
+
+	/**
+	 * The parsers and formatters are shared by the crawling threads
+	 */
+	public void testConcurrentUse() throws InterruptedException {
+		final int threads = 8;
+		final int dates = 50000;
+		final String[] errors = new String[threads];
+
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			final int worker = t;
+			workers[t] = new Thread() {
+				public void run() {
+					// each thread checks against its own formatter
+					SimpleDateFormat formatter = new SimpleDateFormat(Date.ISO8601_PATTERN, Locale.FRANCE);
+					Random random = new Random(worker);
+					try {
+						for(int i = 0; i < dates && errors[worker] == null; i++) {
+							long time = 1000000000000l + (random.nextLong() % 1000000000000l);
+							String expected = formatter.format(new java.util.Date(time));
+							String actual = Date.formatISO8601(time);
+
+							if(!expected.equals(actual))
+								errors[worker] = time + ": " + actual + " instead of " + expected;
+							else if(Date.parseISO8601(actual) != formatter.parse(actual).getTime())
+								errors[worker] = actual + " parsed as " + Date.parseISO8601(actual);
+						}
+					}catch(ParseException pe) {
+						errors[worker] = pe.getMessage();
+					}
+				}
+			};
+			workers[t].start();
+		}
+
+		for(int t = 0; t < threads; t++) {
+			workers[t].join();
+			assertNull(errors[t], errors[t]);
+		}
+	}
 }
@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import edos.mimo.Config;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.pipeline.DiffScheduler;
+import edos.mimo.pipeline.PipelineRun;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the diffs are skipped while neither the master nor the mirror
+ * change, and that a new master schedules the re-diffs once per mirror,
+ * the oldest diffs first, and that a diff older than the published one
+ * is dropped.
+ */
+public class DiffSchedulerTest extends TestCase {
+
+	private static final String FTP_FILE = "test-data/testmachine_ftp-1141113730566.xml";
+	private static final String SSH_FILE = "test-data/testmachine_ssh-1141114107946.xml";
+
+	private ITreeMirrorStructure ftp;
+	private ITreeMirrorStructure ssh;
+
+	protected void setUp() throws Exception {
+		Config.getInstance();
+		ftp = new TreeMirrorStructure(new FileInputStream(FTP_FILE));
+		ssh = new TreeMirrorStructure(new FileInputStream(SSH_FILE));
+	}
+
+	public void testSkipUnchanged() throws Exception {
+		DiffScheduler scheduler = new TestScheduler();
+		assertTrue(scheduler.needsDiff("a"));
+
+		scheduler.persisted(run("a", ftp, null));
+		assertTrue(scheduler.needsDiff("a"));
+		scheduler.diffed("a", scheduler.getVersions("a"));
+		assertFalse(scheduler.needsDiff("a"));
+
+		// no change in the delta: same version
+		scheduler.persisted(run("a", ssh, new DOMMirrorDelta(ftp, ftp)));
+		assertFalse(scheduler.needsDiff("a"));
+		assertEquals(ftp.getDocumentID(), scheduler.getVersions("a")[1]);
+
+		scheduler.persisted(run("a", ssh, null));
+		assertTrue(scheduler.needsDiff("a"));
+		scheduler.diffed("a", scheduler.getVersions("a"));
+		assertFalse(scheduler.needsDiff("a"));
+
+		// the other mirrors are not concerned
+		scheduler.persisted(run("b", ftp, null));
+		assertFalse(scheduler.needsDiff("a"));
+		assertTrue(scheduler.getPending().isEmpty());
+	}
+
+	public void testMasterChange() throws Exception {
+		DiffScheduler scheduler = new TestScheduler();
+		scheduler.diffed("c", scheduler.getVersions("c"));
+		Thread.sleep(10);
+		scheduler.diffed("b", scheduler.getVersions("b"));
+		assertFalse(scheduler.needsDiff("b"));
+
+		scheduler.persisted(run(Config.MASTER, ftp, null));
+		assertEquals(Arrays.asList(new String[] { "a", "c", "b" }), scheduler.getPending());
+		assertTrue(scheduler.needsDiff("b"));
+
+		// already waiting
+		scheduler.persisted(run(Config.MASTER, ssh, null));
+		scheduler.schedule("c");
+		assertEquals(3, scheduler.getPending().size());
+
+		// unchanged master
+		scheduler.diffed("b", scheduler.getVersions("b"));
+		scheduler.persisted(run(Config.MASTER, ftp, new DOMMirrorDelta(ftp, ftp)));
+		assertFalse(scheduler.needsDiff("b"));
+	}
+
+	public void testOutdatedDiff() throws Exception {
+		DiffScheduler scheduler = new TestScheduler();
+		PipelineRun older = run("a", ftp, null);
+		scheduler.persisted(older);
+		assertEquals(ftp.getDocumentID(), older.getVersion());
+		PipelineRun newer = run("a", ssh, null);
+		scheduler.persisted(newer);
+		assertEquals(ssh.getDocumentID(), newer.getVersion());
+		
+		// no change: the version of the previous structure
+		PipelineRun unchanged = run("a", ftp, new DOMMirrorDelta(ftp, ftp));
+		scheduler.persisted(unchanged);
+		assertEquals(ssh.getDocumentID(), unchanged.getVersion());
+		
+		// the diff of the newer run is published first
+		String[] olderVersions = new String[] { "master-100", "a-100" };
+		String[] newerVersions = new String[] { "master-100", "a-200" };
+		assertFalse(scheduler.isOutdated("a", olderVersions));
+		scheduler.diffed("a", newerVersions);
+		assertTrue(scheduler.isOutdated("a", olderVersions));
+		assertFalse(scheduler.isOutdated("a", newerVersions));
+		
+		// same mirror, newer master
+		scheduler.diffed("a", new String[] { "master-200", "a-200" });
+		assertTrue(scheduler.isOutdated("a", newerVersions));
+		assertFalse(scheduler.isOutdated("a", new String[] { null, "a-300" }));
+	}
+
+	private PipelineRun run(String mirrorID, ITreeMirrorStructure structure, DOMMirrorDelta delta) {
+		PipelineRun run = new PipelineRun(mirrorID, null);
+		run.setStructure(structure);
+		run.setDelta(delta);
+		return run;
+	}
+
+	/**
+	 * Mirrors known without a database
+	 */
+	private static class TestScheduler extends DiffScheduler {
+		protected List<String> getMirrorIDs() {
+			return Arrays.asList(new String[] { Config.MASTER, "a", "b", "c" });
+		}
+	}
+}
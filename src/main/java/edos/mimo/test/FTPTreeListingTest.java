@@ -0,0 +1,447 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import edos.mimo.Access;
+import edos.mimo.Identity;
+import edos.mimo.connection.FTPConnection;
+import edos.mimo.connection.ITreeListingHandler;
+import edos.mimo.filesystem.IFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks each listing mode of FTPConnection against a small FTP server
+ * running in the test (STAT -R, LIST -R, MLSD and plain LIST).
+ */
+public class FTPTreeListingTest extends TestCase {
+
+	// the served tree: /pub/f1, /pub/d1/f2, /pub/d1/d2/f3 (and some hidden files)
+	private static final String[] TREE = {
+		"|.hidden|file|10",
+		"|f1|file|100",
+		"|d1|dir|4096",
+		"d1|f2|file|200",
+		"d1|f2~|file|200",
+		"d1|d2|dir|4096",
+		"d1/d2|f3|file|300",
+	};
+
+	private EmbeddedFTPServer server;
+	private FTPConnection conn;
+
+	protected void tearDown() throws Exception {
+		if(conn != null)
+			conn.close();
+		if(server != null)
+			server.stop();
+		super.tearDown();
+	}
+
+	public void testStatRecursive() throws IOException {
+		connect(new EmbeddedFTPServer(true, false, false));
+
+		assertEquals(expectedTree(false), lsTree(false));
+		assertTrue(server.received("STAT -R ."));
+		assertFalse(server.received("LIST -R"));
+	}
+
+	public void testListRecursive() throws IOException {
+		connect(new EmbeddedFTPServer(false, true, false));
+
+		assertEquals(expectedTree(false), lsTree(false));
+		assertTrue(server.received("LIST -R"));
+	}
+
+	public void testDirectoriesOnly() throws IOException {
+		connect(new EmbeddedFTPServer(true, false, false));
+
+		assertEquals(expectedTree(true), lsTree(true));
+	}
+
+	/**
+	 * A server ignoring -R gives the top directory alone
+	 */
+	public void testIgnoredRecursion() throws IOException {
+		connect(new EmbeddedFTPServer(false, false, false));
+
+		assertFalse(conn.lsTree("/pub", false, new Collector()));
+	}
+
+	public void testMLSDFallback() throws IOException {
+		connect(new EmbeddedFTPServer(false, false, true));
+		assertFalse(conn.lsTree("/pub", false, new Collector()));
+		server.clear();
+
+		List<IFile> files = conn.lsFrom("/pub/d1");
+		assertEquals("[d2, f2]", names(files));
+
+		// one listing command per directory
+		assertEquals("[PASV, MLSD /pub/d1]", server.commands().toString());
+	}
+
+	public void testMLSDTimes() throws IOException {
+		connect(new EmbeddedFTPServer(false, false, true));
+
+		List<IFile> files = conn.lsFrom("/pub/d1/d2");
+		assertEquals(1, files.size());
+		assertEquals(1141112130000L, files.get(0).getDate().getTimeInMillis());
+		assertEquals(300, files.get(0).getSize());
+	}
+
+	public void testPlainList() throws IOException {
+		connect(new EmbeddedFTPServer(false, false, false));
+
+		List<IFile> files = conn.lsFrom("/pub/d1");
+		assertEquals("[d2, f2, f2~]", names(files));
+		assertFalse(server.received("MLSD /pub/d1"));
+	}
+
+	/**
+	 * FEAT and the recursive listing probes are sent once per host
+	 */
+	public void testCapabilitiesKeptForHost() throws IOException {
+		connect(new EmbeddedFTPServer(false, false, true));
+		assertFalse(conn.lsTree("/pub", false, new Collector()));
+		conn.close();
+		server.clear();
+
+		conn = new FTPConnection(new Identity("anonymous", "test", null), server.getAccess());
+		conn.connect();
+		assertFalse(conn.lsTree("/pub", false, new Collector()));
+		conn.lsFrom("/pub");
+
+		assertFalse(server.received("FEAT"));
+		assertFalse(server.received("STAT -R ."));
+		assertFalse(server.received("LIST -R"));
+		assertTrue(server.received("MLSD /pub"));
+	}
+
+	private void connect(EmbeddedFTPServer s) throws IOException {
+		server = s;
+		server.start();
+		conn = new FTPConnection(new Identity("anonymous", "test", null), server.getAccess());
+		conn.connect();
+	}
+
+	private List<String> lsTree(boolean dirsOnly) throws IOException {
+		Collector collector = new Collector();
+		assertTrue(conn.lsTree("/pub", dirsOnly, collector));
+		Collections.sort(collector.entries);
+		return collector.entries;
+	}
+
+	/**
+	 * What lsTree() should give: the tree less the hidden files and backups
+	 */
+	private static List<String> expectedTree(boolean dirsOnly) {
+		List<String> expected = new ArrayList<String>();
+		for(int i = 0; i < TREE.length; i++) {
+			String[] e = TREE[i].split("\\|");
+			if(e[1].startsWith(".") || e[1].endsWith("~"))
+				continue;
+			if(dirsOnly && !e[2].equals("dir"))
+				continue;
+			expected.add(TREE[i]);
+		}
+		Collections.sort(expected);
+		return expected;
+	}
+
+	private static String names(List<IFile> files) {
+		List<String> names = new ArrayList<String>();
+		Iterator<IFile> it = files.iterator();
+		while(it.hasNext())
+			names.add(it.next().getName());
+		Collections.sort(names);
+		return names.toString();
+	}
+
+	private static class Collector implements ITreeListingHandler {
+		List<String> entries = new ArrayList<String>();
+
+		public void entry(String dirPath, String name, boolean dir, long size, long timeInMillis) {
+			entries.add(dirPath + "|" + name + "|" + (dir?"dir":"file") + "|" + size);
+		}
+	}
+
+	/**
+	 * A minimal FTP server, serving TREE under /pub on a local port.
+	 * It knows just enough commands for FTPConnection, and records them.
+	 */
+	private static class EmbeddedFTPServer implements Runnable {
+		private static final String ROOT = "/pub";
+
+		private boolean statRecursive;
+		private boolean listRecursive;
+		private boolean mlsd;
+
+		private ServerSocket serverSocket;
+		private List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+		EmbeddedFTPServer(boolean statRecursive, boolean listRecursive, boolean mlsd) {
+			this.statRecursive = statRecursive;
+			this.listRecursive = listRecursive;
+			this.mlsd = mlsd;
+		}
+
+		void start() throws IOException {
+			serverSocket = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+			Thread t = new Thread(this, "embedded-ftp");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		void stop() throws IOException {
+			serverSocket.close();
+		}
+
+		Access getAccess() {
+			return new Access("127.0.0.1", "ftp", ROOT, serverSocket.getLocalPort());
+		}
+
+		boolean received(String command) {
+			return commands.contains(command);
+		}
+
+		List<String> commands() {
+			synchronized(commands) {
+				return new ArrayList<String>(commands);
+			}
+		}
+
+		void clear() {
+			commands.clear();
+		}
+
+		public void run() {
+			try {
+				while(true) {
+					final Socket client = serverSocket.accept();
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							try {
+								serve(client);
+							}catch(IOException ioe) {
+								// client gone
+							}
+						}
+					});
+					t.setDaemon(true);
+					t.start();
+				}
+			}catch(IOException ioe) {
+				// stopped
+			}
+		}
+
+		private void serve(Socket client) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+			PrintWriter out = new PrintWriter(client.getOutputStream());
+			ServerSocket passive = null;
+			String cwd = "/";
+
+			reply(out, "220 embedded FTP server ready");
+			String line;
+			while((line = in.readLine()) != null) {
+				int space = line.indexOf(' ');
+				String cmd = ((space < 0)?line:line.substring(0, space)).toUpperCase();
+				String arg = (space < 0)?null:line.substring(space + 1);
+
+				if(!cmd.equals("USER") && !cmd.equals("PASS") && !cmd.equals("QUIT")
+						&& !cmd.equals("TYPE") && !cmd.equals("SYST"))
+					commands.add(line);
+
+				if(cmd.equals("USER")) {
+					reply(out, "331 password please");
+
+				}else if(cmd.equals("PASS")) {
+					reply(out, "230 logged in");
+
+				}else if(cmd.equals("SYST")) {
+					reply(out, "215 UNIX Type: L8");
+
+				}else if(cmd.equals("TYPE") || cmd.equals("NOOP")) {
+					reply(out, "200 OK");
+
+				}else if(cmd.equals("PWD")) {
+					reply(out, "257 \"" + cwd + "\" is the current directory");
+
+				}else if(cmd.equals("CWD")) {
+					String dir = resolve(cwd, arg);
+					if(isDirectory(dir)) {
+						cwd = dir;
+						reply(out, "250 OK");
+					}else{
+						reply(out, "550 no such directory");
+					}
+
+				}else if(cmd.equals("FEAT")) {
+					if(mlsd)
+						reply(out, "211-Features:\r\n MLST type*;size*;modify*;\r\n SIZE\r\n211 End");
+					else
+						reply(out, "500 unknown command");
+
+				}else if(cmd.equals("PASV")) {
+					passive = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+					int p = passive.getLocalPort();
+					reply(out, "227 Entering Passive Mode (127,0,0,1," + (p >> 8) + "," + (p & 0xff) + ")");
+
+				}else if(cmd.equals("LIST")) {
+					StringBuffer sb = new StringBuffer();
+					if("-R".equals(arg) && listRecursive)
+						listRecursive(sb, cwd, "");
+					else
+						list(sb, resolve(cwd, ("-R".equals(arg))?null:arg));	// -R ignored
+					transfer(out, passive, sb);
+
+				}else if(cmd.equals("MLSD") && mlsd) {
+					String dir = resolve(cwd, arg);
+					StringBuffer sb = new StringBuffer();
+					sb.append("type=cdir;modify=20060228073530; .\r\n");
+					Iterator<String[]> it = children(dir).iterator();
+					while(it.hasNext()) {
+						String[] e = it.next();
+						sb.append("type=" + e[2] + ";size=" + e[3] + ";modify=20060228073530;UNIX.mode=0644; "
+								+ e[1] + "\r\n");
+					}
+					transfer(out, passive, sb);
+
+				}else if(cmd.equals("STAT") && statRecursive && "-R .".equals(arg)) {
+					StringBuffer sb = new StringBuffer();
+					listRecursive(sb, cwd, ".");
+					out.print("213-Status of .:\r\n" + sb + "213 End of status\r\n");
+					out.flush();
+
+				}else if(cmd.equals("QUIT")) {
+					reply(out, "221 bye");
+					break;
+
+				}else{
+					reply(out, "500 unknown command");
+				}
+			}
+			client.close();
+		}
+
+		private void reply(PrintWriter out, String reply) {
+			out.print(reply + "\r\n");
+			out.flush();
+		}
+
+		private void transfer(PrintWriter out, ServerSocket passive, StringBuffer data) throws IOException {
+			if(passive == null) {
+				reply(out, "425 use PASV first");
+				return;
+			}
+			reply(out, "150 here it comes");
+			Socket dataSocket = passive.accept();
+			OutputStream os = dataSocket.getOutputStream();
+			os.write(data.toString().getBytes("ISO-8859-1"));
+			dataSocket.close();
+			passive.close();
+			reply(out, "226 transfer complete");
+		}
+
+		/**
+		 * ls -lR: a section per directory, sub-directories after their parent
+		 */
+		private void listRecursive(StringBuffer sb, String dir, String header) {
+			if(header.length() > 0)
+				sb.append(header + ":\r\n");
+			list(sb, dir);
+			sb.append("\r\n");
+
+			Iterator<String[]> it = children(dir).iterator();
+			while(it.hasNext()) {
+				String[] e = it.next();
+				if(e[2].equals("dir"))
+					listRecursive(sb, dir + "/" + e[1],
+							((header.length() == 0)?".":header) + "/" + e[1]);
+			}
+		}
+
+		private void list(StringBuffer sb, String dir) {
+			sb.append("total 8\r\n");
+			Iterator<String[]> it = children(dir).iterator();
+			while(it.hasNext()) {
+				String[] e = it.next();
+				sb.append((e[2].equals("dir")?"drwxr-xr-x":"-rw-r--r--")
+						+ "    1 ftp      ftp      " + e[3] + " Feb 28  2006 " + e[1] + "\r\n");
+			}
+		}
+
+		/**
+		 * @return entries as { parent, name, type, size }
+		 */
+		private List<String[]> children(String dir) {
+			List<String[]> children = new ArrayList<String[]>();
+			String rel = relative(dir);
+			for(int i = 0; i < TREE.length; i++) {
+				String[] e = TREE[i].split("\\|");
+				if(e[0].equals(rel))
+					children.add(e);
+			}
+			return children;
+		}
+
+		private boolean isDirectory(String dir) {
+			if(dir.equals("/") || dir.equals(ROOT))
+				return true;
+			String rel = relative(dir);
+			if(rel == null)
+				return false;
+			for(int i = 0; i < TREE.length; i++)
+				if(TREE[i].equals(rel.substring(0, Math.max(0, rel.lastIndexOf('/'))) + "|"
+						+ rel.substring(rel.lastIndexOf('/') + 1) + "|dir|4096"))
+					return true;
+			return false;
+		}
+
+		/**
+		 * @return the path of dir in TREE ("" for /pub), or null outside of /pub
+		 */
+		private String relative(String dir) {
+			if(dir.equals(ROOT))
+				return "";
+			if(dir.startsWith(ROOT + "/"))
+				return dir.substring(ROOT.length() + 1);
+			return null;
+		}
+
+		private String resolve(String cwd, String path) {
+			if(path == null || path.equals("."))
+				return cwd;
+			if(path.startsWith("/"))
+				return path;
+			return (cwd.equals("/")?"":cwd) + "/" + path;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import edos.mimo.connection.FindListingParser;
+import edos.mimo.connection.ITreeListingHandler;
+
+import junit.framework.TestCase;
+
+public class FindListingParserTest extends TestCase implements ITreeListingHandler {
+
+	private List<String> entries;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		entries = new ArrayList<String>();
+	}
+
+	public void entry(String dirPath, String name, boolean dir, long size, long timeInMillis) {
+		entries.add(dirPath + "|" + name + "|" + (dir?"d":"f") + "|" + size + "|" + timeInMillis);
+	}
+
+	private int parse(String output) throws IOException {
+		return new FindListingParser(this).parse(new StringReader(output));
+	}
+
+	public void testParse() throws IOException {
+		int count = parse("f\t18383\t1107493200.0000000000\tCOPYING\0"
+						+ "d\t4096\t1127769660\tDkms\0"
+						+ "d\t13\t1127769660.5\tDkms/RPMS\0"
+						+ "f\t426667\t1127130900.0000000000\tDkms/RPMS/dkms-ati.rpm\0");
+
+		assertEquals(4, count);
+		assertEquals("|COPYING|f|18383|1107493200000", entries.get(0));
+		assertEquals("|Dkms|d|4096|1127769660000", entries.get(1));
+		assertEquals("Dkms|RPMS|d|13|1127769660000", entries.get(2));	// truncated to the second
+		assertEquals("Dkms/RPMS|dkms-ati.rpm|f|426667|1127130900000", entries.get(3));
+	}
+
+	public void testNamesWithSeparators() throws IOException {
+		parse("f\t1\t1\tmy dir/a\tb\nc\0");
+		assertEquals("my dir|a\tb\nc|f|1|1000", entries.get(0));
+	}
+
+	public void testSymbolicLinkIsAFile() throws IOException {
+		parse("l\t7\t1\tlatest\0");
+		assertEquals("|latest|f|7|1000", entries.get(0));
+	}
+
+	public void testEmptyOutput() throws IOException {
+		assertEquals(0, parse(""));
+	}
+
+	public void testTruncatedOutput() {
+		try {
+			parse("f\t1\t1\tCOPYING\0d\t4096");
+			fail("IOException expected");
+		}catch(IOException ioe) {
+			// expected
+		}
+	}
+
+	public void testMalformedRecord() {
+		try {
+			parse("f\tbig\t1\tCOPYING\0");
+			fail("IOException expected");
+		}catch(IOException ioe) {
+			// expected
+		}
+	}
+}
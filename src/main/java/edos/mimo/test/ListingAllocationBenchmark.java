@@ -0,0 +1,145 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.List;
+
+import edos.mimo.connection.IListingVisitor;
+import edos.mimo.connection.ListingCollector;
+import edos.mimo.filesystem.IDirectory;
+import edos.mimo.filesystem.IFile;
+
+/**
+ * Compares the memory allocated by the 2 ways of getting a directory listing
+ * from a connection, on a synthetic listing of 500000 entries:
+ *  . lsFrom(): a list of IFile (each with a Date and its calendar)
+ *  . listInto(): entries pushed to a visitor as they are parsed
+ *
+ * The allocated bytes are read from the JVM thread statistics
+ * (com.sun.management.ThreadMXBean) when available.
+ *
+ * Usage: ListingAllocationBenchmark [entries]
+ */
+public class ListingAllocationBenchmark {
+	private static final int DEFAULT_ENTRIES = 500000;
+	private static final int RUNS = 5;
+
+	private String[] names;
+	private long checksum = 0;	// keeps the work from being optimized away
+
+	public ListingAllocationBenchmark(int entries) {
+		// the names are built once: both paths would get them from the parser
+		names = new String[entries];
+		for(int i = 0; i < entries; i++)
+			names[i] = "package-" + i + "-1mdk.i586.rpm";
+	}
+
+	public static void main(String[] args) {
+		int entries = (args.length > 0)?Integer.parseInt(args[0]):DEFAULT_ENTRIES;
+		ListingAllocationBenchmark bench = new ListingAllocationBenchmark(entries);
+
+		System.out.println("Listing of " + entries + " entries, last of " + RUNS + " runs");
+		for(int run = 0; run < RUNS; run++) {
+			// warming up, the last run is reported
+			long[] list = bench.measure(true);
+			long[] visitor = bench.measure(false);
+
+			if(run == RUNS - 1) {
+				report("lsFrom()   (List<IFile>)", list, entries);
+				report("listInto() (visitor)    ", visitor, entries);
+			}
+		}
+		System.out.println("(checksum " + bench.checksum + ")");
+	}
+
+	/**
+	 * @param asList true to go through lsFrom(), false through listInto()
+	 * @return { allocated bytes (-1 if unknown), elapsed ms }
+	 */
+	private long[] measure(boolean asList) {
+		System.gc();
+		long allocated = allocatedBytes();
+		long start = System.currentTimeMillis();
+
+		if(asList) {
+			ListingCollector collector = new ListingCollector("/cooker");
+			list(collector);
+			consume(collector.getFiles());
+		}else{
+			list(new IListingVisitor() {
+				public void visit(String name, boolean dir, long size, long timeInMillis) {
+					checksum += name.length() + size + timeInMillis + (dir?1:0);
+				}
+			});
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		long after = allocatedBytes();
+		return new long[] { (allocated < 0)?-1:after - allocated, elapsed };
+	}
+
+	/**
+	 * The synthetic listing, as a connection would send it
+	 */
+	private void list(IListingVisitor visitor) {
+		long time = 1141113730000L;
+		for(int i = 0; i < names.length; i++)
+			visitor.visit(names[i], i % 50 == 0, 1024 + i, time + i * 1000L);
+	}
+
+	/**
+	 * What the acquisition used to read from each IFile
+	 */
+	private void consume(List<IFile> files) {
+		Iterator<IFile> it = files.iterator();
+		while(it.hasNext()) {
+			IFile f = it.next();
+			checksum += f.getName().length() + f.getSize() + f.getDate().getTimeInMillis()
+						+ ((f instanceof IDirectory)?1:0);
+		}
+	}
+
+	private static void report(String label, long[] result, int entries) {
+		StringBuffer sb = new StringBuffer(label).append(": ");
+		if(result[0] >= 0)
+			sb.append(result[0] / (1024 * 1024)).append(" MB allocated, ")
+			  .append(result[0] / entries).append(" bytes/entry, ");
+		else
+			sb.append("allocation unknown on this JVM, ");
+		sb.append(result[1]).append(" ms");
+		System.out.println(sb);
+	}
+
+	/**
+	 * @return bytes allocated so far by this thread, or -1
+	 */
+	private static long allocatedBytes() {
+		try {
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			Method m = c.getMethod("getThreadAllocatedBytes", new Class[] { long.class });
+			Object bytes = m.invoke(ManagementFactory.getThreadMXBean(),
+									new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+			return ((Long)bytes).longValue();
+
+		}catch(Exception e) {
+			return -1;
+		}
+	}
+}
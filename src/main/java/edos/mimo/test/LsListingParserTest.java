@@ -0,0 +1,86 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import edos.mimo.connection.IListingVisitor;
+import edos.mimo.connection.LsListingParser;
+import edos.mimo.exception.SSH2Exception;
+
+import junit.framework.TestCase;
+
+public class LsListingParserTest extends TestCase implements IListingVisitor {
+
+	private List<String> entries;
+	private LsListingParser parser;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		entries = new ArrayList<String>();
+		parser = new LsListingParser(this);
+	}
+
+	public void visit(String name, boolean dir, long size, long timeInMillis) {
+		entries.add(name + "|" + (dir?"d":"f") + "|" + size + "|" + timeInMillis);
+	}
+
+	public void testDirectory() throws SSH2Exception {
+		parser.parse("dr-xr-xr-x  2 root root   8192 2005-09-26 13:08:01.000000000 -0400 Applications");
+
+		long time = new GregorianCalendar(2005, 8, 26, 13, 8, 1).getTimeInMillis();
+		assertEquals("Applications|d|8192|" + time, entries.get(0));
+	}
+
+	public void testFile() throws SSH2Exception {
+		parser.parse("-rw-r--r--  1 mirror mirror 426667 2005-09-19 12:35:00.123456789 +0200 dkms-ati.rpm");
+
+		// truncated to the second
+		long time = new GregorianCalendar(2005, 8, 19, 12, 35, 0).getTimeInMillis();
+		assertEquals("dkms-ati.rpm|f|426667|" + time, entries.get(0));
+	}
+
+	public void testNameWithSpaces() throws SSH2Exception {
+		parser.parse("-rw-r--r--  1 root root 10 2006-02-28 08:00:00.000000000 +0100 release notes.txt");
+		assertTrue(entries.get(0).startsWith("release notes.txt|f|10|"));
+	}
+
+	public void testSymbolicLinkIsAFile() throws SSH2Exception {
+		parser.parse("lrwxrwxrwx  1 root root 6 2006-02-28 08:00:00.000000000 +0100 latest -> 2006.0");
+		assertTrue(entries.get(0).startsWith("latest|f|6|"));
+	}
+
+	public void testMalformedLine() {
+		try {
+			parser.parse("-rw-r--r--  1 root root 10 2006-02-28");
+			fail("SSH2Exception expected");
+		}catch(SSH2Exception e) {
+			// expected
+		}
+	}
+
+	public void testTotalLine() {
+		try {
+			parser.parse("total 48");
+			fail("SSH2Exception expected");
+		}catch(SSH2Exception e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import edos.mimo.Date;
+import edos.mimo.filesystem.IFile;
+import edos.mimo.filesystem.MirrorFileFactory;
+import edos.mimo.filesystem.NamePool;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the names shared by the mirrors through the NamePool.
+ */
+public class NamePoolTest extends TestCase {
+
+	private static final int THREADS = 8;
+	private static final int NAMES = 20000;
+
+	public void testSameInstanceAndId() {
+		NamePool pool = new NamePool(100);
+		String name = pool.intern(new String("kernel-2.6.12-12mdk.i586.rpm"));
+
+		assertSame(name, pool.intern(new String("kernel-2.6.12-12mdk.i586.rpm")));
+		assertEquals(pool.id(name), pool.id(new String(name)));
+		assertFalse(pool.id(name) == pool.id("kernel-2.6.12-13mdk.i586.rpm"));
+		assertNull(pool.intern(null));
+		assertEquals(NamePool.NO_ID, pool.id(null));
+	}
+
+	public void testGenerations() {
+		NamePool pool = new NamePool(10);
+		int kept = pool.id("kept");
+		int dropped = pool.id("dropped");
+
+		// "kept" is used in each generation, "dropped" is not
+		for(int generation = 0; generation < 3; generation++) {
+			for(int i = 0; i < 10; i++)
+				pool.intern("name-" + generation + "-" + i);
+			assertEquals(kept, pool.id("kept"));
+		}
+
+		assertEquals(3, pool.getGenerations());
+		assertTrue(pool.size() <= 2 * 10);
+
+		// forgotten: a new id, never one given before
+		int id = pool.id("dropped");
+		assertFalse(id == dropped);
+		assertTrue(id > kept);
+	}
+
+	public void testConcurrentInterning() throws InterruptedException {
+		final NamePool pool = new NamePool(NAMES * 2);
+		final String[][] interned = new String[THREADS][NAMES];
+		final int[][] ids = new int[THREADS][NAMES];
+
+		Thread[] threads = new Thread[THREADS];
+		for(int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for(int i = 0; i < NAMES; i++) {
+						String name = "package-" + i + ".rpm";	// a new String for each thread
+						interned[thread][i] = pool.intern(name);
+						ids[thread][i] = pool.id(name);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(int t = 0; t < THREADS; t++)
+			threads[t].join();
+
+		assertEquals(NAMES, pool.size());
+		for(int t = 1; t < THREADS; t++)
+			for(int i = 0; i < NAMES; i++) {
+				assertSame(interned[0][i], interned[t][i]);
+				assertEquals(ids[0][i], ids[t][i]);
+			}
+	}
+
+	public void testFilesShareNames() {
+		IFile f1 = MirrorFileFactory.create(new String("COPYING"), new Date(), 18383, "/mirror1", false);
+		IFile f2 = MirrorFileFactory.create(new String("COPYING"), new Date(), 18383, "/mirror2", false);
+
+		assertSame(f1.getName(), f2.getName());
+	}
+}
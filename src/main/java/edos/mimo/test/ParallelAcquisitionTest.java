@@ -0,0 +1,174 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.dom4j.Element;
+
+import edos.mimo.Access;
+import edos.mimo.AnalysisLevel;
+import edos.mimo.IPass;
+import edos.mimo.Identity;
+import edos.mimo.Pass;
+import edos.mimo.SecondaryMirror;
+import edos.mimo.connection.IConnection;
+import edos.mimo.connection.IListingVisitor;
+import edos.mimo.connection.ListingCollector;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.filesystem.IFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks a mirror crawled over several connections gives
+ * the same structure as a serial crawl.
+ */
+public class ParallelAcquisitionTest extends TestCase {
+
+	private static final int DEPTH = 3;
+	private static final int DIRS_PER_DIR = 4;
+	private static final int FILES_PER_DIR = 3;
+
+	private AnalysisLevel analysis;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		analysis = new AnalysisLevel(AnalysisLevel.COMPLETE, AnalysisLevel.VERBOSE);
+	}
+
+	public void testSameStructureAsSerialCrawl() throws IOException {
+		TreeMirrorStructure serial = new TreeMirrorStructure(new FakeMirror(1), analysis);
+		TreeMirrorStructure parallel = new TreeMirrorStructure(new FakeMirror(4), analysis);
+
+		assertEquals(content(serial.getDocument().getRootElement()),
+					content(parallel.getDocument().getRootElement()));
+	}
+
+	public void testTreeSize() throws IOException {
+		TreeMirrorStructure parallel = new TreeMirrorStructure(new FakeMirror(4), analysis);
+
+		// 4 + 16 + 64 directories, with 3 files each (plus 3 at the top)
+		int dirs = DIRS_PER_DIR + DIRS_PER_DIR * DIRS_PER_DIR
+					+ DIRS_PER_DIR * DIRS_PER_DIR * DIRS_PER_DIR;
+		assertEquals(dirs, parallel.getDocument().selectNodes("//dir").size());
+		assertEquals((dirs + 1) * FILES_PER_DIR, parallel.getDocument().selectNodes("//file").size());
+	}
+
+	public void testListingErrorAbortsCrawl() {
+		FakeMirror mirror = new FakeMirror(4);
+		mirror.failingPath = "/cooker/d1/d2";
+		try {
+			new TreeMirrorStructure(mirror, analysis);
+			fail("IOException expected");
+
+		}catch(IOException ioe) {
+			// expected
+		}
+	}
+
+	/**
+	 * Children of the root, as XML (the root itself carries the crawl times)
+	 */
+	private String content(Element root) {
+		StringBuffer sb = new StringBuffer();
+		Iterator it = root.elementIterator();
+		while(it.hasNext())
+			sb.append(((Element)it.next()).asXML());
+		return sb.toString();
+	}
+
+	/**
+	 * A mirror serving a generated tree through fake connections
+	 */
+	private static class FakeMirror extends SecondaryMirror {
+		String failingPath = null;
+
+		FakeMirror(int connections) {
+			super("fake", passes());
+			setActivePass(getPasses().get(0));
+			setCrawlConnections(connections);
+		}
+
+		private static List<IPass> passes() {
+			List<IPass> passes = new LinkedList<IPass>();
+			passes.add(new Pass(new Access("testmachine", "ftp", "/cooker"),
+								new Identity("anonymous", "none", null)));
+			return passes;
+		}
+
+		public IConnection getConnection() {
+			return new FakeConnection(this);
+		}
+
+		public IConnection openConnection() {
+			return new FakeConnection(this);
+		}
+	}
+
+	/**
+	 * Lists a generated tree, answering after a random delay
+	 * so that listings complete out of order.
+	 */
+	private static class FakeConnection implements IConnection {
+		private FakeMirror mirror;
+		private Random random = new Random();
+
+		FakeConnection(FakeMirror mirror) {
+			this.mirror = mirror;
+		}
+
+		public List<IFile> lsFrom(String path) throws IOException {
+			ListingCollector collector = new ListingCollector(path);
+			listInto(path, collector);
+			return collector.getFiles();
+		}
+
+		public void listInto(String path, IListingVisitor visitor) throws IOException {
+			if(path.equals(mirror.failingPath))
+				throw new IOException("unable to list " + path);
+
+			try {
+				Thread.sleep(random.nextInt(5));
+			}catch(InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+
+			int depth = path.split("/").length - 2;	// "/cooker" is at depth 0
+			long date = 1141113730566L;
+
+			// names are not sorted on purpose
+			for(int i = FILES_PER_DIR; i > 0; i--)
+				visitor.visit("f" + i, false, i * 100, date);
+			if(depth < DEPTH)
+				for(int i = DIRS_PER_DIR; i > 0; i--)
+					visitor.visit("d" + i, true, 4096, date);
+		}
+
+		public void connect() {}
+		public void close() {}
+		public List<String> ls() { return null; }
+		public List<IFile> lsl() { return null; }
+		public List<IFile> lsDirFrom(String relPath) { return null; }
+		public boolean isValidPath(String path) { return true; }
+	}
+
+}
@@ -0,0 +1,181 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edos.mimo.pipeline.Pipeline;
+import edos.mimo.pipeline.PipelineRun;
+import edos.mimo.pipeline.Stage;
+import edos.mimo.pipeline.StageListener;
+import edos.mimo.pipeline.StageStatistics;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the runs go through the stages of the pipeline in order, that
+ * a full stage blocks the one before it, and that failed runs are dropped.
+ */
+public class PipelineTest extends TestCase {
+
+	private static final int RUNS = 50;
+
+	public void testStagesInOrder() throws Exception {
+		Recorder recorder = new Recorder(RUNS);
+		Pipeline pipeline = new Pipeline(Arrays.asList(new Stage[] {
+				new TestStage("a", 2, 4, null), new TestStage("b", 3, 4, null), new TestStage("c", 1, 4, null) }));
+		pipeline.addListener(recorder);
+
+		for(int i = 0; i < RUNS; i++)
+			pipeline.submit(pipeline.begin("mirror" + (i % 3), null), null);
+		assertTrue(recorder.completed.await(10, TimeUnit.SECONDS));
+		pipeline.close();
+
+		assertEquals(RUNS, recorder.runs.size());
+		for(int i = 0; i < recorder.runs.size(); i++) {
+			PipelineRun run = recorder.runs.get(i);
+			assertEquals(Arrays.asList(new String[] {
+					"started crawl", "completed crawl", "started a", "completed a",
+					"started b", "completed b", "started c", "completed c" }), recorder.events(run));
+		}
+
+		List<StageStatistics> statistics = pipeline.getStatistics();
+		assertEquals(4, statistics.size());
+		assertEquals(Pipeline.CRAWL, statistics.get(0).getName());
+		for(int i = 0; i < statistics.size(); i++) {
+			assertEquals(RUNS, statistics.get(i).getProcessed());
+			assertEquals(0, statistics.get(i).getFailed());
+		}
+	}
+
+	public void testBackpressure() throws Exception {
+		final CountDownLatch go = new CountDownLatch(1);
+		Recorder recorder = new Recorder(4);
+		TestStage slow = new TestStage("slow", 1, 1, go);
+		final Pipeline pipeline = new Pipeline(Collections.singletonList((Stage)slow));
+		pipeline.addListener(recorder);
+
+		// one run processed, one queued, the others wait for room
+		Thread crawls = new Thread() {
+			public void run() {
+				try {
+					for(int i = 0; i < 4; i++)
+						pipeline.submit(pipeline.begin("mirror" + i, null), null);
+				}catch(InterruptedException ie) {
+					fail("interrupted");
+				}
+			}
+		};
+		crawls.start();
+		crawls.join(500);
+		assertTrue(crawls.isAlive());
+		assertEquals(1, slow.getQueueSize());
+
+		go.countDown();
+		crawls.join(5000);
+		assertFalse(crawls.isAlive());
+		assertTrue(recorder.completed.await(5, TimeUnit.SECONDS));
+		pipeline.close();
+
+		assertTrue(slow.getStatistics().getBlocked() >= 1);
+		assertEquals(4, slow.getStatistics().getProcessed());
+		assertTrue(slow.getStatistics().getMaxWait() > 0);
+	}
+
+	public void testFailedRunDropped() throws Exception {
+		Recorder recorder = new Recorder(3);
+		TestStage last = new TestStage("last", 1, 4, null);
+		Pipeline pipeline = new Pipeline(Arrays.asList(new Stage[] {
+				new TestStage("failing", 1, 4, null), last }));
+		pipeline.addListener(recorder);
+
+		pipeline.submit(pipeline.begin("mirror", null), null);
+		PipelineRun failed = pipeline.begin("fail", null);
+		pipeline.submit(failed, null);
+		PipelineRun aborted = pipeline.begin("mirror", null);
+		pipeline.abort(aborted);
+		assertTrue(recorder.completed.await(5, TimeUnit.SECONDS));
+		pipeline.close();
+
+		assertEquals(Arrays.asList(new String[] { "started crawl", "completed crawl",
+				"started failing", "failed failing" }), recorder.events(failed));
+		assertEquals(Arrays.asList(new String[] { "started crawl", "failed crawl" }), recorder.events(aborted));
+		assertEquals(1, last.getStatistics().getProcessed());
+		assertEquals(1, pipeline.getStatistics().get(1).getFailed());
+		assertEquals(1, pipeline.getStatistics().get(0).getFailed());
+	}
+
+	/**
+	 * Waits for the gate if any, fails the runs of the "fail" mirror
+	 */
+	private static class TestStage extends Stage {
+		private CountDownLatch gate;
+
+		TestStage(String name, int workers, int queueSize, CountDownLatch gate) {
+			super(name, workers, queueSize);
+			this.gate = gate;
+		}
+
+		protected void process(PipelineRun run) throws Exception {
+			if(gate != null)
+				gate.await();
+			if(run.getMirrorID().equals("fail"))
+				throw new Exception("failed on purpose");
+		}
+	}
+
+	/**
+	 * Keeps the events of each run
+	 */
+	private static class Recorder implements StageListener {
+		List<PipelineRun> runs = Collections.synchronizedList(new ArrayList<PipelineRun>());
+		List<Object[]> events = Collections.synchronizedList(new ArrayList<Object[]>());
+		CountDownLatch completed;
+
+		Recorder(int count) {
+			completed = new CountDownLatch(count);
+		}
+
+		public void stageStarted(String stage, PipelineRun run, long time) {
+			events.add(new Object[] { run, "started " + stage });
+		}
+
+		public void stageCompleted(String stage, PipelineRun run, long time, boolean success) {
+			events.add(new Object[] { run, (success?"completed ":"failed ") + stage });
+		}
+
+		public void runCompleted(PipelineRun run) {
+			runs.add(run);
+			completed.countDown();
+		}
+
+		List<String> events(PipelineRun run) {
+			List<String> list = new ArrayList<String>();
+			synchronized(events) {
+				for(int i = 0; i < events.size(); i++)
+					if(events.get(i)[0] == run)
+						list.add((String)events.get(i)[1]);
+			}
+			return list;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import edos.mimo.polling.AdaptiveScheduler;
+import edos.mimo.polling.PollingDecision;
+import edos.mimo.polling.PollingPolicy;
+import edos.mimo.polling.PollingState;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the intervals set by the adaptive polling, and that its state
+ * is read back as written, even after a crash while it is replaced.
+ */
+public class PollingPolicyTest extends TestCase {
+
+	private static final long MIN = 15 * PollingPolicy.MINUTE;
+	private static final long MAX = 24 * PollingPolicy.HOUR;
+	private static final long NOW = 1160000000000L;
+
+	public void testChangesAndBackoff() {
+		PollingPolicy policy = new PollingPolicy(MIN, MAX, 0);
+		PollingState state = policy.newState("a");
+		assertEquals(MIN, state.getInterval());
+
+		policy.decide(state, NOW, -1, 1000, -1, 0);
+		assertEquals(MIN, state.getInterval());
+		assertEquals(NOW + MIN, state.getNextCrawl());
+
+		// unchanged: less and less often
+		PollingDecision decision = policy.decide(state, NOW, 0, 1000, -1, 0);
+		assertEquals(MIN * 3 / 2, state.getInterval());
+		assertEquals(MIN, decision.getPreviousInterval());
+		assertEquals("unchanged", decision.getReason());
+		for(int i = 0; i < 20; i++)
+			decision = policy.decide(state, NOW, 0, 1000, -1, 0);
+		assertEquals(MAX, state.getInterval());
+		assertTrue(decision.getReason().endsWith("maximum"));
+
+		// 9 changes halve the interval
+		decision = policy.decide(state, NOW, 9, 1000, -1, 0);
+		assertEquals(MAX / 2, state.getInterval());
+		assertEquals(9, decision.getChanges());
+		for(int i = 0; i < 20; i++)
+			policy.decide(state, NOW, 1000, 1000, -1, 0);
+		assertEquals(MIN, state.getInterval());
+
+		// a failed crawl keeps the interval
+		policy.decide(state, NOW, -1, -1, -1, 0);
+		assertEquals(MIN, state.getInterval());
+		assertTrue(state.getDecisions().size() <= 10);
+	}
+
+	public void testOutOfSync() {
+		PollingPolicy policy = new PollingPolicy(MIN, MAX, 0);
+		PollingState state = policy.newState("a");
+		policy.decide(state, NOW, 0, 1000, 0, 0);
+		long interval = state.getInterval();
+
+		PollingDecision decision = policy.decide(state, NOW + PollingPolicy.HOUR, 0, 1000, 5, 0);
+		assertEquals(interval, state.getInterval());
+		assertEquals(NOW + PollingPolicy.HOUR, state.getOutOfSyncSince());
+
+		decision = policy.decide(state, NOW + 2 * PollingPolicy.HOUR, 0, 1000, -1, 0);
+		assertEquals(interval, state.getInterval());
+		assertEquals(PollingPolicy.HOUR, decision.getLag());
+
+		// back in sync
+		policy.decide(state, NOW + 3 * PollingPolicy.HOUR, 0, 1000, 0, 0);
+		assertEquals(0, state.getOutOfSyncSince());
+		assertEquals(interval * 3 / 2, state.getInterval());
+	}
+
+	public void testLimits() {
+		// crawls of 10 minutes are not repeated within 100 minutes
+		PollingPolicy policy = new PollingPolicy(MIN, MAX, 0);
+		PollingState state = policy.newState("a");
+		PollingDecision decision = policy.decide(state, NOW, 100, 10 * PollingPolicy.MINUTE, -1, 0);
+		assertEquals(100 * PollingPolicy.MINUTE, state.getInterval());
+		assertTrue(decision.getReason().indexOf("crawls take 600 s") > 0);
+
+		// 10 crawls per hour: 9.5 for the others, 2 for this one
+		policy = new PollingPolicy(30 * PollingPolicy.MINUTE, MAX, 10);
+		state = policy.newState("b");
+		decision = policy.decide(state, NOW, -1, 1000, -1, 9.5);
+		assertEquals((long)(30 * PollingPolicy.MINUTE * 11.5 / 10), state.getInterval());
+		assertTrue(decision.getReason().indexOf("budget") > 0);
+
+		try {
+			new PollingPolicy(MAX, MIN, 0);
+			fail("IllegalArgumentException expected");
+		}catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testStateFile() throws Exception {
+		PollingPolicy policy = new PollingPolicy(MIN, MAX, 0);
+		PollingState a = policy.newState("a");
+		PollingState b = policy.newState("b");
+		policy.decide(a, NOW, 3, 2000, 4, 0);
+		policy.decide(a, NOW + MIN, 0, 4000, -1, 0);
+		policy.decide(b, NOW, -1, -1, -1, 0);
+
+		File file = File.createTempFile("polling", ".xml");
+		try {
+			AdaptiveScheduler.writeStates(file, Arrays.asList(new PollingState[] { a, b }));
+			List<PollingState> states = AdaptiveScheduler.readStates(file);
+			assertEquals(2, states.size());
+
+			PollingState read = states.get(0);
+			assertEquals(a.toString(), read.toString());
+			assertEquals(a.getCrawlCost(), read.getCrawlCost());
+			assertEquals(a.getLastCrawl(), read.getLastCrawl());
+			assertEquals(2, read.getDecisions().size());
+			for(int i = 0; i < 2; i++)
+				assertEquals(a.getDecisions().get(i).toString(), read.getDecisions().get(i).toString());
+			assertEquals(-1, states.get(1).getDecisions().get(0).getCrawlCost());
+			
+			// replaced
+			AdaptiveScheduler.writeStates(file, Arrays.asList(new PollingState[] { b }));
+			assertEquals(1, AdaptiveScheduler.readStates(file).size());
+
+		}finally{
+			file.delete();
+		}
+	}
+
+	public void testStateFileAfterCrash() throws Exception {
+		PollingPolicy policy = new PollingPolicy(MIN, MAX, 0);
+		File file = File.createTempFile("polling", ".xml");
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			AdaptiveScheduler.writeStates(file, Arrays.asList(new PollingState[] { 
+					policy.newState("a"), policy.newState("b") }));
+			
+			// crash once the state file is deleted, before the new one is renamed
+			assertTrue(file.renameTo(tmp));
+			AdaptiveScheduler scheduler = new AdaptiveScheduler(null, "test", policy, file);
+			assertEquals(2, scheduler.getStates().size());
+			
+		}finally{
+			file.delete();
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test;
+
+import edos.mimo.job.CrawlLimiter;
+import edos.mimo.job.TriggerSpread;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the cron triggers are spread over their interval, the same
+ * way for a mirror every time, and that the crawls at the same time
+ * follow the measured load.
+ */
+public class TriggerSpreadTest extends TestCase {
+
+	private static final long MINUTE = 60000;
+
+	public void testOffsets() {
+		TriggerSpread spread = new TriggerSpread(0, 30000);
+		int[] buckets = new int[4];
+		for(int i = 0; i < 400; i++) {
+			String mirrorID = "mirror" + i + "_ftp";
+			long offset = spread.getOffset(mirrorID, 60 * MINUTE);
+			assertTrue(offset >= 0 && offset < 60 * MINUTE);
+			assertEquals(offset, new TriggerSpread(0, 30000).getOffset(mirrorID, 60 * MINUTE));
+			buckets[(int)(offset / (15 * MINUTE))]++;
+		}
+		// about a quarter of the mirrors in each quarter of the hour
+		for(int i = 0; i < buckets.length; i++)
+			assertTrue("quarter " + i + ": " + buckets[i], buckets[i] > 60 && buckets[i] < 140);
+
+		// within the window, jitter included
+		TriggerSpread window = new TriggerSpread(5 * MINUTE, 30000);
+		for(int i = 0; i < 100; i++) {
+			long offset = window.getOffset("mirror" + i, 60 * MINUTE);
+			assertTrue(offset >= 0 && offset < 5 * MINUTE);
+		}
+
+		// the jitter moves the offset by its bound at most
+		TriggerSpread none = new TriggerSpread(0, 0);
+		for(int i = 0; i < 100; i++) {
+			long delta = Math.abs(spread.getOffset("m" + i, 60 * MINUTE) - none.getOffset("m" + i, 60 * MINUTE));
+			assertTrue(delta <= 30000 || delta >= 60 * MINUTE - 30000);
+		}
+	}
+
+	public void testExpressions() {
+		TriggerSpread spread = new TriggerSpread(0, 0);
+		String mirrorID = "testmachine_ftp";
+		long offset = spread.getOffset(mirrorID, 2 * MINUTE) / 1000;
+
+		String shifted = spread.spread("15 0/2 * * * ?", mirrorID);
+		assertEquals(((15 + offset) % 60) + " " + ((15 + offset) / 60 % 2) + "/2 * * * ?", shifted);
+		assertEquals(shifted, spread.spread("15 0/2 * * * ?", mirrorID));
+
+		offset = spread.getOffset(mirrorID, 60 * MINUTE) / 1000;
+		assertEquals((offset % 60) + " " + (offset / 60) + " 0/4 * * ?", 
+						spread.spread("0 0 0/4 * * ?", mirrorID));
+		assertTrue(spread.spread("0 * * * * ?", mirrorID).endsWith(" * * * * ?"));
+
+		// left as they are
+		assertEquals("0 0,30 * * * ?", spread.spread("0 0,30 * * * ?", mirrorID));
+		assertEquals("0/10 * * * * ?", spread.spread("0/10 * * * * ?", mirrorID));
+		assertEquals("0 5/2 * * * ?", spread.spread("0 5/2 * * * ?", mirrorID));
+	}
+
+	public void testCrawlLimit() throws Exception {
+		CrawlLimiter limiter = new CrawlLimiter(8);
+		assertEquals(8, limiter.getLimit());	// nothing measured yet
+
+		// 10 mirrors crawled each hour, in 3 minutes: 0.5 crawler needed
+		for(int i = 0; i < 10; i++) {
+			limiter.acquire("m" + i, 60 * MINUTE);
+			limiter.release("m" + i, 3 * MINUTE);
+		}
+		assertEquals(0, limiter.getRunning());
+		assertEquals(0.5, limiter.getLoad(), 0.01);
+		assertEquals(1, limiter.getLimit());
+
+		// 20 more mirrors, not crawled yet: counted for the average
+		for(int i = 10; i < 30; i++) {
+			limiter.acquire("m" + i, 60 * MINUTE);
+			limiter.release("m" + i, 0);
+		}
+		assertEquals(1.5, limiter.getLoad(), 0.01);
+		assertEquals(3, limiter.getLimit());
+
+		// never over the ceiling
+		for(int i = 0; i < 30; i++) {
+			limiter.acquire("m" + i, 60 * MINUTE);
+			limiter.release("m" + i, 30 * MINUTE);
+		}
+		assertEquals(8, limiter.getLimit());
+		assertEquals(Integer.MAX_VALUE, new CrawlLimiter(0).getLimit());
+	}
+
+	public void testFollowUpCrawlNotSampled() throws Exception {
+		CrawlLimiter limiter = new CrawlLimiter(8);
+		limiter.acquire("a", 0);
+		limiter.release("a", 3 * MINUTE);
+		limiter.acquire("a", 60 * MINUTE);
+		limiter.release("a", 3 * MINUTE);
+		assertEquals(0.05, limiter.getLoad(), 0.001);
+
+		// a follow-up crawl right after does not shorten the interval
+		Thread.sleep(20);
+		limiter.acquire("a", -1);
+		limiter.release("a", 3 * MINUTE);
+		assertEquals(0.05, limiter.getLoad(), 0.001);
+		assertEquals(0, limiter.getRunning());
+	}
+
+	public void testCrawlWaits() throws Exception {
+		final CrawlLimiter limiter = new CrawlLimiter(1);
+		limiter.acquire("a", 60 * MINUTE);
+
+		Thread b = new Thread(new Runnable() {
+			public void run() {
+				try {
+					limiter.acquire("b", 60 * MINUTE);
+				}catch(InterruptedException e) {
+					// ends the test
+				}
+			}
+		});
+		b.start();
+		b.join(200);
+		assertTrue(b.isAlive());
+		assertEquals(1, limiter.getRunning());
+
+		limiter.release("a", MINUTE);
+		b.join(1000);
+		assertFalse(b.isAlive());
+		assertEquals(1, limiter.getRunning());
+		assertEquals(1, limiter.getWaits());
+	}
+}
@@ -0,0 +1,171 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import edos.mimo.Config;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.dom.db.BDBXMLManager;
+
+import junit.framework.TestCase;
+
+/**
+ * Many readers and writers using the database at once, 
+ * in a temporary environment.
+ */
+public class BDBXMLManagerStressTest extends TestCase {
+	private static final int READERS = 8;
+	private static final int WRITERS = 4;
+	private static final int DOCUMENTS = 50;	// per writer
+	
+	private static String path = "test-data/";
+	private static String docName = "testmachine_ftp-1141113730566.xml";
+	private static String mirrorID = "testmachine_ftp";
+	private static String monitoredContainer = "monitored.dbxml";
+	
+	private String envHome;
+	private File tmpEnv;
+	private List<Throwable> errors = Collections.synchronizedList(new LinkedList<Throwable>());
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+		Config.getInstance();
+		
+		tmpEnv = File.createTempFile("bdbxml", "");
+		tmpEnv.delete();
+		tmpEnv.mkdir();
+		envHome = Config.getBDBXMLEnvHome();
+		Config.setBDBXMLEnvHome(tmpEnv.getPath());
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		
+		BDBXMLManager.getInstance().close();
+		Config.setBDBXMLEnvHome(envHome);
+		delete(tmpEnv);
+	}
+	
+	public void testSingleInstance() throws Exception {
+		final Set<BDBXMLManager> instances = Collections.synchronizedSet(new HashSet<BDBXMLManager>());
+		
+		Thread[] threads = new Thread[READERS];
+		for(int i = 0; i < threads.length; i++)
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						instances.add(BDBXMLManager.getInstance());
+					}catch(Throwable t) {
+						errors.add(t);
+					}
+				}
+			};
+		run(threads);
+		
+		assertEquals(1, instances.size());
+	}
+
+	public void testReadersAndWriters() throws Exception {
+		final BDBXMLManager manager = BDBXMLManager.getInstance();
+		manager.save(new TreeMirrorStructure(new FileInputStream(new File(path + docName))));
+		
+		Thread[] threads = new Thread[READERS + WRITERS];
+		for(int i = 0; i < WRITERS; i++) {
+			final int writer = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int d = 0; d < DOCUMENTS; d++) {
+							String name = "monitored-" + writer + "_" + d + ".xml";
+							manager.saveMonitored(name, "<monitored writer=\"" + writer 
+													+ "\" document=\"" + d + "\"/>");
+							if(d % 10 == 9)
+								manager.deleteDocument(name);
+						}
+					}catch(Throwable t) {
+						errors.add(t);
+					}
+				}
+			};
+		}
+		for(int i = WRITERS; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int r = 0; r < DOCUMENTS; r++) {
+							// the structure was stored before: it must always be found
+							ITreeMirrorStructure struct = manager.getLatestStructure(mirrorID);
+							assertNotNull(struct);
+							assertTrue(manager.getDocumentsInChronologicalOrder(mirrorID + ".dbxml")
+											.contains(docName));
+							assertTrue(manager.getDocument(docName).length() > 0);
+							
+							manager.getDocuments(monitoredContainer);
+						}
+					}catch(Throwable t) {
+						errors.add(t);
+					}
+				}
+			};
+		}
+		run(threads);
+		
+		// every writer deleted 1 document out of 10
+		List<String> docs = manager.getDocuments(monitoredContainer);
+		assertEquals(WRITERS * (DOCUMENTS - DOCUMENTS / 10), docs.size());
+		assertFalse(docs.contains("monitored-0_9.xml"));
+		assertTrue(docs.contains("monitored-0_8.xml"));
+	}
+	
+	/**
+	 * Starts the threads, waits for them and reports their errors
+	 */
+	private void run(Thread[] threads) throws Exception {
+		for(int i = 0; i < threads.length; i++)
+			threads[i].start();
+		for(int i = 0; i < threads.length; i++)
+			threads[i].join();
+		
+		if(!errors.isEmpty()) {
+			Throwable t = errors.get(0);
+			t.printStackTrace();
+			fail(errors.size() + " thread(s) failed, first: " + t);
+		}
+	}
+	
+	private static void delete(File file) throws IOException {
+		File[] files = file.listFiles();
+		if(files != null)
+			for(int i = 0; i < files.length; i++)
+				delete(files[i]);
+		if(!file.delete())
+			throw new IOException("unable to delete " + file);
+	}
+}
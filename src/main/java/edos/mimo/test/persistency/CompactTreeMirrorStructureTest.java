@@ -0,0 +1,226 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Iterator;
+
+import org.dom4j.Element;
+
+import edos.mimo.Config;
+import edos.mimo.IMasterMirror;
+import edos.mimo.ISecondaryMirror;
+import edos.mimo.dom.CompactTreeMirrorStructure;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.filesystem.DiffGeneratorFactory;
+import edos.mimo.filesystem.IMirrorDiff;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the compact structure gives the same documents, diffs
+ * and deltas as TreeMirrorStructure, and compares their heap usage.
+ */
+public class CompactTreeMirrorStructureTest extends TestCase {
+
+	private static final String MASTER_FILE 	= "test-data/testmachine_ssh-1141114107946.xml";
+	private static final String MIRROR_FILE 	= "test-data/testmachine_ftp-1141113730566.xml";
+	private static final String NEW_MIRROR_FILE = "test-data/testmachine_ftp-1141114200000.xml";
+
+	// synthetic tree for the heap comparison
+	private static final int HEAP_FILES = 100000;
+	private static final int FILES_PER_DIR = 100;
+
+	public void testSameDocument() throws Exception {
+		String[] files = { MASTER_FILE, MIRROR_FILE, NEW_MIRROR_FILE };
+		for(int i = 0; i < files.length; i++) {
+			TreeMirrorStructure dom = new TreeMirrorStructure(open(files[i]));
+			CompactTreeMirrorStructure compact = new CompactTreeMirrorStructure(open(files[i]));
+
+			assertEquals(files[i], content(dom.getDocument().getRootElement()),
+							content(compact.getDocument().getRootElement()));
+			assertEquals(dom.getDocumentID(), compact.getDocumentID());
+			assertEquals(dom.getMirror() instanceof IMasterMirror, compact.isMaster());
+		}
+	}
+
+	public void testCompactAcquiredStructure() throws Exception {
+		TreeMirrorStructure dom = new TreeMirrorStructure(open(MIRROR_FILE));
+		CompactTreeMirrorStructure compact = new CompactTreeMirrorStructure(dom);
+
+		assertSame(compact, compact.getMirror().getStructure());
+		assertEquals(dom.getTimeStamp(), compact.getTimeStamp());
+		assertEquals(content(dom.getDocument().getRootElement()),
+						content(compact.getDocument().getRootElement()));
+	}
+
+	public void testToStringRoundTrip() throws Exception {
+		CompactTreeMirrorStructure compact = new CompactTreeMirrorStructure(open(MIRROR_FILE));
+		CompactTreeMirrorStructure reloaded = new CompactTreeMirrorStructure(compact.toString());
+
+		assertEquals(compact.countNodes(), reloaded.countNodes());
+		assertEquals(compact.toString(), reloaded.toString());
+
+		// the streamed XML is the one of the dom4j view
+		TreeMirrorStructure dom = new TreeMirrorStructure(compact.toString());
+		assertEquals(content(compact.getDocument().getRootElement()),
+						content(dom.getDocument().getRootElement()));
+	}
+
+	public void testDiff() throws ParseException, Exception {
+		IMasterMirror master = (IMasterMirror)new CompactTreeMirrorStructure(open(MASTER_FILE)).getMirror();
+		ISecondaryMirror mirror = (ISecondaryMirror)new CompactTreeMirrorStructure(open(MIRROR_FILE)).getMirror();
+
+		IMirrorDiff diff = DiffGeneratorFactory.getDiffGenerator(Config.TREE, Config.MERGE_DIFF,
+															master, mirror).getDiff();
+		assertEquals(1, diff.countMissingFiles());
+		assertEquals(1, diff.newerFiles());
+		assertEquals(1, diff.olderFiles());
+		assertEquals(2, diff.corruptedFiles());
+		assertEquals(1, diff.superfluousFiles());
+		assertEquals(0, diff.wrongTypeFiles());
+	}
+
+	public void testDeltaAndPatch() throws Exception {
+		ITreeMirrorStructure reference = new CompactTreeMirrorStructure(open(MIRROR_FILE));
+		ITreeMirrorStructure newStruct = new CompactTreeMirrorStructure(open(NEW_MIRROR_FILE));
+
+		DOMMirrorDelta delta = new DOMMirrorDelta(reference, newStruct);
+		assertEquals(1, delta.countNewFiles());
+		assertEquals(1, delta.countDeletedFiles());
+		assertEquals(3, delta.countUpdatedFiles());
+
+		reference.patch(delta);
+		DOMMirrorDelta verification = new DOMMirrorDelta(reference, newStruct);
+		assertEquals(0, verification.getSize());
+	}
+
+	/**
+	 * Heap taken by the structures of a synthetic tree, given per million files.
+	 */
+	public void testHeapPerMillionFiles() throws Exception {
+		long before = usedHeap();
+		CompactTreeMirrorStructure compact = new CompactTreeMirrorStructure(new SyntheticTree(HEAP_FILES));
+		long compactBytes = usedHeap() - before;
+		assertEquals(HEAP_FILES + HEAP_FILES / FILES_PER_DIR, compact.countNodes());
+		assertEquals(FILES_PER_DIR + HEAP_FILES / FILES_PER_DIR, compact.countNames());
+
+		before = usedHeap();
+		TreeMirrorStructure dom = new TreeMirrorStructure(new SyntheticTree(HEAP_FILES));
+		long domBytes = usedHeap() - before;
+		assertNotNull(dom.getDocument());
+
+		long scale = 1000000 / HEAP_FILES;
+		System.out.println("Heap per million files: dom4j " + (domBytes * scale) / (1024 * 1024)
+							+ " MB, compact " + (compactBytes * scale) / (1024 * 1024) + " MB");
+
+		assertTrue(compact.countNodes() > 0);	// keeps it reachable until measured
+		assertTrue(compactBytes * 4 < domBytes);
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static InputStream open(String path) throws IOException {
+		return new FileInputStream(new File(path));
+	}
+
+	/**
+	 * Children of the root, as XML (as in ParallelAcquisitionTest)
+	 */
+	/**
+	 * The elements only: the whitespace between them is kept when a
+	 * document is read with dom4j, not by the compact structure
+	 */
+	private static String content(Element root) {
+		StringBuffer sb = new StringBuffer();
+		Iterator it = root.elementIterator();
+		while(it.hasNext()) {
+			Element e = (Element)it.next();
+			sb.append('<').append(e.getName());
+			for(int i = 0; i < e.attributeCount(); i++)
+				sb.append(' ').append(e.attribute(i).getName()).append('=').append(e.attribute(i).getValue());
+			sb.append('>').append(content(e)).append("</>");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A structure document generated on the fly: directories of
+	 * FILES_PER_DIR files, the same file names in each directory.
+	 */
+	private static class SyntheticTree extends InputStream {
+		private int dirs;
+		private int dir = -1;		// -1: header
+		private byte[] buffer = new byte[0];
+		private int pos = 0;
+
+		SyntheticTree(int files) {
+			dirs = files / FILES_PER_DIR;
+		}
+
+		public int read() {
+			if(pos == buffer.length && !fill())
+				return -1;
+			return buffer[pos++] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if(pos == buffer.length && !fill())
+				return -1;
+			int n = Math.min(len, buffer.length - pos);
+			System.arraycopy(buffer, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		private boolean fill() {
+			StringBuffer sb = new StringBuffer();
+			if(dir == -1) {
+				sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+				  .append("<mirror type=\"mirror\" name=\"synthetic\" host=\"testmachine\" protocol=\"ftp\"")
+				  .append(" path=\"/cooker\" checkinTime=\"1141113726968\" checkoutTime=\"1141113730566\">");
+			}else if(dir < dirs) {
+				sb.append("<dir name=\"dir").append(dir)
+				  .append("\" date=\"2006-02-28T08:42:10.0\" size=\"4096\">");
+				for(int i = 0; i < FILES_PER_DIR; i++)
+					sb.append("<file name=\"package-").append(i).append("-1mdk.i586.rpm\" date=\"")
+					  .append(1107493200000L + dir * 1000L + i).append("\" size=\"")
+					  .append(1024 + dir + i).append("\"/>");
+				sb.append("</dir>");
+			}else if(dir == dirs) {
+				sb.append("</mirror>");
+			}else
+				return false;
+
+			dir++;
+			buffer = sb.toString().getBytes();
+			pos = 0;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import edos.mimo.LightMirrorContent;
+import edos.mimo.connection.ListingCollector;
+import edos.mimo.dal.ConnectionPool;
+
+import junit.framework.TestCase;
+
+/**
+ * Connection pool on an embedded database (in-memory H2, its driver
+ * must be in the classpath), with jobs storing their mirrors at once.
+ */
+public class ConnectionPoolTest extends TestCase {
+	private static final String URL = "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1";
+	private static final int SIZE = 3;
+	private static final int JOBS = 8;
+	private static final int FILES = 500;	// per job
+
+	private ConnectionPool pool;
+	private Connection admin;	// keeps the database and creates the tables
+	private List<Throwable> errors = Collections.synchronizedList(new LinkedList<Throwable>());
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+
+		Class.forName("org.h2.Driver");
+		pool = new ConnectionPool(URL, "sa", "", SIZE, 200, ConnectionPool.DEFAULT_VALIDATION_QUERY);
+		admin = DriverManager.getConnection(URL, "sa", "");
+		execute("create table LocalState (Mirror_ID varchar(64), StampDate date, StampTime time, "
+					+ "Name varchar(255), Size bigint, FileDate bigint)");
+		execute("create table Availability (Mirror_ID varchar(64), StampDate date, StampTime time, "
+					+ "IsUp integer, FileCount integer, TotalSize bigint, No_Missing_Packages integer)");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		pool.close();
+		execute("drop all objects");
+		admin.close();
+	}
+
+	public void testReuse() throws Exception {
+		Connection conn = pool.borrow();
+		assertEquals(1, pool.getActive());
+		pool.release(conn);
+		assertEquals(0, pool.getActive());
+		assertEquals(1, pool.getIdle());
+
+		assertSame(conn, pool.borrow());
+		assertEquals(1, pool.getCreated());
+	}
+
+	public void testMaxWait() throws Exception {
+		Connection[] conns = new Connection[SIZE];
+		for(int i = 0; i < SIZE; i++)
+			conns[i] = pool.borrow();
+
+		long start = System.currentTimeMillis();
+		try {
+			pool.borrow();
+			fail("SQLException expected");
+		}catch(SQLException e) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		assertEquals(1, pool.getTimeouts());
+
+		// released by another job while waiting
+		final Connection released = conns[0];
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				}catch(InterruptedException ie) {
+					// released earlier
+				}
+				pool.release(released);
+			}
+		}.start();
+		assertSame(released, pool.borrow());
+	}
+
+	public void testValidationOnBorrow() throws Exception {
+		Connection conn = pool.borrow();
+		pool.release(conn);
+		conn.close();	// lost while idle
+
+		Connection other = pool.borrow();
+		assertNotSame(conn, other);
+		assertFalse(other.isClosed());
+		assertEquals(1, pool.getInvalidated());
+		assertEquals(2, pool.getCreated());
+
+		pool.invalidate(other);
+		assertEquals(0, pool.getIdle());
+		assertTrue(other.isClosed());
+	}
+
+	public void testRollbackOnRelease() throws Exception {
+		Connection conn = pool.borrow();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		stmt.execute("insert into Availability values ('forgotten', null, null, 1, 0, 0, 0)");
+		stmt.close();
+		pool.release(conn);
+
+		conn = pool.borrow();
+		assertTrue(conn.getAutoCommit());
+		assertEquals(0, count("Availability"));
+	}
+
+	public void testClosed() throws Exception {
+		Connection conn = pool.borrow();
+		pool.close();
+		try {
+			pool.borrow();
+			fail("SQLException expected");
+		}catch(SQLException e) {
+			// expected
+		}
+
+		pool.release(conn);
+		assertTrue(conn.isClosed());
+	}
+
+	public void testConcurrentJobs() throws Exception {
+		final Calendar timeStamp = Calendar.getInstance();
+		// 10s to wait for a connection, plenty to insert the files of the other jobs
+		pool.close();
+		pool = new ConnectionPool(URL, "sa", "", SIZE, 10000, ConnectionPool.DEFAULT_VALIDATION_QUERY);
+
+		Thread[] jobs = new Thread[JOBS];
+		for(int i = 0; i < JOBS; i++) {
+			final LightMirrorContent content = new LightMirrorContent("mirror" + i, "test", "none", "localhost", "/");
+			ListingCollector collector = new ListingCollector("/");
+			for(int f = 0; f < FILES; f++)
+				collector.visit("file-" + f, false, f, timeStamp.getTimeInMillis());
+			content.setFileList(collector.getFiles());
+			content.setTimeStamp(timeStamp);
+			content.setConnectionPool(pool);
+
+			jobs[i] = new Thread() {
+				public void run() {
+					try {
+						assertEquals(1, content.storeFileList());
+						assertTrue(pool.getActive() <= SIZE);
+					}catch(Throwable t) {
+						errors.add(t);
+					}
+				}
+			};
+		}
+
+		for(int i = 0; i < JOBS; i++)
+			jobs[i].start();
+		for(int i = 0; i < JOBS; i++)
+			jobs[i].join();
+
+		if(!errors.isEmpty()) {
+			Throwable t = errors.get(0);
+			t.printStackTrace();
+			fail(errors.size() + " job(s) failed, first: " + t);
+		}
+		assertEquals(JOBS * FILES, count("LocalState"));
+		assertEquals(JOBS, count("Availability"));
+		assertEquals(0, pool.getActive());
+		assertTrue(pool.getCreated() <= SIZE);
+		assertEquals(0, pool.getTimeouts());
+	}
+
+	private void execute(String sql) throws SQLException {
+		Statement stmt = admin.createStatement();
+		try {
+			stmt.execute(sql);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private int count(String table) throws SQLException {
+		Statement stmt = admin.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("select count(*) from " + table);
+			rs.next();
+			return rs.getInt(1);
+		}finally{
+			stmt.close();
+		}
+	}
+}
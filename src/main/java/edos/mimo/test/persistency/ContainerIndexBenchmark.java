@@ -0,0 +1,149 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import edos.mimo.Config;
+import edos.mimo.Date;
+import edos.mimo.dom.db.BDBXMLManager;
+import edos.mimo.dom.db.DocumentWriter;
+
+/**
+ * Compares the container scans used before the timestamp indexes with
+ * the indexed lookups, on a container of 10000 snapshots (one full 
+ * structure every 10 documents, deltas in between):
+ *  . latest full structure
+ *  . documents in chronological order
+ *  . number of documents
+ * 
+ * The "benchmark_ftp.dbxml" container of the database defined in the 
+ * config file is filled on the first run: run it on a test database.
+ * 
+ * Usage: ContainerIndexBenchmark [snapshots]
+ */
+public class ContainerIndexBenchmark {
+	private static final int DEFAULT_SNAPSHOTS = 10000;
+	private static final int FULL_EVERY = 10;
+	private static final int RUNS = 5;
+	private static final String MIRROR_ID = "benchmark_ftp";
+	private static final String CONTAINER = MIRROR_ID + ".dbxml";
+	private static final long START = 1141113730566L;
+	
+	// the queries as they were before the indexes
+	private static final String SCAN_LATEST_FULL = 
+		  "let $latestTimestamp := max(xs:dateTime(collection('" + CONTAINER + "')/mirror/@checkoutTime))\n"
+		+ "return collection('" + CONTAINER + "')/mirror[@checkoutTime = $latestTimestamp]";
+	private static final String SCAN_ALL = "collection('" + CONTAINER + "')";
+	private static final String SCAN_COUNT = "count(collection('" + CONTAINER + "'))";
+	
+	private BDBXMLManager db;
+	
+	public ContainerIndexBenchmark(BDBXMLManager db) {
+		this.db = db;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int snapshots = (args.length > 0)?Integer.parseInt(args[0]):DEFAULT_SNAPSHOTS;
+		
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+		Config.getInstance();
+		final BDBXMLManager db = BDBXMLManager.getInstance();
+		
+		try {
+			ContainerIndexBenchmark bench = new ContainerIndexBenchmark(db);
+			bench.fill(snapshots);
+			System.out.println(db.getDocumentCount(MIRROR_ID) + " documents, average of " + RUNS + " runs");
+			
+			Step[] steps = new Step[] {
+				new Step() { public void run() throws Exception { db.query(SCAN_LATEST_FULL); }},
+				new Step() { public void run() throws Exception { db.getLatestStructure(MIRROR_ID); }},
+				new Step() { public void run() throws Exception { db.query(SCAN_ALL); }},
+				new Step() { public void run() throws Exception { db.getDocumentsInChronologicalOrder(CONTAINER); }},
+				new Step() { public void run() throws Exception { db.query(SCAN_COUNT); }},
+				new Step() { public void run() throws Exception { db.getDocumentCount(MIRROR_ID); }}
+			};
+			long[] total = new long[steps.length];
+			for(int run = 0; run <= RUNS; run++)	// the first run warms up
+				for(int i = 0; i < steps.length; i++) {
+					long start = System.currentTimeMillis();
+					steps[i].run();
+					if(run > 0)
+						total[i] += System.currentTimeMillis() - start;
+				}
+			
+			report("latest full structure", total[0], total[1]);
+			report("chronological order  ", total[2], total[3]);
+			report("number of documents  ", total[4], total[5]);
+			
+		}finally{
+			db.close();
+		}
+	}
+	
+	private interface Step {
+		public void run() throws Exception;
+	}
+	
+	private static void report(String label, long scan, long index) {
+		System.out.println(label + ": scan " + (scan / RUNS) + " ms, index " + (index / RUNS) + " ms");
+	}
+	
+	/**
+	 * Writes the snapshots, unless the container has them already
+	 */
+	private void fill(int snapshots) throws Exception {
+		int existing = db.getDocumentCount(MIRROR_ID);
+		if(existing >= snapshots)
+			return;
+		
+		System.out.println("Writing " + (snapshots - existing) + " snapshots...");
+		DocumentWriter writer = db.getDocumentWriter();
+		for(int i = existing; i < snapshots; i++) {
+			long time = START + i * 60000L;
+			boolean full = (i % FULL_EVERY == 0);
+			String name = MIRROR_ID + "-" + time + (full?".xml":"-delta.xml");
+			// the last one waits for all the others
+			int durability = (i == snapshots - 1)?DocumentWriter.STRICT:DocumentWriter.RELAXED;
+			writer.write(CONTAINER, name, full?structure(time):delta(time), time, durability, false);
+		}
+	}
+	
+	private static String structure(long time) {
+		String iso = Date.formatISO8601(time);
+		StringBuffer sb = new StringBuffer();
+		sb.append("<mirror type=\"mirror\" name=\"benchmark\" host=\"benchmark\" protocol=\"ftp\" path=\"/pub\"")
+		  .append(" checkinTime=\"").append(Date.formatISO8601(time - 1000)).append("\"")
+		  .append(" checkoutTime=\"").append(iso).append("\">")
+		  .append("<dir name=\"cooker\" date=\"").append(iso).append("\" size=\"4096\">");
+		for(int i = 0; i < 10; i++)
+			sb.append("<file name=\"package-").append(i).append(".rpm\" date=\"").append(iso)
+			  .append("\" size=\"").append(1024 + i).append("\"/>");
+		sb.append("</dir></mirror>");
+		return sb.toString();
+	}
+	
+	private static String delta(long time) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<delta mirror=\"").append(MIRROR_ID).append("\" type=\"mirror\" name=\"benchmark\"")
+		  .append(" host=\"benchmark\" protocol=\"ftp\" path=\"/pub\"")
+		  .append(" timestamp=\"").append(Date.formatISO8601(time)).append("\" chained=\"true\">")
+		  .append("<update xpath=\"/mirror/dir[@name='cooker']/file[@name='package-0.rpm']\" size=\"")
+		  .append(time % 1000).append("\"/></delta>");
+		return sb.toString();
+	}
+}
@@ -60,6 +60,17 @@ public class DOMMirrorDeltaTest extends TestCase {
 		assertEquals(delta.countUpdatedFiles(), 3);
 	}
 
+	public void testDeltaCounters() throws Exception {
+		DOMMirrorDelta delta = new DOMMirrorDelta(referenceStruct, newStruct);
+
+		// counters are kept while building, they must match the records
+		assertEquals(delta.getNewFiles().size(), delta.countNewFiles());
+		assertEquals(delta.getDeletedFiles().size(), delta.countDeletedFiles());
+		assertEquals(delta.getUpdatedFiles().size(), delta.countUpdatedFiles());
+		assertEquals(delta.countNewFiles() + delta.countDeletedFiles()
+						+ delta.countUpdatedFiles(), delta.getSize());
+	}
+
 	public void testDeltaPatching() throws Exception {
 		DOMMirrorDelta delta = new DOMMirrorDelta(referenceStruct, newStruct);
 		delta.save(); // debug
@@ -0,0 +1,112 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.dom.db.DeltaChain;
+
+import junit.framework.TestCase;
+
+public class DeltaChainTest extends TestCase {
+	private static ITreeMirrorStructure referenceStruct;
+	private static ITreeMirrorStructure newStruct;
+	
+	// constants: test data
+	private static final String DEFAULT_REFERENCE_FILE 	= "test-data/testmachine_ftp-1141113730566.xml";
+	private static final String DEFAULT_NEW_FILE		= "test-data/testmachine_ftp-1141114200000.xml";
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		referenceStruct = load(DEFAULT_REFERENCE_FILE);
+		newStruct = load(DEFAULT_NEW_FILE);
+	}
+
+	public void testSelect() {
+		List<String> names = Arrays.asList(new String[] {
+				"test-machine_ftp-1000.xml",
+				"test-machine_ftp-2000-delta.xml",
+				"test-machine_ftp-3000.xml",
+				"test-machine_ftp-4000-delta.xml",
+				"test-machine_ftp-5000-delta.xml" });
+		
+		assertEquals(Arrays.asList(new String[] { 
+				"test-machine_ftp-3000.xml",
+				"test-machine_ftp-4000-delta.xml",
+				"test-machine_ftp-5000-delta.xml" }),
+				DeltaChain.select(names, Long.MAX_VALUE));
+		
+		assertEquals(Arrays.asList(new String[] { 
+				"test-machine_ftp-1000.xml",
+				"test-machine_ftp-2000-delta.xml" }),
+				DeltaChain.select(names, 2500));
+		
+		assertTrue(DeltaChain.select(names, 999).isEmpty());
+	}
+	
+	public void testTimeStamp() {
+		assertEquals(1141114200000L, DeltaChain.getTimeStamp("testmachine_ftp-1141114200000-delta.xml"));
+		assertEquals(1141113730566L, DeltaChain.getTimeStamp("test-machine_ftp-1141113730566.xml"));
+		assertEquals("testmachine_ftp", DeltaChain.getMirrorID("testmachine_ftp-1141114200000-delta.xml"));
+		assertEquals("test-machine_ftp", DeltaChain.getMirrorID("test-machine_ftp-1141113730566.xml"));
+	}
+	
+	public void testChainedDeltas() throws Exception {
+		// A -> B -> A
+		List<DOMMirrorDelta> deltas = new ArrayList<DOMMirrorDelta>();
+		deltas.add(stored(new DOMMirrorDelta(referenceStruct, newStruct), false));
+		deltas.add(stored(new DOMMirrorDelta(newStruct, referenceStruct), false));
+		assertTrue(deltas.get(0).isChained());
+		
+		ITreeMirrorStructure struct = load(DEFAULT_REFERENCE_FILE);
+		assertEquals(2, DeltaChain.rebuild(struct, deltas));
+		assertEquals(0, new DOMMirrorDelta(struct, referenceStruct).getSize());
+	}
+	
+	public void testLegacyDeltaResetsChain() throws Exception {
+		// a legacy delta refers to the full structure: the ones before are ignored
+		List<DOMMirrorDelta> deltas = new ArrayList<DOMMirrorDelta>();
+		deltas.add(stored(new DOMMirrorDelta(newStruct, referenceStruct), false));
+		deltas.add(stored(new DOMMirrorDelta(referenceStruct, newStruct), true));
+		assertFalse(deltas.get(1).isChained());
+		
+		ITreeMirrorStructure struct = load(DEFAULT_REFERENCE_FILE);
+		assertEquals(1, DeltaChain.rebuild(struct, deltas));
+		assertEquals(0, new DOMMirrorDelta(struct, newStruct).getSize());
+	}
+	
+	/**
+	 * The delta as read back from the database
+	 */
+	private DOMMirrorDelta stored(DOMMirrorDelta delta, boolean legacy) throws Exception {
+		String content = delta.toString();
+		if(legacy)
+			content = content.replaceAll(" chained=\"true\"", "");
+		return new DOMMirrorDelta(delta.getFilename(), content);
+	}
+	
+	private static ITreeMirrorStructure load(String file) throws Exception {
+		return new TreeMirrorStructure(new FileInputStream(new File(file)));
+	}
+}
@@ -0,0 +1,113 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import edos.mimo.Config;
+import edos.mimo.dom.db.BDBXMLManager;
+import edos.mimo.dom.db.DocumentWriter;
+
+/**
+ * Measures how many small documents per second can be written to the
+ * database by several job threads:
+ *  . one transaction per document, written by each thread (queue of 0)
+ *  . group commit, the threads waiting for their documents (STRICT)
+ *  . group commit, the threads not waiting (RELAXED)
+ * 
+ * The documents are written to a "benchmark.dbxml" container of the 
+ * database defined in the config file: run it on a test database.
+ * 
+ * Usage: DocumentWriterBenchmark [documents] [threads]
+ */
+public class DocumentWriterBenchmark {
+	private static final int DEFAULT_DOCUMENTS = 5000;
+	private static final int DEFAULT_THREADS = 8;
+	private static final int QUEUE = 1000;
+	private static final long FLUSH = 50;
+	private static final String CONTAINER = "benchmark.dbxml";
+	
+	private BDBXMLManager db;
+	private int documents;
+	private int threads;
+	
+	public DocumentWriterBenchmark(BDBXMLManager db, int documents, int threads) {
+		this.db = db;
+		this.documents = documents;
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int documents = (args.length > 0)?Integer.parseInt(args[0]):DEFAULT_DOCUMENTS;
+		int threads = (args.length > 1)?Integer.parseInt(args[1]):DEFAULT_THREADS;
+		
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+		Config.getInstance();
+		BDBXMLManager db = BDBXMLManager.getInstance();
+		
+		try {
+			DocumentWriterBenchmark bench = new DocumentWriterBenchmark(db, documents, threads);
+			System.out.println(documents + " documents written by " + threads + " threads");
+			bench.run("one transaction per document", 0, DocumentWriter.STRICT);
+			bench.run("group commit, strict         ", QUEUE, DocumentWriter.STRICT);
+			bench.run("group commit, relaxed        ", QUEUE, DocumentWriter.RELAXED);
+			
+		}finally{
+			db.close();
+		}
+	}
+	
+	private void run(String label, int queueSize, final int durability) throws Exception {
+		final DocumentWriter writer = new DocumentWriter(db, queueSize, FLUSH);
+		final String prefix = "bench-" + System.currentTimeMillis() + "-";
+		final int perThread = documents / threads;
+		
+		long start = System.currentTimeMillis();
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			final int first = t * perThread;
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						for(int i = first; i < first + perThread; i++)
+							writer.write(CONTAINER, prefix + i + ".xml", document(i), durability, false);
+					}catch(Exception e) {
+						System.err.println(e.getMessage());
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for(int t = 0; t < threads; t++)
+			workers[t].join();
+		writer.close();		// relaxed documents are on disk once closed
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		
+		System.out.println(label + ": " + (perThread * threads * 1000L / elapsed) + " documents/s, "
+							+ writer.getTransactionCount() + " transactions, " + elapsed + " ms");
+	}
+	
+	/**
+	 * About the size of a statistics document
+	 */
+	private static String document(int i) {
+		StringBuffer sb = new StringBuffer("<stat job=\"bench\" id=\"").append(i).append("\">");
+		sb.append("<start>1141113730566</start><end>1141113790566</end>");
+		sb.append("<status>OK</status></stat>");
+		return sb.toString();
+	}
+}
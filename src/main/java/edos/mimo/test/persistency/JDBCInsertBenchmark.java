@@ -0,0 +1,189 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Calendar;
+import java.util.Formatter;
+import java.util.Iterator;
+import java.util.List;
+
+import edos.mimo.LightMirrorContent;
+import edos.mimo.connection.ListingCollector;
+import edos.mimo.filesystem.IFile;
+
+/**
+ * Compares the ways of storing a file list in the LocalState table
+ * (table storage), on a synthetic list:
+ *  . one statement per file, each committed on its own (the former
+ *    LightMirrorContent.storeFileList())
+ *  . prepared statements of 1 row, sent in batches, in one transaction
+ *  . prepared statements of several rows, sent in batches, in one transaction
+ *
+ * The database is given by its JDBC URL, its driver must be in the classpath
+ * (by default an in-memory H2 database). The tables are created if missing
+ * and emptied before each run.
+ *
+ * Usage: JDBCInsertBenchmark [files] [url [driver [user [password]]]]
+ */
+public class JDBCInsertBenchmark {
+	private static final int DEFAULT_FILES = 200000;
+	private static final String DEFAULT_URL = "jdbc:h2:mem:mimo";
+	private static final String DEFAULT_DRIVER = "org.h2.Driver";
+	private static final int RUNS = 3;
+	private static final String MIRROR_ID = "benchmark";
+
+	private Connection conn;
+	private List<IFile> files;
+	private Calendar timeStamp = Calendar.getInstance();
+
+	public JDBCInsertBenchmark(Connection conn, int entries) {
+		this.conn = conn;
+
+		ListingCollector collector = new ListingCollector("/pub/distrib/");
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < entries; i++)
+			collector.visit("package-" + i + "-1mdk.i586.rpm", false, 1000 + i, now - i * 1000L);
+		files = collector.getFiles();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int entries = (args.length > 0)?Integer.parseInt(args[0]):DEFAULT_FILES;
+		String url = (args.length > 1)?args[1]:DEFAULT_URL;
+		String driver = (args.length > 2)?args[2]:DEFAULT_DRIVER;
+		String user = (args.length > 3)?args[3]:"sa";
+		String passwd = (args.length > 4)?args[4]:"";
+
+		Class.forName(driver);
+		Connection conn = DriverManager.getConnection(url, user, passwd);
+		try {
+			JDBCInsertBenchmark bench = new JDBCInsertBenchmark(conn, entries);
+			bench.createTables();
+
+			System.out.println(entries + " files into " + conn.getMetaData().getDatabaseProductName()
+								+ ", best of " + RUNS + " runs");
+			long perRow = Long.MAX_VALUE;
+			long batched = Long.MAX_VALUE;
+			long multiRow = Long.MAX_VALUE;
+			for(int run = 0; run < RUNS; run++) {
+				perRow = Math.min(perRow, bench.storePerRow());
+				batched = Math.min(batched, bench.storeBatched(1));
+				multiRow = Math.min(multiRow, bench.storeBatched(50));
+			}
+			System.out.println("  statement per file:      " + rate(entries, perRow));
+			System.out.println("  batches of 1 row:        " + rate(entries, batched));
+			System.out.println("  batches of 50 rows:      " + rate(entries, multiRow));
+
+		}finally{
+			conn.close();
+		}
+	}
+
+	/**
+	 * @return the time in ms to store the files with the former statements
+	 */
+	private long storePerRow() throws SQLException {
+		clearTables();
+		Formatter formatter = new Formatter();
+		String dateStamp = formatter.format("%tF", timeStamp.getTime()).toString();
+		formatter = new Formatter();
+		String timeStampString = formatter.format("%tT", timeStamp.getTime()).toString();
+
+		long start = System.currentTimeMillis();
+		Statement stmt = conn.createStatement();
+		try {
+			Iterator<IFile> it = files.iterator();
+			while(it.hasNext()) {
+				IFile file = it.next();
+				// single quotes: "..." are identifiers out of MySQL
+				StringBuffer sql = new StringBuffer("insert into LocalState values ('");
+				sql.append(MIRROR_ID).append("', '").append(dateStamp).append("', '")
+					.append(timeStampString).append("', '").append(file.getName()).append("', '")
+					.append(file.getSize()).append("', '").append(file.getDate().getTimeInMillis()).append("')");
+				stmt.execute(sql.toString());
+			}
+		}finally{
+			stmt.close();
+		}
+		long time = System.currentTimeMillis() - start;
+		check();
+		return time;
+	}
+
+	/**
+	 * @return the time in ms to store the files through LightMirrorContent
+	 */
+	private long storeBatched(int rows) throws SQLException {
+		clearTables();
+		// no connection to a mirror with an unknown protocol
+		LightMirrorContent content = new LightMirrorContent(MIRROR_ID, "benchmark", "none", "localhost", "/");
+		content.setJdbcConnection(conn);
+		content.setTimeStamp(timeStamp);
+		content.setBatch(1000, rows);
+		content.setFileList(files);
+
+		long start = System.currentTimeMillis();
+		if(content.storeFileList() != 1)
+			throw new SQLException("The file list was not stored");
+		long time = System.currentTimeMillis() - start;
+		check();
+		return time;
+	}
+
+	private void createTables() throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("create table if not exists LocalState (Mirror_ID varchar(64), "
+						+ "StampDate date, StampTime time, Name varchar(255), Size bigint, FileDate bigint)");
+			stmt.execute("create table if not exists Availability (Mirror_ID varchar(64), "
+						+ "StampDate date, StampTime time, IsUp integer, FileCount integer, "
+						+ "TotalSize bigint, No_Missing_Packages integer)");
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private void clearTables() throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("delete from LocalState");
+			stmt.execute("delete from Availability");
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private void check() throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("select count(*) from LocalState");
+			rs.next();
+			if(rs.getInt(1) != files.size())
+				throw new SQLException(rs.getInt(1) + " rows stored instead of " + files.size());
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static String rate(int entries, long ms) {
+		return ms + " ms (" + (entries * 1000L / Math.max(1, ms)) + " files/s)";
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+
+import edos.mimo.Config;
+import edos.mimo.IMasterMirror;
+import edos.mimo.ISecondaryMirror;
+import edos.mimo.dom.DOMMirrorDiff;
+import edos.mimo.dom.MergeDiffGenerator;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.filesystem.DiffGeneratorFactory;
+import edos.mimo.filesystem.IDiffGenerator;
+import edos.mimo.filesystem.IMirrorDiff;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the merge-join diff engine gives the same result
+ * as the XPATH-based one (DOMDiffGenerator).
+ */
+public class MergeDiffGeneratorTest extends TestCase {
+
+	private IMasterMirror master = null;
+	private ISecondaryMirror mirror = null;
+	private static String masterFile = "test-data/testmachine_ssh-1141114107946.xml";
+	private static String mirrorFile = "test-data/testmachine_ftp-1141113730566.xml";
+	private static String testData = "test-data";
+
+	public MergeDiffGeneratorTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		FileInputStream fin1 = new FileInputStream(new File(masterFile));
+		master = (IMasterMirror)new TreeMirrorStructure(fin1).getMirror();
+
+		FileInputStream fin2 = new FileInputStream(new File(mirrorFile));
+		mirror = (ISecondaryMirror)new TreeMirrorStructure(fin2).getMirror();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void testFactory() throws ParseException {
+		IDiffGenerator gen = DiffGeneratorFactory.getDiffGenerator(Config.TREE, Config.MERGE_DIFF, master, mirror);
+		assertTrue(gen instanceof MergeDiffGenerator);
+	}
+
+	public void testDiffGeneration() throws ParseException {
+		IMirrorDiff diff = DiffGeneratorFactory.getDiffGenerator(Config.TREE, Config.MERGE_DIFF,
+															master, mirror).getDiff();
+
+		assertNotNull(diff);
+		assertEquals(1, diff.countMissingFiles());
+		assertEquals(1, diff.newerFiles());
+		assertEquals(1, diff.olderFiles());
+		assertEquals(2, diff.corruptedFiles());
+		assertEquals(1, diff.superfluousFiles());
+		assertEquals(0, diff.wrongTypeFiles());
+	}
+
+	public void testSameAsXPathEngine() throws ParseException {
+		assertSameDiff(master, mirror, masterFile + " / " + mirrorFile);
+	}
+
+	/**
+	 * Same check on every pair of structures of the test data,
+	 * each one taken as the master and as the mirror.
+	 */
+	public void testSameAsXPathEngineOnAllPairs() throws Exception {
+		String[] files = new File(testData).list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("testmachine_") && name.endsWith(".xml")
+						&& !name.endsWith("-delta.xml") && !name.endsWith("-diff.xml");
+			}
+		});
+		Arrays.sort(files);
+		assertTrue(files.length >= 4);
+
+		for(int i = 0; i < files.length; i++)
+			for(int j = 0; j < files.length; j++) {
+				IMasterMirror m = (IMasterMirror)load(files[i], "master");
+				ISecondaryMirror s = (ISecondaryMirror)load(files[j], "mirror");
+				assertSameDiff(m, s, files[i] + " / " + files[j]);
+			}
+	}
+
+	/**
+	 * Both engines must add the same diff entries, in the same order.
+	 */
+	private void assertSameDiff(IMasterMirror master, ISecondaryMirror mirror, String pair) 
+														throws ParseException {
+		DOMMirrorDiff expected = (DOMMirrorDiff)DiffGeneratorFactory.getDiffGenerator(
+									Config.TREE, Config.XPATH_DIFF, master, mirror).getDiff();
+		DOMMirrorDiff actual = (DOMMirrorDiff)DiffGeneratorFactory.getDiffGenerator(
+									Config.TREE, Config.MERGE_DIFF, master, mirror).getDiff();
+
+		List expectedEntries = expected.getDom4jDocument().getRootElement().elements();
+		List actualEntries = actual.getDom4jDocument().getRootElement().elements();
+
+		assertEquals(pair, expectedEntries.size(), actualEntries.size());
+		for(int i = 0; i < expectedEntries.size(); i++)
+			assertEquals(pair, ((Element)expectedEntries.get(i)).asXML(),
+						((Element)actualEntries.get(i)).asXML());
+	}
+
+	/**
+	 * Reads a structure of the test data as a master or as a mirror
+	 */
+	private Object load(String file, String type) throws Exception {
+		Document doc = new SAXReader().read(new File(testData, file));
+		doc.getRootElement().addAttribute("type", type);
+		return new TreeMirrorStructure(new ByteArrayInputStream(doc.asXML().getBytes("UTF-8"))).getMirror();
+	}
+
+}
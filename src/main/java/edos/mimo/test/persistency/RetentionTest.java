@@ -0,0 +1,240 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.xml.DOMConfigurator;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+import edos.mimo.Config;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dal.retention.RetentionEngine;
+import edos.mimo.dal.retention.RetentionPolicy;
+import edos.mimo.dal.retention.RetentionReport;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.dom.db.DeltaChain;
+import edos.mimo.statistics.WorkflowStatistics;
+
+import junit.framework.TestCase;
+
+/**
+ * The retention tiers, and the history of a mirror thinned out in the 
+ * segment store: the kept states are still rebuilt.
+ */
+public class RetentionTest extends TestCase {
+	private static final String MIRROR_ID		= "testmachine_ftp";
+	private static final String REFERENCE_FILE	= "test-data/testmachine_ftp-1141113730566.xml";
+	private static final long DAY				= RetentionPolicy.DAY;
+	private static final long NOW				= 1000 * DAY + DAY / 2;
+	
+	// the history: full structures, then deltas, in days
+	private static final double[] DAYS			= { 979.6, 979.9, 980.2, 980.5, 981.1, 999.0, 1000.0 };
+	private static final boolean[] FULL			= { true, true, false, false, false, false, false };
+	
+	private File home;
+	private IStorage storage;
+	private String reference;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+		Config.getInstance();
+		
+		home = new File(System.getProperty("java.io.tmpdir"), "retention-test");
+		delete(home);
+		Config.setSegmentStoreHome(home.getPath());
+		storage = StorageFactory.getStorage(Config.SEGMENT_BACKEND);
+		reference = read(REFERENCE_FILE);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if(storage != null)
+			storage.close();
+		delete(home);
+	}
+	
+	public void testPolicy() {
+		RetentionPolicy policy = new RetentionPolicy();
+		assertTrue(policy.isEmpty());
+		policy.addTier(90 * DAY, 7 * DAY);
+		policy.addTier(7 * DAY, DAY);
+		policy.addTier(365 * DAY, 0);
+		
+		long now = 1000 * DAY;
+		long[] times = { 
+				now - 400 * DAY,					// dropped (last tier keeps nothing)
+				now - 100 * DAY, now - 99 * DAY,	// same week
+				now - 20 * DAY, now - 20 * DAY + 1,	// same day
+				now - 19 * DAY,
+				now - 2 * DAY, now - 2 * DAY + 1 };	// younger than the tiers
+		boolean[] expected = { false, true, false, true, false, true, true, true };
+		
+		boolean[] keep = policy.select(times, now);
+		for(int i = 0; i < times.length; i++)
+			assertEquals("point " + i, expected[i], keep[i]);
+		
+		// the latest point is the current state
+		assertTrue(policy.select(new long[] { now - 400 * DAY }, now)[0]);
+		
+		try {
+			policy.addTier(7 * DAY, 2 * DAY);
+			fail("IllegalArgumentException expected");
+		}catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testDryRun() throws Exception {
+		store();
+		
+		RetentionReport report = engine().run(NOW, true, true);
+		assertEquals(2, report.getDeleted());
+		assertEquals(2, report.getRewritten());
+		assertEquals(2, report.getStatisticsDeleted());
+		
+		// nothing changed
+		assertEquals(DAYS.length, storage.getDocumentCount(MIRROR_ID));
+		assertEquals(DAYS.length, storage.getStatistics(Long.MIN_VALUE, Long.MAX_VALUE).size());
+	}
+	
+	public void testRetention() throws Exception {
+		store();
+		
+		RetentionReport report = engine().run(NOW, false, true);
+		assertEquals(5, report.getKept());
+		assertEquals(2, report.getDeleted());
+		assertEquals(2, report.getRewritten());
+		
+		// the delta whose full structure is gone became a full structure,
+		// the one after a deleted delta is not chained anymore
+		List<String> names = storage.getDocuments(MIRROR_ID, Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(5, names.size());
+		assertEquals(MIRROR_ID + "-" + time(2) + ".xml", names.get(1));
+		assertTrue(DeltaChain.isDelta(names.get(2)));
+		assertFalse(new DOMMirrorDelta(names.get(2), storage.getDocument(names.get(2))).isChained());
+		
+		// the kept states are the same
+		int[] kept = { 0, 2, 4, 5, 6 };
+		for(int i = 0; i < kept.length; i++) {
+			ITreeMirrorStructure state = storage.getStructureAt(MIRROR_ID, time(kept[i]));
+			assertEquals("state " + kept[i], 0, new DOMMirrorDelta(state, version(kept[i])).getSize());
+		}
+		assertEquals(0, new DOMMirrorDelta(storage.getLatestState(MIRROR_ID), version(6)).getSize());
+		
+		List<String> statistics = storage.getStatistics(Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(5, statistics.size());
+		assertEquals(MIRROR_ID + "-" + time(0) + ".xml", statistics.get(0));
+		
+		// a second run has nothing left to do
+		report = engine().run(NOW, false, true);
+		assertEquals(0, report.getDeleted());
+		assertEquals(0, report.getRewritten());
+	}
+	
+	public void testHistoricalStateNotCached() throws Exception {
+		store();
+		assertEquals(0, new DOMMirrorDelta(storage.getLatestState(MIRROR_ID), version(6)).getSize());
+		
+		// a past state rewritten in full is not the latest one
+		storage.saveHistorical(version(2));
+		assertEquals(0, new DOMMirrorDelta(storage.getLatestState(MIRROR_ID), version(6)).getSize());
+	}
+	
+	private RetentionEngine engine() {
+		RetentionPolicy policy = new RetentionPolicy();
+		policy.addTier(7 * DAY, DAY);
+		return new RetentionEngine(storage, policy);
+	}
+	
+	/**
+	 * Stores the history of the mirror, and its statistics
+	 */
+	private void store() throws Exception {
+		ITreeMirrorStructure previous = null;
+		for(int i = 0; i < DAYS.length; i++) {
+			ITreeMirrorStructure struct = version(i);
+			if(FULL[i])
+				storage.save(struct);
+			else
+				storage.save(new DOMMirrorDelta(previous, struct));
+			storage.save(new WorkflowStatistics(MIRROR_ID, time(i)));
+			previous = struct;
+		}
+		assertEquals(DAYS.length, storage.getDocumentCount(MIRROR_ID));
+	}
+	
+	private static long time(int i) {
+		return (long)(DAYS[i] * DAY);
+	}
+	
+	/**
+	 * The reference structure without its first i files, timed as the 
+	 * i-th point of the history
+	 */
+	private ITreeMirrorStructure version(int i) throws Exception {
+		Document doc = DocumentHelper.parseText(reference);
+		doc.getRootElement().addAttribute("checkoutTime", Long.toString(time(i)));
+		
+		List<Element> files = new ArrayList<Element>();
+		files(doc.getRootElement(), files);
+		for(int f = 0; f < i; f++)
+			files.get(f).detach();
+		return new TreeMirrorStructure(doc.asXML());
+	}
+	
+	private static void files(Element dir, List<Element> files) {
+		Iterator it = dir.elementIterator();
+		while(it.hasNext()) {
+			Element e = (Element)it.next();
+			if(e.getName().equals("file"))
+				files.add(e);
+			else
+				files(e, files);
+		}
+	}
+	
+	private static String read(String file) throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] b = new byte[(int)new File(file).length()];
+			int n = 0;
+			while(n < b.length)
+				n += in.read(b, n, b.length - n);
+			return new String(b, "UTF-8");
+		}finally{
+			in.close();
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		for(int i = 0; files != null && i < files.length; i++)
+			delete(files[i]);
+		file.delete();
+	}
+}
@@ -0,0 +1,262 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import edos.mimo.Config;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dal.segment.SegmentLog;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.DOMMirrorDiff;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.exception.StorageException;
+
+import junit.framework.TestCase;
+
+/**
+ * The segment store through the storage interface, and its log:
+ * reopening, compaction, recovery of an interrupted write.
+ */
+public class SegmentStorageTest extends TestCase {
+	private static final String MIRROR_ID		= "testmachine_ftp";
+	private static final String REFERENCE_FILE	= "test-data/testmachine_ftp-1141113730566.xml";
+	private static final String NEW_FILE		= "test-data/testmachine_ftp-1141114200000.xml";
+	private static final String DIFF_FILE		= "test-data/testmachine_ftp-1141113730566-diff.xml";
+	private static final long REFERENCE_TIME	= 1141113730566L;
+	private static final long NEW_TIME			= 1141114200000L;
+	
+	private File home;
+	private IStorage storage;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+		Config.getInstance();
+		
+		home = new File(System.getProperty("java.io.tmpdir"), "segment-store-test");
+		delete(home);
+		Config.setSegmentStoreHome(home.getPath());
+		storage = StorageFactory.getStorage(Config.SEGMENT_BACKEND);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if(storage != null)
+			storage.close();
+		delete(home);
+	}
+	
+	public void testAddStructureRemoveDocument() throws Exception {
+		ITreeMirrorStructure struct = load(REFERENCE_FILE);
+		String docName = struct.getDocumentID() + ".xml";
+		storage.save(struct);
+		
+		assertTrue(storage.getDocuments(MIRROR_ID, 0, Long.MAX_VALUE).contains(docName));
+		assertEquals(Arrays.asList(new String[] { MIRROR_ID }), storage.getMirrorIDs());
+		assertEquals(struct.getDocumentID(), storage.getLatestStructure(MIRROR_ID).getDocumentID());
+		
+		storage.deleteDocument(docName);
+		assertEquals(0, storage.getDocumentCount(MIRROR_ID));
+		assertNull(storage.getLatestStructure(MIRROR_ID));
+		try {
+			storage.getDocument(docName);
+			fail("StorageException expected");
+		}catch(StorageException e) {
+			// expected
+		}
+	}
+	
+	public void testStates() throws Exception {
+		ITreeMirrorStructure reference = load(REFERENCE_FILE);
+		ITreeMirrorStructure newStruct = loadNew();
+		DOMMirrorDelta delta = new DOMMirrorDelta(reference, newStruct);
+		storage.save(reference);
+		storage.save(delta);
+		
+		assertEquals(2, storage.getDocumentCount(MIRROR_ID));
+		List<String> names = storage.getDocuments(MIRROR_ID, REFERENCE_TIME + 1, Long.MAX_VALUE);
+		assertEquals(Arrays.asList(new String[] { delta.getDocumentID() + ".xml" }), names);
+		
+		// the state after the delta, and the one before
+		ITreeMirrorStructure latest = storage.getLatestState(MIRROR_ID);
+		assertEquals(0, new DOMMirrorDelta(latest, newStruct).getSize());
+		ITreeMirrorStructure before = storage.getStructureAt(MIRROR_ID, NEW_TIME - 1);
+		assertEquals(0, new DOMMirrorDelta(before, load(REFERENCE_FILE)).getSize());
+		assertNull(storage.getStructureAt(MIRROR_ID, REFERENCE_TIME - 1));
+	}
+	
+	public void testMasterState() throws Exception {
+		ITreeMirrorStructure reference = new TreeMirrorStructure(read(REFERENCE_FILE)
+				.replaceFirst("type=\"mirror\"", "type=\"master\""));
+		ITreeMirrorStructure newStruct = new TreeMirrorStructure(read(NEW_FILE)
+				.replaceFirst("checkoutTime=\"\\d+\"", "checkoutTime=\"" + NEW_TIME + "\""));
+		assertEquals(Config.MASTER, reference.getMirrorID());
+		storage.save(reference);
+		assertEquals(0, new DOMMirrorDelta(storage.getLatestMasterStructure(), reference).getSize());
+		
+		// the master changed through a delta: its cached structure is dropped
+		storage.save(new DOMMirrorDelta(reference, newStruct));
+		assertEquals(0, new DOMMirrorDelta(storage.getLatestMasterStructure(), newStruct).getSize());
+	}
+	
+	public void testDiff() throws Exception {
+		String content = read(DIFF_FILE).replaceFirst("<diff ", "<diff mirror=\"" + MIRROR_ID + "\" ");
+		storage.save(new DOMMirrorDiff(content));
+		storage.save(new DOMMirrorDiff(content.replaceFirst("<missing ", "<missing-not ")));
+		
+		// only the latest one is kept
+		DOMMirrorDiff diff = (DOMMirrorDiff)storage.getLatestDiffForMirror(MIRROR_ID);
+		assertEquals(MIRROR_ID, diff.getMirrorID());
+		assertTrue(diff.toString().indexOf("<missing-not ") > 0);
+		assertEquals(0, storage.getDocumentCount(MIRROR_ID));	// not a structure
+	}
+	
+	public void testReopen() throws Exception {
+		ITreeMirrorStructure reference = load(REFERENCE_FILE);
+		storage.save(reference);
+		storage.save(new DOMMirrorDelta(reference, loadNew()));
+		storage.close();
+		
+		storage = StorageFactory.getStorage(Config.SEGMENT_BACKEND);
+		assertEquals(2, storage.getDocumentCount(MIRROR_ID));
+		assertEquals(reference.getDocumentID(), storage.getLatestStructure(MIRROR_ID).getDocumentID());
+		assertEquals(0, new DOMMirrorDelta(storage.getLatestState(MIRROR_ID), loadNew()).getSize());
+	}
+	
+	public void testCompaction() throws Exception {
+		storage.close();
+		storage = null;
+		
+		SegmentLog log = new SegmentLog(home, 4096);
+		for(int version = 0; version < 20; version++)
+			for(int i = 0; i < 10; i++)
+				log.put("doc-" + i, "m" + (i % 2), (byte)1, i, value(i, version, 200), false);
+		log.delete("doc-9", false);
+		int segments = log.getSegmentCount();
+		assertTrue(segments > 10);
+		assertTrue(log.getGarbageRatio() > 0.8);
+		
+		assertTrue(log.compact() > 0);
+		assertTrue(log.getSegmentCount() < segments / 4);
+		assertEquals(0.0, log.getGarbageRatio(), 0.01);
+		check(log);
+		
+		// still written and compacted
+		log.put("doc-0", "m0", (byte)1, 0, value(0, 20, 200), true);
+		log.put("doc-0", "m0", (byte)1, 0, value(0, 19, 200), true);
+		log.compact();
+		log.close();
+		
+		log = new SegmentLog(home, 4096);
+		check(log);
+		assertEquals(5, log.list("m0", 0, Long.MAX_VALUE).size());
+		assertEquals(Arrays.asList(new String[] { "doc-1", "doc-3" }), keys(log.list("m1", 0, 4)));
+		log.close();
+	}
+	
+	public void testInterruptedWrite() throws Exception {
+		storage.close();
+		storage = null;
+		
+		SegmentLog log = new SegmentLog(home, 1024 * 1024);
+		log.put("doc-0", "m0", (byte)1, 0, value(0, 0, 100), true);
+		log.put("doc-1", "m0", (byte)1, 1, value(1, 0, 100), true);
+		long size = log.getSize();
+		log.close();
+		
+		// half a record
+		File[] files = home.listFiles();
+		FileOutputStream out = new FileOutputStream(files[0], true);
+		out.write(new byte[] { 0x4D, 0x49, 0x4D, 0x4F, 1, 2, 3 });
+		out.close();
+		
+		log = new SegmentLog(home, 1024 * 1024);
+		assertEquals(2, log.getDocumentCount());
+		assertEquals(size, log.getSize());
+		assertEquals(size, files[0].length());
+		assertTrue(Arrays.equals(value(1, 0, 100), log.get("doc-1")));
+		log.close();
+	}
+	
+	/**
+	 * The 20th version of doc-0 to doc-8
+	 */
+	private void check(SegmentLog log) throws Exception {
+		assertEquals(9, log.getDocumentCount());
+		for(int i = 0; i < 9; i++)
+			assertTrue("doc-" + i, Arrays.equals(value(i, 19, 200), log.get("doc-" + i)));
+		assertNull(log.get("doc-9"));
+	}
+	
+	private static byte[] value(int doc, int version, int length) {
+		byte[] value = new byte[length];
+		for(int i = 0; i < length; i++)
+			value[i] = (byte)(doc * 31 + version * 7 + i);
+		return value;
+	}
+	
+	private static List<String> keys(List<SegmentLog.Entry> entries) {
+		String[] keys = new String[entries.size()];
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = entries.get(i).getKey();
+		return Arrays.asList(keys);
+	}
+	
+	private static ITreeMirrorStructure load(String file) throws Exception {
+		return new TreeMirrorStructure(new FileInputStream(new File(file)));
+	}
+	
+	/**
+	 * The sample of the second crawl of the mirror (the test-data file is 
+	 * typed as a master, with a checkout time out of range)
+	 */
+	private static ITreeMirrorStructure loadNew() throws Exception {
+		String content = read(NEW_FILE)
+			.replaceFirst("type=\"master\"", "type=\"mirror\"")
+			.replaceFirst("checkoutTime=\"\\d+\"", "checkoutTime=\"" + NEW_TIME + "\"");
+		return new TreeMirrorStructure(content);
+	}
+	
+	private static String read(String file) throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] b = new byte[(int)new File(file).length()];
+			int n = 0;
+			while(n < b.length)
+				n += in.read(b, n, b.length - n);
+			return new String(b, "UTF-8");
+		}finally{
+			in.close();
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		for(int i = 0; files != null && i < files.length; i++)
+			delete(files[i]);
+		file.delete();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.StringReader;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.io.SAXReader;
+
+import edos.mimo.dom.NamePoolDocumentFactory;
+import edos.mimo.dom.SnapshotCodec;
+
+/**
+ * Compares the snapshots of the structures and deltas to their XML,
+ * on the test-data samples (or on the given files):
+ *  . size of the XML, of the snapshot, and of the packed document
+ *    stored in the database (snapshot in base64)
+ *  . encoding time: asXML() against SnapshotCodec.encode()
+ *  . decoding time: SAXReader against SnapshotCodec.decode()
+ *
+ * Usage: SnapshotCodecBenchmark [files]
+ */
+public class SnapshotCodecBenchmark {
+	private static final String[] DEFAULT_FILES = {
+		"test-data/testmachine_ftp-1141113730566.xml",
+		"test-data/testmachine_ssh-1141114107946.xml",
+		"test-data/testmachine_ftp-1141113730566-delta.xml",
+		"test-data/delta/master-1162071375775-delta.xml"
+	};
+	private static final int RUNS = 5;
+	private static final int ITERATIONS = 200;
+
+	private static long checksum = 0;	// keeps the work from being optimized away
+
+	public static void main(String[] args) throws DocumentException {
+		String[] files = (args.length > 0)?args:DEFAULT_FILES;
+
+		System.out.println("Times per document, best of " + RUNS + " runs of " + ITERATIONS);
+		for(int i = 0; i < files.length; i++) {
+			Document doc = new SAXReader().read(new File(files[i]));
+			String xml = doc.asXML();
+			byte[] snapshot = SnapshotCodec.encode(doc);
+			String packed = SnapshotCodec.pack(doc);
+
+			long[] xmlTimes = { Long.MAX_VALUE, Long.MAX_VALUE };
+			long[] snapshotTimes = { Long.MAX_VALUE, Long.MAX_VALUE };
+			for(int run = 0; run < RUNS; run++) {
+				best(xmlTimes, measureXML(doc, xml));
+				best(snapshotTimes, measureSnapshot(doc, snapshot));
+			}
+
+			System.out.println(files[i]);
+			System.out.println("  size: xml " + xml.length() + " bytes, snapshot " + snapshot.length
+								+ " bytes (" + ratio(xml.length(), snapshot.length) + "), packed "
+								+ packed.length() + " bytes (" + ratio(xml.length(), packed.length()) + ")");
+			System.out.println("  encode: xml " + micros(xmlTimes[0]) + ", snapshot " + micros(snapshotTimes[0]));
+			System.out.println("  decode: xml " + micros(xmlTimes[1]) + ", snapshot " + micros(snapshotTimes[1]));
+		}
+		System.out.println("(checksum " + checksum + ")");
+	}
+
+	/**
+	 * @return { encoding ns, decoding ns } per document
+	 */
+	private static long[] measureXML(Document doc, String xml) throws DocumentException {
+		long start = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++)
+			checksum += doc.asXML().length();
+		long encoding = (System.nanoTime() - start) / ITERATIONS;
+
+		start = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++) {
+			SAXReader reader = new SAXReader(NamePoolDocumentFactory.getInstance());
+			checksum += reader.read(new StringReader(xml)).getRootElement().nodeCount();
+		}
+		long decoding = (System.nanoTime() - start) / ITERATIONS;
+
+		return new long[] { encoding, decoding };
+	}
+
+	/**
+	 * @return { encoding ns, decoding ns } per document
+	 */
+	private static long[] measureSnapshot(Document doc, byte[] snapshot) throws DocumentException {
+		long start = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++)
+			checksum += SnapshotCodec.encode(doc).length;
+		long encoding = (System.nanoTime() - start) / ITERATIONS;
+
+		start = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++)
+			checksum += SnapshotCodec.decode(snapshot).getRootElement().nodeCount();
+		long decoding = (System.nanoTime() - start) / ITERATIONS;
+
+		return new long[] { encoding, decoding };
+	}
+
+	private static void best(long[] best, long[] times) {
+		for(int i = 0; i < best.length; i++)
+			best[i] = Math.min(best[i], times[i]);
+	}
+
+	private static String ratio(long xml, long size) {
+		return ((xml * 10 / size) / 10.0) + "x smaller";
+	}
+
+	private static String micros(long nanos) {
+		return (nanos / 1000) + " us";
+	}
+}
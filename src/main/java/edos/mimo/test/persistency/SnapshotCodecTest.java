@@ -0,0 +1,170 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+
+import edos.mimo.dom.CompactTreeMirrorStructure;
+import edos.mimo.dom.DOMMirrorDelta;
+import edos.mimo.dom.SnapshotCodec;
+import edos.mimo.dom.TreeMirrorStructure;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the binary snapshots give back the documents they were made of,
+ * and that the structures and deltas load from them (see SnapshotCodecBenchmark
+ * for the sizes and times).
+ */
+public class SnapshotCodecTest extends TestCase {
+
+	private static final String STRUCTURE_FILE 	= "test-data/testmachine_ftp-1141113730566.xml";
+	private static final String DELTA_FILE 		= "test-data/testmachine_ftp-1141113730566-delta.xml";
+	private static final String ISO_DELTA_FILE 	= "test-data/delta/master-1162071375775-delta.xml";
+
+	public void testRoundTrip() throws Exception {
+		String[] files = { STRUCTURE_FILE, DELTA_FILE, ISO_DELTA_FILE };
+		for(int i = 0; i < files.length; i++) {
+			Document doc = read(files[i]);
+			Document decoded = SnapshotCodec.decode(SnapshotCodec.encode(doc));
+			assertEquals(files[i], content(doc.getRootElement()), content(decoded.getRootElement()));
+		}
+	}
+
+	public void testValuesKeptAsWritten() throws Exception {
+		Document doc = DocumentHelper.createDocument();
+		Element root = doc.addElement("mirror")
+			.addAttribute("a", "007")
+			.addAttribute("b", "-0")
+			.addAttribute("c", "-12")
+			.addAttribute("d", "caf\u00e9 <&\"> \u20ac \ud83d\ude00");
+		root.addElement("dir").addAttribute("size", "999999999999999999").addText("some text");
+		root.addElement("dir").addAttribute("size", "-999999999999999999").addAttribute("d", "caf\u00e9");
+		root.addElement("dir").addAttribute("size", "1234567890123456789");	// does not fit the numbers
+		root.addElement("dir").addAttribute("size", "+5");
+
+		Document decoded = SnapshotCodec.decode(SnapshotCodec.encode(doc));
+		assertEquals(root.asXML(), decoded.getRootElement().asXML());
+
+		Document unpacked = SnapshotCodec.load(SnapshotCodec.pack(doc));
+		assertEquals(root.asXML(), unpacked.getRootElement().asXML());
+	}
+
+	public void testPacked() throws Exception {
+		Document doc = read(STRUCTURE_FILE);
+		String xml = doc.asXML();
+		String packed = SnapshotCodec.pack(doc);
+
+		assertTrue(SnapshotCodec.isPacked(packed));
+		assertFalse(SnapshotCodec.isPacked(xml));
+		assertTrue(packed.length() * 4 < xml.length());
+
+		// the root element is still queried
+		Element root = DocumentHelper.parseText(packed).getRootElement();
+		assertEquals(doc.getRootElement().attributeValue("checkoutTime"), root.attributeValue("checkoutTime"));
+		assertEquals(0, root.elements().size());
+
+		// weighed about as much as the XML
+		long length = SnapshotCodec.xmlLength(packed);
+		assertTrue(length > xml.length() / 2 && length < xml.length() * 2);
+		assertEquals(xml.length(), SnapshotCodec.xmlLength(xml));
+	}
+
+	public void testStructures() throws Exception {
+		Document doc = read(STRUCTURE_FILE);
+		TreeMirrorStructure xml = new TreeMirrorStructure(new FileInputStream(STRUCTURE_FILE));
+
+		TreeMirrorStructure packed = new TreeMirrorStructure(SnapshotCodec.pack(doc));
+		assertEquals(xml.getDocumentID(), packed.getDocumentID());
+		assertEquals(content(xml.getDocument().getRootElement()), content(packed.getDocument().getRootElement()));
+
+		byte[] snapshot = SnapshotCodec.encode(doc);
+		TreeMirrorStructure file = new TreeMirrorStructure(new ByteArrayInputStream(snapshot));
+		assertEquals(xml.getTimeStamp(), file.getTimeStamp());
+
+		CompactTreeMirrorStructure compact = new CompactTreeMirrorStructure(new ByteArrayInputStream(snapshot));
+		CompactTreeMirrorStructure compactPacked = new CompactTreeMirrorStructure(SnapshotCodec.pack(doc));
+		// the compact structures drop the whitespace between the elements
+		assertEquals(new CompactTreeMirrorStructure(new FileInputStream(STRUCTURE_FILE)).toString(), 
+						compact.toString());
+		assertEquals(compact.toString(), compactPacked.toString());
+	}
+
+	public void testDelta() throws Exception {
+		Document doc = read(DELTA_FILE);
+		DOMMirrorDelta xml = new DOMMirrorDelta("testmachine_ftp-1141113730566-delta.xml", doc.asXML());
+		DOMMirrorDelta packed = new DOMMirrorDelta("testmachine_ftp-1141113730566-delta.xml",
+													SnapshotCodec.pack(doc));
+
+		assertEquals(xml.getDeletedFiles().size(), packed.getDeletedFiles().size());
+		assertEquals(xml.getNewFiles().size(), packed.getNewFiles().size());
+		assertEquals(xml.getUpdatedFiles().size(), packed.getUpdatedFiles().size());
+		assertEquals(xml.getTimestamp(), packed.getTimestamp());
+	}
+
+	public void testInvalidSnapshot() throws Exception {
+		byte[] snapshot = SnapshotCodec.encode(read(DELTA_FILE));
+		byte[] truncated = new byte[snapshot.length - 10];
+		System.arraycopy(snapshot, 0, truncated, 0, truncated.length);
+
+		try {
+			SnapshotCodec.decode(truncated);
+			fail("DocumentException expected");
+		}catch(DocumentException e) {
+			// expected
+		}
+
+		try {
+			SnapshotCodec.decode("<mirror/>".getBytes());
+			fail("DocumentException expected");
+		}catch(DocumentException e) {
+			// expected
+		}
+	}
+
+	private Document read(String file) throws DocumentException, IOException {
+		return new SAXReader().read(new File(file));
+	}
+
+	/**
+	 * Element, its attributes and its text, without the indentation
+	 */
+	private String content(Element e) {
+		StringBuffer sb = new StringBuffer("<").append(e.getName());
+		for(int i = 0; i < e.attributeCount(); i++) {
+			Attribute a = e.attribute(i);
+			sb.append(' ').append(a.getName()).append('=').append(a.getValue());
+		}
+		sb.append('>').append(e.getTextTrim());
+
+		Iterator it = e.elementIterator();
+		while(it.hasNext())
+			sb.append(content((Element)it.next()));
+		return sb.append("</>").toString();
+	}
+}
@@ -0,0 +1,133 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import edos.mimo.Config;
+import edos.mimo.dom.ITreeMirrorStructure;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.dom.db.StructureCache;
+
+import junit.framework.TestCase;
+
+public class StructureCacheTest extends TestCase {
+	private static ITreeMirrorStructure referenceStruct;
+	private static ITreeMirrorStructure newStruct;
+	
+	// constants: test data
+	private static final String DEFAULT_REFERENCE_FILE 	= "test-data/testmachine_ftp-1141113730566.xml";
+	private static final String DEFAULT_NEW_FILE		= "test-data/testmachine_ftp-1141114200000.xml";
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		referenceStruct = new TreeMirrorStructure(new FileInputStream(new File(DEFAULT_REFERENCE_FILE)));
+		newStruct = new TreeMirrorStructure(new FileInputStream(new File(DEFAULT_NEW_FILE)));
+	}
+
+	public void testHitsAndMisses() {
+		StructureCache cache = new StructureCache(1000);
+		
+		assertNull(cache.get("a_ftp"));
+		cache.put("a_ftp", referenceStruct, 100);
+		assertSame(referenceStruct, cache.get("a_ftp"));
+		assertSame(referenceStruct, cache.get("a_ftp"));
+		
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+	
+	public void testWriteThrough() {
+		StructureCache cache = new StructureCache(1000);
+		
+		cache.put("a_ftp", referenceStruct, 100);
+		cache.put("a_ftp", newStruct, 200);	// saved
+		assertSame(newStruct, cache.get("a_ftp"));
+		assertEquals(200, cache.getWeight());
+		
+		cache.invalidate("a_ftp");
+		assertNull(cache.get("a_ftp"));
+		assertEquals(0, cache.getWeight());
+	}
+	
+	public void testReplaceByDelta() {
+		StructureCache cache = new StructureCache(1000);
+		
+		cache.replace("a_ftp", newStruct);	// previous state not cached
+		assertNull(cache.get("a_ftp"));
+		
+		cache.put("a_ftp", referenceStruct, 300);
+		cache.replace("a_ftp", newStruct);
+		assertSame(newStruct, cache.get("a_ftp"));
+		assertEquals(300, cache.getWeight());
+		
+		cache.replace("a_ftp", null);	// new state unknown
+		assertNull(cache.get("a_ftp"));
+		assertEquals(0, cache.getWeight());
+	}
+	
+	public void testMasterDroppedWhenTheMasterChanges() {
+		StructureCache cache = new StructureCache(1000);
+		
+		cache.put(StructureCache.MASTER_KEY, referenceStruct, 100);
+		cache.stored("a_ftp", newStruct, 100);
+		assertSame(referenceStruct, cache.get(StructureCache.MASTER_KEY));
+		
+		cache.replace(Config.MASTER, newStruct);	// master saved as a delta
+		assertNull(cache.get(StructureCache.MASTER_KEY));
+		
+		cache.put(StructureCache.MASTER_KEY, referenceStruct, 100);
+		cache.stored(Config.MASTER, newStruct, 100);	// master saved in full
+		assertNull(cache.get(StructureCache.MASTER_KEY));
+		assertSame(newStruct, cache.get(Config.MASTER));
+	}
+	
+	public void testLeastRecentlyUsedEviction() {
+		StructureCache cache = new StructureCache(1000);
+		
+		cache.put("a_ftp", referenceStruct, 400);
+		cache.put("b_ftp", referenceStruct, 400);
+		cache.get("a_ftp");		// b is now the least recently used
+		cache.put("c_ftp", newStruct, 400);
+		
+		assertNull(cache.get("b_ftp"));
+		assertNotNull(cache.get("a_ftp"));
+		assertNotNull(cache.get("c_ftp"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(800, cache.getWeight());
+	}
+	
+	public void testOversizedStructureNotCached() {
+		StructureCache cache = new StructureCache(1000);
+		
+		cache.put("a_ftp", referenceStruct, 400);
+		cache.put("b_ftp", newStruct, 2000);
+		
+		assertNull(cache.get("b_ftp"));
+		assertNotNull(cache.get("a_ftp"));	// nothing evicted for it
+		assertEquals(0, cache.getEvictions());
+	}
+	
+	public void testDisabled() {
+		StructureCache cache = new StructureCache(0);
+		
+		cache.put("a_ftp", referenceStruct, 1);
+		assertNull(cache.get("a_ftp"));
+		assertEquals(0, cache.size());
+	}
+}
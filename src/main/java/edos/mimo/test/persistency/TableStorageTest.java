@@ -0,0 +1,220 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.test.persistency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.xml.DOMConfigurator;
+import org.dom4j.Element;
+
+import edos.mimo.Config;
+import edos.mimo.IMasterMirror;
+import edos.mimo.ISecondaryMirror;
+import edos.mimo.dal.ConnectionPool;
+import edos.mimo.dom.DOMMirrorDiff;
+import edos.mimo.dom.TreeMirrorStructure;
+import edos.mimo.filesystem.DiffGeneratorFactory;
+import edos.mimo.filesystem.IDiffGenerator;
+import edos.mimo.filesystem.IFileDiff;
+import edos.mimo.filesystem.IMirrorDiff;
+import edos.mimo.filesystem.MirrorDiffFactory;
+import edos.mimo.rdbms.TableDiffGenerator;
+import edos.mimo.rdbms.TableMirrorDelta;
+import edos.mimo.rdbms.TableMirrorDiff;
+import edos.mimo.rdbms.TableMirrorStructure;
+import edos.mimo.rdbms.TableStore;
+
+import junit.framework.TestCase;
+
+/**
+ * Table storage on an embedded database (in-memory H2, its driver
+ * must be in the classpath): the diffs computed by the database must
+ * be the ones of the tree engines, on the same structures.
+ */
+public class TableStorageTest extends TestCase {
+	private static final String URL = "jdbc:h2:mem:tablestorage;DB_CLOSE_DELAY=-1";
+
+	private static String masterFile = "test-data/testmachine_ssh-1141114107946.xml";
+	private static String mirrorFile = "test-data/testmachine_ftp-1141113730566.xml";
+
+	private Connection admin;	// keeps the database
+	private ConnectionPool pool;
+	private TableStore store;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+
+		Class.forName("org.h2.Driver");
+		admin = DriverManager.getConnection(URL, "sa", "");
+		pool = new ConnectionPool(URL, "sa", "", 2, 1000, ConnectionPool.DEFAULT_VALIDATION_QUERY);
+		store = new TableStore(pool);
+		store.createTables();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		pool.close();
+		Statement stmt = admin.createStatement();
+		stmt.execute("drop all objects");
+		stmt.close();
+		admin.close();
+	}
+
+	public void testSameAsTreeDiff() throws Exception {
+		TreeMirrorStructure masterTree = load(masterFile);
+		TreeMirrorStructure mirrorTree = load(mirrorFile);
+		DOMMirrorDiff expected = (DOMMirrorDiff)DiffGeneratorFactory.getDiffGenerator(Config.TREE, Config.MERGE_DIFF,
+						(IMasterMirror)masterTree.getMirror(), (ISecondaryMirror)mirrorTree.getMirror()).getDiff();
+
+		TableMirrorStructure master = store(masterTree);
+		TableMirrorStructure mirror = store(mirrorTree);
+		TableDiffGenerator gen = new TableDiffGenerator(master, mirror);
+		IMirrorDiff diff = gen.getDiff();
+
+		assertEquals(1, diff.countMissingFiles());
+		assertEquals(1, diff.newerFiles());
+		assertEquals(1, diff.olderFiles());
+		assertEquals(2, diff.corruptedFiles());
+		assertEquals(1, diff.superfluousFiles());
+		assertEquals(0, diff.wrongTypeFiles());
+		assertEquals(6, gen.countDifferences());
+
+		// same entries (the order differs)
+		List<String> expectedEntries = new ArrayList<String>();
+		for(Iterator it = expected.getDom4jDocument().getRootElement().elementIterator(); it.hasNext(); ) {
+			Element e = (Element)it.next();
+			expectedEntries.add(e.getName() + " " + e.attributeValue(IMirrorDiff.PATH));
+		}
+		List<String> actualEntries = new ArrayList<String>();
+		for(Iterator<IFileDiff> it = ((TableMirrorDiff)diff).getFileDiffs().iterator(); it.hasNext(); ) {
+			IFileDiff d = it.next();
+			actualEntries.add(statusName(d.getStatus()) + " " + d.getPath());
+		}
+		Collections.sort(expectedEntries);
+		Collections.sort(actualEntries);
+		assertEquals(expectedEntries, actualEntries);
+
+		// computed again: replaced, not added
+		new TableDiffGenerator(master, mirror);
+		assertEquals(6, ((TableMirrorDiff)diff).getFileDiffs().size());
+	}
+
+	public void testFactories() throws Exception {
+		TreeMirrorStructure masterTree = load(masterFile);
+		TreeMirrorStructure mirrorTree = load(mirrorFile);
+		IMasterMirror master = (IMasterMirror)masterTree.getMirror();
+		ISecondaryMirror mirror = (ISecondaryMirror)mirrorTree.getMirror();
+		master.setStructure(store(masterTree));
+		mirror.setStructure(store(mirrorTree));
+
+		IDiffGenerator gen = DiffGeneratorFactory.getDiffGenerator(Config.TABLE, master, mirror);
+		assertTrue(gen instanceof TableDiffGenerator);
+		assertEquals(2, gen.getDiff().corruptedFiles());
+
+		IMirrorDiff diff = MirrorDiffFactory.getMirrorDiff(Config.TABLE, master, mirror);
+		assertTrue(diff instanceof TableMirrorDiff);
+		assertEquals(1, diff.countMissingFiles());
+	}
+
+	public void testDelta() throws Exception {
+		TableMirrorStructure older = new TableMirrorStructure(store, "mirror", 1000);
+		older.addFile("/pub/", 10, 4096);
+		older.addFile("/pub/a.rpm", 10, 100);
+		older.addFile("/pub/b.rpm", 10, 100);
+		older.addFile("/pub/c.rpm", 10, 100);
+		older.save();
+
+		TableMirrorStructure newer = new TableMirrorStructure(store, "mirror", 2000);
+		newer.addFile("/pub/", 10, 4096);
+		newer.addFile("/pub/b.rpm", 20, 100);	// updated
+		newer.addFile("/pub/c.rpm", 10, 100);
+		newer.addFile("/pub/d.rpm", 20, 100);	// added
+		newer.save();
+
+		TableMirrorDelta delta = new TableMirrorDelta(older, newer);
+		assertEquals(1, delta.countNewFiles());
+		assertEquals(1, delta.countDeletedFiles());
+		assertEquals(1, delta.countUpdatedFiles());
+		assertEquals(3, delta.getSize());
+		assertEquals("/pub/d.rpm", delta.getNewFiles().get(0));
+		assertEquals("/pub/a.rpm", delta.getDeletedFiles().get(0));
+		assertEquals("/pub/b.rpm", delta.getUpdatedFiles().get(0));
+
+		assertEquals(2000, store.getLatestSnapshot("mirror"));
+		assertEquals(2, store.getSnapshots("mirror").size());
+	}
+
+	public void testSnapshots() throws Exception {
+		TableMirrorStructure struct = new TableMirrorStructure(store, "mirror", 1000);
+		for(int i = 0; i < 120; i++)
+			struct.addFile("/file-" + i, i, i);
+		struct.save();
+		assertEquals(120, struct.countFiles());
+
+		// stored again: replaced
+		struct.addFile("/file-0", 0, 0);
+		struct.save();
+		assertEquals(1, struct.countFiles());
+
+		// abandoned: unchanged
+		struct.addFile("/file-1", 1, 1);
+		struct.abort();
+		assertEquals(1, struct.countFiles());
+		assertEquals(0, pool.getActive());
+
+		store.deleteSnapshot("mirror", 1000);
+		assertEquals(0, struct.countFiles());
+		assertEquals(-1, store.getLatestSnapshot("mirror"));
+	}
+
+	private TreeMirrorStructure load(String file) throws Exception {
+		return new TreeMirrorStructure(new FileInputStream(new File(file)));
+	}
+
+	private TableMirrorStructure store(TreeMirrorStructure tree) throws Exception {
+		TableMirrorStructure struct = new TableMirrorStructure(store, tree.getMirrorID(), tree.getTimeStamp());
+		struct.addTree(tree);
+		struct.save();
+		return struct;
+	}
+
+	private static String statusName(int status) {
+		switch(status) {
+			case IFileDiff.FILE_MISSING:
+				return IMirrorDiff.MISSING;
+			case IFileDiff.FILE_CORRUPTED:
+				return IMirrorDiff.CORRUPTED;
+			case IFileDiff.FILE_OLDER:
+				return IMirrorDiff.OLDER;
+			case IFileDiff.FILE_NEWER:
+				return IMirrorDiff.NEWER;
+			case IFileDiff.FILE_SUPERFLUOUS:
+				return IMirrorDiff.SUPERFLUOUS;
+			default:
+				return IMirrorDiff.WRONG_TYPE;
+		}
+	}
+}
@@ -26,11 +26,12 @@ import java.util.Scanner;
 import org.apache.log4j.xml.DOMConfigurator;
 import org.dom4j.DocumentException;
 
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.DOMMirrorDelta;
 import edos.mimo.dom.ITreeMirrorStructure;
 import edos.mimo.dom.TreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
+import edos.mimo.exception.StorageException;
 import edos.mimo.statistics.MirrorDeltaStatistics;
 
 
@@ -104,13 +105,13 @@ public class GenerateTreeDeltaCLI {
 	}
 
 	private static void loadFromDatabase(String refFile, String newFile) {	
-		BDBXMLManager manager;
+		IStorage manager;
 		
 		/*
 		 * LOADING documents
 		 */		
 		try {
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
 			System.out.println("Loading " + refFile);			
 			referenceStruct = new TreeMirrorStructure(manager.getDocument(refFile));
@@ -125,7 +126,7 @@ public class GenerateTreeDeltaCLI {
 			System.err.println("Unable to load mirror from file...");
 			doce.printStackTrace();
 			
-		}catch (BDBXMLException e) {
+		}catch (StorageException e) {
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 			System.exit(1);
@@ -30,13 +30,14 @@ import org.dom4j.DocumentException;
 import edos.mimo.Config;
 import edos.mimo.IMasterMirror;
 import edos.mimo.ISecondaryMirror;
-import edos.mimo.dom.DOMDiffGenerator;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
 import edos.mimo.dom.DOMMirrorDiff;
 import edos.mimo.dom.ITreeMirrorStructure;
 import edos.mimo.dom.TreeMirrorStructure;
-import edos.mimo.dom.db.BDBXMLManager;
-import edos.mimo.exception.BDBXMLException;
+import edos.mimo.exception.StorageException;
 import edos.mimo.filesystem.DiffGeneratorFactory;
+import edos.mimo.filesystem.IDiffGenerator;
 import edos.mimo.filesystem.IMirrorDiff;
 import edos.mimo.statistics.MirrorDiffStatistics;
 
@@ -114,9 +115,9 @@ public class GenerateTreeDiffCLI {
 		 */
 		startTimeInMillis = new GregorianCalendar().getTimeInMillis();
 		System.out.println("Generating the diff between " + masterFile + " and " + mirrorFile);
-		DOMDiffGenerator gen;
+		IDiffGenerator gen;
 		try {
-			gen = (DOMDiffGenerator)DiffGeneratorFactory.getDiffGenerator(Config.TREE, master, mirror);
+			gen = DiffGeneratorFactory.getDiffGenerator(Config.TREE, master, mirror);
 			
 		} catch (ParseException e) {
 			System.err.println("Error parsing dates in structures: " + e.getMessage());
@@ -150,13 +151,13 @@ public class GenerateTreeDiffCLI {
 	}
 
 	private static void loadFromDatabase(String masterFile, String mirrorFile) {	
-		BDBXMLManager manager;
+		IStorage manager;
 		
 		/*
 		 * LOADING documents
 		 */		
 		try {
-			manager = BDBXMLManager.getInstance();
+			manager = StorageFactory.getStorage();
 			
 			System.out.println("Loading " + masterFile);			
 			ITreeMirrorStructure masterS = new TreeMirrorStructure(manager.getDocument(masterFile));
@@ -182,7 +183,7 @@ public class GenerateTreeDiffCLI {
 
 			System.exit(1);
 			
-		} catch (BDBXMLException e) {
+		} catch (StorageException e) {
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 			System.exit(1);
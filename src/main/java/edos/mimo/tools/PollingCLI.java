@@ -0,0 +1,68 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.tools;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+
+import edos.mimo.Config;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.polling.AdaptiveScheduler;
+import edos.mimo.polling.PollingDecision;
+import edos.mimo.polling.PollingState;
+
+/**
+ * Prints the state of the adaptive polling (see AdaptiveScheduler): the
+ * interval and next crawl of each mirror, and its latest decisions.
+ * 
+ *  PollingCLI [state file]
+ * 
+ * The state file of the config file is read by default.
+ * 
+ * @author marc
+ *
+ */
+public class PollingCLI {
+
+	public static void main(String[] args) {
+		try {
+			String file = (args.length > 0)?args[0]:Config.getInstance().getPollingStateFile();
+			
+			List<PollingState> states = AdaptiveScheduler.readStates(new File(file));
+			Iterator<PollingState> it = states.iterator();
+			while(it.hasNext()) {
+				PollingState state = it.next();
+				System.out.println(state);
+				
+				Iterator<PollingDecision> decisions = state.getDecisions().iterator();
+				while(decisions.hasNext())
+					System.out.println("\t" + decisions.next());
+			}
+			
+		}catch(ConfigException e) {
+			System.err.println("Blocking error in the configuration file: " + e.getMessage());
+			System.exit(1);
+			
+		}catch(DocumentException e) {
+			System.err.println("Unable to read the polling state: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/* 
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.tools;
+
+import org.apache.log4j.xml.DOMConfigurator;
+
+import edos.mimo.Config;
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dal.retention.RetentionEngine;
+import edos.mimo.dal.retention.RetentionReport;
+import edos.mimo.exception.ConfigException;
+import edos.mimo.exception.StorageException;
+
+/**
+ * Thins out the history of the mirrors now, with the retention tiers of
+ * the config file (see RetentionEngine), and prints the report:
+ * 
+ *  RetentionCLI [dry-run]
+ * 
+ * With dry-run (or dryRun="true" in the config file), the documents 
+ * which would be deleted and rewritten are listed, nothing is changed.
+ * 
+ * @author marc
+ *
+ */
+public class RetentionCLI {
+
+	public static void main(String[] args) {
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+		
+		boolean dryRun = (args.length > 0 && args[0].equals("dry-run"));
+		IStorage storage = null;
+		try {
+			Config config = Config.getInstance();
+			dryRun = dryRun || config.isRetentionDryRun();
+			
+			storage = StorageFactory.getStorage();
+			RetentionEngine engine = new RetentionEngine(storage, config.getRetentionPolicy());
+			RetentionReport report = engine.run(System.currentTimeMillis(), dryRun, 
+													config.isRetentionOfStatistics());
+			System.out.println(report);
+			
+		}catch(ConfigException e) {
+			System.err.println("Blocking error in the configuration file: " + e.getMessage());
+			System.exit(1);
+			
+		}catch(StorageException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			
+		}finally{
+			if(storage != null)
+				storage.close();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2004-2007 EDOS consortium http://www.edos-project.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package edos.mimo.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.log4j.xml.DOMConfigurator;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+
+import edos.mimo.dal.IStorage;
+import edos.mimo.dal.StorageFactory;
+import edos.mimo.dom.SnapshotCodec;
+import edos.mimo.exception.StorageException;
+
+/**
+ * Converts structure and delta documents between XML and binary
+ * snapshots (see SnapshotCodec):
+ *
+ *  pack <file>...		writes the snapshot of XML files (foo.xml -> foo.snapshot)
+ *  export <file>...		writes snapshots as pretty printed XML (foo.snapshot -> foo.xml)
+ *  export-db <doc>...	writes documents of the database as pretty printed XML files,
+ *  					whether they were stored packed or not (eg. host_ftp-1141113730566.xml)
+ *
+ * The other tools (GenerateTreeDeltaCLI, GenerateTreeDiffCLI) read snapshot
+ * files as well as XML files.
+ *
+ * @author marc
+ *
+ */
+public class SnapshotCLI {
+	private static final String XML_EXTENSION = ".xml";
+
+	public static void main(String[] args) {
+		DOMConfigurator.configure("log4j-config-4testing.xml");
+
+		if(args.length < 2) {
+			System.err.println("Usage: SnapshotCLI pack|export|export-db <file or document>...");
+			System.exit(1);
+		}
+
+		String command = args[0];
+		try {
+			for(int i = 1; i < args.length; i++) {
+				if(command.equals("pack"))
+					pack(args[i]);
+				else if(command.equals("export"))
+					export(args[i]);
+				else if(command.equals("export-db"))
+					exportFromDatabase(args[i]);
+				else{
+					System.err.println("Unknown command: " + command);
+					System.exit(1);
+				}
+			}
+
+		}catch(DocumentException doce) {
+			System.err.println("Unable to read the document: " + doce.getMessage());
+			System.exit(1);
+
+		}catch(StorageException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+
+		}catch(IOException ioe) {
+			System.err.println("Unable to write the file: " + ioe.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void pack(String file) throws DocumentException, IOException {
+		Document doc = read(file);
+		String target = rename(file, XML_EXTENSION, SnapshotCodec.FILE_EXTENSION);
+
+		OutputStream out = new FileOutputStream(target);
+		try {
+			SnapshotCodec.write(doc, out);
+		}finally{
+			out.close();
+		}
+		System.out.println(file + " (" + new File(file).length() + " bytes) -> "
+							+ target + " (" + new File(target).length() + " bytes)");
+	}
+
+	private static void export(String file) throws DocumentException, IOException {
+		String target = rename(file, SnapshotCodec.FILE_EXTENSION, XML_EXTENSION);
+		if(target.equals(file))
+			target = file + XML_EXTENSION;
+
+		writeXML(read(file), target);
+		System.out.println(file + " -> " + target);
+	}
+
+	private static void exportFromDatabase(String docName)
+								throws DocumentException, IOException {
+		IStorage manager = StorageFactory.getStorage();
+		try {
+			writeXML(SnapshotCodec.load(manager.getDocument(docName)), docName);
+			System.out.println(docName + " exported");
+
+		}finally{
+			manager.close();
+		}
+	}
+
+	/**
+	 * Reads a snapshot or XML file
+	 */
+	private static Document read(String file) throws DocumentException, IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return SnapshotCodec.read(in);
+		}finally{
+			in.close();
+		}
+	}
+
+	private static void writeXML(Document doc, String file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			XMLWriter writer = new XMLWriter(out, OutputFormat.createPrettyPrint());
+			writer.write(doc);
+			writer.flush();
+		}finally{
+			out.close();
+		}
+	}
+
+	private static String rename(String file, String from, String to) {
+		if(file.endsWith(from))
+			return file.substring(0, file.length() - from.length()) + to;
+		return file + to;
+	}
+}